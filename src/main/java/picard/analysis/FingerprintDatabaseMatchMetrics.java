@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.analysis;
+
+import htsjdk.samtools.metrics.MetricBase;
+
+/**
+ * Metrics for the best matches of a sample's fingerprint among the samples of a fingerprint database.
+ */
+public class FingerprintDatabaseMatchMetrics extends MetricBase {
+    /** The sample whose fingerprint was checked against the database. */
+    public String SAMPLE;
+
+    /** The sample in the database that was compared to. */
+    public String DATABASE_SAMPLE;
+
+    /** The file the database sample was fingerprinted from, if known. */
+    public String DATABASE_SOURCE;
+
+    /** The rank of this match among the matches of SAMPLE, 1 being the match with the highest LOD. */
+    public int RANK;
+
+    /** The Log Likelihood of SAMPLE's data given the database sample's genotypes. */
+    public double LL_EXPECTED_SAMPLE;
+
+    /** The Log Likelihood of SAMPLE's data given a random sample from the human population. */
+    public double LL_RANDOM_SAMPLE;
+
+    /** The LOD for the database sample vs. a random sample, as LOD_EXPECTED_SAMPLE in FingerprintingSummaryMetrics. */
+    public double LOD;
+
+    /** The LOD of a match assuming SAMPLE is a tumor and the database sample its normal. */
+    public double LOD_TUMOR_NORMAL;
+
+    /** The LOD of a match assuming SAMPLE is a normal and the database sample its tumor. */
+    public double LOD_NORMAL_TUMOR;
+}
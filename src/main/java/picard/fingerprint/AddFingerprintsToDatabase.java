@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.fingerprint;
+
+import htsjdk.samtools.BamFileIoUtils;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import picard.cmdline.CommandLineProgram;
+import picard.cmdline.CommandLineProgramProperties;
+import picard.cmdline.Option;
+import picard.cmdline.StandardOptionDefinitions;
+import picard.cmdline.programgroups.Fingerprinting;
+
+import java.io.File;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Fingerprints SAM/BAM and VCF files and adds the fingerprint of each sample to a fingerprint database, so that later
+ * fingerprints can be checked against them with CheckFingerprintAgainstDatabase.
+ */
+@CommandLineProgramProperties(
+        usage = AddFingerprintsToDatabase.USAGE_DETAILS,
+        usageShort = "Adds the fingerprints of the samples in SAM/BAM or VCF files to a fingerprint database",
+        programGroup = Fingerprinting.class
+)
+public class AddFingerprintsToDatabase extends CommandLineProgram {
+
+    static final String USAGE_DETAILS = "Computes a fingerprint for each sample in the supplied SAM/BAM and VCF files, " +
+            "merging the evidence for a sample across all the files, and appends them to a fingerprint database.  The " +
+            "database is created if it does not exist, and may only be used with the HAPLOTYPE_MAP it was created with.  " +
+            "A sample added more than once appears more than once in the database.";
+
+    @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "One or more SAM/BAM or VCF files (or lists of files) to fingerprint.")
+    public List<File> INPUT;
+
+    @Option(shortName = "H", doc = "The file of haplotype data to use to pick SNPs to fingerprint")
+    public File HAPLOTYPE_MAP;
+
+    @Option(shortName = "DB", doc = "The fingerprint database to add to.")
+    public File DATABASE;
+
+    @Option(doc = "The number of threads to use to process BAM files and generate Fingerprints.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc = "Allow the use of duplicate reads in generating fingerprints from BAM files.")
+    public boolean ALLOW_DUPLICATE_READS = false;
+
+    private final Log log = Log.getInstance(AddFingerprintsToDatabase.class);
+
+    /** Stock main method. */
+    public static void main(final String[] args) {
+        new AddFingerprintsToDatabase().instanceMainWithExit(args);
+    }
+
+    @Override
+    protected int doWork() {
+        final List<File> inputs = IOUtil.unrollFiles(INPUT, BamFileIoUtils.BAM_FILE_EXTENSION, IOUtil.SAM_FILE_EXTENSION,
+                ".vcf", ".vcf.gz");
+        for (final File f : inputs) IOUtil.assertFileIsReadable(f);
+        IOUtil.assertFileIsReadable(HAPLOTYPE_MAP);
+        IOUtil.assertFileIsWritable(DATABASE);
+
+        final HaplotypeMap map = new HaplotypeMap(HAPLOTYPE_MAP);
+        final FingerprintChecker checker = new FingerprintChecker(map);
+        checker.setAllowDuplicateReads(ALLOW_DUPLICATE_READS);
+        final FingerprintDatabase database = new FingerprintDatabase(DATABASE, map);
+
+        final SortedMap<String, Fingerprint> fingerprints = checker.fingerprintFilesBySample(inputs, NUM_THREADS);
+        database.add(fingerprints.values());
+        log.info("Added " + fingerprints.size() + " samples to " + DATABASE + ", which now has " + database.size() + " samples.");
+        return 0;
+    }
+}
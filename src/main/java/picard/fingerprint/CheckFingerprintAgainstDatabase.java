@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.fingerprint;
+
+import htsjdk.samtools.BamFileIoUtils;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import picard.analysis.FingerprintDatabaseMatchMetrics;
+import picard.cmdline.CommandLineProgram;
+import picard.cmdline.CommandLineProgramProperties;
+import picard.cmdline.Option;
+import picard.cmdline.StandardOptionDefinitions;
+import picard.cmdline.programgroups.Fingerprinting;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Fingerprints the samples in SAM/BAM and VCF files and finds the samples of a fingerprint database they best match,
+ * without having to fingerprint the files the database samples came from again.
+ */
+@CommandLineProgramProperties(
+        usage = CheckFingerprintAgainstDatabase.USAGE_DETAILS,
+        usageShort = "Finds the samples in a fingerprint database that best match the samples in SAM/BAM or VCF files",
+        programGroup = Fingerprinting.class
+)
+public class CheckFingerprintAgainstDatabase extends CommandLineProgram {
+
+    static final String USAGE_DETAILS = "Computes a fingerprint for each sample in the supplied SAM/BAM and VCF files, " +
+            "merging the evidence for a sample across all the files, and compares it to every sample in a fingerprint " +
+            "database built by AddFingerprintsToDatabase.  The LODs are those CheckFingerprint and " +
+            "CrosscheckReadGroupFingerprints would give comparing the two fingerprints.  For each input sample the " +
+            "MAX_MATCHES database samples with the highest LOD are written to the OUTPUT metrics.";
+
+    @Option(shortName = StandardOptionDefinitions.INPUT_SHORT_NAME, doc = "One or more SAM/BAM or VCF files (or lists of files) to fingerprint.")
+    public List<File> INPUT;
+
+    @Option(shortName = "H", doc = "The file of haplotype data to use to pick SNPs to fingerprint")
+    public File HAPLOTYPE_MAP;
+
+    @Option(shortName = "DB", doc = "The fingerprint database to check against.")
+    public File DATABASE;
+
+    @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "The file to which to write the best matches of each sample.")
+    public File OUTPUT;
+
+    @Option(doc = "The number of database samples to report for each input sample.")
+    public int MAX_MATCHES = 10;
+
+    @Option(doc = "The number of threads to use to process BAM files and to compare fingerprints to the database.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc = "Allow the use of duplicate reads in generating fingerprints from BAM files.")
+    public boolean ALLOW_DUPLICATE_READS = false;
+
+    @Option(doc = "Assumed genotyping error rate that provides a floor on the probability that a genotype comes from" +
+            " the expected sample.")
+    public double GENOTYPING_ERROR_RATE = 0.01;
+
+    @Option(doc = "The rate at which a het in a normal sample turns into a hom in the tumor.")
+    public double LOSS_OF_HET_RATE = 0.5;
+
+    @Option(doc = "Add the fingerprints of the input samples to the database after checking them.")
+    public boolean ADD_TO_DATABASE = false;
+
+    private final Log log = Log.getInstance(CheckFingerprintAgainstDatabase.class);
+
+    /** Stock main method. */
+    public static void main(final String[] args) {
+        new CheckFingerprintAgainstDatabase().instanceMainWithExit(args);
+    }
+
+    @Override
+    protected int doWork() {
+        final List<File> inputs = IOUtil.unrollFiles(INPUT, BamFileIoUtils.BAM_FILE_EXTENSION, IOUtil.SAM_FILE_EXTENSION,
+                ".vcf", ".vcf.gz");
+        for (final File f : inputs) IOUtil.assertFileIsReadable(f);
+        IOUtil.assertFileIsReadable(HAPLOTYPE_MAP);
+        IOUtil.assertFileIsReadable(DATABASE);
+        IOUtil.assertFileIsWritable(OUTPUT);
+
+        final HaplotypeMap map = new HaplotypeMap(HAPLOTYPE_MAP);
+        final FingerprintChecker checker = new FingerprintChecker(map);
+        checker.setAllowDuplicateReads(ALLOW_DUPLICATE_READS);
+        final FingerprintDatabase database = new FingerprintDatabase(DATABASE, map);
+
+        final SortedMap<String, Fingerprint> fingerprints = checker.fingerprintFilesBySample(inputs, NUM_THREADS);
+        log.info("Checking " + fingerprints.size() + " samples against the " + database.size() + " samples in " + DATABASE);
+
+        final MetricsFile<FingerprintDatabaseMatchMetrics, ?> metricsFile = getMetricsFile();
+        for (final Fingerprint fingerprint : fingerprints.values()) {
+            final List<MatchResults> results = database.scan(fingerprint, GENOTYPING_ERROR_RATE, LOSS_OF_HET_RATE, NUM_THREADS);
+            final List<Integer> order = new ArrayList<>(results.size());
+            for (int i = 0; i < results.size(); ++i) order.add(i);
+            // Best LOD first, and the earlier database sample first among equal LODs
+            Collections.sort(order, (a, b) -> Double.compare(results.get(b).getLOD(), results.get(a).getLOD()));
+
+            for (int rank = 0; rank < Math.min(MAX_MATCHES, order.size()); ++rank) {
+                final int i = order.get(rank);
+                final MatchResults result = results.get(i);
+                final FingerprintDatabaseMatchMetrics metrics = new FingerprintDatabaseMatchMetrics();
+                metrics.SAMPLE = fingerprint.getSample();
+                metrics.DATABASE_SAMPLE = database.getSample(i);
+                metrics.DATABASE_SOURCE = database.getSource(i);
+                metrics.RANK = rank + 1;
+                metrics.LL_EXPECTED_SAMPLE = result.getSampleLikelihood();
+                metrics.LL_RANDOM_SAMPLE = result.getPopulationLikelihood();
+                metrics.LOD = result.getLOD();
+                metrics.LOD_TUMOR_NORMAL = result.getLodTN();
+                metrics.LOD_NORMAL_TUMOR = result.getLodNT();
+                metricsFile.addMetric(metrics);
+            }
+        }
+        metricsFile.write(OUTPUT);
+
+        if (ADD_TO_DATABASE) database.add(fingerprints.values());
+        return 0;
+    }
+}
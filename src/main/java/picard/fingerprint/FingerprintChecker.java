@@ -24,6 +24,7 @@
 
 package picard.fingerprint;
 
+import htsjdk.samtools.BamFileIoUtils;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -273,10 +274,9 @@ public class FingerprintChecker {
         SequenceUtil.assertSequenceDictionariesEqual(this.haplotypes.getHeader().getSequenceDictionary(),
                                                      in.getFileHeader().getSequenceDictionary());
 
-        final SamLocusIterator iterator = new SamLocusIterator(in, loci, in.hasIndex());
-        iterator.setEmitUncoveredLoci(true);
-        iterator.setMappingQualityScoreCutoff(this.minimumMappingQuality);
-        iterator.setQualityScoreCutoff(this.minimumBaseQuality);
+        final SparseSiteGenotyper genotyper = new SparseSiteGenotyper(this.haplotypes, loci);
+        genotyper.setMinimumMappingQuality(this.minimumMappingQuality);
+        genotyper.setMinimumBaseQuality(this.minimumBaseQuality);
 
         // In some cases it is useful to allow duplicate reads to be used - the most common is in single-end
         // sequence data where the duplicate marking may have been overly aggressive, and there is useful
@@ -284,7 +284,7 @@ public class FingerprintChecker {
         if (this.allowDuplicateReads) {
             final List<SamRecordFilter> filters = new ArrayList<>(1);
             filters.add(new NotPrimaryAlignmentFilter());
-            iterator.setSamFilters(filters);
+            genotyper.setSamFilters(filters);
         }
 
         final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup = new HashMap<>();
@@ -301,41 +301,23 @@ public class FingerprintChecker {
             }
         }
 
-        // Set of read/template names from which we have already sampled a base and a qual. Since we assume
-        // that all evidence for a haplotype is independent we can't sample two or more bases from a single
-        // read or read-pair because they would not be independent!
-        final Set<String> usedReadNames = new HashSet<String>(10000);
-
-        // Now go through the data at each locus and figure stuff out!
-        for (final SamLocusIterator.LocusInfo info : iterator) {
-            // TODO: Filter out the locus if the allele balance doesn't make sense for either a
-            // TODO: 50/50 het or a hom with some errors; in HS data with deep coverage any base
-            // TODO: with major strand bias could cause errors
-
-            // Find the matching Snp and HaplotypeProbs
-            final HaplotypeBlock haplotypeBlock = this.haplotypes.getHaplotype(info.getSequenceName(), info.getPosition());
-            final Snp snp = this.haplotypes.getSnp(info.getSequenceName(), info.getPosition());
-
-            for (final SamLocusIterator.RecordAndOffset rec : info.getRecordAndOffsets()) {
-                final SAMReadGroupRecord rg = rec.getRecord().getReadGroup();
-                if (rg == null || !fingerprintsByReadGroup.containsKey(rg)) {
-                    final PicardException e = new PicardException("Unknown read group: " + rg);
-                    log.error(e);
-                    throw e;
-                }
-                else {
-                    final String readName = rec.getRecord().getReadName();
-                    if (!usedReadNames.contains(readName)) {
-                        final HaplotypeProbabilitiesFromSequence probs = (HaplotypeProbabilitiesFromSequence) fingerprintsByReadGroup.get(rg).get(haplotypeBlock);
-                        final byte base = StringUtil.toUpperCase(rec.getReadBase());
-                        final byte qual = rec.getBaseQuality();
-
-                        probs.addToProbs(snp, base, qual);
-                        usedReadNames.add(readName);
-                    }
-                }
+        // The genotyper only reports one base from each read/template name. Since we assume that all evidence
+        // for a haplotype is independent we can't sample two or more bases from a single read or read-pair
+        // because they would not be independent!
+        // TODO: Filter out the locus if the allele balance doesn't make sense for either a
+        // TODO: 50/50 het or a hom with some errors; in HS data with deep coverage any base
+        // TODO: with major strand bias could cause errors
+        genotyper.genotype(in, (rec, haplotypeBlock, snp, base, qual) -> {
+            final SAMReadGroupRecord rg = rec.getReadGroup();
+            final Fingerprint fingerprint = rg == null ? null : fingerprintsByReadGroup.get(rg);
+            if (fingerprint == null) {
+                final PicardException e = new PicardException("Unknown read group: " + rg);
+                log.error(e);
+                throw e;
             }
-        }
+            ((HaplotypeProbabilitiesFromSequence) fingerprint.get(haplotypeBlock)).addToProbs(snp, base, qual);
+        });
+        CloserUtil.close(in);
 
         return fingerprintsByReadGroup;
     }
@@ -492,6 +474,34 @@ public class FingerprintChecker {
         return sampleFps;
     }
 
+    /**
+     * Fingerprints SAM/BAM files, and loads fingerprints from genotype (VCF) files, and merges the fingerprints by
+     * sample.  The source of a sample's fingerprint is the file it came from if it came from just one file.
+     */
+    public SortedMap<String, Fingerprint> fingerprintFilesBySample(final Collection<File> files, final int threads) {
+        final List<File> samFiles = new ArrayList<>();
+        final List<Fingerprint> fingerprints = new ArrayList<>();
+        for (final File f : files) {
+            if (BamFileIoUtils.isBamFile(f) || f.getName().endsWith(IOUtil.SAM_FILE_EXTENSION)) samFiles.add(f);
+            else fingerprints.addAll(loadFingerprints(f, null).values());
+        }
+        if (!samFiles.isEmpty()) fingerprints.addAll(fingerprintSamFiles(samFiles, threads, 1, TimeUnit.DAYS).values());
+
+        final Map<String, Set<File>> sourcesBySample = new HashMap<>();
+        for (final Fingerprint fp : fingerprints) {
+            sourcesBySample.computeIfAbsent(fp.getSample(), s -> new HashSet<>()).add(fp.getSource());
+        }
+
+        final SortedMap<String, Fingerprint> sampleFps = new TreeMap<>();
+        for (final Fingerprint merged : mergeFingerprintsBySample(fingerprints).values()) {
+            final Set<File> sources = sourcesBySample.get(merged.getSample());
+            final Fingerprint fp = new Fingerprint(merged.getSample(), sources.size() == 1 ? sources.iterator().next() : null, merged.getInfo());
+            fp.putAll(merged);
+            sampleFps.put(fp.getSample(), fp);
+        }
+        return sampleFps;
+    }
+
 
     /**
      * Top level method to take a set of one or more SAM files and one or more Genotype files and compare
@@ -0,0 +1,423 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.fingerprint;
+
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import picard.PicardException;
+import picard.util.MathUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An append-only file of sample fingerprints against which a new fingerprint can be checked without going back to
+ * the BAMs or genotype files the samples were fingerprinted from.
+ * <p/>
+ * Each sample is stored as the likelihoods and posterior probabilities of the three diploid haplotypes of every
+ * HaplotypeBlock of a HaplotypeMap, in a fixed order of the blocks, so that a sample is a single run of doubles that
+ * can be read straight from the memory-mapped file.  The file records a digest of the HaplotypeMap it was built with,
+ * and cannot be used with any other.  A new fingerprint is compared to every sample in the file by scan(), which
+ * gives the same LODs as FingerprintChecker.calculateMatchResults() would for each pair of fingerprints.
+ * <p/>
+ * The file is a header followed by the samples:
+ * <pre>
+ *     header: "PFPDB" version(int) numBlocks(int) haplotypeMapDigest(long)
+ *     sample: recordLength(int) sampleLength(int) sample(UTF-8) sourceLength(int) source(UTF-8)
+ *             numBlocks x {likelihoods(3 doubles) posteriors(3 doubles)}
+ * </pre>
+ * where recordLength is the number of bytes following it, and a block without evidence has NaN likelihoods.  Samples
+ * are only ever appended, under a file lock, so a file can be read while another process adds to it.  A sample left
+ * incomplete by a failed append is ignored, and is overwritten by the next append.
+ */
+public class FingerprintDatabase {
+    private static final byte[] MAGIC = "PFPDB".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 4 + 8;
+    private static final int VALUES_PER_BLOCK = 6;
+    /** The length of a sample with empty sample and source names, not counting its data */
+    private static final int MIN_RECORD_LENGTH = 4 + 4;
+    /** Samples are mapped in segments no larger than this, since a MappedByteBuffer is limited to 2GB. */
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    /** The number of samples scanned by a single task. */
+    private static final int SAMPLES_PER_TASK = 1024;
+
+    private final Log log = Log.getInstance(FingerprintDatabase.class);
+
+    private final File file;
+    /** The HaplotypeBlocks in the order in which they are stored, which is the order in which Fingerprint holds them. */
+    private final List<HaplotypeBlock> blocks;
+    private final long haplotypeMapDigest;
+    private final int dataSize;
+
+    private final List<String> samples = new ArrayList<>();
+    private final List<String> sources = new ArrayList<>();
+    /** The segment holding the data of each sample, and the offset of the data in the segment. */
+    private final List<ByteBuffer> sampleSegments = new ArrayList<>();
+    private int[] sampleOffsets = new int[1024];
+    /** The length of the file up to the end of the last complete sample read. */
+    private long validLength;
+
+    /**
+     * Opens a fingerprint database, creating it if the file does not exist or is empty.
+     *
+     * @param file       the database file
+     * @param haplotypes the HaplotypeMap the database was, or is to be, built with
+     */
+    public FingerprintDatabase(final File file, final HaplotypeMap haplotypes) {
+        this.file = file;
+        this.blocks = new ArrayList<>(new TreeSet<>(haplotypes.getHaplotypes()));
+        this.haplotypeMapDigest = digest(blocks);
+        this.dataSize = blocks.size() * VALUES_PER_BLOCK * 8;
+
+        try {
+            if (!file.exists() || file.length() == 0) {
+                try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    // Released when the file is closed
+                    raf.getChannel().lock();
+                    if (raf.length() == 0) writeHeader(raf);
+                }
+            }
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                readHeader(raf);
+            }
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Could not open fingerprint database " + file, e);
+        }
+        this.validLength = HEADER_SIZE;
+        refresh();
+    }
+
+    /** Returns the number of samples in the database. */
+    public int size() { return samples.size(); }
+
+    /** Returns the sample name of the i'th sample in the database. */
+    public String getSample(final int i) { return samples.get(i); }
+
+    /** Returns the file the i'th sample in the database was fingerprinted from, or the empty string if not known. */
+    public String getSource(final int i) { return sources.get(i); }
+
+    /** Returns the HaplotypeBlocks in the order in which the database stores them. */
+    public List<HaplotypeBlock> getHaplotypeBlocks() { return blocks; }
+
+    /** Reads any samples that have been added to the file, e.g. by another process, since it was last read. */
+    public void refresh() {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            readSamples(raf.getChannel());
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Could not read fingerprint database " + file, e);
+        }
+    }
+
+    /** Appends the fingerprints to the database, each as a sample named by Fingerprint.getSample(). */
+    public void add(final Collection<Fingerprint> fingerprints) {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final FileChannel channel = raf.getChannel();
+            // Released when the file is closed
+            channel.lock();
+            // Pick up anything appended by others, and drop any partial sample, before writing at the end
+            readSamples(channel);
+            channel.truncate(validLength);
+            channel.position(validLength);
+            for (final Fingerprint fingerprint : fingerprints) {
+                final ByteBuffer record = encode(fingerprint);
+                while (record.hasRemaining()) channel.write(record);
+            }
+            channel.force(false);
+            readSamples(channel);
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Could not add to fingerprint database " + file, e);
+        }
+    }
+
+    /**
+     * Compares the fingerprint to every sample in the database.
+     *
+     * @param observedFp   the fingerprint to check
+     * @param minPExpected as for FingerprintChecker.calculateMatchResults()
+     * @param pLoH         as for FingerprintChecker.calculateMatchResults()
+     * @param numThreads   the number of threads to compare with
+     * @return the results of comparing observedFp with each sample, in the order of the samples in the database, as
+     * FingerprintChecker.calculateMatchResults(observedFp, sampleFp, minPExpected, pLoH) would give them but without
+     * the per-locus results.  The fingerprint file of each result is the sample's source, or if that is not known
+     * the database file.
+     */
+    public List<MatchResults> scan(final Fingerprint observedFp, final double minPExpected, final double pLoH, final int numThreads) {
+        final ObservedFingerprint observed = new ObservedFingerprint(observedFp, pLoH);
+        final double lminPExpected = Math.log10(minPExpected);
+        final int numSamples = size();
+        final MatchResults[] results = new MatchResults[numSamples];
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < numSamples; start += SAMPLES_PER_TASK) {
+            final int from = start;
+            final int to = Math.min(numSamples, start + SAMPLES_PER_TASK);
+            tasks.add(() -> {
+                final double[] scratch = new double[3];
+                for (int i = from; i < to; ++i) results[i] = compare(observed, i, lminPExpected, pLoH, scratch);
+                return null;
+            });
+        }
+
+        if (numThreads <= 1) {
+            for (final Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (final Exception e) {
+                    throw new PicardException("Error scanning fingerprint database " + file, e);
+                }
+            }
+        } else {
+            final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            try {
+                for (final Future<Void> future : executor.invokeAll(tasks)) future.get();
+            } catch (final InterruptedException | ExecutionException e) {
+                throw new PicardException("Error scanning fingerprint database " + file, e);
+            } finally {
+                executor.shutdown();
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /** The parts of the calculation in FingerprintChecker.calculateMatchResults() that depend only on the observed fingerprint. */
+    private class ObservedFingerprint {
+        final boolean[] hasEvidence = new boolean[blocks.size()];
+        final double[][] likelihoods = new double[blocks.size()][];
+        /** Likelihoods of the normal haplotypes if the observed fingerprint is from a tumor. */
+        final double[][] tumorLikelihoods = new double[blocks.size()][];
+        final double[] lRandomSample = new double[blocks.size()];
+        final double[] lRandomSampleTumor = new double[blocks.size()];
+        /** P(g_t|g_n), as in HaplotypeProbabilityOfNormalGivenTumor. */
+        final double[][] transitionMatrix;
+
+        ObservedFingerprint(final Fingerprint fingerprint, final double pLoH) {
+            transitionMatrix = new double[][]{{1, 0, 0}, {pLoH / 2, 1 - pLoH, pLoH / 2}, {0, 0, 1}};
+            for (int b = 0; b < blocks.size(); ++b) {
+                final HaplotypeProbabilities probs = fingerprint.get(blocks.get(b));
+                if (probs == null || !probs.hasEvidence()) continue;
+                final HaplotypeProbabilityOfNormalGivenTumor probsAssumingTumor = new HaplotypeProbabilityOfNormalGivenTumor(probs, pLoH);
+                hasEvidence[b] = true;
+                likelihoods[b] = probs.getLikelihoods();
+                tumorLikelihoods[b] = probsAssumingTumor.getLikelihoods();
+                lRandomSample[b] = probs.shiftedLogEvidenceProbability();
+                lRandomSampleTumor[b] = probsAssumingTumor.shiftedLogEvidenceProbability();
+            }
+        }
+    }
+
+    /** Follows FingerprintChecker.calculateMatchResults(), reading the expected fingerprint from the database. */
+    private MatchResults compare(final ObservedFingerprint observed, final int sample, final double lminPExpected,
+                                 final double pLoH, final double[] scratch) {
+        final ByteBuffer data = sampleSegments.get(sample);
+        int offset = sampleOffsets[sample];
+
+        double llThisSample = 0;
+        double llOtherSample = 0;
+        double lodExpectedSampleTumorNormal = 0;
+        double lodExpectedSampleNormalTumor = 0;
+
+        for (int b = 0; b < blocks.size(); ++b, offset += VALUES_PER_BLOCK * 8) {
+            if (!observed.hasEvidence[b]) continue;
+            final double expectedL0 = data.getDouble(offset);
+            if (Double.isNaN(expectedL0)) continue;
+            final double expectedL1 = data.getDouble(offset + 8);
+            final double expectedL2 = data.getDouble(offset + 16);
+            final double post0 = data.getDouble(offset + 24);
+            final double post1 = data.getDouble(offset + 32);
+            final double post2 = data.getDouble(offset + 40);
+            final double[] l = observed.likelihoods[b];
+            final double[] lTumor = observed.tumorLikelihoods[b];
+
+            llThisSample += Math.max(lminPExpected, Math.log10(l[0] * post0 + l[1] * post1 + l[2] * post2));
+            llOtherSample += observed.lRandomSample[b];
+            lodExpectedSampleTumorNormal += Math.log10(lTumor[0] * post0 + lTumor[1] * post1 + lTumor[2] * post2) - observed.lRandomSampleTumor[b];
+
+            // The posteriors of the expected fingerprint if it is from a tumor
+            final double[] t = observed.transitionMatrix[1];
+            scratch[0] = expectedL0;
+            scratch[1] = expectedL0 * t[0] + expectedL1 * t[1] + expectedL2 * t[2];
+            scratch[2] = expectedL2;
+            final double[] frequencies = blocks.get(b).getHaplotypeFrequencies();
+            normalizeProducts(scratch, frequencies);
+            lodExpectedSampleNormalTumor += Math.log10(l[0] * scratch[0] + l[1] * scratch[1] + l[2] * scratch[2]) - observed.lRandomSample[b];
+        }
+
+        final String source = sources.get(sample);
+        return new MatchResults(source.isEmpty() ? file : new File(source), samples.get(sample), llThisSample, llOtherSample,
+                lodExpectedSampleTumorNormal, lodExpectedSampleNormalTumor, null);
+    }
+
+    /** Replaces values with the product of values and frequencies, normalized as by MathUtil.pNormalizeVector(). */
+    private static void normalizeProducts(final double[] values, final double[] frequencies) {
+        double total = 0;
+        for (int i = 0; i < values.length; ++i) {
+            values[i] *= frequencies[i];
+            total += values[i];
+        }
+        final double maxP = MathUtil.MAX_PROB_BELOW_ONE;
+        final double minP = (1 - maxP) / (values.length - 1);
+        for (int i = 0; i < values.length; ++i) {
+            values[i] /= total;
+            if (values[i] > maxP) values[i] = maxP;
+            else if (values[i] < minP) values[i] = minP;
+        }
+    }
+
+    private ByteBuffer encode(final Fingerprint fingerprint) {
+        final byte[] sample = fingerprint.getSample().getBytes(StandardCharsets.UTF_8);
+        final byte[] source = fingerprint.getSource() == null ? new byte[0] :
+                fingerprint.getSource().getPath().getBytes(StandardCharsets.UTF_8);
+        final int recordLength = 4 + sample.length + 4 + source.length + dataSize;
+        final ByteBuffer record = ByteBuffer.allocate(4 + recordLength);
+        record.putInt(recordLength);
+        record.putInt(sample.length).put(sample);
+        record.putInt(source.length).put(source);
+        for (final HaplotypeBlock block : blocks) {
+            final HaplotypeProbabilities probs = fingerprint.get(block);
+            if (probs == null || !probs.hasEvidence()) {
+                for (int i = 0; i < VALUES_PER_BLOCK; ++i) record.putDouble(Double.NaN);
+            } else {
+                for (final double likelihood : probs.getLikelihoods()) record.putDouble(likelihood);
+                for (final double posterior : probs.getPosteriorProbabilities()) record.putDouble(posterior);
+            }
+        }
+        record.flip();
+        return record;
+    }
+
+    private void writeHeader(final RandomAccessFile raf) throws IOException {
+        raf.write(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(blocks.size());
+        raf.writeLong(haplotypeMapDigest);
+    }
+
+    private void readHeader(final RandomAccessFile raf) throws IOException {
+        final byte[] magic = new byte[MAGIC.length];
+        if (raf.length() < HEADER_SIZE) throw new PicardException(file + " is not a fingerprint database.");
+        raf.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new PicardException(file + " is not a fingerprint database.");
+        final int version = raf.readInt();
+        if (version != VERSION) throw new PicardException("Fingerprint database " + file + " has unsupported version " + version);
+        final int numBlocks = raf.readInt();
+        final long digest = raf.readLong();
+        if (numBlocks != blocks.size() || digest != haplotypeMapDigest) {
+            throw new PicardException("Fingerprint database " + file + " was built with a different haplotype map.");
+        }
+    }
+
+    /** Maps and reads the names of the complete samples between validLength and the end of the file. */
+    private void readSamples(final FileChannel channel) throws IOException {
+        final long fileLength = channel.size();
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        while (validLength + 4 <= fileLength) {
+            // Find the run of complete samples that fits in one segment
+            final long segmentStart = validLength;
+            long segmentEnd = segmentStart;
+            while (segmentEnd + 4 <= fileLength) {
+                lengthBuffer.clear();
+                while (lengthBuffer.hasRemaining() && channel.read(lengthBuffer, segmentEnd + lengthBuffer.position()) >= 0) ;
+                final int recordLength = lengthBuffer.getInt(0);
+                // A length too short for a sample can only be corrupt, e.g. left by a write that did not complete
+                if (recordLength < MIN_RECORD_LENGTH + dataSize) break;
+                final long recordEnd = segmentEnd + 4 + recordLength;
+                if (recordEnd > fileLength || recordEnd - segmentStart > MAX_SEGMENT_SIZE && segmentEnd > segmentStart) break;
+                segmentEnd = recordEnd;
+            }
+            if (segmentEnd == segmentStart) break;
+
+            final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentEnd - segmentStart);
+            int offset = 0;
+            while (offset < segment.limit()) {
+                final int recordLength = segment.getInt(offset);
+                int position = offset + 4;
+                final String sample = readString(segment, position);
+                position += 4 + segment.getInt(position);
+                final String source = readString(segment, position);
+                position += 4 + segment.getInt(position);
+                if (offset + 4 + recordLength - position != dataSize) {
+                    throw new PicardException("Corrupt sample " + sample + " in fingerprint database " + file);
+                }
+                addSample(sample, source, segment, position);
+                offset += 4 + recordLength;
+            }
+            validLength = segmentEnd;
+        }
+        if (validLength < fileLength) log.warn("Ignoring incomplete or corrupt sample at the end of fingerprint database " + file);
+    }
+
+    private void addSample(final String sample, final String source, final ByteBuffer segment, final int offset) {
+        if (samples.size() == sampleOffsets.length) sampleOffsets = Arrays.copyOf(sampleOffsets, sampleOffsets.length * 2);
+        sampleOffsets[samples.size()] = offset;
+        samples.add(sample);
+        sources.add(source);
+        sampleSegments.add(segment);
+    }
+
+    private static String readString(final ByteBuffer buffer, final int position) {
+        final byte[] bytes = new byte[buffer.getInt(position)];
+        for (int i = 0; i < bytes.length; ++i) bytes[i] = buffer.get(position + 4 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** A digest of everything about the blocks that the stored probabilities depend on. */
+    private static long digest(final List<HaplotypeBlock> blocks) {
+        final MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new PicardException("MD5 digest unavailable", e);
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (final HaplotypeBlock block : blocks) {
+            builder.append(block.getMaf());
+            for (final Snp snp : block.getSnps()) {
+                builder.append('\t').append(snp.getName()).append('\t').append(snp.getChrom()).append('\t').append(snp.getPos())
+                        .append('\t').append(snp.getAlleleString()).append('\t').append(snp.getMaf());
+            }
+            builder.append('\n');
+        }
+        final ByteBuffer digest = ByteBuffer.wrap(md5.digest(builder.toString().getBytes(StandardCharsets.UTF_8)));
+        return digest.getLong();
+    }
+}
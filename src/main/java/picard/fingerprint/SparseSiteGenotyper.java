@@ -0,0 +1,346 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package picard.fingerprint;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.DuplicateReadFilter;
+import htsjdk.samtools.filter.FilteringSamIterator;
+import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.filter.SecondaryOrSupplementaryFilter;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.OverlapDetector;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the bases that reads show at the SNPs of a HaplotypeMap, without building a pileup of every read at every
+ * locus as SamLocusIterator does.  The SNPs are held in arrays by contig index and position, the reads overlapping
+ * them are fetched with a single indexed query over windows of nearby SNPs, and the base at each SNP is found by
+ * walking the read's CIGAR.
+ * <p/>
+ * The bases are reported in the order SamLocusIterator would report them, that is by SNP and then in the order of the
+ * reads in the file, and bases are filtered as SamLocusIterator filters them.  Since the observations from a read or
+ * read pair are not independent, only the first base reported from each read name is reported; a read name is only
+ * remembered until the reads and mates that carry it have been passed, so that memory does not grow with the file.
+ */
+class SparseSiteGenotyper {
+    /** SNPs closer together than this are fetched with one query interval. */
+    static final int MAX_WINDOW_GAP = 1000;
+
+    /** The receiver of the bases observed at the SNPs. */
+    interface ObservationHandler {
+        void observe(SAMRecord rec, HaplotypeBlock haplotypeBlock, Snp snp, byte base, byte qual);
+    }
+
+    private final SAMSequenceDictionary dictionary;
+    /** The SNPs of contig i are at indices firstSnpOfContig[i] until firstSnpOfContig[i+1], sorted by position. */
+    private final int[] firstSnpOfContig;
+    private final int[] snpPositions;
+    private final Snp[] snps;
+    private final HaplotypeBlock[] haplotypeBlocks;
+
+    private int minimumMappingQuality = Integer.MIN_VALUE;
+    private int minimumBaseQuality = 0;
+    private List<SamRecordFilter> samFilters = Arrays.asList(new SecondaryOrSupplementaryFilter(), new DuplicateReadFilter());
+
+    /**
+     * @param haplotypes the SNPs to genotype
+     * @param loci       if not null, only the SNPs within these loci are genotyped
+     */
+    SparseSiteGenotyper(final HaplotypeMap haplotypes, final IntervalList loci) {
+        this.dictionary = haplotypes.getHeader().getSequenceDictionary();
+
+        // Look up each SNP locus in the map once, so that where two SNPs share a locus the same one is used as by getSnp()
+        final OverlapDetector<Interval> lociDetector = loci == null ? null : OverlapDetector.create(loci.getIntervals());
+        final List<Snp> sorted = new ArrayList<>(haplotypes.getAllSnps().size());
+        Interval previous = null;
+        for (final Interval locus : haplotypes.getIntervalList()) {
+            if (previous != null && previous.getContig().equals(locus.getContig()) && previous.getStart() == locus.getStart()) continue;
+            previous = locus;
+            if (lociDetector != null && !lociDetector.overlapsAny(locus)) continue;
+            sorted.add(haplotypes.getSnp(locus.getContig(), locus.getStart()));
+        }
+
+        final int numSnps = sorted.size();
+        this.firstSnpOfContig = new int[dictionary.size() + 1];
+        this.snpPositions = new int[numSnps];
+        this.snps = new Snp[numSnps];
+        this.haplotypeBlocks = new HaplotypeBlock[numSnps];
+        int contigIndex = 0;
+        for (int i = 0; i < numSnps; ++i) {
+            final Snp snp = sorted.get(i);
+            final int snpContig = dictionary.getSequenceIndex(snp.getChrom());
+            while (contigIndex < snpContig) firstSnpOfContig[++contigIndex] = i;
+            snps[i] = snp;
+            snpPositions[i] = snp.getPos();
+            haplotypeBlocks[i] = haplotypes.getHaplotype(snp);
+        }
+        while (contigIndex < dictionary.size()) firstSnpOfContig[++contigIndex] = numSnps;
+    }
+
+    /** Reads with a lower mapping quality are ignored. */
+    void setMinimumMappingQuality(final int minimumMappingQuality) { this.minimumMappingQuality = minimumMappingQuality; }
+
+    /** Bases with a lower quality are ignored. */
+    void setMinimumBaseQuality(final int minimumBaseQuality) { this.minimumBaseQuality = minimumBaseQuality; }
+
+    /** Replaces the default filters, which drop secondary, supplementary and duplicate reads. */
+    void setSamFilters(final List<SamRecordFilter> samFilters) { this.samFilters = samFilters; }
+
+    int getNumSnps() { return snps.length; }
+
+    /** The windows of SNPs to fetch reads over, sorted and non-overlapping. */
+    QueryInterval[] getQueryIntervals() {
+        final List<QueryInterval> windows = new ArrayList<>();
+        for (int contig = 0; contig < dictionary.size(); ++contig) {
+            int i = firstSnpOfContig[contig];
+            final int end = firstSnpOfContig[contig + 1];
+            while (i < end) {
+                final int start = snpPositions[i];
+                while (i + 1 < end && snpPositions[i + 1] - snpPositions[i] <= MAX_WINDOW_GAP) ++i;
+                windows.add(new QueryInterval(contig, start, snpPositions[i]));
+                ++i;
+            }
+        }
+        return windows.toArray(new QueryInterval[windows.size()]);
+    }
+
+    /**
+     * Reports to the handler the first base of each read name observed at the SNPs.  The SAM file must be coordinate
+     * sorted; if it has an index only the reads overlapping the SNPs are read.
+     */
+    void genotype(final SamReader in, final ObservationHandler handler) {
+        final SAMFileHeader.SortOrder sortOrder = in.getFileHeader().getSortOrder();
+        if (sortOrder != null && sortOrder != SAMFileHeader.SortOrder.unsorted && sortOrder != SAMFileHeader.SortOrder.coordinate) {
+            throw new PicardException("Cannot fingerprint a SAM file that is not coordinate sorted.");
+        }
+
+        final SAMRecordIterator records;
+        if (in.hasIndex()) {
+            records = in.query(getQueryIntervals(), false);
+        } else {
+            records = in.iterator();
+        }
+        final CloseableIterator<SAMRecord> iterator = samFilters == null || samFilters.isEmpty() ? records :
+                new FilteringSamIterator(records, new AggregateFilter(samFilters));
+
+        final PriorityQueue<Observation> pending = new PriorityQueue<>();
+        final ReadNameWindow usedReadNames = new ReadNameWindow();
+        long recordIndex = 0;
+        try {
+            while (iterator.hasNext()) {
+                final SAMRecord rec = iterator.next();
+                final int contig = rec.getReferenceIndex();
+                if (contig == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) break;
+                if (rec.getReadUnmappedFlag() || rec.getMappingQuality() < minimumMappingQuality) continue;
+
+                // No read after this one can cover a SNP before it, so those SNPs can be reported
+                final long start = toKey(contig, rec.getAlignmentStart());
+                while (!pending.isEmpty() && pending.peek().snpKey < start) report(pending.poll(), usedReadNames, handler);
+                usedReadNames.forgetBefore(start);
+
+                if (addObservations(rec, contig, recordIndex, pending)) {
+                    usedReadNames.extend(rec.getReadName(), spanEnd(rec, contig));
+                }
+                ++recordIndex;
+            }
+            while (!pending.isEmpty()) report(pending.poll(), usedReadNames, handler);
+        } finally {
+            CloserUtil.close(iterator);
+        }
+    }
+
+    private void report(final Observation observation, final ReadNameWindow usedReadNames, final ObservationHandler handler) {
+        if (usedReadNames.use(observation.rec.getReadName())) {
+            final int snp = observation.snpIndex;
+            handler.observe(observation.rec, haplotypeBlocks[snp], snps[snp], observation.base, observation.qual);
+        }
+    }
+
+    /** Adds to pending the bases the read shows at the SNPs, returning whether there were any. */
+    private boolean addObservations(final SAMRecord rec, final int contig, final long recordIndex, final PriorityQueue<Observation> pending) {
+        final int lastSnp = firstSnpOfContig[contig + 1];
+        int snp = firstSnpAtOrAfter(contig, rec.getAlignmentStart());
+        if (snp == lastSnp || snpPositions[snp] > rec.getAlignmentEnd()) return false;
+
+        final byte[] bases = rec.getReadBases();
+        final byte[] quals = rec.getBaseQualities();
+        boolean any = false;
+        int refPos = rec.getAlignmentStart();
+        int readPos = 0;
+        for (final CigarElement element : rec.getCigar().getCigarElements()) {
+            final int length = element.getLength();
+            if (element.getOperator().isAlignment()) {
+                final int blockEnd = refPos + length;
+                while (snp < lastSnp && snpPositions[snp] < blockEnd) {
+                    final int offset = readPos + snpPositions[snp] - refPos;
+                    if (quals.length == 0 || quals[offset] >= minimumBaseQuality) {
+                        pending.add(new Observation(toKey(contig, snpPositions[snp]), snp, recordIndex, rec,
+                                StringUtil.toUpperCase(bases[offset]), quals.length == 0 ? 0 : quals[offset]));
+                        any = true;
+                    }
+                    ++snp;
+                }
+            } else {
+                // Skip the SNPs that fall within deletions and skipped regions
+                if (element.getOperator().consumesReferenceBases()) {
+                    while (snp < lastSnp && snpPositions[snp] < refPos + length) ++snp;
+                }
+            }
+            if (element.getOperator().consumesReferenceBases()) refPos += length;
+            if (element.getOperator().consumesReadBases()) readPos += length;
+            if (snp == lastSnp) break;
+        }
+        return any;
+    }
+
+    private int firstSnpAtOrAfter(final int contig, final int position) {
+        final int from = firstSnpOfContig[contig];
+        final int to = firstSnpOfContig[contig + 1];
+        final int i = Arrays.binarySearch(snpPositions, from, to, position);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * How far the read name must be remembered: past the end of this read and the start of its mate, after which
+     * every read with the name has been seen.  Supplementary alignments can be anywhere, so names with them are
+     * remembered to the end.
+     */
+    private static long spanEnd(final SAMRecord rec, final int contig) {
+        if (rec.getSupplementaryAlignmentFlag() || rec.getAttribute(SAMTag.SA.name()) != null) return Long.MAX_VALUE;
+        long end = toKey(contig, rec.getAlignmentEnd());
+        if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag() && rec.getMateReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+            end = Math.max(end, toKey(rec.getMateReferenceIndex(), rec.getMateAlignmentStart()));
+        }
+        return end;
+    }
+
+    private static long toKey(final int contig, final int position) {
+        return ((long) contig << 32) | position;
+    }
+
+    /** A base seen at a SNP, ordered as SamLocusIterator would report it. */
+    private static class Observation implements Comparable<Observation> {
+        final long snpKey;
+        final int snpIndex;
+        final long recordIndex;
+        final SAMRecord rec;
+        final byte base;
+        final byte qual;
+
+        Observation(final long snpKey, final int snpIndex, final long recordIndex, final SAMRecord rec, final byte base, final byte qual) {
+            this.snpKey = snpKey;
+            this.snpIndex = snpIndex;
+            this.recordIndex = recordIndex;
+            this.rec = rec;
+            this.base = base;
+            this.qual = qual;
+        }
+
+        @Override
+        public int compareTo(final Observation that) {
+            final int cmp = Long.compare(this.snpKey, that.snpKey);
+            return cmp != 0 ? cmp : Long.compare(this.recordIndex, that.recordIndex);
+        }
+    }
+
+    /**
+     * The names of the reads with bases at the SNPs that have not yet been passed, and whether a base has been
+     * reported for each.
+     */
+    private static class ReadNameWindow {
+        private static class Span implements Comparable<Span> {
+            final String name;
+            final long end;
+
+            Span(final String name, final long end) {
+                this.name = name;
+                this.end = end;
+            }
+
+            @Override
+            public int compareTo(final Span that) {
+                return Long.compare(this.end, that.end);
+            }
+        }
+
+        private static class NameState {
+            long end;
+            boolean used;
+        }
+
+        private final Map<String, NameState> names = new HashMap<>();
+        private final PriorityQueue<Span> spans = new PriorityQueue<>();
+
+        /** Remembers the name at least until end has been passed. */
+        void extend(final String name, final long end) {
+            NameState state = names.get(name);
+            if (state == null) {
+                state = new NameState();
+                state.end = end;
+                names.put(name, state);
+                spans.add(new Span(name, end));
+            } else if (end > state.end) {
+                state.end = end;
+                spans.add(new Span(name, end));
+            }
+        }
+
+        /** Returns true if no base has yet been reported for the name, and marks it as reported. */
+        boolean use(final String name) {
+            final NameState state = names.get(name);
+            if (state.used) return false;
+            state.used = true;
+            return true;
+        }
+
+        /** Forgets the names all of whose reads end before position. */
+        void forgetBefore(final long position) {
+            while (!spans.isEmpty() && spans.peek().end < position) {
+                final Span span = spans.poll();
+                final NameState state = names.get(span.name);
+                if (state != null && state.end == span.end) names.remove(span.name);
+            }
+        }
+    }
+}
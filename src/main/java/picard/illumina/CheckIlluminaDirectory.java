@@ -16,6 +16,7 @@ import picard.illumina.parser.IlluminaFileUtil;
 import picard.illumina.parser.OutputMapping;
 import picard.illumina.parser.ParameterizedFileUtil;
 import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.RunFolderSnapshot;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -90,6 +91,11 @@ public class CheckIlluminaDirectory extends CommandLineProgram {
             optional = true)
     public Boolean LINK_LOCS = false;
 
+    @Option(doc = "A file in which to keep the listing of the run folder's directories.  If it exists and no directory has " +
+            "changed since it was written, the files are checked against it rather than by listing the directories again; " +
+            "otherwise the directories are listed and the listing written to it.", optional = true)
+    public File RUN_FOLDER_SNAPSHOT;
+
     /**
      * Required main method implementation.
      */
@@ -112,8 +118,12 @@ public class CheckIlluminaDirectory extends CommandLineProgram {
                 .getAbsolutePath() + ")\n");
         log.info("Expected cycles: " + StringUtil.intValuesToString(expectedCycles));
 
+        // List every directory that will be checked once, in parallel, rather than probing each file of each tile and cycle
+        RunFolderSnapshot snapshot = IlluminaFileUtil.snapshotLanes(BASECALLS_DIR, null, LANES, RUN_FOLDER_SNAPSHOT,
+                RunFolderSnapshot.DEFAULT_NUM_THREADS);
+
         for (final Integer lane : LANES) {
-            IlluminaFileUtil fileUtil = new IlluminaFileUtil(BASECALLS_DIR, lane);
+            IlluminaFileUtil fileUtil = new IlluminaFileUtil(BASECALLS_DIR, null, lane, snapshot);
             final List<Integer> expectedTiles = fileUtil.getExpectedTiles();
             if (!TILE_NUMBERS.isEmpty()) {
                 expectedTiles.retainAll(TILE_NUMBERS);
@@ -122,8 +132,10 @@ public class CheckIlluminaDirectory extends CommandLineProgram {
             if (LINK_LOCS) {
                 createLocFileSymlinks(fileUtil, lane);
                 //we need to create a new file util because it stores a cache to the files it found on
-                //construction and this doesn't inclue the recently created symlinks
-                fileUtil = new IlluminaFileUtil(BASECALLS_DIR, lane);
+                //construction and this doesn't inclue the recently created symlinks, and so does the snapshot
+                snapshot = IlluminaFileUtil.snapshotLanes(BASECALLS_DIR, null, LANES, RUN_FOLDER_SNAPSHOT,
+                        RunFolderSnapshot.DEFAULT_NUM_THREADS);
+                fileUtil = new IlluminaFileUtil(BASECALLS_DIR, null, lane, snapshot);
             }
 
             log.info("Checking lane " + lane);
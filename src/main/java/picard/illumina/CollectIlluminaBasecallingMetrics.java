@@ -30,17 +30,27 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.programgroups.Illumina;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
-import picard.illumina.parser.ClusterData;import picard.illumina.parser.IlluminaDataProvider;import picard.illumina.parser.IlluminaDataProviderFactory;import picard.illumina.parser.IlluminaDataType;import picard.illumina.parser.ReadStructure;import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+import picard.illumina.parser.ClusterData;import picard.illumina.parser.IlluminaDataProvider;import picard.illumina.parser.IlluminaDataProviderFactory;import picard.illumina.parser.IlluminaDataType;import picard.illumina.parser.IlluminaFileUtil;import picard.illumina.parser.ReadStructure;import picard.illumina.parser.RunFolderSnapshot;import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.Histogram;
+import htsjdk.samtools.util.Log;
 import picard.util.TabbedTextFileWithHeaderParser;
 import htsjdk.samtools.util.StringUtil;
 
 import java.io.File;
 import java.lang.Comparable;import java.lang.Double;import java.lang.Exception;import java.lang.Integer;import java.lang.Math;import java.lang.Override;import java.lang.String;import java.lang.StringBuilder;import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /***
         - *  A Command line tool to collect Illumina Basecalling metrics for a sequencing run
@@ -110,6 +120,13 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
     @Option(doc="The file to which the collected metrics are written", shortName= StandardOptionDefinitions.OUTPUT_SHORT_NAME, optional = true)
     public File OUTPUT;
 
+    @Option(doc = "Run this many PerTileMetricsCounters in parallel.  If NUM_PROCESSORS = 0, number of cores is automatically set to " +
+            "the number of cores available on the machine. If NUM_PROCESSORS < 0 then the number of cores used will be " +
+            "the number available on the machine less NUM_PROCESSORS.", shortName = "NP")
+    public int NUM_PROCESSORS = 1;
+
+    private static final Log LOG = Log.getInstance(CollectIlluminaBasecallingMetrics.class);
+
     private int barcodeLength = 0;
     private String unmatched_barcode;
     private final SortedMap<String, IlluminaMetricCounts> barcodeToMetricCounts;
@@ -131,11 +148,14 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
         final IlluminaDataProviderFactory factory;
         final ReadStructure readStructure = new ReadStructure(READ_STRUCTURE);
         final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY);
+        // List the lane's directories once, in parallel, rather than probing each file of each tile and cycle
+        final RunFolderSnapshot snapshot = IlluminaFileUtil.snapshotLanes(BASECALLS_DIR, BARCODES_DIR,
+                Collections.singletonList(LANE), null, RunFolderSnapshot.DEFAULT_NUM_THREADS);
 
         if (INPUT == null) {
             // TODO: Legacy support. Remove when INPUT is required, after all old workflows are through
-            factory = new IlluminaDataProviderFactory(BASECALLS_DIR, LANE, readStructure, bclQualityEvaluationStrategy,
-                    IlluminaDataType.PF, IlluminaDataType.Position);
+            factory = new IlluminaDataProviderFactory(BASECALLS_DIR, null, LANE, readStructure, bclQualityEvaluationStrategy,
+                    snapshot, IlluminaDataType.PF, IlluminaDataType.Position);
         } else {
             // Grab expected barcode data from barcodeData.<LANE>
             IOUtil.assertFileIsReadable(INPUT);
@@ -162,6 +182,7 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
                         LANE,
                         readStructure,
                         bclQualityEvaluationStrategy,
+                        snapshot,
                         IlluminaDataType.PF,
                         IlluminaDataType.Position)
                     : new IlluminaDataProviderFactory(
@@ -170,6 +191,7 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
                         LANE,
                         readStructure,
                         bclQualityEvaluationStrategy,
+                        snapshot,
                         IlluminaDataType.PF,
                         IlluminaDataType.Position,
                         IlluminaDataType.Barcodes);
@@ -177,12 +199,54 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
 
         unmatched_barcode = StringUtil.repeatCharNTimes('N', barcodeLength);
 
-        //Initialize data provider, iterate over clusters, and collect statistics
-        final IlluminaDataProvider provider = factory.makeDataProvider();
+        // Give each expected barcode, and the unmatched barcode, a dense id by which clusters are counted in each tile.
+        final Map<String, Integer> barcodeIds = new HashMap<String, Integer>();
+        final List<String> barcodes = new ArrayList<String>(barcodeToMetricCounts.keySet());
+        if (!barcodeToMetricCounts.containsKey(unmatched_barcode)) barcodes.add(unmatched_barcode);
+        for (final String barcode : barcodes) barcodeIds.put(barcode, barcodeIds.size());
+
+        final int numProcessors;
+        if (NUM_PROCESSORS == 0) {
+            numProcessors = Runtime.getRuntime().availableProcessors();
+        } else if (NUM_PROCESSORS < 0) {
+            numProcessors = Runtime.getRuntime().availableProcessors() + NUM_PROCESSORS;
+        } else {
+            numProcessors = NUM_PROCESSORS;
+        }
+
+        LOG.info("Processing with " + numProcessors + " PerTileMetricsCounter(s).");
+        final ExecutorService pool = Executors.newFixedThreadPool(numProcessors);
 
-        while (provider.hasNext()) {
-            final ClusterData cluster = provider.next();
-            addCluster(cluster);
+        final List<PerTileMetricsCounter> counters = new ArrayList<PerTileMetricsCounter>(factory.getAvailableTiles().size());
+        for (final int tile : factory.getAvailableTiles()) {
+            counters.add(new PerTileMetricsCounter(tile, factory, barcodeIds, unmatched_barcode));
+        }
+        try {
+            for (final PerTileMetricsCounter counter : counters) {
+                pool.submit(counter);
+            }
+            pool.shutdown();
+            // Wait forever for tasks to terminate
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (final Throwable e) {
+            // Cancel if current thread also interrupted
+            LOG.error(e, "Parent thread encountered problem submitting counters to thread pool or awaiting shutdown of threadpool.  Attempting to kill threadpool.");
+            pool.shutdownNow();
+            return 2;
+        }
+
+        LOG.info("Processed " + counters.size() + " tiles.");
+        for (final PerTileMetricsCounter counter : counters) {
+            if (counter.getException() != null) {
+                LOG.error("Abandoning metrics calculation because one or more PerTileMetricsCounters failed.");
+                return 4;
+            }
+            for (int id = 0; id < barcodes.size(); ++id) {
+                addTileCounts(barcodes.get(id), counter.tile, counter.clusterCounts[id], counter.pfClusterCounts[id]);
+            }
+            for (final Map.Entry<String, long[]> entry : counter.otherBarcodeCounts.entrySet()) {
+                addTileCounts(entry.getKey(), counter.tile, entry.getValue()[0], entry.getValue()[1]);
+            }
         }
 
         onComplete();
@@ -190,21 +254,18 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
     }
 
     /***
-     * Process new cluster of Illumina data - increment a running counter of data
+     * Adds the clusters of one tile that matched a barcode to the running counters for the barcode
      */
-    private void addCluster(final ClusterData cluster) {
-        //compute hash of Barcode and Lane for key
-        String barcode = cluster.getMatchedBarcode();
-        if (barcode == null) barcode = unmatched_barcode;
+    private void addTileCounts(final String barcode, final int tileNumber, final long clusters, final long pfClusters) {
+        // Tiles in which no cluster matched the barcode have no bin in its histograms
+        if (clusters == 0) return;
 
-        //increment counts
-        IlluminaMetricCounts counters =  barcodeToMetricCounts.get(barcode);
+        IlluminaMetricCounts counters = barcodeToMetricCounts.get(barcode);
         if (counters == null) {
              counters = new IlluminaMetricCounts(barcode,null,LANE);
              barcodeToMetricCounts.put(barcode, counters);
         }
-        final int tileNumber = cluster.getTile();
-        counters.incrementClusterCount(tileNumber,cluster.isPf());
+        counters.incrementClusterCount(tileNumber, clusters, pfClusters);
     }
 
     /**
@@ -230,6 +291,69 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
         new CollectIlluminaBasecallingMetrics().instanceMainWithExit(argv);
     }
 
+    /***
+     * Counts the clusters and PF clusters of a single tile for each barcode.  Expected barcodes are counted in arrays
+     * indexed by the ids given them by doWork, and any other barcode found in the tile is counted by name.
+     */
+    private static class PerTileMetricsCounter implements Runnable {
+        private final int tile;
+        private final IlluminaDataProviderFactory factory;
+        private final Map<String, Integer> barcodeIds;
+        private final String unmatchedBarcode;
+        private final long[] clusterCounts;
+        private final long[] pfClusterCounts;
+        /*** Key = barcode, Value = {count of clusters, count of pf clusters} ***/
+        private final Map<String, long[]> otherBarcodeCounts = new HashMap<String, long[]>();
+        private Exception exception = null;
+
+        public PerTileMetricsCounter(final int tile, final IlluminaDataProviderFactory factory,
+                                     final Map<String, Integer> barcodeIds, final String unmatchedBarcode) {
+            this.tile = tile;
+            this.factory = factory;
+            this.barcodeIds = barcodeIds;
+            this.unmatchedBarcode = unmatchedBarcode;
+            this.clusterCounts = new long[barcodeIds.size()];
+            this.pfClusterCounts = new long[barcodeIds.size()];
+        }
+
+        public synchronized Exception getException() { return this.exception; }
+
+        /** run method which counts the clusters of an entire tile */
+        public synchronized void run() {
+            // The data provider is made here rather than in the ctor so that the files of a tile are only opened while it
+            // is being counted, and so that each thread waits only on its own tile's file IO.
+            IlluminaDataProvider provider = null;
+            try {
+                LOG.info("Counting clusters for tile " + tile);
+                provider = factory.makeDataProvider(Arrays.asList(tile));
+                while (provider.hasNext()) {
+                    final ClusterData cluster = provider.next();
+                    String barcode = cluster.getMatchedBarcode();
+                    if (barcode == null) barcode = unmatchedBarcode;
+
+                    final Integer id = barcodeIds.get(barcode);
+                    if (id != null) {
+                        ++clusterCounts[id];
+                        if (cluster.isPf()) ++pfClusterCounts[id];
+                    } else {
+                        long[] counts = otherBarcodeCounts.get(barcode);
+                        if (counts == null) {
+                            counts = new long[2];
+                            otherBarcodeCounts.put(barcode, counts);
+                        }
+                        ++counts[0];
+                        if (cluster.isPf()) ++counts[1];
+                    }
+                }
+            } catch (final Exception e) {
+                LOG.error(e, "Error processing tile ", this.tile);
+                this.exception = e;
+            } finally {
+                if (provider != null) provider.close();
+            }
+        }
+    }
+
     /***
      * This class manages counts of Illumina Basecalling data on a Per Barcode Per Lane basis.  Cluster and PFCluster
      * counts are stored per tile number.
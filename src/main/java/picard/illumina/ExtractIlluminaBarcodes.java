@@ -38,9 +38,11 @@ import picard.illumina.parser.ClusterData;
 import picard.illumina.parser.IlluminaDataProvider;
 import picard.illumina.parser.IlluminaDataProviderFactory;
 import picard.illumina.parser.IlluminaDataType;
+import picard.illumina.parser.IlluminaFileUtil;
 import picard.illumina.parser.ReadDescriptor;
 import picard.illumina.parser.ReadStructure;
 import picard.illumina.parser.ReadType;
+import picard.illumina.parser.RunFolderSnapshot;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
 import picard.util.IlluminaUtil;
 import picard.util.TabbedTextFileWithHeaderParser;
@@ -50,6 +52,7 @@ import java.io.File;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -376,7 +379,10 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
         final IlluminaDataType[] datatypes = (MINIMUM_BASE_QUALITY > 0) ?
                 new IlluminaDataType[]{IlluminaDataType.BaseCalls, IlluminaDataType.PF, IlluminaDataType.QualityScores} :
                 new IlluminaDataType[]{IlluminaDataType.BaseCalls, IlluminaDataType.PF};
-        factory = new IlluminaDataProviderFactory(BASECALLS_DIR, LANE, readStructure, bclQualityEvaluationStrategy, datatypes);
+        // List the lane's directories once, in parallel, rather than probing each file of each tile and cycle
+        final RunFolderSnapshot snapshot = IlluminaFileUtil.snapshotLanes(BASECALLS_DIR, null,
+                Collections.singletonList(LANE), null, RunFolderSnapshot.DEFAULT_NUM_THREADS);
+        factory = new IlluminaDataProviderFactory(BASECALLS_DIR, null, LANE, readStructure, bclQualityEvaluationStrategy, snapshot, datatypes);
 
         if (BARCODE_FILE != null) {
             parseBarcodeFile(messages);
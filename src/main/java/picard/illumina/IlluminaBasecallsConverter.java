@@ -32,7 +32,9 @@ import picard.illumina.parser.ClusterData;
 import picard.illumina.parser.IlluminaDataProvider;
 import picard.illumina.parser.IlluminaDataProviderFactory;
 import picard.illumina.parser.IlluminaDataType;
+import picard.illumina.parser.IlluminaFileUtil;
 import picard.illumina.parser.ReadStructure;
+import picard.illumina.parser.RunFolderSnapshot;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
 import picard.util.FileChannelJDKBugWorkAround;
 
@@ -247,7 +249,11 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             gcTimerTask = null;
         }
 
-        this.factory = new IlluminaDataProviderFactory(basecallsDir, barcodesDir, lane, readStructure, bclQualityEvaluationStrategy, getDataTypesFromReadStructure(readStructure, demultiplex));
+        // List the lane's directories once, in parallel, rather than probing each file of each tile and cycle
+        final RunFolderSnapshot snapshot = IlluminaFileUtil.snapshotLanes(basecallsDir, barcodesDir,
+                Collections.singletonList(lane), null, RunFolderSnapshot.DEFAULT_NUM_THREADS);
+        this.factory = new IlluminaDataProviderFactory(basecallsDir, barcodesDir, lane, readStructure, bclQualityEvaluationStrategy,
+                snapshot, getDataTypesFromReadStructure(readStructure, demultiplex));
         this.factory.setApplyEamssFiltering(applyEamssFiltering);
 
         if (numProcessors == 0) {
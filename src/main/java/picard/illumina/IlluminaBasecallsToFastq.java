@@ -23,8 +23,10 @@
  */
 package picard.illumina;
 
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.SAMRecordQueryNameComparator;
 import htsjdk.samtools.SAMUtils;
+import htsjdk.samtools.fastq.AsyncFastqWriter;
 import htsjdk.samtools.fastq.BasicFastqWriter;
 import htsjdk.samtools.fastq.FastqReader;
 import htsjdk.samtools.fastq.FastqRecord;
@@ -33,6 +35,7 @@ import htsjdk.samtools.fastq.FastqWriterFactory;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.Md5CalculatingOutputStream;
 import htsjdk.samtools.util.SortingCollection;
 import htsjdk.samtools.util.StringUtil;
 import picard.PicardException;
@@ -49,10 +52,13 @@ import picard.illumina.parser.ReadData;
 import picard.illumina.parser.ReadStructure;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
 import picard.util.IlluminaUtil;
+import picard.util.ParallelGzipOutputStream;
 import picard.util.TabbedTextFileWithHeaderParser;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -200,6 +206,11 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
     @Option(shortName = "GZIP", doc = "Compress output FASTQ files using gzip and append a .gz extension to the file names.")
     public boolean COMPRESS_OUTPUTS = false;
 
+    @Option(doc = "If COMPRESS_OUTPUTS is true, write the FASTQ files in BGZF format, which gzip can read but which can also " +
+            "be indexed and read from the middle.  The file names still end in .gz.  BGZF output is compressed at " +
+            "COMPRESSION_LEVEL.")
+    public boolean USE_BGZF = false;
+
     /** Simple switch to control the read name format to emit. */
     public enum ReadNameFormat {
         CASAVA_1_8, ILLUMINA
@@ -210,6 +221,8 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
     IlluminaBasecallsConverter<FastqRecordsForCluster> basecallsConverter;
     private static final Log log = Log.getInstance(IlluminaBasecallsToFastq.class);
     private final FastqWriterFactory fastqWriterFactory = new FastqWriterFactory();
+    /** Compresses the output of all the FASTQ writers when COMPRESS_OUTPUTS, so that more barcodes do not mean more threads. */
+    private ParallelGzipOutputStream.DeflaterPool deflaterPool;
     private ReadNameEncoder readNameEncoder;
     private static final Comparator<FastqRecordsForCluster> queryNameComparator = (r1, r2) -> SAMRecordQueryNameComparator.compareReadNames(r1.templateRecords[0].getReadHeader(),
             r2.templateRecords[0].getReadHeader());
@@ -218,7 +231,11 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
     protected int doWork() {
         initialize();
 
-        basecallsConverter.doTileProcessing();
+        try {
+            basecallsConverter.doTileProcessing();
+        } finally {
+            if (deflaterPool != null) deflaterPool.close();
+        }
 
         return 0;
     }
@@ -246,6 +263,17 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
      */
     private void initialize() {
         fastqWriterFactory.setCreateMd5(CREATE_MD5_FILE);
+        if (COMPRESS_OUTPUTS) {
+            final int numThreads;
+            if (NUM_PROCESSORS == 0) {
+                numThreads = Runtime.getRuntime().availableProcessors();
+            } else if (NUM_PROCESSORS < 0) {
+                numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() + NUM_PROCESSORS);
+            } else {
+                numThreads = NUM_PROCESSORS;
+            }
+            deflaterPool = new ParallelGzipOutputStream.DeflaterPool(USE_BGZF ? COMPRESSION_LEVEL : IOUtil.getCompressionLevel(), numThreads);
+        }
         switch (READ_NAME_FORMAT) {
             case CASAVA_1_8:
                 readNameEncoder = new Casava18ReadNameEncoder(MACHINE_NAME, RUN_BARCODE, FLOWCELL_BARCODE);        
@@ -357,21 +385,42 @@ public class IlluminaBasecallsToFastq extends CommandLineProgram {
 
         for (int i = 0; i < templateWriters.length; ++i) {
             final String filename = String.format("%s.%d.%s", prefixString, i+1, suffixString);
-            templateWriters[i] = fastqWriterFactory.newWriter(new File(outputDir, filename));
+            templateWriters[i] = newWriter(new File(outputDir, filename));
         }
 
         for (int i = 0; i < sampleBarcodeWriters.length; ++i) {
             final String filename = String.format("%s.barcode_%d.%s", prefixString, i+1, suffixString);
-            sampleBarcodeWriters[i] = fastqWriterFactory.newWriter(new File(outputDir, filename));
+            sampleBarcodeWriters[i] = newWriter(new File(outputDir, filename));
         }
 
         for (int i = 0; i < molecularBarcodeWriters.length; ++i) {
             final String filename = String.format("%s.index_%d.%s", prefixString, i+1, suffixString);
-            molecularBarcodeWriters[i] = fastqWriterFactory.newWriter(new File(outputDir, filename));
+            molecularBarcodeWriters[i] = newWriter(new File(outputDir, filename));
         }
         return new FastqRecordsWriter(templateWriters, sampleBarcodeWriters, molecularBarcodeWriters);
     }
 
+    /**
+     * @return a FastqWriter as FastqWriterFactory would make it, except that compressed output is compressed by
+     * deflaterPool rather than by the thread writing to it.
+     */
+    private FastqWriter newWriter(final File file) {
+        if (!COMPRESS_OUTPUTS) return fastqWriterFactory.newWriter(file);
+
+        final OutputStream fileStream;
+        try {
+            fileStream = new FileOutputStream(file);
+        } catch (final FileNotFoundException e) {
+            throw new PicardException("Could not open " + file.getAbsolutePath() + " for writing", e);
+        }
+        // As for FastqWriterFactory, the MD5 is of the file as written, i.e. of the compressed bytes
+        final OutputStream md5Stream = CREATE_MD5_FILE ? new Md5CalculatingOutputStream(fileStream, new File(file.getAbsolutePath() + ".md5")) : fileStream;
+        final ParallelGzipOutputStream gzipStream = new ParallelGzipOutputStream(md5Stream,
+                USE_BGZF ? ParallelGzipOutputStream.Format.BGZF : ParallelGzipOutputStream.Format.GZIP, deflaterPool);
+        final FastqWriter writer = new BasicFastqWriter(new PrintStream(IOUtil.maybeBufferOutputStream(gzipStream)));
+        return Defaults.USE_ASYNC_IO_WRITE_FOR_SAMTOOLS ? new AsyncFastqWriter(writer, AsyncFastqWriter.DEFAULT_QUEUE_SIZE) : writer;
+    }
+
     public static void main(final String[] args) {
         new IlluminaBasecallsToFastq().instanceMainWithExit(args);
     }
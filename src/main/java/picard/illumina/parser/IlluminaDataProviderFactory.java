@@ -145,6 +145,18 @@ public class IlluminaDataProviderFactory {
     public IlluminaDataProviderFactory(final File basecallDirectory, File barcodesDirectory, final int lane,
                                        final ReadStructure readStructure,
                                        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final IlluminaDataType... dataTypesArg) {
+        this(basecallDirectory, barcodesDirectory, lane, readStructure, bclQualityEvaluationStrategy, RunFolderSnapshot.LIVE, dataTypesArg);
+    }
+
+    /**
+     * Create factory with the specified options, finding the files of each format from a snapshot of the run folder
+     *
+     * @param snapshot A listing of the run folder, see IlluminaFileUtil.snapshotLanes
+     */
+    public IlluminaDataProviderFactory(final File basecallDirectory, File barcodesDirectory, final int lane,
+                                       final ReadStructure readStructure,
+                                       final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
+                                       final RunFolderSnapshot snapshot, final IlluminaDataType... dataTypesArg) {
         this.basecallDirectory = basecallDirectory;
         this.barcodesDirectory = barcodesDirectory;
         this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
@@ -162,7 +174,7 @@ public class IlluminaDataProviderFactory {
                     ", lane " + lane);
         }
 
-        this.fileUtil = new IlluminaFileUtil(basecallDirectory, barcodesDirectory, lane);
+        this.fileUtil = new IlluminaFileUtil(basecallDirectory, barcodesDirectory, lane, snapshot);
 
         //find what request IlluminaDataTypes we have files for and select the most preferred file format available for that type
         formatToDataTypes = determineFormats(dataTypes, fileUtil);
@@ -25,6 +25,7 @@ package picard.illumina.parser;
 
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
 import picard.PicardException;
 import picard.illumina.parser.fakers.BarcodeFileFaker;
 import picard.illumina.parser.fakers.BclFileFaker;
@@ -55,6 +56,7 @@ import java.util.regex.Pattern;
  */
 public class IlluminaFileUtil {
     public static final Pattern CYCLE_SUBDIRECTORY_PATTERN = Pattern.compile("^C(\\d+)\\.1$");
+    private static final Log log = Log.getInstance(IlluminaFileUtil.class);
 
     public enum SupportedIlluminaFormat {
         Bcl,
@@ -76,6 +78,7 @@ public class IlluminaFileUtil {
     private final int lane;
 
     private final File tileMetricsOut;
+    private final RunFolderSnapshot snapshot;
     private final Map<SupportedIlluminaFormat, ParameterizedFileUtil> utils = new EnumMap<SupportedIlluminaFormat, ParameterizedFileUtil>(SupportedIlluminaFormat.class);
 
     public IlluminaFileUtil(final File basecallDir, final int lane) {
@@ -84,6 +87,15 @@ public class IlluminaFileUtil {
 
 
 	public IlluminaFileUtil(final File basecallDir, File barcodeDir, final int lane) {
+        this(basecallDir, barcodeDir, lane, RunFolderSnapshot.LIVE);
+    }
+
+    /**
+     * @param snapshot The listing of the run folder from which to find the files of each format.  Directories it does not
+     *                 include are read from the file system.
+     */
+    public IlluminaFileUtil(final File basecallDir, final File barcodeDir, final int lane, final RunFolderSnapshot snapshot) {
+        this.snapshot = snapshot;
         this.lane = lane;
         this.basecallDir = basecallDir;
         this.barcodeDir = barcodeDir;
@@ -96,6 +108,43 @@ public class IlluminaFileUtil {
     }
 
 
+    /**
+     * Returns a snapshot of the directories in which IlluminaFileUtil looks for the files of the given lanes.  If
+     * snapshotFile is given and holds a snapshot of these directories that is still current, that is returned;
+     * otherwise, including when snapshotFile cannot be read, the directories are listed and the snapshot written to
+     * snapshotFile if given.
+     *
+     * @param barcodeDir The directory of barcode files, or null if they are in basecallDir
+     * @param snapshotFile Where to keep the snapshot between programs, or null
+     * @param numThreads The number of directories to list at once
+     */
+    public static RunFolderSnapshot snapshotLanes(final File basecallDir, final File barcodeDir, final List<Integer> lanes,
+                                                  final File snapshotFile, final int numThreads) {
+        final File intensityDir = basecallDir.getAbsoluteFile().getParentFile();
+        final List<File> directoryRoots = new ArrayList<File>();
+        directoryRoots.add(basecallDir);
+        directoryRoots.add(intensityDir);
+        if (barcodeDir != null) directoryRoots.add(barcodeDir);
+        final List<File> treeRoots = new ArrayList<File>();
+        for (final int lane : lanes) {
+            treeRoots.add(new File(basecallDir, longLaneStr(lane)));
+            treeRoots.add(new File(intensityDir, longLaneStr(lane)));
+        }
+
+        if (snapshotFile != null && snapshotFile.exists()) {
+            try {
+                final RunFolderSnapshot snapshot = RunFolderSnapshot.read(snapshotFile);
+                if (snapshot.isCurrent(directoryRoots, treeRoots)) return snapshot;
+            } catch (final RuntimeException e) {
+                // e.g. a snapshot of an older version, or one left truncated by a program that was killed while writing it
+                log.warn("Ignoring run folder snapshot " + snapshotFile.getAbsolutePath() + " that could not be read: " + e.getMessage());
+            }
+        }
+        final RunFolderSnapshot snapshot = RunFolderSnapshot.take(directoryRoots, treeRoots, numThreads);
+        if (snapshotFile != null) snapshot.write(snapshotFile);
+        return snapshot;
+    }
+
     /**
      * Return the lane we're inspecting
      */
@@ -111,8 +160,8 @@ public class IlluminaFileUtil {
         if (parameterizedFileUtil == null) {
             switch (format) {
                 case Bcl:
-                    final ParameterizedFileUtil bclFileUtil = new PerTilePerCycleFileUtil(".bcl", basecallLaneDir, new BclFileFaker(), lane);
-                    final ParameterizedFileUtil gzBclFileUtil = new PerTilePerCycleFileUtil(".bcl.gz", basecallLaneDir, new BclFileFaker(), lane);
+                    final ParameterizedFileUtil bclFileUtil = new PerTilePerCycleFileUtil(".bcl", basecallLaneDir, new BclFileFaker(), lane, snapshot);
+                    final ParameterizedFileUtil gzBclFileUtil = new PerTilePerCycleFileUtil(".bcl.gz", basecallLaneDir, new BclFileFaker(), lane, snapshot);
                     if (bclFileUtil.filesAvailable() && !gzBclFileUtil.filesAvailable()) {
                         parameterizedFileUtil = bclFileUtil;
                     } else if (!bclFileUtil.filesAvailable() && gzBclFileUtil.filesAvailable()) {
@@ -126,35 +175,35 @@ public class IlluminaFileUtil {
                     utils.put(SupportedIlluminaFormat.Bcl, parameterizedFileUtil);
                     break;
                 case Locs:
-                    parameterizedFileUtil = new PerTileFileUtil(".locs", intensityLaneDir, new LocsFileFaker(), lane);
+                    parameterizedFileUtil = new PerTileFileUtil(".locs", intensityLaneDir, new LocsFileFaker(), lane, true, snapshot);
                     utils.put(SupportedIlluminaFormat.Locs, parameterizedFileUtil);
                     break;
                 case Clocs:
-                    parameterizedFileUtil = new PerTileFileUtil(".clocs", intensityLaneDir, new ClocsFileFaker(), lane);
+                    parameterizedFileUtil = new PerTileFileUtil(".clocs", intensityLaneDir, new ClocsFileFaker(), lane, true, snapshot);
                     utils.put(SupportedIlluminaFormat.Clocs, parameterizedFileUtil);
                     break;
                 case Pos:
-                    parameterizedFileUtil = new PerTileFileUtil("_pos.txt", intensityDir, new PosFileFaker(), lane);
+                    parameterizedFileUtil = new PerTileFileUtil("_pos.txt", intensityDir, new PosFileFaker(), lane, true, snapshot);
                     utils.put(SupportedIlluminaFormat.Pos, parameterizedFileUtil);
                     break;
                 case Filter:
-                    parameterizedFileUtil = new PerTileFileUtil(".filter", basecallLaneDir, new FilterFileFaker(), lane);
+                    parameterizedFileUtil = new PerTileFileUtil(".filter", basecallLaneDir, new FilterFileFaker(), lane, true, snapshot);
                     utils.put(SupportedIlluminaFormat.Filter, parameterizedFileUtil);
                     break;
                 case Barcode:
-                    parameterizedFileUtil = new PerTileFileUtil("_barcode.txt", barcodeDir != null ? barcodeDir : basecallDir, new BarcodeFileFaker(), lane, false);
+                    parameterizedFileUtil = new PerTileFileUtil("_barcode.txt", barcodeDir != null ? barcodeDir : basecallDir, new BarcodeFileFaker(), lane, false, snapshot);
                     utils.put(SupportedIlluminaFormat.Barcode, parameterizedFileUtil);
                     break;
                 case MultiTileFilter:
-                    parameterizedFileUtil = new MultiTileFilterFileUtil(basecallLaneDir, lane);
+                    parameterizedFileUtil = new MultiTileFilterFileUtil(basecallLaneDir, lane, snapshot);
                     utils.put(SupportedIlluminaFormat.MultiTileFilter, parameterizedFileUtil);
                     break;
                 case MultiTileLocs:
-                    parameterizedFileUtil = new MultiTileLocsFileUtil(new File(intensityDir, basecallLaneDir.getName()), basecallLaneDir, lane);
+                    parameterizedFileUtil = new MultiTileLocsFileUtil(new File(intensityDir, basecallLaneDir.getName()), basecallLaneDir, lane, snapshot);
                     utils.put(SupportedIlluminaFormat.MultiTileLocs, parameterizedFileUtil);
                     break;
                 case MultiTileBcl:
-                    parameterizedFileUtil = new MultiTileBclFileUtil(basecallLaneDir, lane);
+                    parameterizedFileUtil = new MultiTileBclFileUtil(basecallLaneDir, lane, snapshot);
                     utils.put(SupportedIlluminaFormat.MultiTileBcl, parameterizedFileUtil);
                     break;
             }
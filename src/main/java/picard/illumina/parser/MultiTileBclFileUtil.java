@@ -1,6 +1,5 @@
 package picard.illumina.parser;
 
-import htsjdk.samtools.util.IOUtil;
 import picard.illumina.parser.fakers.MultiTileBclFileFaker;
 
 import java.io.File;
@@ -17,15 +16,15 @@ public class MultiTileBclFileUtil extends ParameterizedFileUtil {
     final TileIndex tileIndex;
     final CycleIlluminaFileMap cycleFileMap = new CycleIlluminaFileMap();
 
-    MultiTileBclFileUtil(final File basecallLaneDir, final int lane) {
+    MultiTileBclFileUtil(final File basecallLaneDir, final int lane, final RunFolderSnapshot snapshot) {
         // Since these file names do not contain lane number, first two args to ctor are the same.
         super("^(\\d{4}).bcl.bgzf$", ".bcl.bgzf", basecallLaneDir,
-                new MultiTileBclFileFaker(), lane);
+                new MultiTileBclFileFaker(), lane, snapshot);
         this.basecallLaneDir = basecallLaneDir;
         bci = new File(basecallLaneDir, "s_" + lane + ".bci");
         // Do this once rather than when deciding if these files exist and again later.
-        final File[] cycleFiles = IOUtil.getFilesMatchingRegexp(base, matchPattern);
-        if (bci.exists()) {
+        final File[] cycleFiles = snapshot.getFilesMatchingRegexp(base, matchPattern);
+        if (snapshot.exists(bci)) {
             tileIndex = new TileIndex(bci);
             if (cycleFiles != null) {
                 for (final File file : cycleFiles) {
@@ -72,7 +71,7 @@ public class MultiTileBclFileUtil extends ParameterizedFileUtil {
 
     @Override
     public boolean filesAvailable() {
-        return bci.exists() && !cycleFileMap.isEmpty();
+        return snapshot.exists(bci) && !cycleFileMap.isEmpty();
     }
 
     @Override
@@ -22,15 +22,15 @@ public abstract class MultiTileFileUtil<OUTPUT_RECORD extends IlluminaData> exte
     protected File dataFile;
 
     MultiTileFileUtil(final String extension, final File base, final File bciDir, final FileFaker fileFaker,
-                      final int lane) {
-        super(false, extension, base, fileFaker, lane);
+                      final int lane, final RunFolderSnapshot snapshot) {
+        super(false, extension, base, fileFaker, lane, DefaultSkipEmptyFiles, snapshot);
         bci = new File(bciDir, "s_" + lane + ".bci");
-        if (bci.exists()) {
+        if (snapshot.exists(bci)) {
             tileIndex = new TileIndex(bci);
         } else {
             tileIndex = null;
         }
-        final File[] filesMatchingRegexp = IOUtil.getFilesMatchingRegexp(base, matchPattern);
+        final File[] filesMatchingRegexp = snapshot.getFilesMatchingRegexp(base, matchPattern);
         if (filesMatchingRegexp == null || filesMatchingRegexp.length == 0) {
             dataFile = null;
         } else if (filesMatchingRegexp.length == 1) {
@@ -42,7 +42,7 @@ public abstract class MultiTileFileUtil<OUTPUT_RECORD extends IlluminaData> exte
 
     @Override
     public boolean filesAvailable() {
-        return tileIndex != null && dataFile != null && dataFile.exists();
+        return tileIndex != null && dataFile != null && snapshot.exists(dataFile);
     }
 
     @Override
@@ -96,8 +96,8 @@ class MultiTileFilterFileUtil extends MultiTileFileUtil<PfData> {
     /**
      * @param basecallLaneDir location of .filter file and also .bci file
      */
-    MultiTileFilterFileUtil(final File basecallLaneDir, final int lane) {
-        super(".filter", basecallLaneDir, basecallLaneDir, new FilterFileFaker(), lane);
+    MultiTileFilterFileUtil(final File basecallLaneDir, final int lane, final RunFolderSnapshot snapshot) {
+        super(".filter", basecallLaneDir, basecallLaneDir, new FilterFileFaker(), lane, snapshot);
     }
 
     @Override
@@ -108,8 +108,8 @@ class MultiTileFilterFileUtil extends MultiTileFileUtil<PfData> {
 
 class MultiTileLocsFileUtil extends MultiTileFileUtil<PositionalData> {
 
-    MultiTileLocsFileUtil(final File basecallLaneDir, final File bciDir, final int lane) {
-        super(".locs", basecallLaneDir, bciDir, new MultiTileLocsFileFaker(), lane);
+    MultiTileLocsFileUtil(final File basecallLaneDir, final File bciDir, final int lane, final RunFolderSnapshot snapshot) {
+        super(".locs", basecallLaneDir, bciDir, new MultiTileLocsFileFaker(), lane, snapshot);
     }
 
     @Override
@@ -43,13 +43,21 @@ public abstract class ParameterizedFileUtil {
      */
     protected final File base;
     protected final FileFaker faker;
+    /** Answers the existence and size checks of this file type, from memory if its directories have been snapshotted. */
+    protected final RunFolderSnapshot snapshot;
 
     protected static final boolean DefaultSkipEmptyFiles = true;
     protected final boolean skipEmptyFiles;
 
     public ParameterizedFileUtil(final boolean laneTileRegex, final String extension, final File base,
                                  final FileFaker faker, final int lane, final boolean skipEmptyFiles) {
-        this(extension, base, faker, lane, skipEmptyFiles);
+        this(laneTileRegex, extension, base, faker, lane, skipEmptyFiles, RunFolderSnapshot.LIVE);
+    }
+
+    public ParameterizedFileUtil(final boolean laneTileRegex, final String extension, final File base,
+                                 final FileFaker faker, final int lane, final boolean skipEmptyFiles,
+                                 final RunFolderSnapshot snapshot) {
+        this(extension, base, faker, lane, skipEmptyFiles, snapshot);
         if (laneTileRegex) {
             matchPattern = Pattern.compile(escapePeriods(makeLaneTileRegex(processTxtExtension(extension), lane)));
         } else {
@@ -64,17 +72,18 @@ public abstract class ParameterizedFileUtil {
 
     public ParameterizedFileUtil(final String pattern, final String extension, final File base, final FileFaker faker,
                                  final int lane) {
-        this(extension, base, faker, lane);
-        this.matchPattern = Pattern.compile(pattern);
+        this(pattern, extension, base, faker, lane, RunFolderSnapshot.LIVE);
     }
 
-    private ParameterizedFileUtil(final String extension, final File base, final FileFaker faker,
-                                  final int lane) {
-        this(extension, base, faker, lane, DefaultSkipEmptyFiles);
+    public ParameterizedFileUtil(final String pattern, final String extension, final File base, final FileFaker faker,
+                                 final int lane, final RunFolderSnapshot snapshot) {
+        this(extension, base, faker, lane, DefaultSkipEmptyFiles, snapshot);
+        this.matchPattern = Pattern.compile(pattern);
     }
 
     private ParameterizedFileUtil(final String extension, final File base, final FileFaker faker,
-                                  final int lane, final boolean skipEmptyFiles) {
+                                  final int lane, final boolean skipEmptyFiles, final RunFolderSnapshot snapshot) {
+        this.snapshot = snapshot;
         this.faker = faker;
         this.extension = extension;
         this.base = base;
@@ -172,11 +181,11 @@ public abstract class ParameterizedFileUtil {
      */
     protected IlluminaFileMap getTiledFiles(final File baseDirectory, final Pattern pattern) {
         final IlluminaFileMap fileMap = new IlluminaFileMap();
-        if (baseDirectory.exists()) {
-            IOUtil.assertDirectoryIsReadable(baseDirectory);
-            final File[] files = IOUtil.getFilesMatchingRegexp(baseDirectory, pattern);
+        if (snapshot.exists(baseDirectory)) {
+            if (!snapshot.isSnapshotted(baseDirectory)) IOUtil.assertDirectoryIsReadable(baseDirectory);
+            final File[] files = snapshot.getFilesMatchingRegexp(baseDirectory, pattern);
             for (final File file : files) {
-                if (!skipEmptyFiles || file.length() > 0) {
+                if (!skipEmptyFiles || snapshot.length(file) > 0) {
                     fileMap.put(fileToTile(file.getName()), file);
                 }
             }
@@ -19,7 +19,12 @@ public class PerTileFileUtil extends ParameterizedFileUtil {
 
     public PerTileFileUtil(final String extension, final File base,
         final FileFaker faker, final int lane, final boolean skipEmptyFiles) {
-        super(true, extension, base, faker, lane, skipEmptyFiles);
+        this(extension, base, faker, lane, skipEmptyFiles, RunFolderSnapshot.LIVE);
+    }
+
+    public PerTileFileUtil(final String extension, final File base, final FileFaker faker, final int lane,
+                           final boolean skipEmptyFiles, final RunFolderSnapshot snapshot) {
+        super(true, extension, base, faker, lane, skipEmptyFiles, snapshot);
         this.fileMap = getTiledFiles(base, matchPattern);
         if (!fileMap.isEmpty()) {
             this.tiles = Collections.unmodifiableList(new ArrayList<Integer>(this.fileMap.keySet()));
@@ -45,7 +50,7 @@ public class PerTileFileUtil extends ParameterizedFileUtil {
     public List<String> verify(final List<Integer> expectedTiles, final int[] expectedCycles) {
         final List<String> failures = new LinkedList<String>();
 
-        if (!base.exists()) {
+        if (!snapshot.exists(base)) {
             failures.add("Base directory(" + base.getAbsolutePath() + ") does not exist!");
         } else {
                 if (!tiles.containsAll(expectedTiles)) {
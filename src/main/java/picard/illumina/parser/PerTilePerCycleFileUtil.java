@@ -1,6 +1,5 @@
 package picard.illumina.parser;
 
-import htsjdk.samtools.util.IOUtil;
 import picard.PicardException;
 import picard.illumina.parser.fakers.FileFaker;
 import picard.illumina.parser.readers.BclReader;
@@ -25,7 +24,12 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
 
     public PerTilePerCycleFileUtil(final String extension,
                                    final File base, final FileFaker faker, final int lane) {
-        super(true, extension, base, faker, lane);
+        this(extension, base, faker, lane, RunFolderSnapshot.LIVE);
+    }
+
+    public PerTilePerCycleFileUtil(final String extension, final File base, final FileFaker faker, final int lane,
+                                   final RunFolderSnapshot snapshot) {
+        super(true, extension, base, faker, lane, DefaultSkipEmptyFiles, snapshot);
         //sideEffect, assigned to numCycles
         this.cycleFileMap = getPerTilePerCycleFiles();
     }
@@ -43,7 +47,7 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
 
         final File laneDir = base;
         final File[] tempCycleDirs;
-        tempCycleDirs = IOUtil.getFilesMatchingRegexp(laneDir, IlluminaFileUtil.CYCLE_SUBDIRECTORY_PATTERN);
+        tempCycleDirs = snapshot.getFilesMatchingRegexp(laneDir, IlluminaFileUtil.CYCLE_SUBDIRECTORY_PATTERN);
         if (tempCycleDirs == null || tempCycleDirs.length == 0) {
             return cycledMap;
         }
@@ -140,7 +144,7 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
         final List<String> failures = new LinkedList<String>();
         final Map<Integer, Long> tileToFileLengthMap = new HashMap<Integer, Long>();
 
-        if (!base.exists()) {
+        if (!snapshot.exists(base)) {
             failures.add("Base directory(" + base.getAbsolutePath() + ") does not exist!");
         } else {
             final CycleIlluminaFileMap cfm = getFiles(expectedTiles, expectedCycles);
@@ -150,9 +154,10 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
                     for (final int tile : expectedTiles) {
                         final File cycleFile = fileMap.get(tile);
                         if (cycleFile != null) {
+                            final long cycleFileLength = snapshot.length(cycleFile);
                             if (tileToFileLengthMap.get(tile) == null) {
-                                tileToFileLengthMap.put(tile, cycleFile.length());
-                            } else if (!extension.equals(".bcl.gz") && tileToFileLengthMap.get(tile) != cycleFile.length()) {
+                                tileToFileLengthMap.put(tile, cycleFileLength);
+                            } else if (!extension.equals(".bcl.gz") && tileToFileLengthMap.get(tile) != cycleFileLength) {
 
                                 // TODO: The gzip bcl files might not be the same length despite having the same content,
                                 // for now we're punting on this but this should be looked into at some point
@@ -160,7 +165,7 @@ public class PerTilePerCycleFileUtil extends ParameterizedFileUtil {
                                         + " has cycles files of different length.  Current cycle ("
                                         + currentCycle + ") " +
                                         "Length of first non-empty file (" + tileToFileLengthMap.get(tile)
-                                        + ") length of current cycle (" + cycleFile.length() + ")"
+                                        + ") length of current cycle (" + cycleFileLength + ")"
                                         + " File(" + cycleFile.getAbsolutePath() + ")");
                             }
                         } else {
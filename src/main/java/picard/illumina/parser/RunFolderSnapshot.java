@@ -0,0 +1,368 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.illumina.parser;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import picard.PicardException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-memory listing of the directories of a run folder, with the name and size of every entry in them, taken by one
+ * walk of the directories in parallel.  The existence and size checks that IlluminaFileUtil and its
+ * ParameterizedFileUtils make for every tile and cycle are then answered from memory, which on network storage, where
+ * each one is a round trip to the server, is most of the time taken to open a run.
+ * <p/>
+ * Directories are snapshotted either alone or together with everything beneath them.  Files that are not in a
+ * snapshotted directory are looked up on the file system, so a snapshot of no directories, LIVE, behaves as the file
+ * system itself.
+ * <p/>
+ * A snapshot may be written to a file and read back by a later program run on the same folder.  A snapshot read back is
+ * only used if no directory in it has been modified since, which takes one check per directory rather than per file.
+ * Files written in place without adding or removing a directory entry are not noticed, so this is meant for the
+ * output of runs that have completed.
+ */
+public class RunFolderSnapshot {
+    /** Listing directories is bound by the latency of the file system rather than by CPU, so use more threads than cores. */
+    public static final int DEFAULT_NUM_THREADS = 16;
+
+    /** A snapshot of no directories, that looks up every file on the file system. */
+    public static final RunFolderSnapshot LIVE = new RunFolderSnapshot(Collections.<File, Directory>emptyMap(),
+            Collections.<File>emptyList(), Collections.<File>emptyList());
+
+    private static final String FILE_FORMAT = "RunFolderSnapshot.1";
+    private static final Log log = Log.getInstance(RunFolderSnapshot.class);
+
+    /** The listing of each directory that has been snapshotted, or NO_DIRECTORY for one that did not exist.  Keys are absolute. */
+    private final Map<File, Directory> directories;
+    private final List<File> directoryRoots;
+    private final List<File> treeRoots;
+
+    /** The entries of a single directory, sorted by name. */
+    private static class Directory {
+        final long lastModified;
+        final String[] names;
+        /** The length of each entry, 0 for directories, or -1 for an entry that cannot be followed, e.g. a broken link. */
+        final long[] lengths;
+        final boolean[] isDirectory;
+
+        Directory(final long lastModified, final String[] names, final long[] lengths, final boolean[] isDirectory) {
+            this.lastModified = lastModified;
+            this.names = names;
+            this.lengths = lengths;
+            this.isDirectory = isDirectory;
+        }
+
+        int indexOf(final String name) {
+            return Arrays.binarySearch(names, name);
+        }
+    }
+
+    /** Stands in for a directory that did not exist, since a ConcurrentHashMap may not hold null. */
+    private static final Directory NO_DIRECTORY = new Directory(0, new String[0], new long[0], new boolean[0]);
+
+    private RunFolderSnapshot(final Map<File, Directory> directories, final List<File> directoryRoots, final List<File> treeRoots) {
+        this.directories = directories;
+        this.directoryRoots = directoryRoots;
+        this.treeRoots = treeRoots;
+    }
+
+    /**
+     * Lists the given directories, and every directory beneath the tree roots, in parallel.
+     *
+     * @param directoryRoots directories whose entries, but not those of their subdirectories, are listed
+     * @param treeRoots      directories whose entries are listed along with those of all their subdirectories
+     * @param numThreads     the number of directories to list at once
+     */
+    public static RunFolderSnapshot take(final Collection<File> directoryRoots, final Collection<File> treeRoots, final int numThreads) {
+        final long startTime = System.currentTimeMillis();
+        final Map<File, Directory> directories = new ConcurrentHashMap<File, Directory>();
+        final List<ListDirectory> tasks = new ArrayList<ListDirectory>();
+        for (final File root : directoryRoots) tasks.add(new ListDirectory(root.getAbsoluteFile(), false, directories));
+        for (final File root : treeRoots) tasks.add(new ListDirectory(root.getAbsoluteFile(), true, directories));
+
+        final ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        final RunFolderSnapshot snapshot = new RunFolderSnapshot(directories, absolute(directoryRoots), absolute(treeRoots));
+        log.info("Listed " + directories.size() + " directories in " + (System.currentTimeMillis() - startTime) + "ms.");
+        return snapshot;
+    }
+
+    private static List<File> absolute(final Collection<File> files) {
+        final List<File> absoluteFiles = new ArrayList<File>(files.size());
+        for (final File file : files) absoluteFiles.add(file.getAbsoluteFile());
+        return Collections.unmodifiableList(absoluteFiles);
+    }
+
+    /** Lists a directory, and if recursive then forks the listing of each of its subdirectories. */
+    private static class ListDirectory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+        private final boolean recursive;
+        private final Map<File, Directory> directories;
+
+        ListDirectory(final File directory, final boolean recursive, final Map<File, Directory> directories) {
+            this.directory = directory;
+            this.recursive = recursive;
+            this.directories = directories;
+        }
+
+        @Override
+        protected void compute() {
+            final Directory listing = list(directory);
+            if (listing == null) {
+                directories.put(directory, NO_DIRECTORY);
+                return;
+            }
+            directories.put(directory, listing);
+            if (recursive) {
+                final List<ListDirectory> subdirectories = new ArrayList<ListDirectory>();
+                for (int i = 0; i < listing.names.length; ++i) {
+                    if (listing.isDirectory[i]) {
+                        subdirectories.add(new ListDirectory(new File(directory, listing.names[i]), true, directories));
+                    }
+                }
+                invokeAll(subdirectories);
+            }
+        }
+    }
+
+    /** Returns the listing of directory, or null if it is not a directory. */
+    private static Directory list(final File directory) {
+        final Path path = directory.toPath();
+        final BasicFileAttributes directoryAttributes;
+        try {
+            directoryAttributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (final IOException e) {
+            return null;
+        }
+        if (!directoryAttributes.isDirectory()) return null;
+
+        final List<String> names = new ArrayList<String>();
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+            for (final Path entry : entries) names.add(entry.getFileName().toString());
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Could not list directory " + directory.getAbsolutePath(), e);
+        }
+        Collections.sort(names);
+
+        final String[] sortedNames = names.toArray(new String[names.size()]);
+        final long[] lengths = new long[sortedNames.length];
+        final boolean[] isDirectory = new boolean[sortedNames.length];
+        for (int i = 0; i < sortedNames.length; ++i) {
+            try {
+                // Follow links, as File.length() and File.isDirectory() do
+                final BasicFileAttributes attributes = Files.readAttributes(path.resolve(sortedNames[i]), BasicFileAttributes.class);
+                isDirectory[i] = attributes.isDirectory();
+                lengths[i] = isDirectory[i] ? 0 : attributes.size();
+            } catch (final IOException e) {
+                lengths[i] = -1;
+            }
+        }
+        return new Directory(directoryAttributes.lastModifiedTime().toMillis(), sortedNames, lengths, isDirectory);
+    }
+
+    /** Returns the listing of the directory, or null if it was not snapshotted.  NO_DIRECTORY if it did not exist. */
+    private Directory getDirectory(final File directory) {
+        return directory == null ? null : directories.get(directory);
+    }
+
+    /** Returns true if the given directory was listed by this snapshot, whether or not it existed. */
+    public boolean isSnapshotted(final File directory) {
+        return directories.containsKey(directory.getAbsoluteFile());
+    }
+
+    /** As File.exists(). */
+    public boolean exists(final File file) {
+        final File absoluteFile = file.getAbsoluteFile();
+        final Directory asDirectory = getDirectory(absoluteFile);
+        if (asDirectory != null) return asDirectory != NO_DIRECTORY;
+        final Directory parent = getDirectory(absoluteFile.getParentFile());
+        if (parent == null) return file.exists();
+        final int i = parent.indexOf(absoluteFile.getName());
+        return i >= 0 && parent.lengths[i] >= 0;
+    }
+
+    /** As File.isDirectory(). */
+    public boolean isDirectory(final File file) {
+        final File absoluteFile = file.getAbsoluteFile();
+        final Directory asDirectory = getDirectory(absoluteFile);
+        if (asDirectory != null) return asDirectory != NO_DIRECTORY;
+        final Directory parent = getDirectory(absoluteFile.getParentFile());
+        if (parent == null) return file.isDirectory();
+        final int i = parent.indexOf(absoluteFile.getName());
+        return i >= 0 && parent.isDirectory[i];
+    }
+
+    /** As File.length(). */
+    public long length(final File file) {
+        final File absoluteFile = file.getAbsoluteFile();
+        final Directory parent = getDirectory(absoluteFile.getParentFile());
+        if (parent == null) return file.length();
+        final int i = parent.indexOf(absoluteFile.getName());
+        return i >= 0 ? Math.max(0, parent.lengths[i]) : 0;
+    }
+
+    /**
+     * As IOUtil.getFilesMatchingRegexp(), returns the entries of directory whose names match the pattern, or null if
+     * directory does not exist.  The files of a snapshotted directory are returned in order of name.
+     */
+    public File[] getFilesMatchingRegexp(final File directory, final Pattern pattern) {
+        final Directory listing = getDirectory(directory.getAbsoluteFile());
+        if (listing == null) return IOUtil.getFilesMatchingRegexp(directory, pattern);
+        if (listing == NO_DIRECTORY) return null;
+
+        final List<File> files = new ArrayList<File>();
+        for (final String name : listing.names) {
+            if (pattern.matcher(name).matches()) files.add(new File(directory, name));
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    /**
+     * Returns true if this snapshot lists all of the given directories in the same way, and none of the directories it
+     * lists has been modified since it was taken.
+     */
+    public boolean isCurrent(final Collection<File> directoryRoots, final Collection<File> treeRoots) {
+        for (final File root : directoryRoots) {
+            if (!this.directoryRoots.contains(root.getAbsoluteFile()) && !this.treeRoots.contains(root.getAbsoluteFile())) return false;
+        }
+        for (final File root : treeRoots) {
+            if (!this.treeRoots.contains(root.getAbsoluteFile())) return false;
+        }
+        for (final Map.Entry<File, Directory> entry : directories.entrySet()) {
+            final File directory = entry.getKey();
+            if (entry.getValue() == NO_DIRECTORY) {
+                if (directory.exists()) return false;
+            } else if (!directory.isDirectory() || directory.lastModified() != entry.getValue().lastModified) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Writes this snapshot to file, to be read back by read(). */
+    public void write(final File file) {
+        try (final DataOutputStream out = new DataOutputStream(new GZIPOutputStream(IOUtil.openFileForWriting(file)))) {
+            out.writeUTF(FILE_FORMAT);
+            writeFiles(out, directoryRoots);
+            writeFiles(out, treeRoots);
+            out.writeInt(directories.size());
+            for (final Map.Entry<File, Directory> entry : directories.entrySet()) {
+                final Directory directory = entry.getValue();
+                out.writeUTF(entry.getKey().getPath());
+                out.writeBoolean(directory != NO_DIRECTORY);
+                if (directory == NO_DIRECTORY) continue;
+                out.writeLong(directory.lastModified);
+                out.writeInt(directory.names.length);
+                for (int i = 0; i < directory.names.length; ++i) {
+                    out.writeUTF(directory.names[i]);
+                    out.writeLong(directory.lengths[i]);
+                    out.writeBoolean(directory.isDirectory[i]);
+                }
+            }
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Could not write run folder snapshot " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /** Reads a snapshot written by write().  Use isCurrent() to check that it still describes the run folder. */
+    public static RunFolderSnapshot read(final File file) {
+        try (final DataInputStream in = new DataInputStream(new GZIPInputStream(IOUtil.openFileForReading(file)))) {
+            final String format = in.readUTF();
+            if (!FILE_FORMAT.equals(format)) {
+                throw new PicardException(file.getAbsolutePath() + " is not a run folder snapshot, or is of an unknown version.");
+            }
+            final List<File> directoryRoots = readFiles(in);
+            final List<File> treeRoots = readFiles(in);
+            final int numDirectories = in.readInt();
+            final Map<File, Directory> directories = new ConcurrentHashMap<File, Directory>(numDirectories);
+            for (int d = 0; d < numDirectories; ++d) {
+                final File path = new File(in.readUTF());
+                if (!in.readBoolean()) {
+                    directories.put(path, NO_DIRECTORY);
+                    continue;
+                }
+                final long lastModified = in.readLong();
+                final int numEntries = in.readInt();
+                final String[] names = new String[numEntries];
+                final long[] lengths = new long[numEntries];
+                final boolean[] isDirectory = new boolean[numEntries];
+                for (int i = 0; i < numEntries; ++i) {
+                    names[i] = in.readUTF();
+                    lengths[i] = in.readLong();
+                    isDirectory[i] = in.readBoolean();
+                }
+                directories.put(path, new Directory(lastModified, names, lengths, isDirectory));
+            }
+            return new RunFolderSnapshot(directories, directoryRoots, treeRoots);
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Could not read run folder snapshot " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private static void writeFiles(final DataOutputStream out, final List<File> files) throws IOException {
+        out.writeInt(files.size());
+        for (final File file : files) out.writeUTF(file.getPath());
+    }
+
+    private static List<File> readFiles(final DataInputStream in) throws IOException {
+        final int numFiles = in.readInt();
+        final List<File> files = new ArrayList<File>(numFiles);
+        for (int i = 0; i < numFiles; ++i) files.add(new File(in.readUTF()));
+        return Collections.unmodifiableList(files);
+    }
+}
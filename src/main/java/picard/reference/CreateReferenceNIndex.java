@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.reference;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import picard.cmdline.CommandLineProgram;
+import picard.cmdline.CommandLineProgramProperties;
+import picard.cmdline.Option;
+import picard.cmdline.StandardOptionDefinitions;
+import picard.cmdline.programgroups.Fasta;
+
+import java.io.File;
+
+/**
+ * Writes a ReferenceNIndex of a reference, which NonNFastaSize, ScatterIntervalsByNs and other tools then use in
+ * place of scanning the reference for Ns.
+ */
+@CommandLineProgramProperties(
+        usage = CreateReferenceNIndex.USAGE_SUMMARY + CreateReferenceNIndex.USAGE_DETAILS,
+        usageShort = CreateReferenceNIndex.USAGE_SUMMARY,
+        programGroup = Fasta.class
+)
+public class CreateReferenceNIndex extends CommandLineProgram {
+    static final String USAGE_SUMMARY = "Creates an index of where the Ns are in a reference.";
+    static final String USAGE_DETAILS = "This tool scans a FASTA file once and writes the positions of its runs of N (no-call) bases, " +
+            "and of other IUPAC ambiguity codes, to a small index file next to it (" + ReferenceNIndex.FILE_EXTENSION + "). " +
+            "Tools that look for Ns, such as NonNFastaSize and ScatterIntervalsByNs, read the index instead of the whole reference. " +
+            "The FASTA file must have associated index (.fai) and dictionary (.dict) files.<br />" +
+            "<h4>Usage example:</h4>" +
+            "<pre>" +
+            "java -jar picard.jar CreateReferenceNIndex \\<br />" +
+            "      R=reference_sequence.fasta" +
+            "</pre>" +
+            "<hr />";
+
+    @Option(shortName = StandardOptionDefinitions.REFERENCE_SHORT_NAME, doc = "The reference FASTA file to index.")
+    public File REFERENCE;
+
+    @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc = "The index file to write.  Defaults to the reference's " +
+            "file name with " + ReferenceNIndex.FILE_EXTENSION + " appended, which is where tools look for it.", optional = true)
+    public File OUTPUT;
+
+    @Option(doc = "The number of contigs to scan at once.")
+    public int THREAD_COUNT = 1;
+
+    private final Log log = Log.getInstance(CreateReferenceNIndex.class);
+
+    public static void main(final String[] args) {
+        new CreateReferenceNIndex().instanceMainWithExit(args);
+    }
+
+    @Override
+    protected int doWork() {
+        IOUtil.assertFileIsReadable(REFERENCE);
+        if (OUTPUT == null) OUTPUT = ReferenceNIndex.getDefaultIndexFile(REFERENCE);
+        IOUtil.assertFileIsWritable(OUTPUT);
+
+        final ReferenceNIndex index = ReferenceNIndex.build(REFERENCE, THREAD_COUNT);
+        index.write(OUTPUT);
+
+        int noCallRuns = 0, ambiguousRuns = 0;
+        for (final ReferenceNIndex.Contig contig : index.getContigs()) {
+            noCallRuns += contig.getNoCallRunCount();
+            ambiguousRuns += contig.getAmbiguousRunCount();
+        }
+        log.info(String.format("Indexed %d contigs with %d non-N bases, %d runs of Ns and %d runs of other ambiguous bases.",
+                index.getContigs().size(), index.getNonNBaseCount(), noCallRuns, ambiguousRuns));
+        return 0;
+    }
+}
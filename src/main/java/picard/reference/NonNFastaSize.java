@@ -23,18 +23,14 @@
  */
 package picard.reference;
 
-import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
-import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
-import htsjdk.samtools.util.IntervalListReferenceSequenceMask;
-import htsjdk.samtools.util.ReferenceSequenceMask;
-import htsjdk.samtools.util.SequenceUtil;
-import htsjdk.samtools.util.StringUtil;
-import htsjdk.samtools.util.WholeGenomeReferenceSequenceMask;
 import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
@@ -76,6 +72,10 @@ public class NonNFastaSize extends CommandLineProgram {
     @Option(shortName = "INTERVALS", doc = "An interval list file that contains the locations of the positions to assess.  If not provided, the entire reference will be used", optional = true)
     public File INTERVALS = null;
 
+    @Option(doc = "An index of the Ns in the reference made by CreateReferenceNIndex.  Defaults to the one next to the reference, " +
+            "if there is one; if there is none the reference is scanned.", optional = true)
+    public File N_INDEX = null;
+
     public static void main(final String[] args) {
         new NonNFastaSize().instanceMainWithExit(args);
     }
@@ -85,32 +85,28 @@ public class NonNFastaSize extends CommandLineProgram {
         IOUtil.assertFileIsReadable(INPUT);
         IOUtil.assertFileIsWritable(OUTPUT);
 
-        // set up the reference and a mask so that we only count the positions requested by the user
         final ReferenceSequenceFile ref = ReferenceSequenceFileFactory.getReferenceSequenceFile(INPUT);
-        final ReferenceSequenceMask referenceSequenceMask;
+        final SAMSequenceDictionary dictionary = ref.getSequenceDictionary();
+        CloserUtil.close(ref);
+        final ReferenceNIndex nIndex = ReferenceNIndex.load(INPUT, N_INDEX);
+
+        long nonNbases = 0L;
+
         if (INTERVALS != null) {
+            // only count the positions requested by the user, matching contigs by index as IntervalListReferenceSequenceMask does
             IOUtil.assertFileIsReadable(INTERVALS);
             final IntervalList intervalList = IntervalList.fromFile(INTERVALS);
-            referenceSequenceMask = new IntervalListReferenceSequenceMask(intervalList);
+            for (final Interval interval : intervalList.uniqued().getIntervals()) {
+                final int sequenceIndex = intervalList.getHeader().getSequenceIndex(interval.getContig());
+                if (sequenceIndex < 0 || sequenceIndex >= dictionary.size()) continue;
+                final ReferenceNIndex.Contig contig = getContig(nIndex, dictionary.getSequence(sequenceIndex));
+                final int end = Math.min(interval.getEnd(), contig.getLength());
+                if (end < interval.getStart()) continue;
+                nonNbases += end - interval.getStart() + 1 - contig.countNs(interval.getStart(), end);
+            }
         } else {
-            final SAMFileHeader header = new SAMFileHeader();
-            header.setSequenceDictionary(ref.getSequenceDictionary());
-            referenceSequenceMask = new WholeGenomeReferenceSequenceMask(header);
-        }
-
-        long nonNbases = 0L;
-
-        for (final SAMSequenceRecord rec : ref.getSequenceDictionary().getSequences()) {
-            // pull out the contig and set up the bases
-            final ReferenceSequence sequence = ref.getSequence(rec.getSequenceName());
-            final byte[] bases = sequence.getBases();
-            StringUtil.toUpperCase(bases);
-
-            for (int i = 0; i < bases.length; i++) {
-                // only investigate this position if it's within our mask
-                if (referenceSequenceMask.get(sequence.getContigIndex(), i+1)) {
-                    nonNbases += bases[i] == SequenceUtil.N ? 0 : 1;
-                }
+            for (final SAMSequenceRecord rec : dictionary.getSequences()) {
+                nonNbases += getContig(nIndex, rec).getNonNBaseCount();
             }
         }
 
@@ -125,4 +121,12 @@ public class NonNFastaSize extends CommandLineProgram {
 
         return 0;
     }
+
+    private static ReferenceNIndex.Contig getContig(final ReferenceNIndex nIndex, final SAMSequenceRecord rec) {
+        final ReferenceNIndex.Contig contig = nIndex.getContig(rec.getSequenceName());
+        if (contig == null || contig.getLength() != rec.getSequenceLength()) {
+            throw new PicardException("The N index does not match the reference's sequence dictionary at " + rec.getSequenceName());
+        }
+        return contig;
+    }
 }
@@ -1,11 +1,13 @@
 package picard.reference;
 
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.StringUtil;
 import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
@@ -13,9 +15,12 @@ import picard.cmdline.Option;
 import picard.cmdline.programgroups.Fasta;
 import picard.cmdline.StandardOptionDefinitions;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Little program to "normalize" a fasta file to ensure that all line of sequence are the
@@ -52,6 +57,9 @@ public class NormalizeFasta extends CommandLineProgram {
     @Option(doc="Truncate sequence names at first whitespace.")
     public boolean TRUNCATE_SEQUENCE_NAMES_AT_WHITESPACE=false;
 
+    @Option(doc="Also write an index of the Ns in the output FASTA file, as CreateReferenceNIndex would, next to it.")
+    public boolean CREATE_N_INDEX=false;
+
     private final Log log = Log.getInstance(NormalizeFasta.class);
 
     public static void main(final String[] args) {
@@ -68,7 +76,9 @@ public class NormalizeFasta extends CommandLineProgram {
         }
 
         final ReferenceSequenceFile ref = ReferenceSequenceFileFactory.getReferenceSequenceFile(INPUT, TRUNCATE_SEQUENCE_NAMES_AT_WHITESPACE);
-        final BufferedWriter out = IOUtil.openFileForBufferedWriting(OUTPUT);
+        final OutputStream out = new BufferedOutputStream(IOUtil.openFileForWriting(OUTPUT), Defaults.BUFFER_SIZE);
+        final byte[] lineSeparator = StringUtil.stringToBytes(System.lineSeparator());
+        final List<ReferenceNIndex.Contig> contigs = new ArrayList<>();
 
         ReferenceSequence seq = null;
         while ((seq = ref.nextSequence()) != null) {
@@ -76,32 +86,41 @@ public class NormalizeFasta extends CommandLineProgram {
             final byte[] bases = seq.getBases();
 
             try {
-                out.write(">");
-                out.write(name);
-                out.newLine();
+                out.write('>');
+                out.write(StringUtil.stringToBytes(name));
+                out.write(lineSeparator);
 
                 if (bases.length == 0) {
                     log.warn("Sequence " + name + " contains 0 bases.");
                 }
                 else {
-                    for (int i=0; i<bases.length; ++i) {
-                        if (i > 0 && i % LINE_LENGTH == 0) out.write("\n");
-                        out.write(bases[i]);
+                    for (int i=0; i<bases.length; i += LINE_LENGTH) {
+                        if (i > 0) out.write('\n');
+                        out.write(bases, i, Math.min(LINE_LENGTH, bases.length - i));
                     }
 
-                    out.write("\n");
+                    out.write('\n');
                 }
             }
             catch (IOException ioe) {
                 throw new PicardException("Error writing to file " + OUTPUT.getAbsolutePath(), ioe);
 
             }
+
+            // the bases are already in hand, so indexing them costs one more pass in memory
+            if (CREATE_N_INDEX) {
+                contigs.add(ReferenceNIndex.scan(new ReferenceSequence(name.split("\\s", 2)[0], seq.getContigIndex(), bases)));
+            }
         }
         try {
             out.close();
         } catch (IOException e) {
             throw new RuntimeIOException(e);
         }
+
+        if (CREATE_N_INDEX) {
+            ReferenceNIndex.of(OUTPUT, contigs).write(ReferenceNIndex.getDefaultIndexFile(OUTPUT));
+        }
         return 0;
     }
 }
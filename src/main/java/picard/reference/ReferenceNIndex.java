@@ -0,0 +1,396 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.reference;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.SequenceUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An index of where a reference's no-call bases (as defined by SequenceUtil.isNoCall()) and other ambiguous bases
+ * (IUPAC ambiguity codes, or anything else that is not A, C, G or T) are.  Each contig's no-call and ambiguous bases
+ * are held as runs, in arrays of start and end positions, so that the index is small for any real reference and
+ * questions about N content are answered without reading any bases.  The '.' no-calls are also held as runs of their
+ * own, as counts of Ns (see getNonNBaseCount() and countNs()) take only N and n to be Ns.
+ * <p/>
+ * The index is built by scanning the reference once, and can be written to a file next to the reference
+ * (see CreateReferenceNIndex) that tools find and use in place of scanning.  The file records the size and
+ * modification time of the reference it was built from, and is ignored if the reference has since changed.
+ */
+public class ReferenceNIndex {
+    public static final String FILE_EXTENSION = ".nidx";
+
+    private static final Log log = Log.getInstance(ReferenceNIndex.class);
+    private static final String MAGIC = "PICARD_NIDX";
+    private static final int VERSION = 2;
+
+    private static final byte ACGT = 0, NO_CALL = 1, AMBIGUOUS = 2;
+    private static final byte[] BASE_CLASSES = new byte[256];
+    static {
+        Arrays.fill(BASE_CLASSES, AMBIGUOUS);
+        for (final byte base : new byte[]{'A', 'C', 'G', 'T', 'a', 'c', 'g', 't'}) BASE_CLASSES[base] = ACGT;
+        for (int base = 0; base < BASE_CLASSES.length; ++base) {
+            if (SequenceUtil.isNoCall((byte) base)) BASE_CLASSES[base] = NO_CALL;
+        }
+    }
+
+    private final long referenceLength, referenceLastModified;
+    private final Map<String, Contig> contigs;
+
+    private ReferenceNIndex(final long referenceLength, final long referenceLastModified, final List<Contig> contigs) {
+        this.referenceLength = referenceLength;
+        this.referenceLastModified = referenceLastModified;
+        this.contigs = new LinkedHashMap<>();
+        for (final Contig contig : contigs) this.contigs.put(contig.getName(), contig);
+    }
+
+    /** The no-call and ambiguous base runs of one contig, with positions 1-based and inclusive. */
+    public static class Contig {
+        private final String name;
+        private final int length;
+        /** Start and end of each run, one after the other. */
+        private final int[] noCallRuns, dotRuns, ambiguousRuns;
+        /** The number of bases in the runs before each run. */
+        private final long[] noCallsBefore, dotsBefore;
+
+        private Contig(final String name, final int length, final int[] noCallRuns, final int[] dotRuns, final int[] ambiguousRuns) {
+            this.name = name;
+            this.length = length;
+            this.noCallRuns = noCallRuns;
+            this.dotRuns = dotRuns;
+            this.ambiguousRuns = ambiguousRuns;
+            this.noCallsBefore = countBefore(noCallRuns);
+            this.dotsBefore = countBefore(dotRuns);
+        }
+
+        private static long[] countBefore(final int[] runs) {
+            final long[] before = new long[runs.length / 2 + 1];
+            for (int i = 0; i < runs.length / 2; ++i) {
+                before[i + 1] = before[i] + runs[2 * i + 1] - runs[2 * i] + 1;
+            }
+            return before;
+        }
+
+        public String getName() { return name; }
+
+        public int getLength() { return length; }
+
+        public int getNoCallRunCount() { return noCallRuns.length / 2; }
+
+        public int getNoCallRunStart(final int run) { return noCallRuns[2 * run]; }
+
+        public int getNoCallRunEnd(final int run) { return noCallRuns[2 * run + 1]; }
+
+        public int getAmbiguousRunCount() { return ambiguousRuns.length / 2; }
+
+        public int getAmbiguousRunStart(final int run) { return ambiguousRuns[2 * run]; }
+
+        public int getAmbiguousRunEnd(final int run) { return ambiguousRuns[2 * run + 1]; }
+
+        /** Returns the number of no-call bases in the contig. */
+        public long getNoCallBaseCount() { return noCallsBefore[noCallsBefore.length - 1]; }
+
+        /** Returns the number of bases in the contig that are not N or n, counting '.' no-calls as bases. */
+        public long getNonNBaseCount() { return length - getNoCallBaseCount() + dotsBefore[dotsBefore.length - 1]; }
+
+        /** Returns true if the base at the position is a no-call. */
+        public boolean isNoCall(final int position) {
+            return contains(noCallRuns, position);
+        }
+
+        /** Returns true if the base at the position is neither one of A, C, G or T nor a no-call. */
+        public boolean isAmbiguous(final int position) {
+            return contains(ambiguousRuns, position);
+        }
+
+        /** Returns the number of no-call bases between start and end inclusive. */
+        public long countNoCalls(final int start, final int end) {
+            if (end < start) return 0;
+            return countUpTo(noCallRuns, noCallsBefore, end) - countUpTo(noCallRuns, noCallsBefore, start - 1);
+        }
+
+        /** Returns the number of N or n bases between start and end inclusive, which are the no-calls other than '.'. */
+        public long countNs(final int start, final int end) {
+            if (end < start) return 0;
+            return countNoCalls(start, end) - countUpTo(dotRuns, dotsBefore, end) + countUpTo(dotRuns, dotsBefore, start - 1);
+        }
+
+        /** Returns the number of bases in the runs at positions up to and including position. */
+        private static long countUpTo(final int[] runs, final long[] before, final int position) {
+            final int run = firstRunEndingAtOrAfter(runs, position);
+            long count = before[run];
+            if (run < runs.length / 2 && runs[2 * run] <= position) count += position - runs[2 * run] + 1;
+            return count;
+        }
+
+        private static boolean contains(final int[] runs, final int position) {
+            final int run = firstRunEndingAtOrAfter(runs, position);
+            return run < runs.length / 2 && runs[2 * run] <= position;
+        }
+
+        /** Binary searches for the first run that ends at or after position, returning the number of runs if none does. */
+        private static int firstRunEndingAtOrAfter(final int[] runs, final int position) {
+            int low = 0, high = runs.length / 2;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (runs[2 * mid + 1] < position) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+    }
+
+    /** Returns an index of the reference as it is now, from its already scanned contigs. */
+    static ReferenceNIndex of(final File reference, final List<Contig> contigs) {
+        return new ReferenceNIndex(reference.length(), reference.lastModified(), contigs);
+    }
+
+    /** Returns the contigs in the order of the reference. */
+    public List<Contig> getContigs() {
+        return Collections.unmodifiableList(new ArrayList<>(contigs.values()));
+    }
+
+    /** Returns the contig with the given name, or null if the reference has no such contig. */
+    public Contig getContig(final String name) {
+        return contigs.get(name);
+    }
+
+    /** Returns the number of bases in the reference that are not N or n. */
+    public long getNonNBaseCount() {
+        long count = 0;
+        for (final Contig contig : contigs.values()) count += contig.getNonNBaseCount();
+        return count;
+    }
+
+    /** Returns the file next to the reference that an index of it is written to and read from by default. */
+    public static File getDefaultIndexFile(final File reference) {
+        return new File(reference.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Returns the index of the reference from indexFile, or if indexFile is null from the default index file, if it
+     * exists and was built from the reference as it is now.  Otherwise the reference is scanned.
+     */
+    public static ReferenceNIndex load(final File reference, final File indexFile) {
+        final File file = indexFile != null ? indexFile : getDefaultIndexFile(reference);
+        if (file.exists()) {
+            final ReferenceNIndex index = read(file);
+            if (index.referenceLength == reference.length() && index.referenceLastModified == reference.lastModified()) {
+                log.info("Using N index " + file.getAbsolutePath());
+                return index;
+            }
+            log.warn("Ignoring N index " + file.getAbsolutePath() + " because the reference has changed since it was built.");
+        }
+        final ReferenceSequenceFile referenceFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(reference);
+        try {
+            final ReferenceNIndex index = build(referenceFile);
+            return of(reference, index.getContigs());
+        } finally {
+            CloserUtil.close(referenceFile);
+        }
+    }
+
+    /** Scans each sequence of the reference, in the order of its dictionary. */
+    public static ReferenceNIndex build(final ReferenceSequenceFile reference) {
+        final List<Contig> contigs = new ArrayList<>();
+        for (final SAMSequenceRecord rec : getSequenceDictionary(reference).getSequences()) {
+            contigs.add(scan(reference.getSequence(rec.getSequenceName())));
+        }
+        return new ReferenceNIndex(-1, -1, contigs);
+    }
+
+    /**
+     * Scans the indexed reference file, scanning numThreads contigs at a time, each read through its own handle on
+     * the file.
+     */
+    public static ReferenceNIndex build(final File reference, final int numThreads) {
+        final ReferenceSequenceFile referenceFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(reference);
+        if (numThreads <= 1 || !referenceFile.isIndexed()) {
+            try {
+                return of(reference, build(referenceFile).getContigs());
+            } finally {
+                CloserUtil.close(referenceFile);
+            }
+        }
+
+        final SAMSequenceDictionary dictionary = getSequenceDictionary(referenceFile);
+        CloserUtil.close(referenceFile);
+        final List<ReferenceSequenceFile> opened = Collections.synchronizedList(new ArrayList<>());
+        final ThreadLocal<ReferenceSequenceFile> threadReferenceFile = ThreadLocal.withInitial(() -> {
+            final ReferenceSequenceFile file = ReferenceSequenceFileFactory.getReferenceSequenceFile(reference);
+            opened.add(file);
+            return file;
+        });
+        final ExecutorService pool = Executors.newFixedThreadPool(numThreads, r -> {
+            final Thread t = new Thread(r, "ReferenceNIndex");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            final List<Future<Contig>> futures = new ArrayList<>();
+            for (final SAMSequenceRecord rec : dictionary.getSequences()) {
+                futures.add(pool.submit(() -> scan(threadReferenceFile.get().getSequence(rec.getSequenceName()))));
+            }
+            final List<Contig> contigs = new ArrayList<>();
+            for (final Future<Contig> future : futures) {
+                try {
+                    contigs.add(future.get());
+                } catch (final ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                    if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+                    throw new PicardException("Error scanning " + reference.getAbsolutePath(), ee.getCause());
+                } catch (final InterruptedException ie) {
+                    throw new PicardException("Interrupted while scanning " + reference.getAbsolutePath(), ie);
+                }
+            }
+            return of(reference, contigs);
+        } finally {
+            pool.shutdownNow();
+            synchronized (opened) {
+                CloserUtil.close(opened);
+            }
+        }
+    }
+
+    private static SAMSequenceDictionary getSequenceDictionary(final ReferenceSequenceFile reference) {
+        final SAMSequenceDictionary dictionary = reference.getSequenceDictionary();
+        if (dictionary == null) throw new PicardException("Reference " + reference + " has no sequence dictionary.");
+        return dictionary;
+    }
+
+    /** Finds the runs of no-call and ambiguous bases in the sequence. */
+    static Contig scan(final ReferenceSequence sequence) {
+        final byte[] bases = sequence.getBases();
+        final RunBuilder noCallRuns = new RunBuilder(), dotRuns = new RunBuilder(), ambiguousRuns = new RunBuilder();
+        for (int i = 0; i < bases.length; ++i) {
+            final byte baseClass = BASE_CLASSES[bases[i] & 0xFF];
+            if (baseClass == NO_CALL) {
+                noCallRuns.add(i + 1);
+                if (bases[i] == '.') dotRuns.add(i + 1);
+            } else if (baseClass == AMBIGUOUS) ambiguousRuns.add(i + 1);
+        }
+        return new Contig(sequence.getName(), bases.length, noCallRuns.toArray(), dotRuns.toArray(), ambiguousRuns.toArray());
+    }
+
+    /** Accumulates increasing positions into runs of consecutive positions. */
+    private static class RunBuilder {
+        private int[] runs = new int[16];
+        private int size = 0;
+
+        void add(final int position) {
+            if (size > 0 && runs[size - 1] == position - 1) {
+                runs[size - 1] = position;
+                return;
+            }
+            if (size == runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+            runs[size++] = position;
+            runs[size++] = position;
+        }
+
+        int[] toArray() { return Arrays.copyOf(runs, size); }
+    }
+
+    /** Writes the index to the file, by way of a temporary file so that readers never see a partial index. */
+    public void write(final File file) {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeUTF(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(referenceLength);
+            out.writeLong(referenceLastModified);
+            out.writeInt(contigs.size());
+            for (final Contig contig : contigs.values()) {
+                out.writeUTF(contig.name);
+                out.writeInt(contig.length);
+                writeRuns(out, contig.noCallRuns);
+                writeRuns(out, contig.dotRuns);
+                writeRuns(out, contig.ambiguousRuns);
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Error writing N index " + tmp.getAbsolutePath(), ioe);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new PicardException("Unable to move " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+    }
+
+    private static void writeRuns(final DataOutputStream out, final int[] runs) throws IOException {
+        out.writeInt(runs.length / 2);
+        for (final int position : runs) out.writeInt(position);
+    }
+
+    /** Reads an index written by write(). */
+    public static ReferenceNIndex read(final File file) {
+        IOUtil.assertFileIsReadable(file);
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+                throw new PicardException(file.getAbsolutePath() + " is not an N index, or is from another version of Picard.");
+            }
+            final long referenceLength = in.readLong();
+            final long referenceLastModified = in.readLong();
+            final int contigCount = in.readInt();
+            final List<Contig> contigs = new ArrayList<>(contigCount);
+            for (int i = 0; i < contigCount; ++i) {
+                final String name = in.readUTF();
+                final int length = in.readInt();
+                contigs.add(new Contig(name, length, readRuns(in), readRuns(in), readRuns(in)));
+            }
+            return new ReferenceNIndex(referenceLength, referenceLastModified, contigs);
+        } catch (final IOException ioe) {
+            throw new PicardException("Error reading N index " + file.getAbsolutePath(), ioe);
+        }
+    }
+
+    private static int[] readRuns(final DataInputStream in) throws IOException {
+        final int[] runs = new int[2 * in.readInt()];
+        for (int i = 0; i < runs.length; ++i) runs[i] = in.readInt();
+        return runs;
+    }
+}
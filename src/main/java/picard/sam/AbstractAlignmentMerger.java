@@ -30,9 +30,15 @@ import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
 import htsjdk.samtools.util.*;
 import picard.PicardException;
+import picard.sam.util.PackedSAMRecordSortingCollection;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract class that coordinates the general task of taking in a set of alignment information,
@@ -59,8 +65,14 @@ public abstract class AbstractAlignmentMerger {
 
     public static final int MAX_RECORDS_IN_RAM = 500000;
 
+    /** The fraction of the maximum heap used to hold serialized records when sorting the output into coordinate order. */
+    public static final double SORTING_COLLECTION_SIZE_RATIO = 0.25;
+
+    /** The number of reads or read pairs merged as a unit of work when merging on more than one thread. */
+    private static final int TEMPLATES_PER_BATCH = 1000;
+
     private static final char[] RESERVED_ATTRIBUTE_STARTS = {'X', 'Y', 'Z'};
-    private int crossSpeciesReads = 0;
+    private final AtomicInteger crossSpeciesReads = new AtomicInteger(0);
 
     private final Log log = Log.getInstance(AbstractAlignmentMerger.class);
     private final ProgressLogger progress = new ProgressLogger(this.log, 1000000, "Merged", "records");
@@ -84,7 +96,10 @@ public abstract class AbstractAlignmentMerger {
     private final SortOrder sortOrder;
     private MultiHitAlignedReadIterator alignedIterator = null;
     private boolean clipOverlappingReads = true;
-    private int maxRecordsInRam = MAX_RECORDS_IN_RAM;
+    /** Caps the records held in RAM when sorting into coordinate order; by default only the heap-based budget applies. */
+    private int maxRecordsInRam = Integer.MAX_VALUE;
+    private int numSpilledSortRuns = 0;
+    private int numThreads = 1;
     private final PrimaryAlignmentSelectionStrategy primaryAlignmentSelectionStrategy;
     private boolean keepAlignerProperPairFlags = false;
     private boolean addMateCigar = false;
@@ -107,7 +122,7 @@ public abstract class AbstractAlignmentMerger {
     /** Class that allows a Sorting Collection and a SAMFileWriter to be treated identically. */
     private static class Sink {
         private final SAMFileWriter writer;
-        private final SortingCollection<SAMRecord> sorter;
+        private final PackedSAMRecordSortingCollection sorter;
 
         /** Constructs a sink that outputs to a SAMFileWriter. */
         public Sink(final SAMFileWriter writer) {
@@ -116,7 +131,7 @@ public abstract class AbstractAlignmentMerger {
         }
 
         /** Constructs a sink that outputs to a Sorting Collection. */
-        public Sink(final SortingCollection<SAMRecord> sorter) {
+        public Sink(final PackedSAMRecordSortingCollection sorter) {
             this.writer = null;
             this.sorter = sorter;
         }
@@ -134,6 +149,112 @@ public abstract class AbstractAlignmentMerger {
         }
     }
 
+    /** An unmapped read or read pair, its alignments (if any), and the merged records to be written for it. */
+    private static class Template {
+        final SAMRecord rec;
+        final SAMRecord secondOfPair;
+        final HitsForInsert hits;
+        final List<SAMRecord> output = new ArrayList<>(2);
+        int aligned = 0;
+        int unmapped = 0;
+
+        Template(final SAMRecord rec, final SAMRecord secondOfPair, final HitsForInsert hits) {
+            this.rec = rec;
+            this.secondOfPair = secondOfPair;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * Merges templates, on a pool of threads if numThreads > 1, and adds the merged records to the sink in the order in
+     * which the templates were added.  Primary alignment selection has already happened, in order, in the
+     * MultiHitAlignedReadIterator because the selection strategies break ties with a shared Random; only the per-template
+     * work after that is done in parallel, so the output does not depend on the number of threads.  NM, MD and UQ are not
+     * calculated here but in mergeAlignment(), serially, as the records are written in coordinate order, since the
+     * ReferenceSequenceFileWalker that supplies the reference bases can only move forward.
+     */
+    private class TemplatePipeline {
+        private final Sink sink;
+        private final ExecutorService pool;
+        private final int maxBatchesInFlight;
+        private final Deque<Future<List<Template>>> batchesInFlight = new ArrayDeque<>();
+        private List<Template> batch = new ArrayList<>(TEMPLATES_PER_BATCH);
+        int aligned = 0;
+        int unmapped = 0;
+
+        TemplatePipeline(final Sink sink) {
+            this.sink = sink;
+            this.maxBatchesInFlight = numThreads * 2;
+            if (numThreads > 1) {
+                this.pool = Executors.newFixedThreadPool(numThreads, r -> {
+                    final Thread t = new Thread(r, "AlignmentMerger");
+                    t.setDaemon(true);
+                    return t;
+                });
+            } else {
+                this.pool = null;
+            }
+        }
+
+        void add(final Template template) {
+            if (pool == null) {
+                processTemplate(template);
+                write(template);
+                return;
+            }
+            batch.add(template);
+            if (batch.size() == TEMPLATES_PER_BATCH) submitBatch();
+        }
+
+        /** Merges and writes any templates still pending and shuts down the pool. */
+        void finish() {
+            if (pool == null) return;
+            try {
+                if (!batch.isEmpty()) submitBatch();
+                while (!batchesInFlight.isEmpty()) writeBatch(batchesInFlight.removeFirst());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private void submitBatch() {
+            final List<Template> toProcess = batch;
+            batch = new ArrayList<>(TEMPLATES_PER_BATCH);
+            if (batchesInFlight.size() == maxBatchesInFlight) writeBatch(batchesInFlight.removeFirst());
+            batchesInFlight.addLast(pool.submit(() -> {
+                for (final Template template : toProcess) processTemplate(template);
+                return toProcess;
+            }));
+        }
+
+        private void writeBatch(final Future<List<Template>> future) {
+            final List<Template> templates;
+            try {
+                templates = future.get();
+            } catch (final ExecutionException ee) {
+                pool.shutdownNow();
+                if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+                throw new PicardException("Exception merging alignments", ee.getCause());
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted waiting for alignments to be merged", ie);
+            }
+            for (final Template template : templates) write(template);
+        }
+
+        private void write(final Template template) {
+            for (final SAMRecord rec : template.output) {
+                sink.add(rec);
+                // Only merged records count towards progress, as before
+                if (template.hits != null && progress.record(rec) && crossSpeciesReads.get() > 0) {
+                    log.info(String.format("%d Reads have been unmapped due to being suspected of being Cross-species contamination.", crossSpeciesReads.get()));
+                }
+            }
+            aligned += template.aligned;
+            unmapped += template.unmapped;
+        }
+    }
+
     public enum UnmappingReadStrategy {
         // Leave on record, and copy to tag
         COPY_TO_TAG(false, true),
@@ -308,11 +429,27 @@ public abstract class AbstractAlignmentMerger {
         this.attributesToReverseComplement = attributesToReverseComplement;
     }
 
-    /** Allows the caller to override the maximum records in RAM. */
+    /**
+     * Caps the number of records held in RAM when sorting into coordinate order.  Without a cap the sort holds as many
+     * records as fit in SORTING_COLLECTION_SIZE_RATIO of the maximum heap.
+     */
     public void setMaxRecordsInRam(final int maxRecordsInRam) {
         this.maxRecordsInRam = maxRecordsInRam;
     }
 
+    /** The number of times the records being sorted into coordinate order were spilled to disk by mergeAlignment(). */
+    int getNumSpilledSortRuns() {
+        return numSpilledSortRuns;
+    }
+
+    /**
+     * Sets the number of threads used to merge alignments into unmapped reads, and to compress and read back records
+     * spilled while sorting into coordinate order.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     /**
      * Do this unconditionally, not just for aligned records, for two reasons:
      * - An unaligned read has been processed by the aligner, so it is more truthful.
@@ -336,9 +473,6 @@ public abstract class AbstractAlignmentMerger {
         final CloseableIterator<SAMRecord> unmappedIterator = unmappedSam.iterator();
         this.header.setReadGroups(unmappedSam.getFileHeader().getReadGroups());
 
-        int aligned = 0;
-        int unmapped = 0;
-
         // Get the aligned records and set up the first one
         alignedIterator = new MultiHitAlignedReadIterator(new FilteringSamIterator(getQuerynameSortedAlignedRecords(), alignmentFilter), primaryAlignmentSelectionStrategy);
 
@@ -363,9 +497,9 @@ public abstract class AbstractAlignmentMerger {
         // write directly to the output BAM file in queryname order.
         final Sink sink;
         if (this.sortOrder == SortOrder.coordinate) {
-            final SortingCollection<SAMRecord> sorted1 = SortingCollection.newInstance(
-                    SAMRecord.class, new BAMRecordCodec(header), new SAMRecordCoordinateComparator(),
-                    MAX_RECORDS_IN_RAM);
+            final PackedSAMRecordSortingCollection sorted1 = new PackedSAMRecordSortingCollection(header, maxRecordsInRam,
+                    PackedSAMRecordSortingCollection.getMaxBytesInRam(SORTING_COLLECTION_SIZE_RATIO), numThreads,
+                    Collections.singletonList(IOUtil.getDefaultTmpDir()));
             sink = new Sink(sorted1);
         }
         else { // catches queryname and unsorted
@@ -376,6 +510,7 @@ public abstract class AbstractAlignmentMerger {
             sink = new Sink(writer);
         }
 
+        final TemplatePipeline pipeline = new TemplatePipeline(sink);
         while (unmappedIterator.hasNext()) {
             // Load next unaligned read or read pair.
             final SAMRecord rec = unmappedIterator.next();
@@ -405,96 +540,7 @@ public abstract class AbstractAlignmentMerger {
 
             // See if there are alignments for current unaligned read or read pair.
             if (nextAligned != null && rec.getReadName().equals(nextAligned.getReadName())) {
-                // If there are multiple alignments for a read (pair), then the unaligned SAMRecord must be cloned
-                // before copying info from the aligned record to the unaligned.
-                final boolean clone = nextAligned.numHits() > 1 || nextAligned.hasSupplementalHits();
-                SAMRecord r1Primary = null, r2Primary = null;
-
-                // by this point there should be a single chosen primary alignment, which we will use to determine whether the read is contaminant.
-                // this must be done before the main iteration, since secondary / supplementary alignments will be affected by the primary.
-                final boolean unmapDueToContaminant = this.unmapContaminantReads && isContaminant(nextAligned);
-
-                if (rec.getReadPairedFlag()) {
-                    for (int i = 0; i < nextAligned.numHits(); ++i) {
-                        // firstAligned or secondAligned may be null, if there wasn't an alignment for the end,
-                        // or if the alignment was rejected by ignoreAlignment.
-                        final SAMRecord firstAligned = nextAligned.getFirstOfPair(i);
-                        final SAMRecord secondAligned = nextAligned.getSecondOfPair(i);
-
-                        final boolean isPrimaryAlignment = (firstAligned != null && !firstAligned.isSecondaryOrSupplementary()) ||
-                                (secondAligned != null && !secondAligned.isSecondaryOrSupplementary());
-
-                        final SAMRecord firstToWrite;
-                        final SAMRecord secondToWrite;
-                        if (clone) {
-                            firstToWrite = clone(rec);
-                            secondToWrite = clone(secondOfPair);
-                        } else {
-                            firstToWrite = rec;
-                            secondToWrite = secondOfPair;
-                        }
-
-                        // If these are the primary alignments then stash them for use on any supplemental alignments
-                        if (isPrimaryAlignment) {
-                            r1Primary = firstToWrite;
-                            r2Primary = secondToWrite;
-                        }
-
-                        transferAlignmentInfoToPairedRead(firstToWrite, secondToWrite, firstAligned, secondAligned, unmapDueToContaminant, clone);
-
-                        // Only write unmapped read when it has the mate info from the primary alignment.
-                        // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
-                        if (!firstToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
-                            addIfNotFiltered(sink, firstToWrite);
-                            if (firstToWrite.getReadUnmappedFlag()) ++unmapped;
-                            else ++aligned;
-                        }
-                        if (!secondToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
-                            addIfNotFiltered(sink, secondToWrite);
-                            if (!secondToWrite.getReadUnmappedFlag()) ++aligned;
-                            else ++unmapped;
-                        }
-                    }
-
-                    // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
-                    for (final boolean isRead1 : new boolean[]{true, false}) {
-                        final List<SAMRecord> supplementals = isRead1 ? nextAligned.getSupplementalFirstOfPairOrFragment() : nextAligned.getSupplementalSecondOfPair();
-                        final SAMRecord sourceRec = isRead1 ? rec : secondOfPair;
-                        final SAMRecord matePrimary = isRead1 ? r2Primary : r1Primary;
-
-                        for (final SAMRecord supp : supplementals) {
-                            final SAMRecord out = clone(sourceRec);
-                            transferAlignmentInfoToFragment(out, supp, unmapDueToContaminant, clone);
-                            if (matePrimary != null) SamPairUtil.setMateInformationOnSupplementalAlignment(out, matePrimary, addMateCigar);
-                            // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
-                            if (!out.getReadUnmappedFlag()) {
-                                addIfNotFiltered(sink, out);
-                                ++aligned;
-                            } else ++unmapped;
-                        }
-                    }
-                } else {
-                    for (int i = 0; i < nextAligned.numHits(); ++i) {
-                        final SAMRecord recToWrite = clone ? clone(rec) : rec;
-                        final boolean isPrimary = !nextAligned.getFragment(i).isSecondaryOrSupplementary();
-                        transferAlignmentInfoToFragment(recToWrite, nextAligned.getFragment(i), unmapDueToContaminant, clone);
-                        // Only write unmapped read if it was originally the primary.
-                        // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
-                        if (!recToWrite.getReadUnmappedFlag() || isPrimary) addIfNotFiltered(sink, recToWrite);
-                        if (recToWrite.getReadUnmappedFlag()) ++unmapped;
-                        else ++aligned;
-                    }
-                    // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
-                    for (final SAMRecord supplementalRec : nextAligned.getSupplementalFirstOfPairOrFragment()) {
-                        final SAMRecord recToWrite = clone(rec);
-                        transferAlignmentInfoToFragment(recToWrite, supplementalRec, unmapDueToContaminant, clone);
-                        // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
-                        if (!recToWrite.getReadUnmappedFlag()) {
-                            addIfNotFiltered(sink, recToWrite);
-                            ++aligned;
-                        } else ++unmapped;
-                    }
-                }
+                pipeline.add(new Template(rec, secondOfPair, nextAligned));
                 nextAligned = nextAligned();
             } else {
                 // There was no alignment for this read or read pair.
@@ -503,17 +549,12 @@ public abstract class AbstractAlignmentMerger {
                     throw new IllegalStateException("Aligned record iterator (" + nextAligned.getReadName() +
                             ") is behind the unmapped reads (" + rec.getReadName() + ")");
                 }
-                // No matching read from alignedIterator -- just output reads as is.
-                if (!alignedReadsOnly) {
-                    sink.add(rec);
-                    ++unmapped;
-                    if (secondOfPair != null) {
-                        sink.add(secondOfPair);
-                        ++unmapped;
-                    }
-                }
+                pipeline.add(new Template(rec, secondOfPair, null));
             }
         }
+        pipeline.finish();
+        final int aligned = pipeline.aligned;
+        final int unmapped = pipeline.unmapped;
         unmappedIterator.close();
         if (alignedIterator.hasNext()) {
             throw new IllegalStateException("Reads remaining on alignment iterator: " + alignedIterator.next().getReadName() + "!");
@@ -528,14 +569,18 @@ public abstract class AbstractAlignmentMerger {
             writer.setProgressLogger(new ProgressLogger(log, (int) 1e7, "Wrote", "records from a sorting collection"));
             final ProgressLogger finalProgress = new ProgressLogger(log, 10000000, "Written in coordinate order to output", "records");
 
-            for (final SAMRecord rec : sink.sorter) {
+            final CloseableIterator<SAMRecord> sortedIterator = sink.sorter.iterator();
+            while (sortedIterator.hasNext()) {
+                final SAMRecord rec = sortedIterator.next();
                 if (!rec.getReadUnmappedFlag() && refSeq != null) {
                     fixNmMdAndUq(rec, refSeq, bisulfiteSequence);
                 }
                 writer.addAlignment(rec);
                 finalProgress.record(rec);
             }
+            sortedIterator.close();
             writer.close();
+            numSpilledSortRuns = sink.sorter.getNumSpilledRuns();
             sink.sorter.cleanup();
         }
 
@@ -565,17 +610,122 @@ public abstract class AbstractAlignmentMerger {
     }
 
     /**
-     * Add record if it is primary or optionally secondary.
+     * Merges the alignments for one read or read pair into the unmapped record(s), collecting the records to be written
+     * in the template.  May be called on any thread; templates are independent of each other.
      */
-    private void addIfNotFiltered(final Sink out, final SAMRecord rec) {
-        if (includeSecondaryAlignments || !rec.getNotPrimaryAlignmentFlag()) {
-            out.add(rec);
-            if (this.progress.record(rec) && crossSpeciesReads > 0) {
-                log.info(String.format("%d Reads have been unmapped due to being suspected of being Cross-species contamination.", crossSpeciesReads));
+    private void processTemplate(final Template template) {
+        final SAMRecord rec = template.rec;
+        final SAMRecord secondOfPair = template.secondOfPair;
+        final HitsForInsert hits = template.hits;
+        if (hits != null) {
+            // If there are multiple alignments for a read (pair), then the unaligned SAMRecord must be cloned
+            // before copying info from the aligned record to the unaligned.
+            final boolean clone = hits.numHits() > 1 || hits.hasSupplementalHits();
+            SAMRecord r1Primary = null, r2Primary = null;
+
+            // by this point there should be a single chosen primary alignment, which we will use to determine whether the read is contaminant.
+            // this must be done before the main iteration, since secondary / supplementary alignments will be affected by the primary.
+            final boolean unmapDueToContaminant = this.unmapContaminantReads && isContaminant(hits);
+
+            if (rec.getReadPairedFlag()) {
+                for (int i = 0; i < hits.numHits(); ++i) {
+                    // firstAligned or secondAligned may be null, if there wasn't an alignment for the end,
+                    // or if the alignment was rejected by ignoreAlignment.
+                    final SAMRecord firstAligned = hits.getFirstOfPair(i);
+                    final SAMRecord secondAligned = hits.getSecondOfPair(i);
+
+                    final boolean isPrimaryAlignment = (firstAligned != null && !firstAligned.isSecondaryOrSupplementary()) ||
+                            (secondAligned != null && !secondAligned.isSecondaryOrSupplementary());
+
+                    final SAMRecord firstToWrite;
+                    final SAMRecord secondToWrite;
+                    if (clone) {
+                        firstToWrite = clone(rec);
+                        secondToWrite = clone(secondOfPair);
+                    } else {
+                        firstToWrite = rec;
+                        secondToWrite = secondOfPair;
+                    }
+
+                    // If these are the primary alignments then stash them for use on any supplemental alignments
+                    if (isPrimaryAlignment) {
+                        r1Primary = firstToWrite;
+                        r2Primary = secondToWrite;
+                    }
+
+                    transferAlignmentInfoToPairedRead(firstToWrite, secondToWrite, firstAligned, secondAligned, unmapDueToContaminant, clone);
+
+                    // Only write unmapped read when it has the mate info from the primary alignment.
+                    // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
+                    if (!firstToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
+                        addIfNotFiltered(template, firstToWrite);
+                        if (firstToWrite.getReadUnmappedFlag()) ++template.unmapped;
+                        else ++template.aligned;
+                    }
+                    if (!secondToWrite.getReadUnmappedFlag() || isPrimaryAlignment) {
+                        addIfNotFiltered(template, secondToWrite);
+                        if (!secondToWrite.getReadUnmappedFlag()) ++template.aligned;
+                        else ++template.unmapped;
+                    }
+                }
+
+                // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
+                for (final boolean isRead1 : new boolean[]{true, false}) {
+                    final List<SAMRecord> supplementals = isRead1 ? hits.getSupplementalFirstOfPairOrFragment() : hits.getSupplementalSecondOfPair();
+                    final SAMRecord sourceRec = isRead1 ? rec : secondOfPair;
+                    final SAMRecord matePrimary = isRead1 ? r2Primary : r1Primary;
+
+                    for (final SAMRecord supp : supplementals) {
+                        final SAMRecord out = clone(sourceRec);
+                        transferAlignmentInfoToFragment(out, supp, unmapDueToContaminant, clone);
+                        if (matePrimary != null) SamPairUtil.setMateInformationOnSupplementalAlignment(out, matePrimary, addMateCigar);
+                        // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
+                        if (!out.getReadUnmappedFlag()) {
+                            addIfNotFiltered(template, out);
+                            ++template.aligned;
+                        } else ++template.unmapped;
+                    }
+                }
+            } else {
+                for (int i = 0; i < hits.numHits(); ++i) {
+                    final SAMRecord recToWrite = clone ? clone(rec) : rec;
+                    final boolean isPrimary = !hits.getFragment(i).isSecondaryOrSupplementary();
+                    transferAlignmentInfoToFragment(recToWrite, hits.getFragment(i), unmapDueToContaminant, clone);
+                    // Only write unmapped read if it was originally the primary.
+                    // this avoids the scenario of having multiple unmapped reads with the same name & pair flags
+                    if (!recToWrite.getReadUnmappedFlag() || isPrimary) addIfNotFiltered(template, recToWrite);
+                    if (recToWrite.getReadUnmappedFlag()) ++template.unmapped;
+                    else ++template.aligned;
+                }
+                // Take all of the supplemental reads which had been stashed and add them (as appropriate) to sorted
+                for (final SAMRecord supplementalRec : hits.getSupplementalFirstOfPairOrFragment()) {
+                    final SAMRecord recToWrite = clone(rec);
+                    transferAlignmentInfoToFragment(recToWrite, supplementalRec, unmapDueToContaminant, clone);
+                    // don't write supplementary reads that were unmapped by transferAlignmentInfoToFragment
+                    if (!recToWrite.getReadUnmappedFlag()) {
+                        addIfNotFiltered(template, recToWrite);
+                        ++template.aligned;
+                    } else ++template.unmapped;
+                }
+            }
+        } else {
+            // No matching read from alignedIterator -- just output reads as is.
+            if (!alignedReadsOnly) {
+                template.output.add(rec);
+                ++template.unmapped;
+                if (secondOfPair != null) {
+                    template.output.add(secondOfPair);
+                    ++template.unmapped;
+                }
             }
         }
     }
 
+    /** Add record to the template's output if it is primary or optionally secondary. */
+    private void addIfNotFiltered(final Template template, final SAMRecord rec) {
+        if (includeSecondaryAlignments || !rec.getNotPrimaryAlignmentFlag()) template.output.add(rec);
+    }
+
     private SAMRecord clone(final SAMRecord rec) {
         try {
             return (SAMRecord) rec.clone();
@@ -621,7 +771,7 @@ public abstract class AbstractAlignmentMerger {
             SAMUtils.makeReadUnmapped(unaligned);
         } else if (isContaminant) {
 
-            crossSpeciesReads++;
+            crossSpeciesReads.incrementAndGet();
 
             if (unmappingReadsStrategy.isPopulatePaTag()) {
                 unaligned.setAttribute("PA", encodeMappingInformation(aligned));
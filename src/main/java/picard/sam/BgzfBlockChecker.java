@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam;
+
+import htsjdk.samtools.util.BlockCompressedInputStream.FileTermination;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that a BGZF file (e.g. a BAM) is an unbroken chain of gzip blocks ending at the end of the file, by reading
+ * only the block headers, and whether its last block is the empty terminator block.  This finds a truncated or
+ * corrupted file without inflating it.
+ *
+ * The chain is walked in parallel by splitting the file into byte ranges.  Each range after the first finds its first
+ * block by looking for a block header that is followed by another, and walks the blocks that start in the range.  The
+ * walks are then joined in order; if a range found a different first block than the previous range's walk ends at,
+ * that range is walked again from where the previous one ended, so a false match only costs time.
+ */
+final class BgzfBlockChecker {
+    private static final Log log = Log.getInstance(BgzfBlockChecker.class);
+
+    /** Ranges smaller than this are not worth walking on their own */
+    private static final long MIN_RANGE_SIZE = 16 * 1024 * 1024;
+    private static final int RANGES_PER_THREAD = 4;
+    private static final int HEADER_LENGTH = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+    private static final int MIN_BLOCK_LENGTH = HEADER_LENGTH + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+    /** The magic, compression method and FEXTRA flag, then the BC subfield; the time, extra flags and OS may vary */
+    private static final int[] PREAMBLE_OFFSETS_TO_MATCH = {0, 1, 2, 3, 10, 11, 12, 13, 14, 15};
+
+    /** What a check found. */
+    static final class Result {
+        private final long blockCount;
+        private final FileTermination termination;
+        private final String problem;
+
+        private Result(final long blockCount, final FileTermination termination, final String problem) {
+            this.blockCount = blockCount;
+            this.termination = termination;
+            this.problem = problem;
+        }
+
+        /** The number of blocks walked, up to the first problem if there was one */
+        long getBlockCount() { return blockCount; }
+
+        /** DEFECTIVE if the blocks do not chain to the end of the file, otherwise whether the last block is the terminator */
+        FileTermination getTermination() { return termination; }
+
+        /** A description of where the chain of blocks breaks, or null if it does not */
+        String getProblem() { return problem; }
+    }
+
+    /** The blocks that start at or after a walk's first block and before its end offset. */
+    private static final class Walk {
+        private final long start;
+        private long next;
+        private long lastBlockStart = -1;
+        private long blockCount = 0;
+        private String problem = null;
+
+        private Walk(final long start) {
+            this.start = start;
+            this.next = start;
+        }
+    }
+
+    private BgzfBlockChecker() {}
+
+    /** Checks the file using up to numThreads threads. */
+    static Result check(final File file, final int numThreads) {
+        return check(file, numThreads, MIN_RANGE_SIZE);
+    }
+
+    /** Checks the file using up to numThreads threads, each walking ranges of at least minRangeSize bytes. */
+    static Result check(final File file, final int numThreads, final long minRangeSize) {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            final int numRanges = (int) Math.max(1, Math.min((long) numThreads * RANGES_PER_THREAD, fileSize / minRangeSize));
+            final long[] rangeEnds = new long[numRanges];
+            for (int i = 0; i < numRanges; ++i) {
+                rangeEnds[i] = i == numRanges - 1 ? fileSize : fileSize / numRanges * (i + 1);
+            }
+            final List<Walk> walks = numThreads <= 1 || numRanges == 1
+                    ? Arrays.asList(walk(channel, fileSize, 0, fileSize))
+                    : walkRanges(channel, fileSize, rangeEnds, numThreads);
+
+            long blockCount = 0, expected = 0, lastBlockStart = -1;
+            for (int i = 0; i < numRanges; ++i) {
+                if (expected >= rangeEnds[i]) continue;
+                Walk walk = i < walks.size() ? walks.get(i) : null;
+                if (walk == null || walk.start != expected) {
+                    if (walk != null) log.debug("Walking blocks again from " + expected + " instead of " + walk.start);
+                    walk = walk(channel, fileSize, expected, rangeEnds[i]);
+                }
+                blockCount += walk.blockCount;
+                if (walk.problem != null) return new Result(blockCount, FileTermination.DEFECTIVE, walk.problem);
+                if (walk.lastBlockStart >= 0) lastBlockStart = walk.lastBlockStart;
+                expected = walk.next;
+            }
+
+            if (lastBlockStart < 0) {
+                return new Result(blockCount, FileTermination.DEFECTIVE, "File has no gzip blocks");
+            }
+            final byte[] terminator = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+            final byte[] lastBlock = new byte[(int) Math.min(terminator.length, fileSize - lastBlockStart)];
+            readFully(channel, ByteBuffer.wrap(lastBlock), lastBlockStart);
+            return new Result(blockCount, Arrays.equals(lastBlock, terminator) ? FileTermination.HAS_TERMINATOR_BLOCK
+                    : FileTermination.HAS_HEALTHY_LAST_BLOCK, null);
+        } catch (final IOException e) {
+            throw new PicardException("Error reading gzip blocks of " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Walks each range from its first block in parallel.  The walk of a range in which no block was found is null.
+     * FileChannel positional reads are safe to make from several threads at once.
+     */
+    private static List<Walk> walkRanges(final FileChannel channel, final long fileSize, final long[] rangeEnds, final int numThreads) {
+        final ExecutorService pool = Executors.newFixedThreadPool(numThreads, r -> {
+            final Thread t = new Thread(r, "BgzfBlockChecker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            final List<Future<Walk>> futures = new ArrayList<>();
+            for (int i = 0; i < rangeEnds.length; ++i) {
+                final long rangeStart = i == 0 ? 0 : rangeEnds[i - 1];
+                final long rangeEnd = rangeEnds[i];
+                futures.add(pool.submit(() -> {
+                    final long first = rangeStart == 0 ? 0 : findBlockStart(channel, fileSize, rangeStart, rangeEnd);
+                    return first < 0 ? null : walk(channel, fileSize, first, rangeEnd);
+                }));
+            }
+            final List<Walk> walks = new ArrayList<>();
+            for (final Future<Walk> future : futures) {
+                try {
+                    walks.add(future.get());
+                } catch (final ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                    if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+                    throw new PicardException("Error reading gzip blocks", ee.getCause());
+                } catch (final InterruptedException ie) {
+                    throw new PicardException("Interrupted while reading gzip blocks", ie);
+                }
+            }
+            return walks;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Follows the chain of blocks from start until reaching a block that starts at or after end, or a problem. */
+    private static Walk walk(final FileChannel channel, final long fileSize, final long start, final long end) throws IOException {
+        final Walk walk = new Walk(start);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (walk.next < end && walk.next < fileSize) {
+            final long offset = walk.next;
+            if (fileSize - offset < HEADER_LENGTH) {
+                walk.problem = "File is truncated in the header of the gzip block at offset " + offset;
+                break;
+            }
+            header.clear();
+            readFully(channel, header, offset);
+            final int blockLength = blockLength(header.array(), 0);
+            if (blockLength < 0) {
+                walk.problem = "File has a corrupt gzip block header at offset " + offset;
+                break;
+            }
+            if (offset + blockLength > fileSize) {
+                walk.problem = "File is truncated in the gzip block at offset " + offset;
+                break;
+            }
+            walk.lastBlockStart = offset;
+            walk.next = offset + blockLength;
+            ++walk.blockCount;
+        }
+        return walk;
+    }
+
+    /**
+     * Returns the offset of the first block header in [from, end) that is followed by another block header or the end
+     * of the file, or -1 if there is none.  As blocks are at most MAX_COMPRESSED_BLOCK_SIZE long, a block starts within
+     * that many bytes of any offset.
+     */
+    private static long findBlockStart(final FileChannel channel, final long fileSize, final long from, final long end) throws IOException {
+        final int maxBlock = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+        final byte[] window = new byte[(int) Math.min(fileSize - from, 2L * maxBlock + HEADER_LENGTH)];
+        readFully(channel, ByteBuffer.wrap(window), from);
+        final int lastCandidate = (int) Math.min(Math.min(end - from, maxBlock), window.length - HEADER_LENGTH + 1);
+        for (int i = 0; i < lastCandidate; ++i) {
+            final int blockLength = blockLength(window, i);
+            if (blockLength < 0) continue;
+            final long next = from + i + blockLength;
+            if (next == fileSize || (next < fileSize && i + blockLength + HEADER_LENGTH <= window.length
+                    && blockLength(window, i + blockLength) >= 0)) {
+                return from + i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the total length of the block whose header starts at offset, or -1 if there is no BGZF header there. */
+    private static int blockLength(final byte[] bytes, final int offset) {
+        final byte[] preamble = BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE;
+        for (final int i : PREAMBLE_OFFSETS_TO_MATCH) {
+            if (bytes[offset + i] != preamble[i]) return -1;
+        }
+        final int blockLength = ((bytes[offset + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET] & 0xFF)
+                | (bytes[offset + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET + 1] & 0xFF) << 8) + 1;
+        return blockLength < MIN_BLOCK_LENGTH ? -1 : blockLength;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at offset " + (position + buffer.position()));
+            }
+        }
+    }
+}
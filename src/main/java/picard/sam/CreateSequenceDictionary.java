@@ -47,12 +47,22 @@ import picard.cmdline.StandardOptionDefinitions;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Create a SAM/BAM file from a fasta containing reference sequence. The output SAM file contains a header but no
@@ -107,6 +117,20 @@ public class CreateSequenceDictionary extends CommandLineProgram {
     @Option(doc = "Stop after writing this many sequences.  For testing.")
     public int NUM_SEQUENCES = Integer.MAX_VALUE;
 
+    @Option(shortName = "NP", doc = "The number of threads to use to compute the MD5s of the sequences.  If more than one, and " +
+            "the reference is an uncompressed fasta with a .fai index and TRUNCATE_NAMES_AT_WHITESPACE is true, the fasta is " +
+            "memory-mapped and sequences are digested in parallel, each read in fixed-size chunks rather than whole.  The " +
+            "dictionary does not depend on the number of threads.  If NUM_PROCESSORS = 0, the number of cores available on " +
+            "the machine is used.  If NUM_PROCESSORS < 0 then the number of cores used will be the number available on " +
+            "the machine less NUM_PROCESSORS.")
+    public int NUM_PROCESSORS = 1;
+
+    /** The number of bases digested at a time when streaming a sequence from a memory-mapped fasta. */
+    private static final int BASES_PER_CHUNK = 1024 * 1024;
+
+    /** The size of the regions in which a fasta is memory-mapped. */
+    private static final long MAPPED_SEGMENT_SIZE = 1L << 30;
+
     private final MessageDigest md5;
 
     public CreateSequenceDictionary() {
@@ -183,16 +207,23 @@ public class CreateSequenceDictionary extends CommandLineProgram {
         // SortingCollection is used to check uniqueness of sequence names
         final SortingCollection<String> sequenceNames = makeSortingCollection();
         try (BufferedWriter writer = makeWriter()) {
-            final ReferenceSequenceFile refSeqFile = ReferenceSequenceFileFactory.
-                    getReferenceSequenceFile(REFERENCE, TRUNCATE_NAMES_AT_WHITESPACE);
             SAMSequenceDictionaryCodec samDictCodec = new SAMSequenceDictionaryCodec(writer);
 
             samDictCodec.encodeHeaderLine(false);
-            // read reference sequence one by one and write its metadata
-            for (ReferenceSequence refSeq = refSeqFile.nextSequence(); refSeq != null; refSeq = refSeqFile.nextSequence()) {
-                final SAMSequenceRecord samSequenceRecord = makeSequenceRecord(refSeq);
-                samDictCodec.encodeSequenceRecord(samSequenceRecord);
-                sequenceNames.add(refSeq.getName());
+            final int numThreads = getNumProcessors();
+            final File fastaIndex = new File(REFERENCE.getAbsolutePath() + ".fai");
+            if (numThreads > 1 && TRUNCATE_NAMES_AT_WHITESPACE && !REFERENCE.getName().endsWith(".gz") && fastaIndex.exists()) {
+                writeSequenceRecordsInParallel(readFastaIndex(fastaIndex), numThreads, samDictCodec, sequenceNames);
+            } else {
+                if (numThreads > 1) logger.info("Computing MD5s on a single thread, as there is no .fai index for an uncompressed fasta.");
+                final ReferenceSequenceFile refSeqFile = ReferenceSequenceFileFactory.
+                        getReferenceSequenceFile(REFERENCE, TRUNCATE_NAMES_AT_WHITESPACE);
+                // read reference sequence one by one and write its metadata
+                for (ReferenceSequence refSeq = refSeqFile.nextSequence(); refSeq != null; refSeq = refSeqFile.nextSequence()) {
+                    final SAMSequenceRecord samSequenceRecord = makeSequenceRecord(refSeq);
+                    samDictCodec.encodeSequenceRecord(samSequenceRecord);
+                    sequenceNames.add(refSeq.getName());
+                }
             }
         } catch (FileNotFoundException e) {
             throw new PicardException("File " + OUTPUT.getAbsolutePath() + " not found");
@@ -218,6 +249,55 @@ public class CreateSequenceDictionary extends CommandLineProgram {
         return 0;
     }
 
+    /** Resolves NUM_PROCESSORS into a number of threads, counting 0 and negative values against the available cores. */
+    private int getNumProcessors() {
+        if (NUM_PROCESSORS == 0) return Runtime.getRuntime().availableProcessors();
+        if (NUM_PROCESSORS < 0) return Math.max(1, Runtime.getRuntime().availableProcessors() + NUM_PROCESSORS);
+        return NUM_PROCESSORS;
+    }
+
+    /**
+     * Writes a sequence record for each sequence in the fasta index, in index order, computing the MD5s on a pool of
+     * threads.  The bases digested are those IndexedFastaSequenceFile would return, so the records are identical to those
+     * written when reading the sequences one by one.
+     */
+    private void writeSequenceRecordsInParallel(final List<FastaIndexEntry> index, final int numThreads,
+                                                final SAMSequenceDictionaryCodec samDictCodec,
+                                                final SortingCollection<String> sequenceNames) throws IOException {
+        final MappedFasta fasta = new MappedFasta(REFERENCE);
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads, r -> {
+            final Thread t = new Thread(r, "CreateSequenceDictionary");
+            t.setDaemon(true);
+            return t;
+        });
+        // Bound the sequences in flight so that a reference with very many sequences does not queue them all at once
+        final Deque<Future<SAMSequenceRecord>> pending = new ArrayDeque<>();
+        try {
+            for (final FastaIndexEntry entry : index) {
+                if (pending.size() >= numThreads * 4) writeSequenceRecord(pending.removeFirst(), samDictCodec, sequenceNames);
+                pending.add(executor.submit(() -> makeSequenceRecord(entry.contig, entry.size, fasta.md5(entry))));
+            }
+            while (!pending.isEmpty()) writeSequenceRecord(pending.removeFirst(), samDictCodec, sequenceNames);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void writeSequenceRecord(final Future<SAMSequenceRecord> future, final SAMSequenceDictionaryCodec samDictCodec,
+                                     final SortingCollection<String> sequenceNames) {
+        final SAMSequenceRecord samSequenceRecord;
+        try {
+            samSequenceRecord = future.get();
+        } catch (final InterruptedException e) {
+            throw new PicardException("Interrupted while computing sequence MD5s", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new PicardException("Error computing sequence MD5s", e.getCause());
+        }
+        samDictCodec.encodeSequenceRecord(samSequenceRecord);
+        sequenceNames.add(samSequenceRecord.getSequenceName());
+    }
+
     private BufferedWriter makeWriter() throws FileNotFoundException {
         return new BufferedWriter(
                 new AsciiWriter(this.CREATE_MD5_FILE ?
@@ -234,15 +314,24 @@ public class CreateSequenceDictionary extends CommandLineProgram {
      * Create one SAMSequenceRecord from a single fasta sequence
      */
     private SAMSequenceRecord makeSequenceRecord(final ReferenceSequence refSeq) {
-        final SAMSequenceRecord ret = new SAMSequenceRecord(refSeq.getName(), refSeq.length());
-
         // Compute MD5 of upcased bases
         final byte[] bases = refSeq.getBases();
         for (int i = 0; i < bases.length; ++i) {
                 bases[i] = StringUtil.toUpperCase(bases[i]);
             }
 
-        ret.setAttribute(SAMSequenceRecord.MD5_TAG, md5Hash(bases));
+        md5.reset();
+        md5.update(bases);
+        return makeSequenceRecord(refSeq.getName(), refSeq.length(), md5Hash(md5.digest()));
+    }
+
+    /**
+     * Create one SAMSequenceRecord given the MD5 of its upcased bases
+     */
+    private SAMSequenceRecord makeSequenceRecord(final String name, final long length, final String md5) {
+        if (length > Integer.MAX_VALUE) throw new PicardException("Sequence " + name + " is too long: " + length);
+        final SAMSequenceRecord ret = new SAMSequenceRecord(name, (int) length);
+        ret.setAttribute(SAMSequenceRecord.MD5_TAG, md5);
         if (GENOME_ASSEMBLY != null) {
             ret.setAttribute(SAMSequenceRecord.ASSEMBLY_TAG, GENOME_ASSEMBLY);
         }
@@ -253,10 +342,8 @@ public class CreateSequenceDictionary extends CommandLineProgram {
         return ret;
     }
 
-    private String md5Hash(final byte[] bytes) {
-        md5.reset();
-        md5.update(bytes);
-        String s = new BigInteger(1, md5.digest()).toString(16);
+    private static String md5Hash(final byte[] digest) {
+        String s = new BigInteger(1, digest).toString(16);
         if (s.length() != 32) {
             final String zeros = "00000000000000000000000000000000";
             s = zeros.substring(0, 32 - s.length()) + s;
@@ -264,6 +351,110 @@ public class CreateSequenceDictionary extends CommandLineProgram {
         return s;
     }
 
+    /** Reads the entries of a .fai index, in the order of the sequences in the fasta. */
+    private static List<FastaIndexEntry> readFastaIndex(final File fastaIndex) throws IOException {
+        final List<FastaIndexEntry> entries = new ArrayList<>();
+        try (final BufferedReader reader = new BufferedReader(new FileReader(fastaIndex))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.isEmpty()) continue;
+                final String[] fields = line.split("\t");
+                try {
+                    entries.add(new FastaIndexEntry(SAMSequenceRecord.truncateSequenceName(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4])));
+                } catch (final NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new PicardException("Found invalid line in index file " + fastaIndex.getAbsolutePath() + ": " + line);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /** One line of a .fai index: where a sequence's bases lie in the fasta and how they are split into lines. */
+    private static class FastaIndexEntry {
+        final String contig;
+        final long size;
+        final long location;
+        final int basesPerLine;
+        final int bytesPerLine;
+
+        FastaIndexEntry(final String contig, final long size, final long location, final int basesPerLine, final int bytesPerLine) {
+            this.contig = contig;
+            this.size = size;
+            this.location = location;
+            this.basesPerLine = basesPerLine;
+            this.bytesPerLine = bytesPerLine;
+        }
+    }
+
+    /**
+     * A fasta memory-mapped in segments, from which the bases of an indexed sequence can be streamed into an MD5 digest.
+     * The mapped segments are shared by all threads; each digest reads them through its own duplicates.
+     */
+    private static class MappedFasta {
+        private final File file;
+        private final MappedByteBuffer[] segments;
+
+        MappedFasta(final File file) throws IOException {
+            this.file = file;
+            try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                final long size = channel.size();
+                segments = new MappedByteBuffer[(int) ((size + MAPPED_SEGMENT_SIZE - 1) / MAPPED_SEGMENT_SIZE)];
+                for (int i = 0; i < segments.length; ++i) {
+                    final long start = i * MAPPED_SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAPPED_SEGMENT_SIZE, size - start));
+                }
+            }
+        }
+
+        /** Computes the MD5 of the upcased bases of the sequence, laid out in the file as described by the index entry. */
+        String md5(final FastaIndexEntry entry) {
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new PicardException("MD5 algorithm not found", e);
+            }
+            final ByteBuffer[] views = new ByteBuffer[segments.length];
+            for (int i = 0; i < segments.length; ++i) views[i] = segments[i].duplicate();
+
+            final long basesPerLine = entry.basesPerLine;
+            final long bytesPerLine = entry.bytesPerLine;
+            final byte[] chunk = new byte[(int) Math.min(BASES_PER_CHUNK, Math.max(entry.size, 1))];
+            int chunkLength = 0;
+            for (long base = 0; base < entry.size; ) {
+                // Copy the rest of the current line, or as much of it as fits in the chunk
+                final long offset = entry.location + base / basesPerLine * bytesPerLine + base % basesPerLine;
+                final int length = (int) Math.min(Math.min(basesPerLine - base % basesPerLine, entry.size - base), chunk.length - chunkLength);
+                read(views, offset, chunk, chunkLength, length, entry);
+                chunkLength += length;
+                base += length;
+                if (chunkLength == chunk.length || base == entry.size) {
+                    for (int i = 0; i < chunkLength; ++i) chunk[i] = StringUtil.toUpperCase(chunk[i]);
+                    digest.update(chunk, 0, chunkLength);
+                    chunkLength = 0;
+                }
+            }
+            return md5Hash(digest.digest());
+        }
+
+        private void read(final ByteBuffer[] views, long offset, final byte[] dest, int destOffset, int length, final FastaIndexEntry entry) {
+            while (length > 0) {
+                final int segment = (int) (offset / MAPPED_SEGMENT_SIZE);
+                if (segment >= views.length) {
+                    throw new PicardException("Sequence " + entry.contig + " extends past the end of " + file.getAbsolutePath() +
+                            "; the .fai index may be out of date.");
+                }
+                final ByteBuffer view = views[segment];
+                view.position((int) (offset % MAPPED_SEGMENT_SIZE));
+                final int n = Math.min(length, view.remaining());
+                view.get(dest, destOffset, n);
+                offset += n;
+                destOffset += n;
+                length -= n;
+            }
+        }
+    }
+
     private SortingCollection<String> makeSortingCollection() {
         final String name = getClass().getSimpleName();
         final File tmpDir = IOUtil.createTempDir(name, null);
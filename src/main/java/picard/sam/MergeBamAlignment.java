@@ -218,8 +218,18 @@ public class MergeBamAlignment extends CommandLineProgram {
     @Option(doc = "How to deal with alignment information in reads that are being unmapped (e.g. due to cross-species contamination.) Currently ignored unless UNMAP_CONTAMINANT_READS = true", optional = true)
     public AbstractAlignmentMerger.UnmappingReadStrategy UNMAPPED_READ_STRATEGY = AbstractAlignmentMerger.UnmappingReadStrategy.DO_NOT_CHANGE;
 
+    @Option(shortName = "NP", doc = "The number of threads to use to merge alignments into the unmapped reads, and to compress " +
+            "and read back the records spilled to disk while sorting into coordinate order.  The output does not depend on " +
+            "the number of threads.  If NUM_PROCESSORS = 0, the number of cores available on " +
+            "the machine is used.  If NUM_PROCESSORS < 0 then the number of cores used will be the number available on " +
+            "the machine less NUM_PROCESSORS.")
+    public int NUM_PROCESSORS = 1;
+
     private static final Log log = Log.getInstance(MergeBamAlignment.class);
 
+    /** MAX_RECORDS_IN_RAM before the command line is parsed, so that only a value given by the user caps the sort. */
+    private final Integer defaultMaxRecordsInRam = MAX_RECORDS_IN_RAM;
+
     /**
      * Mechanism to bridge between command line option and PrimaryAlignmentSelectionStrategy implementation.
      */
@@ -274,7 +284,11 @@ public class MergeBamAlignment extends CommandLineProgram {
                 PRIMARY_ALIGNMENT_STRATEGY.newInstance(), ADD_MATE_CIGAR, UNMAP_CONTAMINANT_READS,
                 MIN_UNCLIPPED_BASES, UNMAPPED_READ_STRATEGY, MATCHING_DICTIONARY_TAGS);
         merger.setClipOverlappingReads(CLIP_OVERLAPPING_READS);
-        merger.setMaxRecordsInRam(MAX_RECORDS_IN_RAM);
+        // The coordinate sort is sized by the heap; only a MAX_RECORDS_IN_RAM given by the user caps it too
+        if (MAX_RECORDS_IN_RAM != null && !MAX_RECORDS_IN_RAM.equals(defaultMaxRecordsInRam)) {
+            merger.setMaxRecordsInRam(MAX_RECORDS_IN_RAM);
+        }
+        merger.setNumThreads(getNumProcessors());
         merger.setKeepAlignerProperPairFlags(ALIGNER_PROPER_PAIR_FLAGS);
         merger.setIncludeSecondaryAlignments(INCLUDE_SECONDARY_ALIGNMENTS);
         merger.setAttributesToReverse(ATTRIBUTES_TO_REVERSE);
@@ -285,6 +299,13 @@ public class MergeBamAlignment extends CommandLineProgram {
         return 0;
     }
 
+    /** Resolves NUM_PROCESSORS into a number of threads, counting 0 and negative values against the available cores. */
+    private int getNumProcessors() {
+        if (NUM_PROCESSORS == 0) return Runtime.getRuntime().availableProcessors();
+        if (NUM_PROCESSORS < 0) return Math.max(1, Runtime.getRuntime().availableProcessors() + NUM_PROCESSORS);
+        return NUM_PROCESSORS;
+    }
+
     /**
      * Put any custom command-line validation in an override of this method.
      * clp is initialized at this point and can be used to print usage and access argv.
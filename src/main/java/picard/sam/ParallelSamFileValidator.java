@@ -0,0 +1,697 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam;
+
+import htsjdk.samtools.AbstractBAMFileIndex;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BAMIndexMetaData;
+import htsjdk.samtools.BamIndexValidator;
+import htsjdk.samtools.BamIndexValidator.IndexValidationStringency;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.SAMValidationError;
+import htsjdk.samtools.SamFileValidator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricBase;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.BlockCompressedInputStream.FileTermination;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Histogram;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.SortingCollection;
+import picard.PicardException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Validates an indexed, coordinate-sorted SAM, BAM or CRAM file in SUMMARY mode on several threads, reading its records
+ * through the index.
+ * <p/>
+ * A BAM file is first checked to be an unbroken chain of gzip blocks (see {@link BgzfBlockChecker}), and if it is not,
+ * its records are not decoded.  The references are then split into shards of consecutive references of about equal
+ * length, plus one of the unplaced unmapped reads, and each shard is queried through the index and validated by its
+ * own SamFileValidator while the index itself is validated.  The validators are told to ignore the errors found by
+ * matching up mates, since a read's mate may be in another shard; instead the mates are matched up here, within each
+ * shard as it is read and then across shards, with the reads left unmatched sorted by name in a SortingCollection, so
+ * that memory stays bounded.
+ * <p/>
+ * Each shard's validator reports the errors in the header again, and may report an unexpected quality encoding, which
+ * a single pass reports at most once; these are counted once.
+ * <p/>
+ * The shards read the records the index places, which are the placed records and the unplaced unmapped reads.  Records
+ * that the index cannot place, such as one with a reference but no alignment start, are not read, so the number of
+ * records read is checked against the counts of records kept in the index.  If they differ, or the index keeps no
+ * counts, nothing is written and the file must be validated in a single pass; otherwise the counts of errors are those
+ * SamFileValidator.validateSamFileSummary gives.
+ */
+final class ParallelSamFileValidator {
+    private static final Log log = Log.getInstance(ParallelSamFileValidator.class);
+
+    /** The errors found by matching up mates, which the validators of the shards ignore */
+    private static final Set<SAMValidationError.Type> MATE_ERRORS = EnumSet.of(
+            SAMValidationError.Type.MATE_NOT_FOUND,
+            SAMValidationError.Type.MATES_ARE_SAME_END,
+            SAMValidationError.Type.MISMATCH_MATE_ALIGNMENT_START,
+            SAMValidationError.Type.MISMATCH_FLAG_MATE_NEG_STRAND,
+            SAMValidationError.Type.MISMATCH_MATE_REF_INDEX,
+            SAMValidationError.Type.MISMATCH_FLAG_MATE_UNMAPPED,
+            SAMValidationError.Type.MISMATCH_MATE_CIGAR_STRING);
+
+    /** The error about the file as a whole that the validator of every shard may report */
+    private static final SAMValidationError.Type ONCE_PER_FILE_ERROR = SAMValidationError.Type.INVALID_QUALITY_FORMAT;
+
+    private static final int SHARDS_PER_THREAD = 4;
+
+    private final SamReaderFactory factory;
+    private final int numThreads;
+    private final int maxTempFiles;
+    private final int maxRecordsInRam;
+    private final Collection<File> tmpDirs;
+    private Set<SAMValidationError.Type> errorsToIgnore = EnumSet.noneOf(SAMValidationError.Type.class);
+    private boolean ignoreWarnings = false;
+    private boolean bisulfiteSequenced = false;
+    private IndexValidationStringency indexValidationStringency = IndexValidationStringency.NONE;
+
+    /**
+     * @param factory         opens the readers of the shards
+     * @param numThreads      the number of shards to validate at once
+     * @param maxTempFiles    the number of temporary files the validators of all the shards may keep open
+     * @param maxRecordsInRam the number of reads with unmatched mates to hold in memory before spilling to disk
+     * @param tmpDirs         the directories to spill into
+     */
+    ParallelSamFileValidator(final SamReaderFactory factory, final int numThreads, final int maxTempFiles,
+                             final int maxRecordsInRam, final Collection<File> tmpDirs) {
+        this.factory = factory;
+        this.numThreads = Math.max(1, numThreads);
+        this.maxTempFiles = maxTempFiles;
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.tmpDirs = tmpDirs;
+    }
+
+    void setErrorsToIgnore(final Collection<SAMValidationError.Type> types) {
+        errorsToIgnore = types.isEmpty() ? EnumSet.noneOf(SAMValidationError.Type.class) : EnumSet.copyOf(types);
+    }
+
+    void setIgnoreWarnings(final boolean ignoreWarnings) {
+        this.ignoreWarnings = ignoreWarnings;
+    }
+
+    void setBisulfiteSequenced(final boolean bisulfiteSequenced) {
+        this.bisulfiteSequenced = bisulfiteSequenced;
+    }
+
+    void setIndexValidationStringency(final IndexValidationStringency stringency) {
+        this.indexValidationStringency = stringency;
+    }
+
+    /**
+     * Returns why the reader's records cannot be split into shards, or null if they can: it must be indexed,
+     * coordinate-sorted and have references.
+     */
+    static String whyCannotValidate(final SamReader reader) {
+        final SAMFileHeader header = reader.getFileHeader();
+        if (!reader.hasIndex()) return "the input has no index";
+        if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+            return "the input is sorted by " + header.getSortOrder() + " rather than by coordinate";
+        }
+        if (header.getSequenceDictionary().isEmpty()) return "the input's sequence dictionary is empty";
+        return null;
+    }
+
+    /**
+     * Validates the file and writes the counts of errors to out as SamFileValidator.validateSamFileSummary does.
+     *
+     * @param input     the file to validate
+     * @param samReader a reader of the input, which is used to validate the index
+     * @param reference the reference to validate NM tags against, or null
+     * @return true if no errors were found, or null if the shards did not read every record of the input, in which
+     * case nothing has been written
+     */
+    Boolean validateSamFileSummary(final File input, final SamReader samReader, final File reference, final PrintWriter out) {
+        final Histogram<String> errorsByType = new Histogram<>();
+        if (samReader.type() == SamReader.Type.BAM_TYPE && IOUtil.isRegularPath(input)) {
+            final BgzfBlockChecker.Result blocks = BgzfBlockChecker.check(input, numThreads);
+            log.info("Checked " + blocks.getBlockCount() + " gzip blocks.");
+            if (blocks.getTermination() == FileTermination.DEFECTIVE) {
+                log.error(blocks.getProblem());
+                if (addError(errorsByType, SAMValidationError.Type.TRUNCATED_FILE)) {
+                    log.error("Not validating the records of a truncated file.");
+                    return writeSummary(errorsByType, out);
+                }
+            } else if (blocks.getTermination() == FileTermination.HAS_HEALTHY_LAST_BLOCK) {
+                addError(errorsByType, SAMValidationError.Type.BAM_FILE_MISSING_TERMINATOR_BLOCK);
+            }
+        }
+
+        // Every shard's validator validates the header, so these are counted once and taken out of each shard's counts
+        final Histogram<String> headerErrors = validate(new ShardReader(samReader, Collections.emptyIterator()), null);
+        errorsByType.addHistogram(headerErrors);
+
+        // Read before the index is validated on another thread, as the index may not be read on two threads at once
+        final long numIndexedRecords = countIndexedRecords(samReader);
+        if (numIndexedRecords < 0) {
+            log.warn("The index does not count the records of " + input.getAbsolutePath() + ".");
+            return null;
+        }
+        final AtomicLong numRecordsRead = new AtomicLong();
+
+        final List<Shard> shards = makeShards(samReader.getFileHeader().getSequenceDictionary());
+        final SortingCollection<Mate> unmatchedMates = SortingCollection.newInstance(Mate.class, new MateCodec(),
+                MATE_COMPARATOR, maxRecordsInRam, tmpDirs);
+        final ExecutorService pool = Executors.newFixedThreadPool(numThreads, r -> {
+            final Thread t = new Thread(r, "ParallelSamFileValidator");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            final List<Future<Histogram<String>>> futures = new ArrayList<>();
+            if (indexValidationStringency != IndexValidationStringency.NONE) {
+                futures.add(pool.submit(() -> validateIndex(samReader)));
+            }
+            for (final Shard shard : shards) {
+                futures.add(pool.submit(() -> validateShard(input, reference, shard, headerErrors, unmatchedMates, numRecordsRead)));
+            }
+            for (final Future<Histogram<String>> future : futures) {
+                try {
+                    errorsByType.addHistogram(future.get());
+                } catch (final ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                    if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+                    throw new PicardException("Error validating " + input.getAbsolutePath(), ee.getCause());
+                } catch (final InterruptedException ie) {
+                    throw new PicardException("Interrupted while validating " + input.getAbsolutePath(), ie);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (numRecordsRead.get() != numIndexedRecords) {
+            log.warn("Read " + numRecordsRead.get() + " records of " + input.getAbsolutePath() + " through its index, which counts " +
+                    numIndexedRecords + ".");
+            unmatchedMates.cleanup();
+            return null;
+        }
+        matchMates(unmatchedMates, errorsByType);
+        final Histogram.Bin<String> onceErrors = errorsByType.get(ONCE_PER_FILE_ERROR.getHistogramString());
+        if (onceErrors != null && onceErrors.getValue() > 1) errorsByType.increment(onceErrors.getId(), 1 - onceErrors.getValue());
+        return writeSummary(errorsByType, out);
+    }
+
+    /**
+     * Returns the number of records the index counts, those placed on each reference and those with no coordinate, or
+     * -1 if it does not count them.
+     */
+    private static long countIndexedRecords(final SamReader reader) {
+        final BAMIndex index = reader.indexing().getIndex();
+        if (!(index instanceof AbstractBAMFileIndex)) return -1;
+        final Long noCoordinateCount = ((AbstractBAMFileIndex) index).getNoCoordinateCount();
+        if (noCoordinateCount == null) return -1;
+        long count = noCoordinateCount;
+        for (int i = 0; i < reader.getFileHeader().getSequenceDictionary().size(); ++i) {
+            final BAMIndexMetaData metaData = index.getMetaData(i);
+            if (metaData != null) count += metaData.getAlignedRecordCount() + metaData.getUnalignedRecordCount();
+        }
+        return count;
+    }
+
+    /** Writes "No errors found" or the counts of errors, as SamFileValidator does, and returns true if there were none. */
+    private static boolean writeSummary(final Histogram<String> errorsByType, final PrintWriter out) {
+        if (errorsByType.isEmpty()) {
+            out.println("No errors found");
+        } else {
+            final Histogram<String> errorsAndWarningsByType = new Histogram<>("Error Type", "Count");
+            errorsAndWarningsByType.addHistogram(errorsByType);
+            final MetricsFile<MetricBase, String> metricsFile = new MetricsFile<>();
+            metricsFile.setHistogram(errorsAndWarningsByType);
+            metricsFile.write(out);
+        }
+        out.flush();
+        return errorsByType.isEmpty();
+    }
+
+    /** Counts the error unless it is to be ignored, and returns whether it was counted. */
+    private boolean addError(final Histogram<String> errorsByType, final SAMValidationError.Type type) {
+        if (errorsToIgnore.contains(type)) return false;
+        if (ignoreWarnings && type.severity == SAMValidationError.Severity.WARNING) return false;
+        errorsByType.increment(type.getHistogramString());
+        return true;
+    }
+
+    /** Splits the references into runs of about equal total length, longest first, followed by the unmapped reads. */
+    private List<Shard> makeShards(final SAMSequenceDictionary dictionary) {
+        final long targetLength = Math.max(1, dictionary.getReferenceLength() / (numThreads * SHARDS_PER_THREAD));
+        final List<Shard> shards = new ArrayList<>();
+        int first = 0;
+        long length = 0;
+        for (final SAMSequenceRecord sequence : dictionary.getSequences()) {
+            length += sequence.getSequenceLength();
+            if (length >= targetLength || sequence.getSequenceIndex() == dictionary.size() - 1) {
+                shards.add(new Shard(shards.size(), first, sequence.getSequenceIndex(), length));
+                first = sequence.getSequenceIndex() + 1;
+                length = 0;
+            }
+        }
+        shards.sort(Comparator.comparingLong((Shard shard) -> shard.length).reversed());
+        shards.add(new Shard(shards.size(), SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX, SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX, 0));
+        return shards;
+    }
+
+    /**
+     * Validates the records of the shard, matches up the mates within it and adds the rest to unmatchedMates, adds the
+     * number of records read to numRecordsRead, and returns the counts of errors apart from those in headerErrors.
+     */
+    private Histogram<String> validateShard(final File input, final File reference, final Shard shard,
+                                            final Histogram<String> headerErrors, final SortingCollection<Mate> unmatchedMates,
+                                            final AtomicLong numRecordsRead) {
+        final SamReader reader = factory.open(input);
+        final ReferenceSequenceFile referenceFile = reference == null ? null : ReferenceSequenceFileFactory.getReferenceSequenceFile(reference);
+        try {
+            final MateMatcher mates = new MateMatcher(shard, unmatchedMates);
+            final SAMRecordIterator records;
+            if (shard.isUnmapped()) {
+                records = reader.queryUnmapped();
+            } else {
+                final QueryInterval[] intervals = new QueryInterval[shard.lastReference - shard.firstReference + 1];
+                for (int i = 0; i < intervals.length; ++i) intervals[i] = new QueryInterval(shard.firstReference + i, 0, 0);
+                records = reader.query(intervals, false);
+            }
+            final long[] numRead = {0};
+            final Histogram<String> shardErrors = validate(new ShardReader(reader, records, record -> {
+                ++numRead[0];
+                mates.accept(record);
+            }), referenceFile);
+            mates.finish();
+            numRecordsRead.addAndGet(numRead[0]);
+
+            final Histogram<String> errorsByType = mates.errorsByType;
+            for (final Histogram.Bin<String> bin : shardErrors.values()) {
+                final Histogram.Bin<String> headerBin = headerErrors.get(bin.getId());
+                final double count = bin.getValue() - (headerBin == null ? 0 : headerBin.getValue());
+                if (count > 0) errorsByType.increment(bin.getId(), count);
+            }
+            return errorsByType;
+        } finally {
+            CloserUtil.close(referenceFile);
+            CloserUtil.close(reader);
+        }
+    }
+
+    /** Validates the records of the reader with a SamFileValidator that ignores mate errors, and returns its counts. */
+    private Histogram<String> validate(final SamReader reader, final ReferenceSequenceFile reference) {
+        final StringWriter summary = new StringWriter();
+        final SamFileValidator validator = new SamFileValidator(new PrintWriter(summary), Math.max(1, maxTempFiles / numThreads));
+        final Set<SAMValidationError.Type> ignored = EnumSet.copyOf(MATE_ERRORS);
+        ignored.addAll(errorsToIgnore);
+        validator.setErrorsToIgnore(ignored);
+        validator.setIgnoreWarnings(ignoreWarnings);
+        validator.setBisulfiteSequenced(bisulfiteSequenced);
+        validator.setVerbose(false, 0);
+        validator.validateSamFileSummary(reader, reference);
+
+        // The validator only reports its counts as a metrics file
+        final Histogram<String> errorsByType = new Histogram<>();
+        if (summary.toString().contains(MetricsFile.HISTO_HEADER)) {
+            final MetricsFile<MetricBase, String> metricsFile = new MetricsFile<>();
+            metricsFile.read(new StringReader(summary.toString()));
+            errorsByType.addHistogram(metricsFile.getHistogram());
+        }
+        return errorsByType;
+    }
+
+    /** Validates the index as SamFileValidator does. */
+    private Histogram<String> validateIndex(final SamReader samReader) {
+        final Histogram<String> errorsByType = new Histogram<>();
+        try {
+            if (indexValidationStringency == IndexValidationStringency.LESS_EXHAUSTIVE) {
+                BamIndexValidator.lessExhaustivelyTestIndex(samReader);
+            } else {
+                BamIndexValidator.exhaustivelyTestIndex(samReader);
+            }
+        } catch (final Exception e) {
+            addError(errorsByType, SAMValidationError.Type.INVALID_INDEX_FILE_POINTER);
+        }
+        return errorsByType;
+    }
+
+    /** Matches up the mates that were not matched within a shard, which are sorted by name. */
+    private void matchMates(final SortingCollection<Mate> unmatchedMates, final Histogram<String> errorsByType) {
+        unmatchedMates.doneAdding();
+        Mate pending = null;
+        for (final Mate mate : unmatchedMates) {
+            if (pending != null && pending.readName.equals(mate.readName)) {
+                validateMates(pending, mate, errorsByType);
+                pending = null;
+            } else {
+                if (pending != null) addError(errorsByType, SAMValidationError.Type.MATE_NOT_FOUND);
+                pending = mate;
+            }
+        }
+        if (pending != null) addError(errorsByType, SAMValidationError.Type.MATE_NOT_FOUND);
+        unmatchedMates.cleanup();
+    }
+
+    /** Checks that two ends of a pair agree with each other, as SamFileValidator does. */
+    private void validateMates(final Mate end1, final Mate end2, final Histogram<String> errorsByType) {
+        validateMateFields(end1, end2, errorsByType);
+        validateMateFields(end2, end1, errorsByType);
+        if (end1.isFirstOfPair() == end2.isFirstOfPair()) addError(errorsByType, SAMValidationError.Type.MATES_ARE_SAME_END);
+    }
+
+    private void validateMateFields(final Mate end1, final Mate end2, final Histogram<String> errorsByType) {
+        if (end1.mateAlignmentStart != end2.readAlignmentStart) {
+            addError(errorsByType, SAMValidationError.Type.MISMATCH_MATE_ALIGNMENT_START);
+        }
+        if (end1.isMateNegativeStrand() != end2.isReadNegativeStrand()) {
+            addError(errorsByType, SAMValidationError.Type.MISMATCH_FLAG_MATE_NEG_STRAND);
+        }
+        if (end1.mateReferenceIndex != end2.readReferenceIndex) {
+            addError(errorsByType, SAMValidationError.Type.MISMATCH_MATE_REF_INDEX);
+        }
+        if (end1.isMateUnmapped() != end2.isReadUnmapped()) {
+            addError(errorsByType, SAMValidationError.Type.MISMATCH_FLAG_MATE_UNMAPPED);
+        }
+        if (end1.mateCigar != null && !end1.mateCigar.equals(end2.readCigar)) {
+            addError(errorsByType, SAMValidationError.Type.MISMATCH_MATE_CIGAR_STRING);
+        }
+    }
+
+    /** A run of consecutive references, or the unplaced unmapped reads. */
+    private static final class Shard {
+        private final int number;
+        private final int firstReference;
+        private final int lastReference;
+        private final long length;
+
+        private Shard(final int number, final int firstReference, final int lastReference, final long length) {
+            this.number = number;
+            this.firstReference = firstReference;
+            this.lastReference = lastReference;
+            this.length = length;
+        }
+
+        private boolean isUnmapped() {
+            return firstReference == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+        }
+
+        private boolean contains(final int referenceIndex) {
+            return firstReference <= referenceIndex && referenceIndex <= lastReference;
+        }
+    }
+
+    /**
+     * Matches up the primary ends of pairs in a shard as they are read.  An end whose mate is claimed to be in another
+     * shard, or whose mate has not been read by the end of the shard, is added to the mates to match across shards.
+     */
+    private final class MateMatcher implements Consumer<SAMRecord> {
+        private final Shard shard;
+        private final SortingCollection<Mate> unmatchedMates;
+        private final Map<String, Mate> pending = new HashMap<>();
+        private final Histogram<String> errorsByType = new Histogram<>();
+        private long numRead = 0;
+
+        private MateMatcher(final Shard shard, final SortingCollection<Mate> unmatchedMates) {
+            this.shard = shard;
+            this.unmatchedMates = unmatchedMates;
+        }
+
+        @Override
+        public void accept(final SAMRecord record) {
+            if (!record.getReadPairedFlag() || record.isSecondaryOrSupplementary()) return;
+            final Mate mate = new Mate(record, ((long) shard.number << 40) | numRead++);
+            final Mate other = pending.remove(mate.readName);
+            if (other != null) {
+                validateMates(other, mate, errorsByType);
+            } else if (shard.contains(mate.mateReferenceIndex)) {
+                pending.put(mate.readName, mate);
+            } else {
+                addUnmatched(mate);
+            }
+        }
+
+        private void finish() {
+            pending.values().forEach(this::addUnmatched);
+            pending.clear();
+        }
+
+        private void addUnmatched(final Mate mate) {
+            synchronized (unmatchedMates) {
+                unmatchedMates.add(mate);
+            }
+        }
+    }
+
+    /** The fields of a primary end of a pair that are checked against its mate. */
+    static final class Mate {
+        private static final int READ_NEGATIVE_STRAND = 1, READ_UNMAPPED = 2, MATE_NEGATIVE_STRAND = 4, MATE_UNMAPPED = 8,
+                FIRST_OF_PAIR = 16;
+
+        private final String readName;
+        private final long order;
+        private final int readReferenceIndex;
+        private final int readAlignmentStart;
+        private final int mateReferenceIndex;
+        private final int mateAlignmentStart;
+        private final int flags;
+        private final String readCigar;
+        private final String mateCigar;
+
+        private Mate(final SAMRecord record, final long order) {
+            this.readName = record.getReadName();
+            this.order = order;
+            this.readReferenceIndex = record.getReferenceIndex();
+            this.readAlignmentStart = record.getAlignmentStart();
+            this.mateReferenceIndex = record.getMateReferenceIndex();
+            this.mateAlignmentStart = record.getMateAlignmentStart();
+            this.flags = (record.getReadNegativeStrandFlag() ? READ_NEGATIVE_STRAND : 0)
+                    | (record.getReadUnmappedFlag() ? READ_UNMAPPED : 0)
+                    | (record.getMateNegativeStrandFlag() ? MATE_NEGATIVE_STRAND : 0)
+                    | (record.getMateUnmappedFlag() ? MATE_UNMAPPED : 0)
+                    | (record.getFirstOfPairFlag() ? FIRST_OF_PAIR : 0);
+            this.readCigar = record.getCigarString();
+            this.mateCigar = (String) record.getAttribute(SAMTag.MC.name());
+        }
+
+        private Mate(final String readName, final long order, final int readReferenceIndex, final int readAlignmentStart,
+                     final int mateReferenceIndex, final int mateAlignmentStart, final int flags, final String readCigar,
+                     final String mateCigar) {
+            this.readName = readName;
+            this.order = order;
+            this.readReferenceIndex = readReferenceIndex;
+            this.readAlignmentStart = readAlignmentStart;
+            this.mateReferenceIndex = mateReferenceIndex;
+            this.mateAlignmentStart = mateAlignmentStart;
+            this.flags = flags;
+            this.readCigar = readCigar;
+            this.mateCigar = mateCigar;
+        }
+
+        private boolean isReadNegativeStrand() { return (flags & READ_NEGATIVE_STRAND) != 0; }
+
+        private boolean isReadUnmapped() { return (flags & READ_UNMAPPED) != 0; }
+
+        private boolean isMateNegativeStrand() { return (flags & MATE_NEGATIVE_STRAND) != 0; }
+
+        private boolean isMateUnmapped() { return (flags & MATE_UNMAPPED) != 0; }
+
+        private boolean isFirstOfPair() { return (flags & FIRST_OF_PAIR) != 0; }
+    }
+
+    /** By name, and then in the order read within each shard, so that the result does not depend on timing */
+    private static final Comparator<Mate> MATE_COMPARATOR = Comparator.comparing((Mate mate) -> mate.readName)
+            .thenComparingLong(mate -> mate.order);
+
+    static class MateCodec implements SortingCollection.Codec<Mate> {
+        private DataOutputStream out;
+        private DataInputStream in;
+
+        public void setOutputStream(final OutputStream os) {
+            out = new DataOutputStream(os);
+        }
+
+        public void setInputStream(final InputStream is) {
+            in = new DataInputStream(is);
+        }
+
+        public void encode(final Mate mate) {
+            try {
+                writeString(mate.readName);
+                out.writeLong(mate.order);
+                out.writeInt(mate.readReferenceIndex);
+                out.writeInt(mate.readAlignmentStart);
+                out.writeInt(mate.mateReferenceIndex);
+                out.writeInt(mate.mateAlignmentStart);
+                out.writeByte(mate.flags);
+                writeString(mate.readCigar);
+                writeString(mate.mateCigar);
+            } catch (final IOException e) {
+                throw new RuntimeIOException("Exception writing mate to temporary file.", e);
+            }
+        }
+
+        public Mate decode() {
+            final String readName;
+            try {
+                readName = readString();
+            } catch (final EOFException e) {
+                return null;
+            } catch (final IOException e) {
+                throw new RuntimeIOException("Exception reading mate from temporary file.", e);
+            }
+            try {
+                return new Mate(readName, in.readLong(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        in.readUnsignedByte(), readString(), readString());
+            } catch (final IOException e) {
+                throw new RuntimeIOException("Exception reading mate from temporary file.", e);
+            }
+        }
+
+        /** Writes the length, or -1 for null, and then the bytes; a CIGAR string may be longer than writeUTF allows */
+        private void writeString(final String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+            } else {
+                final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        private String readString() throws IOException {
+            final int length = in.readInt();
+            if (length < 0) return null;
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public MateCodec clone() {
+            return new MateCodec();
+        }
+    }
+
+    /**
+     * Presents a shard's records to a SamFileValidator as a SamReader, passing each one to an observer as it is
+     * validated.  Only what the validator uses is supported.
+     */
+    private static final class ShardReader implements SamReader {
+        private final SamReader reader;
+        private final Iterator<SAMRecord> records;
+        private final Consumer<SAMRecord> observer;
+
+        private ShardReader(final SamReader reader, final Iterator<SAMRecord> records) {
+            this(reader, records, record -> {});
+        }
+
+        private ShardReader(final SamReader reader, final Iterator<SAMRecord> records, final Consumer<SAMRecord> observer) {
+            this.reader = reader;
+            this.records = records;
+            this.observer = observer;
+        }
+
+        @Override public SAMFileHeader getFileHeader() { return reader.getFileHeader(); }
+
+        @Override public Type type() { return reader.type(); }
+
+        @Override public String getResourceDescription() { return reader.getResourceDescription(); }
+
+        @Override public boolean hasIndex() { return false; }
+
+        @Override public Indexing indexing() { throw new UnsupportedOperationException(); }
+
+        @Override
+        public SAMRecordIterator iterator() {
+            return new SAMRecordIterator() {
+                @Override public boolean hasNext() { return records.hasNext(); }
+
+                @Override
+                public SAMRecord next() {
+                    final SAMRecord record = records.next();
+                    observer.accept(record);
+                    return record;
+                }
+
+                @Override public void close() { CloserUtil.close(records); }
+
+                @Override public SAMRecordIterator assertSorted(final SAMFileHeader.SortOrder sortOrder) { throw new UnsupportedOperationException(); }
+            };
+        }
+
+        @Override public SAMRecordIterator query(final String sequence, final int start, final int end, final boolean contained) { throw new UnsupportedOperationException(); }
+
+        @Override public SAMRecordIterator queryOverlapping(final String sequence, final int start, final int end) { throw new UnsupportedOperationException(); }
+
+        @Override public SAMRecordIterator queryContained(final String sequence, final int start, final int end) { throw new UnsupportedOperationException(); }
+
+        @Override public SAMRecordIterator query(final QueryInterval[] intervals, final boolean contained) { throw new UnsupportedOperationException(); }
+
+        @Override public SAMRecordIterator queryOverlapping(final QueryInterval[] intervals) { throw new UnsupportedOperationException(); }
+
+        @Override public SAMRecordIterator queryContained(final QueryInterval[] intervals) { throw new UnsupportedOperationException(); }
+
+        @Override public SAMRecordIterator queryUnmapped() { throw new UnsupportedOperationException(); }
+
+        @Override public SAMRecordIterator queryAlignmentStart(final String sequence, final int start) { throw new UnsupportedOperationException(); }
+
+        @Override public SAMRecord queryMate(final SAMRecord rec) { throw new UnsupportedOperationException(); }
+
+        @Override public void close() {}
+    }
+}
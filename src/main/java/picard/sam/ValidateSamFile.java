@@ -33,6 +33,7 @@ import htsjdk.samtools.BamIndexValidator.IndexValidationStringency;
 import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
 import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
@@ -70,6 +71,12 @@ public class ValidateSamFile extends CommandLineProgram {
             "errors/warnings of lesser concern.  This can be done using the IGNORE and/or IGNORE_WARNINGS arguments.  For helpful " +
             "suggestions on error prioritization, please follow this link to obtain additional documentation on <a href='https://www.broadinstitute.org/gatk/guide/article?id=7571'>ValidateSamFile</a>.</p>" +
 
+            "<p>With THREAD_COUNT greater than 1, an indexed, coordinate-sorted file is validated in SUMMARY mode on that many " +
+            "threads, a group of references at a time, after a quick check that a BAM file is not truncated or corrupt.  " +
+            "The records are read through the index, and if fewer are read than the index counts, as when a record has a " +
+            "reference but no alignment start, the file is validated again in a single pass, so the counts of errors are " +
+            "always those of a single pass.</p>" +
+
             "<p>After identifying and fixing your 'warnings/errors', we recommend that you rerun this tool to validate your SAM/BAM " +
             "file prior to proceeding with your downstream analysis.  This will verify that all problems in your file have been addressed.</p>" +
             "<h4>Usage example:</h4>" +
@@ -129,6 +136,15 @@ public class ValidateSamFile extends CommandLineProgram {
             "This number can be found by executing the 'ulimit -n' command on a Unix system.")
     public int MAX_OPEN_TEMP_FILES = 8000;
 
+    @Option(doc = "The number of threads to validate with.  With more than one, an indexed, coordinate-sorted file is " +
+            "validated in SUMMARY mode one group of references per thread, reading the records through the index; if " +
+            "the index does not place every record, the file is validated again in a single pass.  A BAM " +
+            "file's gzip blocks are first checked to chain to the end of the file, and if they do not, its records are " +
+            "not validated.  Other inputs, and VERBOSE mode, are validated in a single pass.")
+    public int THREAD_COUNT = 1;
+
+    private final Log log = Log.getInstance(ValidateSamFile.class);
+
     public static void main(final String[] args) {
         System.exit(new ValidateSamFile().instanceMain(args));
     }
@@ -184,6 +200,26 @@ public class ValidateSamFile extends CommandLineProgram {
         if (VALIDATE_INDEX) {
             validator.setIndexValidationStringency(VALIDATE_INDEX ? IndexValidationStringency.EXHAUSTIVE : IndexValidationStringency.NONE);
         }
+        if (THREAD_COUNT > 1) {
+            final String whySinglePass = MODE != Mode.SUMMARY ? "only SUMMARY mode is validated in parallel"
+                    : ParallelSamFileValidator.whyCannotValidate(samReader);
+            if (whySinglePass == null) {
+                final ParallelSamFileValidator parallelValidator = new ParallelSamFileValidator(factory, THREAD_COUNT,
+                        MAX_OPEN_TEMP_FILES, MAX_RECORDS_IN_RAM, TMP_DIR);
+                parallelValidator.setErrorsToIgnore(IGNORE);
+                parallelValidator.setIgnoreWarnings(IGNORE_WARNINGS);
+                parallelValidator.setBisulfiteSequenced(IS_BISULFITE_SEQUENCED);
+                parallelValidator.setIndexValidationStringency(VALIDATE_INDEX ? IndexValidationStringency.EXHAUSTIVE : IndexValidationStringency.NONE);
+                final Boolean parallelResult = parallelValidator.validateSamFileSummary(INPUT, samReader, REFERENCE_SEQUENCE, out);
+                if (parallelResult != null) {
+                    out.flush();
+                    return parallelResult ? 0 : 1;
+                }
+                log.warn("Validating in a single pass, as not every record could be read through the index.");
+            } else {
+                log.warn("Validating in a single pass rather than on " + THREAD_COUNT + " threads, as " + whySinglePass + ".");
+            }
+        }
         if (IOUtil.isRegularPath(INPUT)) {
             // Do not check termination if reading from a stream
             validator.validateBamFileTermination(INPUT);
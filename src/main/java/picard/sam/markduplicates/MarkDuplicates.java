@@ -35,18 +35,18 @@ import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.CloseableIterator;
-import htsjdk.samtools.util.SortingCollection;
 import htsjdk.samtools.util.SortingLongCollection;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
-import picard.sam.markduplicates.util.DiskBasedReadEndsForMarkDuplicatesMap;
 import picard.sam.markduplicates.util.LibraryIdGenerator;
+import picard.sam.markduplicates.util.OffHeapReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.PackedReadEndsSortingCollection;
 import picard.sam.markduplicates.util.ReadEnds;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
-import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesCodec;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesMap;
 import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
-import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodesCodec;
+import picard.sam.util.ParallelBAMFileWriter;
+import picard.util.AsyncIterator;
 
 import java.io.*;
 import java.util.*;
@@ -147,9 +147,8 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     public int MAX_SEQUENCES_FOR_DISK_READ_ENDS_MAP = 50000;
 
     @Option(shortName = "MAX_FILE_HANDLES",
-            doc = "Maximum number of file handles to keep open when spilling read ends to disk. " +
-                    "Set this number a little lower than the per-process maximum number of file that may be open. " +
-                    "This number can be found by executing the 'ulimit -n' command on a Unix system.")
+            doc = "This option is obsolete. Read ends are now spilled to disk in sorted runs and at most one file handle " +
+                    "is open at a time.")
     public int MAX_FILE_HANDLES_FOR_READ_ENDS_MAP = 8000;
 
     @Option(doc = "This number, plus the maximum RAM available to the JVM, determine the memory footprint used by " +
@@ -173,8 +172,14 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     @Option(doc= "Determines how duplicate types are recorded in the DT optional attribute.")
     public DuplicateTaggingPolicy TAGGING_POLICY = DuplicateTaggingPolicy.DontTag;
 
-    private SortingCollection<ReadEndsForMarkDuplicates> pairSort;
-    private SortingCollection<ReadEndsForMarkDuplicates> fragSort;
+    @Option(doc = "Number of threads used to compress the output BAM.  If greater than 1 the input is also read on its " +
+            "own thread and BGZF blocks are deflated in parallel; the output is byte-for-byte identical.  If 0, the number " +
+            "of cores available on the machine is used. If < 0, the number of cores available less this number is used. " +
+            "Ignored when OUTPUT is a SAM file.")
+    public int NUM_COMPRESSION_THREADS = 1;
+
+    private PackedReadEndsSortingCollection pairSort;
+    private PackedReadEndsSortingCollection fragSort;
     private SortingLongCollection duplicateIndexes;
     private SortingLongCollection opticalDuplicateIndexes;
 
@@ -183,6 +188,14 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
     protected LibraryIdGenerator libraryIdGenerator = null; // this is initialized in buildSortedReadEndLists
 
+    /** Returns the number of threads to compress the output with, or 1 if the output will not be a BAM. */
+    private int getNumCompressionThreads() {
+        if (OUTPUT.getName().endsWith(".sam")) return 1;
+        if (NUM_COMPRESSION_THREADS == 0) return Runtime.getRuntime().availableProcessors();
+        if (NUM_COMPRESSION_THREADS < 0) return Math.max(1, Runtime.getRuntime().availableProcessors() + NUM_COMPRESSION_THREADS);
+        return NUM_COMPRESSION_THREADS;
+    }
+
     private int getBarcodeValue(final SAMRecord record) {
         return EstimateLibraryComplexity.getReadBarcodeValue(record, BARCODE_TAG);
     }
@@ -250,9 +263,18 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         // Key: previous PG ID on a SAM Record (or null).  Value: New PG ID to replace it.
         final Map<String, String> chainedPgIds = getChainedPgIds(outputHeader);
 
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,
-                true,
-                OUTPUT);
+        final int numCompressionThreads = getNumCompressionThreads();
+        final SAMFileWriter out;
+        final CloseableIterator<SAMRecord> iterator;
+        if (numCompressionThreads > 1) {
+            // Read on one thread, flag and encode on this one, and deflate on the rest
+            out = new ParallelBAMFileWriter(outputHeader, true, OUTPUT, COMPRESSION_LEVEL, numCompressionThreads,
+                    CREATE_INDEX, CREATE_MD5_FILE);
+            iterator = new AsyncIterator<SAMRecord>(headerAndIterator.iterator, AsyncIterator.DEFAULT_QUEUE_SIZE, "MarkDuplicatesReader");
+        } else {
+            out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, OUTPUT);
+            iterator = headerAndIterator.iterator;
+        }
 
         // Now copy over the file while marking all the necessary indexes as duplicates
         long recordInFileIndex = 0;
@@ -260,7 +282,6 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         long nextDuplicateIndex = (this.duplicateIndexes.hasNext() ? this.duplicateIndexes.next() : NO_SUCH_INDEX);
 
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e7, "Written");
-        final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
         String duplicateQueryName = null;
         String opticalDuplicateQueryName = null;
 
@@ -387,43 +408,21 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * duplication, caching to disk as necessary to sort them.
      */
     private void buildSortedReadEndLists(final boolean useBarcodes) {
-        final int sizeInBytes;
-        if (useBarcodes) {
-            sizeInBytes = ReadEndsForMarkDuplicatesWithBarcodes.getSizeOf();
-        } else {
-            sizeInBytes = ReadEndsForMarkDuplicates.getSizeOf();
-        }
+        final int sizeInBytes = PackedReadEndsSortingCollection.getSizeOf(useBarcodes);
         MAX_RECORDS_IN_RAM = (int) (Runtime.getRuntime().maxMemory() / sizeInBytes) / 2;
         final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / sizeInBytes);
         log.info("Will retain up to " + maxInMemory + " data points before spilling to disk.");
 
-        final ReadEndsForMarkDuplicatesCodec fragCodec, pairCodec, diskCodec;
-        if (useBarcodes) {
-            fragCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-            diskCodec = new ReadEndsForMarkDuplicatesWithBarcodesCodec();
-        } else {
-            fragCodec = new ReadEndsForMarkDuplicatesCodec();
-            pairCodec = new ReadEndsForMarkDuplicatesCodec();
-            diskCodec = new ReadEndsForMarkDuplicatesCodec();
-        }
-
-        this.pairSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                pairCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
-
-        this.fragSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                fragCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
+        this.pairSort = new PackedReadEndsSortingCollection(useBarcodes, maxInMemory, TMP_DIR);
+        this.fragSort = new PackedReadEndsSortingCollection(useBarcodes, maxInMemory, TMP_DIR);
 
         final SamHeaderAndIterator headerAndIterator = openInputs();
         final SAMFileHeader.SortOrder assumedSortOrder = headerAndIterator.header.getSortOrder();
         final SAMFileHeader header = headerAndIterator.header;
-        final ReadEndsForMarkDuplicatesMap tmp = new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
+        // The pending-mate map lives off-heap, so it gets its own share of memory on top of the sorting collections
+        final int maxPendingInRam = (int) Math.min((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / OffHeapReadEndsForMarkDuplicatesMap.SLOT_SIZE,
+                (double) (Integer.MAX_VALUE - 5));
+        final ReadEndsForMarkDuplicatesMap tmp = new OffHeapReadEndsForMarkDuplicatesMap(maxPendingInRam, useBarcodes, TMP_DIR);
         long index = 0;
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
         final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
@@ -766,7 +765,10 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         return (x < y) ? -1 : ((x == y) ? 0 : 1);
     }
 
-    /** Comparator for ReadEndsForMarkDuplicates that orders by read1 position then pair orientation then read2 position. */
+    /**
+     * Comparator for ReadEndsForMarkDuplicates that orders by read1 position then pair orientation then read2 position.
+     * PackedReadEndsSortingCollection encodes the same ordering in the leading words of its packed records.
+     */
     static class ReadEndsMDComparator implements Comparator<ReadEndsForMarkDuplicates> {
 
         final boolean useBarcodes;
@@ -593,10 +593,10 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
 
             // track optical duplicates using only those reads that are the first end...
             if (toMarkQueue.shouldBeInLocations(next) && next.getRecord().getFirstOfPairFlag()) {
-                final Set<ReadEnds> locations = toMarkQueue.getLocations(next);
+                final List<ReadEnds> locations = toMarkQueue.getLocations(next);
 
                 if (!locations.isEmpty()) {
-                    AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(new ArrayList<ReadEnds>(locations), null,
+                    AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(locations, null,
                             opticalDuplicateFinder, libraryIdGenerator);
                 }
             }
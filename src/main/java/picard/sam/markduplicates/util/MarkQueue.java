@@ -33,10 +33,11 @@ import picard.PicardException;
 import picard.sam.DuplicationMetrics;
 import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Deque;
+import java.util.List;
 
 /**
  * This is the mark queue.
@@ -48,19 +49,207 @@ import java.util.TreeSet;
 public class MarkQueue {
 
     /**
-     * Comparator to order the mark queue nonDuplicateReadEndsSet.  The nonDuplicateReadEndsSet of all the read ends that are compared to be the same should
-     * be used for duplicate marking.
+     * A set of read ends keyed on the fields that order the mark queue: library, read1 position, pair orientation (pairs
+     * first, based on the order defined in ReadEnds) and read2 position.  The set of all the read ends that have the
+     * same key should be used for duplicate marking.
+     * <p/>
+     * Each key is packed into three longs that compare in the same order as the fields, and the keys and read ends are
+     * held in parallel arrays that are reused as read ends come and go, with an open-addressing hash index from key to
+     * entry.  If ordered, the entries are kept as a binary min-heap on the key, so that the first can be polled.
      */
-    private class MarkQueueComparator implements Comparator<ReadEndsForMateCigar> {
-        public int compare(final ReadEndsForMateCigar lhs, final ReadEndsForMateCigar rhs) {
-            int retval = lhs.libraryId - rhs.libraryId;
-            if (retval == 0) retval = lhs.read1ReferenceIndex - rhs.read1ReferenceIndex;
-            if (retval == 0) retval = lhs.read1Coordinate - rhs.read1Coordinate;
-            if (retval == 0) retval = rhs.orientation - lhs.orientation; // to get pairs first, based on the order defined in ReadEnds
-            if (retval == 0) retval = lhs.read2ReferenceIndex - rhs.read2ReferenceIndex;
-            if (retval == 0) retval = lhs.read2Coordinate - rhs.read2Coordinate;
+    private static final class ReadEndsTable {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private final boolean ordered;
+        private long[] key1 = new long[INITIAL_CAPACITY], key2 = new long[INITIAL_CAPACITY], key3 = new long[INITIAL_CAPACITY];
+        private ReadEndsForMateCigar[] ends = new ReadEndsForMateCigar[INITIAL_CAPACITY];
+        /** The slot in the index of each entry */
+        private int[] slots = new int[INITIAL_CAPACITY];
+        private int size = 0;
+
+        /** The entry in each slot plus one, or zero if the slot is empty */
+        private int[] index = new int[2 * INITIAL_CAPACITY];
+
+        ReadEndsTable(final boolean ordered) {
+            this.ordered = ordered;
+        }
+
+        int size() { return size; }
+
+        boolean isEmpty() { return size == 0; }
+
+        /** The smallest entry, if ordered */
+        ReadEndsForMateCigar first() { return ends[0]; }
+
+        /** Returns the read end with the given key, or null if there is none */
+        ReadEndsForMateCigar get(final long k1, final long k2, final long k3) {
+            final int slot = findSlot(k1, k2, k3);
+            return slot < 0 ? null : ends[index[slot] - 1];
+        }
+
+        ReadEndsForMateCigar get(final ReadEndsForMateCigar end) {
+            return get(key1(end), key2(end), key3(end));
+        }
+
+        /** Adds the read end unless there is already one with its key, as TreeSet.add() does */
+        void add(final ReadEndsForMateCigar end) {
+            final long k1 = key1(end), k2 = key2(end), k3 = key3(end);
+            if (findSlot(k1, k2, k3) >= 0) return;
+            if (size == ends.length) grow();
+            if (2 * (size + 1) > index.length) rehash(index.length * 2);
+            final int entry = size++;
+            set(entry, k1, k2, k3, end, insertSlot(k1, k2, k3, entry));
+            if (ordered) siftUp(entry);
+        }
+
+        /** Removes and returns the read end with the given key, or null if there is none */
+        ReadEndsForMateCigar remove(final long k1, final long k2, final long k3) {
+            final int slot = findSlot(k1, k2, k3);
+            if (slot < 0) return null;
+            final int entry = index[slot] - 1;
+            final ReadEndsForMateCigar end = ends[entry];
+            removeSlot(slot);
+            removeEntry(entry);
+            return end;
+        }
+
+        ReadEndsForMateCigar remove(final ReadEndsForMateCigar end) {
+            return remove(key1(end), key2(end), key3(end));
+        }
+
+        /** Removes and returns the smallest entry, if ordered */
+        ReadEndsForMateCigar pollFirst() {
+            final ReadEndsForMateCigar end = ends[0];
+            removeSlot(slots[0]);
+            removeEntry(0);
+            return end;
+        }
+
+        /** Moves the last entry into the removed entry's place */
+        private void removeEntry(final int entry) {
+            final int last = --size;
+            if (entry != last) {
+                set(entry, key1[last], key2[last], key3[last], ends[last], slots[last]);
+                if (ordered && !siftDown(entry)) siftUp(entry);
+            }
+            ends[last] = null;
+        }
+
+        private void set(final int entry, final long k1, final long k2, final long k3, final ReadEndsForMateCigar end, final int slot) {
+            key1[entry] = k1;
+            key2[entry] = k2;
+            key3[entry] = k3;
+            ends[entry] = end;
+            slots[entry] = slot;
+            index[slot] = entry + 1;
+        }
+
+        private int compare(final int i, final int j) {
+            int retval = Long.compare(key1[i], key1[j]);
+            if (retval == 0) retval = Long.compare(key2[i], key2[j]);
+            if (retval == 0) retval = Long.compare(key3[i], key3[j]);
             return retval;
         }
+
+        private void swap(final int i, final int j) {
+            final long k1 = key1[i], k2 = key2[i], k3 = key3[i];
+            final ReadEndsForMateCigar end = ends[i];
+            final int slot = slots[i];
+            set(i, key1[j], key2[j], key3[j], ends[j], slots[j]);
+            set(j, k1, k2, k3, end, slot);
+        }
+
+        private void siftUp(int entry) {
+            while (entry > 0) {
+                final int parent = (entry - 1) >>> 1;
+                if (compare(entry, parent) >= 0) return;
+                swap(entry, parent);
+                entry = parent;
+            }
+        }
+
+        /** Returns true if the entry moved */
+        private boolean siftDown(int entry) {
+            final int start = entry;
+            while (true) {
+                final int left = 2 * entry + 1;
+                if (left >= size) break;
+                final int child = (left + 1 < size && compare(left + 1, left) < 0) ? left + 1 : left;
+                if (compare(child, entry) >= 0) break;
+                swap(entry, child);
+                entry = child;
+            }
+            return entry != start;
+        }
+
+        private void grow() {
+            final int capacity = ends.length * 2;
+            key1 = Arrays.copyOf(key1, capacity);
+            key2 = Arrays.copyOf(key2, capacity);
+            key3 = Arrays.copyOf(key3, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+        }
+
+        private int homeSlot(final long k1, final long k2, final long k3) {
+            final long h = ((k1 * 31 + k2) * 31 + k3) * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & (index.length - 1);
+        }
+
+        private int findSlot(final long k1, final long k2, final long k3) {
+            final int mask = index.length - 1;
+            for (int slot = homeSlot(k1, k2, k3); index[slot] != 0; slot = (slot + 1) & mask) {
+                final int entry = index[slot] - 1;
+                if (key1[entry] == k1 && key2[entry] == k2 && key3[entry] == k3) return slot;
+            }
+            return -1;
+        }
+
+        private int insertSlot(final long k1, final long k2, final long k3, final int entry) {
+            final int mask = index.length - 1;
+            int slot = homeSlot(k1, k2, k3);
+            while (index[slot] != 0) slot = (slot + 1) & mask;
+            index[slot] = entry + 1;
+            return slot;
+        }
+
+        /** Empties the slot, moving back any later entries in its probe sequence */
+        private void removeSlot(int slot) {
+            final int mask = index.length - 1;
+            index[slot] = 0;
+            for (int next = (slot + 1) & mask; index[next] != 0; next = (next + 1) & mask) {
+                final int entry = index[next] - 1;
+                final int home = homeSlot(key1[entry], key2[entry], key3[entry]);
+                // move the entry back if its home is not cyclically within (slot, next]
+                if (slot <= next ? (home <= slot || home > next) : (home <= slot && home > next)) {
+                    index[slot] = index[next];
+                    slots[entry] = slot;
+                    index[next] = 0;
+                    slot = next;
+                }
+            }
+        }
+
+        private void rehash(final int capacity) {
+            index = new int[capacity];
+            for (int entry = 0; entry < size; ++entry) {
+                slots[entry] = insertSlot(key1[entry], key2[entry], key3[entry], entry);
+            }
+        }
+
+        /** Packs two ints into a long that compares as the pair would */
+        static long pack(final int high, final int low) {
+            return ((long) high << 32) | ((low ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        }
+
+        static long key1(final ReadEndsForMateCigar end) { return pack(end.libraryId, end.read1ReferenceIndex); }
+
+        static long key2(final ReadEndsForMateCigar end) { return key2(end.read1Coordinate, end.orientation); }
+
+        /** Orientation is reversed to get pairs first, based on the order defined in ReadEnds */
+        static long key2(final int read1Coordinate, final byte orientation) { return pack(read1Coordinate, -orientation); }
+
+        static long key3(final ReadEndsForMateCigar end) { return pack(end.read2ReferenceIndex, end.read2Coordinate); }
     }
 
     /**
@@ -107,14 +296,14 @@ public class MarkQueue {
     private int numDuplicates = 0;
 
     /** The nonDuplicateReadEndsSet of all read ends sorted by 5' start unclipped position.  Some read ends in this nonDuplicateReadEndsSet may eventually be duplicates. */
-    private final TreeSet<ReadEndsForMateCigar> nonDuplicateReadEndsSet = new TreeSet<ReadEndsForMateCigar>(new MarkQueueComparator());
+    private final ReadEndsTable nonDuplicateReadEndsSet = new ReadEndsTable(true);
 
     /**
      * Reads in the main nonDuplicateReadEndsSet may occasionally have mates with the same chromosome, coordinate, and orientation, causing collisions
      * We store the 'best' end of the mate pair in the main nonDuplicateReadEndsSet, and the other end in this nonDuplicateReadEndsSet.  We only remove from this.otherEndOfNonDuplicateReadEndsSet when
      * we remove something from this.nonDuplicateReadEndsSet.
      */
-    private final TreeSet<ReadEndsForMateCigar> otherEndOfNonDuplicateReadEndsSet = new TreeSet<ReadEndsForMateCigar>(new MarkQueueComparator());
+    private final ReadEndsTable otherEndOfNonDuplicateReadEndsSet = new ReadEndsTable(false);
 
     /**
      * If we have two items that are the same with respect to being in the "nonDuplicateReadEndsSet", then we must choose one.  The "one" will
@@ -122,8 +311,14 @@ public class MarkQueue {
      */
     private final Comparator<ReadEndsForMateCigar> comparator;
 
-    /** temporary so we do not need to create many objects */
-    private ReadEndsForMateCigar tmpReadEnds = null;
+    /**
+     * The library of the fragments and unpaired ends that poll() looks for, which is set from the first end polled.
+     */
+    private short pollLibraryId;
+    private boolean pollLibraryIdSet = false;
+
+    /** Location sets whose ends have been used for optical duplicate detection, to be reused */
+    private final Deque<PhysicalLocationForMateCigarSet> locationSetPool = new ArrayDeque<>();
 
     public MarkQueue(final ScoringStrategy duplicateScoringStrategy) {
         comparator = new ReadEndsMCComparator(duplicateScoringStrategy);
@@ -154,13 +349,24 @@ public class MarkQueue {
         return (current.isPaired() && 0 == current.hasUnmapped);
     }
 
-    /** Returns the nonDuplicateReadEndsSet of read ends that should be considered for tracking optical duplicates. */
-    public Set<ReadEnds> getLocations(final ReadEndsForMateCigar current) {
+    /**
+     * Returns the read ends that should be considered for tracking optical duplicates, in the order they were added.
+     * The location set they were in is reused.
+     */
+    public List<ReadEnds> getLocations(final ReadEndsForMateCigar current) {
         // NB: only needed for pairs!!!
         if (!shouldBeInLocations(current)) throw new PicardException("Not implemented");
-        final Set<ReadEnds> locationSet = current.getReadEndSetForOpticalDuplicates();
+        final PhysicalLocationForMateCigarSet locationSet = current.removeLocationSet();
         if (null == locationSet) throw new PicardException("Locations was empty: unexpected error");
-        return locationSet;
+        final List<ReadEnds> locations = locationSet.getReadEndList();
+        locationSet.clear();
+        locationSetPool.addLast(locationSet);
+        return locations;
+    }
+
+    private PhysicalLocationForMateCigarSet newLocationSet() {
+        final PhysicalLocationForMateCigarSet locationSet = locationSetPool.pollLast();
+        return locationSet != null ? locationSet : new PhysicalLocationForMateCigarSet();
     }
 
     /** Returns the first element in this queue */
@@ -200,45 +406,36 @@ public class MarkQueue {
         if (current.isPaired()) {
 
             // Remove this record's comparable pair, if present.
-            if (this.otherEndOfNonDuplicateReadEndsSet.contains(current)) { // the pair of this end is not a duplicate, if found
-                final ReadEndsForMateCigar pair = this.otherEndOfNonDuplicateReadEndsSet.subSet(current, true, current, true).first();
+            final ReadEndsForMateCigar pair = this.otherEndOfNonDuplicateReadEndsSet.remove(current);
+            if (null != pair) { // the pair of this end is not a duplicate, if found
                 outputBuffer.setResultState(pair.getSamRecordIndex(), false); // you are not a duplicate!
-                this.otherEndOfNonDuplicateReadEndsSet.remove(current);
                 // NB: do not need to update metrics since this record is not a duplicate
             }
 
             // NB: only care about read1ReferenceIndex, read1Coordinate, and orientation in the nonDuplicateReadEndsSet
-            if (null == this.tmpReadEnds) { // initialize
-                this.tmpReadEnds = new ReadEndsForMateCigar(header, current.getSamRecordIndex(), opticalDuplicateFinder, current.libraryId);
-                this.tmpReadEnds.read2ReferenceIndex = this.tmpReadEnds.read2Coordinate = -1;
-                this.tmpReadEnds.samRecordWithOrdinal = null; // nullify so we do not hold onto it forever
-            } else {
-                this.tmpReadEnds.read1ReferenceIndex = current.read1ReferenceIndex;
-                this.tmpReadEnds.read1Coordinate = current.read1Coordinate;
+            if (!this.pollLibraryIdSet) { // initialize
+                this.pollLibraryId = current.libraryId;
+                this.pollLibraryIdSet = true;
             }
 
             // We should search for one of F/R
+            final byte orientation;
             if (current.orientation == ReadEnds.FF || current.orientation == ReadEnds.FR || current.orientation == ReadEnds.F) {
-                this.tmpReadEnds.orientation = ReadEnds.F;
+                orientation = ReadEnds.F;
             } else {
-                this.tmpReadEnds.orientation = ReadEnds.R;
+                orientation = ReadEnds.R;
             }
 
             // remove from the nonDuplicateReadEndsSet fragments and unpaired, which only have two possible orientations
-            //this.tmpReadEnds.orientation = orientation;
-            if (this.nonDuplicateReadEndsSet.contains(this.tmpReadEnds)) { // found in the nonDuplicateReadEndsSet
-                // get the duplicate read end
-                final SortedSet<ReadEndsForMateCigar> sortedSet = this.nonDuplicateReadEndsSet.subSet(this.tmpReadEnds, true, this.tmpReadEnds, true);
-                if (1 != sortedSet.size()) throw new PicardException("SortedSet should have size one (has size " + sortedSet.size() + " )");
-                final ReadEndsForMateCigar duplicate = sortedSet.first();
-
+            final ReadEndsForMateCigar duplicate = this.nonDuplicateReadEndsSet.remove(
+                    ReadEndsTable.pack(this.pollLibraryId, current.read1ReferenceIndex),
+                    ReadEndsTable.key2(current.read1Coordinate, orientation),
+                    ReadEndsTable.pack(-1, -1));
+            if (null != duplicate) { // found in the nonDuplicateReadEndsSet
                 /** mark as duplicate and nonDuplicateReadEndsSet that it has been through duplicate marking
                  * duplicate.getRecord().setDuplicateReadFlag(true); HANDLED BY THE METHOD CALL BELOW*/
                 outputBuffer.setResultState(duplicate.getSamRecordIndex(), true);
 
-                // remove from the nonDuplicateReadEndsSet
-                this.nonDuplicateReadEndsSet.remove(this.tmpReadEnds);
-
                 // update the metrics
                 updateDuplicationMetrics(duplicate, libraryIdGenerator.getMetricsByLibrary(libraryIdGenerator.getLibraryName(header, duplicate.getRecord())));
             }
@@ -269,16 +466,12 @@ public class MarkQueue {
         /**
          * Check if we have a comparable record in our nonDuplicateReadEndsSet.
          */
-        if (this.nonDuplicateReadEndsSet.contains(other)) { // a comparable record to "other" record already in the nonDuplicateReadEndsSet
+        final ReadEndsForMateCigar current = this.nonDuplicateReadEndsSet.get(other);
+        if (null != current) { // a comparable record to "other" record already in the nonDuplicateReadEndsSet
             /**
-             * Get the subset of records that are comparable, which should be of size one
-             *
              * Sometimes, the ends that are comparable are in fact from the same pair.  In this case, we need to choose the best end
              * from the pair, and track the sub-optimal end.
              */
-            final SortedSet<ReadEndsForMateCigar> sortedSet = this.nonDuplicateReadEndsSet.subSet(other, true, other, true);
-            if (1 != sortedSet.size()) throw new PicardException("SortedSet should have size one (has size " + sortedSet.size() + " )");
-            final ReadEndsForMateCigar current = sortedSet.first();
             final String otherName = SAMUtils.getCanonicalRecordName(other.getRecord());
             final String currentName = SAMUtils.getCanonicalRecordName(current.getRecord());
 
@@ -318,7 +511,7 @@ public class MarkQueue {
                         // NB we could also just check if locationSet == null after remove?
                         locationSet = current.removeLocationSet();
                     } else { // make a new one
-                        locationSet = new PhysicalLocationForMateCigarSet();
+                        locationSet = newLocationSet();
                     }
                     other.setLocationSet(locationSet); // update locations to use "other" as the identifier for the location nonDuplicateReadEndsSet
                     // remove current and add the other
@@ -326,9 +519,8 @@ public class MarkQueue {
                     this.nonDuplicateReadEndsSet.add(other);
 
                     // update the pair nonDuplicateReadEndsSet in case current's pair is in that nonDuplicateReadEndsSet
-                    if (this.otherEndOfNonDuplicateReadEndsSet.contains(current)) {
-                        final ReadEndsForMateCigar pair = this.otherEndOfNonDuplicateReadEndsSet.subSet(current, true, current, true).first();
-                        this.otherEndOfNonDuplicateReadEndsSet.remove(current);
+                    final ReadEndsForMateCigar pair = this.otherEndOfNonDuplicateReadEndsSet.remove(current);
+                    if (null != pair) {
                         outputBuffer.setResultState(pair.getSamRecordIndex(), true); // track that this samRecordWithOrdinal has been through duplicate marking
                         updateDuplicationMetrics(pair, metrics);
                     }
@@ -347,7 +539,7 @@ public class MarkQueue {
             }
         } else { // 'other' ReadEndMC is not in the main nonDuplicateReadEndsSet, thus the first record at this location. Store it for now.
             if (shouldBeInLocations(other)) {
-                locationSet = new PhysicalLocationForMateCigarSet();
+                locationSet = newLocationSet();
                 other.setLocationSet(locationSet);
             }
             this.nonDuplicateReadEndsSet.add(other);
@@ -0,0 +1,497 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of ReadEndsForMarkDuplicatesMap that keeps pending read ends in fixed-width slots of an off-heap
+ * arena, indexed by an open-addressing table keyed on a 64-bit hash of the read group and read name.  Hash hits are
+ * verified against the stored key bytes, so two keys that happen to share a hash never get confused.
+ * <p/>
+ * Up to maxRecordsInRam read ends are kept in the arena.  When that is exceeded, every read end whose mate sequence
+ * is not the one currently being queried is written to a single run file, sorted by mate sequence index, and the
+ * offset of each sequence's block within the run is remembered.  When remove() is first called for a new sequence,
+ * the blocks for that sequence are read back from each run into RAM.  A run file is deleted once all its blocks have
+ * been read back, and only one file handle is open at any time.
+ */
+public class OffHeapReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDuplicatesMap {
+    // Layout of a slot in the arena.  The same header layout is used for records in the run files.
+    private static final int HASH_OFFSET = 0;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int KEY_LENGTH_OFFSET = 12;
+    private static final int SCORE_OFFSET = 16;
+    private static final int LIBRARY_ID_OFFSET = 18;
+    private static final int ORIENTATION_OFFSET = 20;
+    private static final int OPTICAL_ORIENTATION_OFFSET = 21;
+    private static final int READ_GROUP_OFFSET = 22;
+    private static final int TILE_OFFSET = 24;
+    private static final int READ1_REFERENCE_INDEX_OFFSET = 28;
+    private static final int READ1_COORDINATE_OFFSET = 32;
+    private static final int READ2_REFERENCE_INDEX_OFFSET = 36;
+    private static final int READ2_COORDINATE_OFFSET = 40;
+    private static final int X_OFFSET = 44;
+    private static final int Y_OFFSET = 48;
+    private static final int BARCODE_OFFSET = 52;
+    private static final int READ_ONE_BARCODE_OFFSET = 56;
+    private static final int READ_TWO_BARCODE_OFFSET = 60;
+    private static final int READ1_INDEX_IN_FILE_OFFSET = 64;
+    private static final int READ2_INDEX_IN_FILE_OFFSET = 72;
+    private static final int HEADER_SIZE = 80;
+
+    /** Keys longer than this are kept on the heap rather than in the slot. */
+    private static final int INLINE_KEY_BYTES = 112;
+
+    /** The number of bytes of off-heap memory used for each read end held in RAM. */
+    public static final int SLOT_SIZE = HEADER_SIZE + INLINE_KEY_BYTES;
+
+    private static final int SLOTS_PER_PAGE_SHIFT = 14;
+    private static final int SLOTS_PER_PAGE = 1 << SLOTS_PER_PAGE_SHIFT;
+    private static final int PAGE_MASK = SLOTS_PER_PAGE - 1;
+
+    private static final int MIN_TABLE_CAPACITY = 1 << 10;
+
+    private final int maxRecordsInRam;
+    private final boolean useBarcodes;
+    private final File[] tmpDirs;
+
+    // The arena: pages of fixed-width slots plus a stack of free slot ids.
+    private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+    private int[] freeSlots = new int[MIN_TABLE_CAPACITY];
+    private int numFreeSlots = 0;
+    private int numAllocatedSlots = 0;
+    private final Map<Integer, byte[]> overflowKeys = new HashMap<Integer, byte[]>();
+
+    // Open-addressing, linear-probing table.  tableSlots holds slot id + 1 so that zero means empty.
+    private long[] tableHashes;
+    private int[] tableSlots;
+    private int sizeInRam = 0;
+
+    // Spilled runs, indexed by mate sequence.
+    private final Map<Integer, List<RunBlock>> blocksBySequence = new HashMap<Integer, List<RunBlock>>();
+    private int sizeOnDisk = 0;
+    private int currentSequenceIndex = -1;
+    private int spillThreshold;
+
+    private final byte[] headerBuffer = new byte[HEADER_SIZE];
+
+    /**
+     * @param maxRecordsInRam the number of read ends to hold in RAM before spilling those for other sequences to disk
+     * @param useBarcodes     if true the objects stored and returned are ReadEndsForMarkDuplicatesWithBarcodes
+     * @param tmpDirs         directories in which to write the spilled runs
+     */
+    public OffHeapReadEndsForMarkDuplicatesMap(final int maxRecordsInRam, final boolean useBarcodes, final List<File> tmpDirs) {
+        if (maxRecordsInRam <= 0) throw new IllegalArgumentException("maxRecordsInRam must be > 0");
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.useBarcodes = useBarcodes;
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.spillThreshold = maxRecordsInRam;
+        allocateTable(MIN_TABLE_CAPACITY);
+    }
+
+    public ReadEndsForMarkDuplicates remove(final int mateSequenceIndex, final String key) {
+        if (mateSequenceIndex != currentSequenceIndex) {
+            currentSequenceIndex = mateSequenceIndex;
+            spillThreshold = maxRecordsInRam;
+            loadSequence(mateSequenceIndex);
+        }
+
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final long hash = hash(keyBytes);
+        final int pos = find(hash, keyBytes);
+        if (pos < 0) return null;
+
+        final int slot = tableSlots[pos] - 1;
+        final ByteBuffer page = page(slot);
+        final int offset = offset(slot);
+        if (page.getInt(offset + SEQUENCE_OFFSET) != mateSequenceIndex) return null;
+
+        final ReadEndsForMarkDuplicates readEnds = decode(page, offset);
+        deleteFromTable(pos);
+        freeSlot(slot);
+        return readEnds;
+    }
+
+    public void put(final int mateSequenceIndex, final String key, final ReadEndsForMarkDuplicates readEnds) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final long hash = hash(keyBytes);
+
+        final int slot = allocateSlot();
+        final ByteBuffer page = page(slot);
+        final int offset = offset(slot);
+        page.putLong(offset + HASH_OFFSET, hash);
+        page.putInt(offset + SEQUENCE_OFFSET, mateSequenceIndex);
+        encode(readEnds, page, offset);
+        storeKey(slot, keyBytes);
+        insertIntoTable(hash, slot);
+
+        if (sizeInRam > spillThreshold) spill();
+    }
+
+    public int size() {
+        return sizeInRam + sizeOnDisk;
+    }
+
+    public int sizeInRam() {
+        return sizeInRam;
+    }
+
+    /** 64-bit FNV-1a over the key bytes, followed by a finalizer to spread the bits for the table index. */
+    static long hash(final byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (final byte b : bytes) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Arena management
+    //////////////////////////////////////////////////////////////////////////
+
+    private ByteBuffer page(final int slot) {
+        return pages.get(slot >>> SLOTS_PER_PAGE_SHIFT);
+    }
+
+    private static int offset(final int slot) {
+        return (slot & PAGE_MASK) * SLOT_SIZE;
+    }
+
+    private int allocateSlot() {
+        if (numFreeSlots > 0) return freeSlots[--numFreeSlots];
+        if (numAllocatedSlots == pages.size() * SLOTS_PER_PAGE) {
+            pages.add(ByteBuffer.allocateDirect(SLOTS_PER_PAGE * SLOT_SIZE));
+        }
+        return numAllocatedSlots++;
+    }
+
+    private void freeSlot(final int slot) {
+        if (numFreeSlots == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        freeSlots[numFreeSlots++] = slot;
+        overflowKeys.remove(slot);
+    }
+
+    private void storeKey(final int slot, final byte[] keyBytes) {
+        final ByteBuffer page = page(slot);
+        final int offset = offset(slot);
+        page.putInt(offset + KEY_LENGTH_OFFSET, keyBytes.length);
+        if (keyBytes.length <= INLINE_KEY_BYTES) {
+            for (int i = 0; i < keyBytes.length; ++i) page.put(offset + HEADER_SIZE + i, keyBytes[i]);
+        } else {
+            overflowKeys.put(slot, keyBytes);
+        }
+    }
+
+    private byte[] loadKey(final int slot) {
+        final ByteBuffer page = page(slot);
+        final int offset = offset(slot);
+        final int length = page.getInt(offset + KEY_LENGTH_OFFSET);
+        if (length > INLINE_KEY_BYTES) return overflowKeys.get(slot);
+
+        final byte[] keyBytes = new byte[length];
+        for (int i = 0; i < length; ++i) keyBytes[i] = page.get(offset + HEADER_SIZE + i);
+        return keyBytes;
+    }
+
+    private boolean keyEquals(final int slot, final byte[] keyBytes) {
+        final ByteBuffer page = page(slot);
+        final int offset = offset(slot);
+        final int length = page.getInt(offset + KEY_LENGTH_OFFSET);
+        if (length != keyBytes.length) return false;
+        if (length > INLINE_KEY_BYTES) return Arrays.equals(overflowKeys.get(slot), keyBytes);
+
+        for (int i = 0; i < length; ++i) {
+            if (page.get(offset + HEADER_SIZE + i) != keyBytes[i]) return false;
+        }
+        return true;
+    }
+
+    private void encode(final ReadEndsForMarkDuplicates readEnds, final ByteBuffer page, final int offset) {
+        page.putShort(offset + SCORE_OFFSET, readEnds.score);
+        page.putShort(offset + LIBRARY_ID_OFFSET, readEnds.libraryId);
+        page.put(offset + ORIENTATION_OFFSET, readEnds.orientation);
+        page.put(offset + OPTICAL_ORIENTATION_OFFSET, readEnds.orientationForOpticalDuplicates);
+        page.putShort(offset + READ_GROUP_OFFSET, readEnds.readGroup);
+        page.putShort(offset + TILE_OFFSET, readEnds.tile);
+        page.putInt(offset + READ1_REFERENCE_INDEX_OFFSET, readEnds.read1ReferenceIndex);
+        page.putInt(offset + READ1_COORDINATE_OFFSET, readEnds.read1Coordinate);
+        page.putInt(offset + READ2_REFERENCE_INDEX_OFFSET, readEnds.read2ReferenceIndex);
+        page.putInt(offset + READ2_COORDINATE_OFFSET, readEnds.read2Coordinate);
+        page.putInt(offset + X_OFFSET, readEnds.x);
+        page.putInt(offset + Y_OFFSET, readEnds.y);
+        page.putLong(offset + READ1_INDEX_IN_FILE_OFFSET, readEnds.read1IndexInFile);
+        page.putLong(offset + READ2_INDEX_IN_FILE_OFFSET, readEnds.read2IndexInFile);
+
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) readEnds;
+            page.putInt(offset + BARCODE_OFFSET, withBarcodes.barcode);
+            page.putInt(offset + READ_ONE_BARCODE_OFFSET, withBarcodes.readOneBarcode);
+            page.putInt(offset + READ_TWO_BARCODE_OFFSET, withBarcodes.readTwoBarcode);
+        }
+    }
+
+    private ReadEndsForMarkDuplicates decode(final ByteBuffer page, final int offset) {
+        final ReadEndsForMarkDuplicates readEnds;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = page.getInt(offset + BARCODE_OFFSET);
+            withBarcodes.readOneBarcode = page.getInt(offset + READ_ONE_BARCODE_OFFSET);
+            withBarcodes.readTwoBarcode = page.getInt(offset + READ_TWO_BARCODE_OFFSET);
+            readEnds = withBarcodes;
+        } else {
+            readEnds = new ReadEndsForMarkDuplicates();
+        }
+
+        readEnds.score = page.getShort(offset + SCORE_OFFSET);
+        readEnds.libraryId = page.getShort(offset + LIBRARY_ID_OFFSET);
+        readEnds.orientation = page.get(offset + ORIENTATION_OFFSET);
+        readEnds.orientationForOpticalDuplicates = page.get(offset + OPTICAL_ORIENTATION_OFFSET);
+        readEnds.readGroup = page.getShort(offset + READ_GROUP_OFFSET);
+        readEnds.tile = page.getShort(offset + TILE_OFFSET);
+        readEnds.read1ReferenceIndex = page.getInt(offset + READ1_REFERENCE_INDEX_OFFSET);
+        readEnds.read1Coordinate = page.getInt(offset + READ1_COORDINATE_OFFSET);
+        readEnds.read2ReferenceIndex = page.getInt(offset + READ2_REFERENCE_INDEX_OFFSET);
+        readEnds.read2Coordinate = page.getInt(offset + READ2_COORDINATE_OFFSET);
+        readEnds.x = page.getInt(offset + X_OFFSET);
+        readEnds.y = page.getInt(offset + Y_OFFSET);
+        readEnds.read1IndexInFile = page.getLong(offset + READ1_INDEX_IN_FILE_OFFSET);
+        readEnds.read2IndexInFile = page.getLong(offset + READ2_INDEX_IN_FILE_OFFSET);
+        return readEnds;
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Hash table management
+    //////////////////////////////////////////////////////////////////////////
+
+    private void allocateTable(final int capacity) {
+        tableHashes = new long[capacity];
+        tableSlots = new int[capacity];
+    }
+
+    /** Returns the table position holding the given key, or -1 if it is not present. */
+    private int find(final long hash, final byte[] keyBytes) {
+        final int mask = tableSlots.length - 1;
+        for (int pos = (int) hash & mask; tableSlots[pos] != 0; pos = (pos + 1) & mask) {
+            if (tableHashes[pos] == hash && keyEquals(tableSlots[pos] - 1, keyBytes)) return pos;
+        }
+        return -1;
+    }
+
+    private void insertIntoTable(final long hash, final int slot) {
+        if ((sizeInRam + 1) * 4L > tableSlots.length * 3L) rehash(tableSlots.length * 2);
+        final int mask = tableSlots.length - 1;
+        int pos = (int) hash & mask;
+        while (tableSlots[pos] != 0) pos = (pos + 1) & mask;
+        tableHashes[pos] = hash;
+        tableSlots[pos] = slot + 1;
+        ++sizeInRam;
+    }
+
+    /** Removes the entry at pos, shifting back any later entries of the probe sequence so that no tombstones are needed. */
+    private void deleteFromTable(int pos) {
+        final int mask = tableSlots.length - 1;
+        int next = (pos + 1) & mask;
+        while (tableSlots[next] != 0) {
+            final int home = (int) tableHashes[next] & mask;
+            // Move the entry at next into the hole if its home position is not within (pos, next]
+            if (((next - home) & mask) >= ((next - pos) & mask)) {
+                tableHashes[pos] = tableHashes[next];
+                tableSlots[pos] = tableSlots[next];
+                pos = next;
+            }
+            next = (next + 1) & mask;
+        }
+        tableSlots[pos] = 0;
+        --sizeInRam;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldHashes = tableHashes;
+        final int[] oldSlots = tableSlots;
+        allocateTable(capacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldSlots.length; ++i) {
+            if (oldSlots[i] == 0) continue;
+            int pos = (int) oldHashes[i] & mask;
+            while (tableSlots[pos] != 0) pos = (pos + 1) & mask;
+            tableHashes[pos] = oldHashes[i];
+            tableSlots[pos] = oldSlots[i];
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Spilling to and loading from sorted runs
+    //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes all read ends not belonging to the current sequence to a new run, sorted by mate sequence index.  Read ends
+     * for the current sequence stay in RAM, so the threshold is raised to avoid rescanning them on every put.
+     */
+    private void spill() {
+        spillSortedRun();
+        spillThreshold = Math.max(maxRecordsInRam, sizeInRam + Math.max(1, maxRecordsInRam / 2));
+    }
+
+    private void spillSortedRun() {
+        // Pack (sequence, slot) into longs so that a primitive sort orders the slots by sequence
+        final long[] toSpill = new long[sizeInRam];
+        int n = 0;
+        for (final int tableSlot : tableSlots) {
+            if (tableSlot == 0) continue;
+            final int slot = tableSlot - 1;
+            final int sequence = page(slot).getInt(offset(slot) + SEQUENCE_OFFSET);
+            if (sequence != currentSequenceIndex) toSpill[n++] = ((long) sequence << 32) | slot;
+        }
+        if (n == 0) return;
+        Arrays.sort(toSpill, 0, n);
+
+        final File file;
+        try {
+            file = IOUtil.newTempFile("readEndsMap.", ".run", tmpDirs);
+        } catch (final IOException ioe) {
+            throw new PicardException("Error creating temporary file for ReadEndsForMarkDuplicatesMap.", ioe);
+        }
+        file.deleteOnExit();
+
+        final Run run = new Run(file);
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            long position = 0;
+            RunBlock block = null;
+            for (int i = 0; i < n; ++i) {
+                final int sequence = (int) (toSpill[i] >> 32);
+                final int slot = (int) toSpill[i];
+                if (block == null || block.sequence != sequence) {
+                    block = new RunBlock(run, sequence, position);
+                    List<RunBlock> blocks = blocksBySequence.get(sequence);
+                    if (blocks == null) {
+                        blocks = new ArrayList<RunBlock>();
+                        blocksBySequence.put(sequence, blocks);
+                    }
+                    blocks.add(block);
+                    ++run.pendingBlocks;
+                }
+
+                final ByteBuffer page = page(slot);
+                final int offset = offset(slot);
+                for (int j = 0; j < HEADER_SIZE; ++j) headerBuffer[j] = page.get(offset + j);
+                final byte[] keyBytes = loadKey(slot);
+                out.write(headerBuffer);
+                out.write(keyBytes);
+                position += HEADER_SIZE + keyBytes.length;
+                ++block.count;
+                freeSlot(slot);
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Error spilling ReadEndsForMarkDuplicatesMap to disk.", ioe);
+        }
+
+        sizeOnDisk += n;
+        final int remaining = sizeInRam - n;
+        int capacity = MIN_TABLE_CAPACITY;
+        while (remaining * 4L > capacity * 3L) capacity *= 2;
+        final long[] oldHashes = tableHashes;
+        final int[] oldSlots = tableSlots;
+        allocateTable(capacity);
+        sizeInRam = 0;
+        for (int i = 0; i < oldSlots.length; ++i) {
+            if (oldSlots[i] == 0) continue;
+            final int slot = oldSlots[i] - 1;
+            if (page(slot).getInt(offset(slot) + SEQUENCE_OFFSET) == currentSequenceIndex) insertIntoTable(oldHashes[i], slot);
+        }
+    }
+
+    /** Reads all blocks for the given sequence back from the runs into RAM. */
+    private void loadSequence(final int sequence) {
+        final List<RunBlock> blocks = blocksBySequence.remove(sequence);
+        if (blocks == null) return;
+
+        for (final RunBlock block : blocks) {
+            try (final FileInputStream fis = new FileInputStream(block.run.file)) {
+                fis.getChannel().position(block.offset);
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+                for (int i = 0; i < block.count; ++i) {
+                    in.readFully(headerBuffer);
+                    final int slot = allocateSlot();
+                    final ByteBuffer page = page(slot);
+                    final int offset = offset(slot);
+                    for (int j = 0; j < HEADER_SIZE; ++j) page.put(offset + j, headerBuffer[j]);
+                    final byte[] keyBytes = new byte[page.getInt(offset + KEY_LENGTH_OFFSET)];
+                    in.readFully(keyBytes);
+                    storeKey(slot, keyBytes);
+                    insertIntoTable(page.getLong(offset + HASH_OFFSET), slot);
+                }
+            } catch (final IOException ioe) {
+                throw new PicardException("Error loading ReadEndsForMarkDuplicatesMap from disk", ioe);
+            }
+
+            sizeOnDisk -= block.count;
+            if (--block.run.pendingBlocks == 0) IOUtil.deleteFiles(block.run.file);
+        }
+    }
+
+    /** A spilled file, deleted when all of its blocks have been read back. */
+    private static class Run {
+        final File file;
+        int pendingBlocks = 0;
+
+        Run(final File file) { this.file = file; }
+    }
+
+    /** The contiguous records for one mate sequence within a run. */
+    private static class RunBlock {
+        final Run run;
+        final int sequence;
+        final long offset;
+        int count = 0;
+
+        RunBlock(final Run run, final int sequence, final long offset) {
+            this.run = run;
+            this.sequence = sequence;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A replacement for SortingCollection&lt;ReadEndsForMarkDuplicates&gt; that packs each read end into a fixed number of
+ * longs in one large long[] rather than holding a Java object per read end.  The leading words of each record encode
+ * the sort key such that comparing them as signed longs gives the same order as MarkDuplicates' comparator: library,
+ * barcodes (if used), read1 reference and coordinate, orientation, read2 reference and coordinate and finally the
+ * indices of the reads in the file.  The remaining words hold the fields only needed for optical duplicate detection.
+ * <p/>
+ * Records are sorted in place with a primitive quicksort over the key words.  When the buffer is full it is sorted and
+ * spilled to disk in the same binary layout, and the runs are k-way merged on iteration.
+ */
+public class PackedReadEndsSortingCollection implements Iterable<ReadEndsForMarkDuplicates> {
+    /** Number of payload (non-key) words at the end of each record. */
+    private static final int PAYLOAD_WORDS = 2;
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final boolean useBarcodes;
+    private final int keyWords;
+    private final int recordWords;
+    private final int maxRecordsInRam;
+    private final File[] tmpDirs;
+
+    private long[] buffer;
+    private int numRecords = 0;
+    private final long[] pivot;
+    private final List<File> runs = new ArrayList<File>();
+    private boolean doneAdding = false;
+    private boolean cleanedUp = false;
+
+    /**
+     * @param useBarcodes     if true the objects added and returned are ReadEndsForMarkDuplicatesWithBarcodes
+     * @param maxRecordsInRam the number of read ends to accumulate before sorting and spilling to disk
+     * @param tmpDirs         directories in which to write the spilled runs
+     */
+    public PackedReadEndsSortingCollection(final boolean useBarcodes, final int maxRecordsInRam, final List<File> tmpDirs) {
+        if (maxRecordsInRam <= 0) throw new IllegalArgumentException("maxRecordsInRam must be > 0");
+        this.useBarcodes = useBarcodes;
+        this.keyWords = keyWords(useBarcodes);
+        this.recordWords = keyWords + PAYLOAD_WORDS;
+        // The buffer is a single array so it cannot have more than Integer.MAX_VALUE elements
+        this.maxRecordsInRam = Math.max(1, Math.min(maxRecordsInRam, (Integer.MAX_VALUE - 8) / recordWords));
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.buffer = new long[Math.min(this.maxRecordsInRam, 1024) * recordWords];
+        this.pivot = new long[recordWords];
+    }
+
+    /** The key is made of int fields packed two to a word, followed by one word for each read's index in the file. */
+    private static int keyWords(final boolean useBarcodes) {
+        final int intKeyFields = useBarcodes ? 9 : 6;
+        return (intKeyFields + 1) / 2 + 2;
+    }
+
+    /** Returns the number of bytes used to hold a read end in RAM. */
+    public static int getSizeOf(final boolean useBarcodes) {
+        return (keyWords(useBarcodes) + PAYLOAD_WORDS) * 8;
+    }
+
+    public void add(final ReadEndsForMarkDuplicates readEnds) {
+        if (doneAdding) throw new IllegalStateException("Cannot add after calling doneAdding()");
+        if (numRecords == maxRecordsInRam) spillToDisk();
+
+        if ((numRecords + 1) * recordWords > buffer.length) {
+            final int newRecords = (int) Math.min((long) maxRecordsInRam, Math.max(1L, (long) numRecords * 2));
+            buffer = Arrays.copyOf(buffer, newRecords * recordWords);
+        }
+        encode(readEnds, buffer, numRecords * recordWords);
+        ++numRecords;
+    }
+
+    /** Sorts the records in RAM.  No more records may be added after this is called. */
+    public void doneAdding() {
+        if (cleanedUp) throw new IllegalStateException("Cannot call doneAdding() after cleanup() was called.");
+        if (doneAdding) return;
+        doneAdding = true;
+        sort(0, numRecords - 1);
+    }
+
+    /** Returns the read ends in sorted order, merging any spilled runs with the records still in RAM. */
+    public CloseableIterator<ReadEndsForMarkDuplicates> iterator() {
+        if (cleanedUp) throw new IllegalStateException("Cannot call iterator() after cleanup() was called.");
+        doneAdding();
+        return new MergingIterator();
+    }
+
+    /** Deletes any spilled runs and releases the in-RAM buffer. */
+    public void cleanup() {
+        cleanedUp = true;
+        buffer = null;
+        IOUtil.deleteFiles(runs);
+        runs.clear();
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Record packing
+    //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Packs two ints into a word that orders lexicographically as a signed long: the high int is stored as is and
+     * the low int is biased so that it orders correctly when treated as unsigned.
+     */
+    private static long pack(final int high, final int low) {
+        return ((long) high << 32) | ((low ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    private static int high(final long word) {
+        return (int) (word >> 32);
+    }
+
+    private static int low(final long word) {
+        return ((int) word) ^ Integer.MIN_VALUE;
+    }
+
+    private void encode(final ReadEndsForMarkDuplicates readEnds, final long[] records, final int offset) {
+        int i = offset;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) readEnds;
+            records[i++] = pack(readEnds.libraryId, withBarcodes.barcode);
+            records[i++] = pack(withBarcodes.readOneBarcode, withBarcodes.readTwoBarcode);
+            records[i++] = pack(readEnds.read1ReferenceIndex, readEnds.read1Coordinate);
+            records[i++] = pack(readEnds.orientation, readEnds.read2ReferenceIndex);
+            records[i++] = pack(readEnds.read2Coordinate, 0);
+        } else {
+            records[i++] = pack(readEnds.libraryId, readEnds.read1ReferenceIndex);
+            records[i++] = pack(readEnds.read1Coordinate, readEnds.orientation);
+            records[i++] = pack(readEnds.read2ReferenceIndex, readEnds.read2Coordinate);
+        }
+        records[i++] = readEnds.read1IndexInFile;
+        records[i++] = readEnds.read2IndexInFile;
+
+        records[i++] = ((readEnds.score & 0xffffL) << 48) | ((readEnds.readGroup & 0xffffL) << 32) |
+                ((readEnds.tile & 0xffffL) << 16) | (readEnds.orientationForOpticalDuplicates & 0xffL);
+        records[i] = pack(readEnds.x, readEnds.y);
+    }
+
+    private ReadEndsForMarkDuplicates decode(final long[] records, final int offset) {
+        final ReadEndsForMarkDuplicates readEnds;
+        int i = offset;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.libraryId = (short) high(records[i]);
+            withBarcodes.barcode = low(records[i++]);
+            withBarcodes.readOneBarcode = high(records[i]);
+            withBarcodes.readTwoBarcode = low(records[i++]);
+            withBarcodes.read1ReferenceIndex = high(records[i]);
+            withBarcodes.read1Coordinate = low(records[i++]);
+            withBarcodes.orientation = (byte) high(records[i]);
+            withBarcodes.read2ReferenceIndex = low(records[i++]);
+            withBarcodes.read2Coordinate = high(records[i++]);
+            readEnds = withBarcodes;
+        } else {
+            readEnds = new ReadEndsForMarkDuplicates();
+            readEnds.libraryId = (short) high(records[i]);
+            readEnds.read1ReferenceIndex = low(records[i++]);
+            readEnds.read1Coordinate = high(records[i]);
+            readEnds.orientation = (byte) low(records[i++]);
+            readEnds.read2ReferenceIndex = high(records[i]);
+            readEnds.read2Coordinate = low(records[i++]);
+        }
+        readEnds.read1IndexInFile = records[i++];
+        readEnds.read2IndexInFile = records[i++];
+
+        final long optical = records[i++];
+        readEnds.score = (short) (optical >>> 48);
+        readEnds.readGroup = (short) (optical >>> 32);
+        readEnds.tile = (short) (optical >>> 16);
+        readEnds.orientationForOpticalDuplicates = (byte) optical;
+        readEnds.x = high(records[i]);
+        readEnds.y = low(records[i]);
+        return readEnds;
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Sorting
+    //////////////////////////////////////////////////////////////////////////
+
+    private int compare(final long[] lhs, final int lhsOffset, final long[] rhs, final int rhsOffset) {
+        for (int k = 0; k < keyWords; ++k) {
+            final int cmp = Long.compare(lhs[lhsOffset + k], rhs[rhsOffset + k]);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    private int compareRecords(final int lhs, final int rhs) {
+        return compare(buffer, lhs * recordWords, buffer, rhs * recordWords);
+    }
+
+    private void swap(final int lhs, final int rhs) {
+        final int lhsOffset = lhs * recordWords;
+        final int rhsOffset = rhs * recordWords;
+        for (int k = 0; k < recordWords; ++k) {
+            final long tmp = buffer[lhsOffset + k];
+            buffer[lhsOffset + k] = buffer[rhsOffset + k];
+            buffer[rhsOffset + k] = tmp;
+        }
+    }
+
+    /** In-place quicksort of the records with indices in [lo, hi], moving whole records. */
+    private void sort(int lo, int hi) {
+        while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+            // Median of three, leaving the median at mid
+            final int mid = (lo + hi) >>> 1;
+            if (compareRecords(mid, lo) < 0) swap(mid, lo);
+            if (compareRecords(hi, lo) < 0) swap(hi, lo);
+            if (compareRecords(hi, mid) < 0) swap(hi, mid);
+            System.arraycopy(buffer, mid * recordWords, pivot, 0, recordWords);
+
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compare(buffer, i * recordWords, pivot, 0) < 0) ++i;
+                while (compare(buffer, j * recordWords, pivot, 0) > 0) --j;
+                if (i <= j) swap(i++, j--);
+            }
+
+            // Recurse into the smaller partition to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; ++i) {
+            for (int j = i; j > lo && compareRecords(j - 1, j) > 0; --j) swap(j - 1, j);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Spilling and merging
+    //////////////////////////////////////////////////////////////////////////
+
+    private void spillToDisk() {
+        sort(0, numRecords - 1);
+        try {
+            final File file = IOUtil.newTempFile("readEnds.", ".packed", tmpDirs);
+            file.deleteOnExit();
+            runs.add(file);
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+                final int n = numRecords * recordWords;
+                for (int i = 0; i < n; ++i) out.writeLong(buffer[i]);
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Exception spilling ReadEnds to disk.", ioe);
+        }
+        numRecords = 0;
+    }
+
+    /** A sorted source of packed records; the current record is held in rec. */
+    private abstract class RecordSource {
+        final long[] rec = new long[recordWords];
+
+        /** Loads the next record into rec, returning false if the source is exhausted. */
+        abstract boolean advance();
+
+        void close() {}
+    }
+
+    private class InMemorySource extends RecordSource {
+        private int next = 0;
+
+        boolean advance() {
+            if (next == numRecords) return false;
+            System.arraycopy(buffer, next++ * recordWords, rec, 0, recordWords);
+            return true;
+        }
+    }
+
+    private class FileSource extends RecordSource {
+        private final DataInputStream in;
+
+        FileSource(final File file) {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            } catch (final IOException ioe) {
+                throw new PicardException("Exception opening spilled ReadEnds file " + file, ioe);
+            }
+        }
+
+        boolean advance() {
+            try {
+                try {
+                    rec[0] = in.readLong();
+                } catch (final EOFException eof) {
+                    return false;
+                }
+                for (int k = 1; k < recordWords; ++k) rec[k] = in.readLong();
+                return true;
+            } catch (final IOException ioe) {
+                throw new PicardException("Exception reading spilled ReadEnds from disk.", ioe);
+            }
+        }
+
+        void close() {
+            CloserUtil.close(in);
+        }
+    }
+
+    /** Merges the sources using a binary min-heap ordered on the current record of each source. */
+    private class MergingIterator implements CloseableIterator<ReadEndsForMarkDuplicates> {
+        private final RecordSource[] heap;
+        private int heapSize = 0;
+
+        MergingIterator() {
+            heap = new RecordSource[runs.size() + 1];
+            for (final File run : runs) push(new FileSource(run));
+            push(new InMemorySource());
+        }
+
+        private void push(final RecordSource source) {
+            if (!source.advance()) {
+                source.close();
+                return;
+            }
+            int i = heapSize++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (compare(heap[parent].rec, 0, source.rec, 0) <= 0) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = source;
+        }
+
+        private void siftDown() {
+            final RecordSource source = heap[0];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) break;
+                if (child + 1 < heapSize && compare(heap[child + 1].rec, 0, heap[child].rec, 0) < 0) ++child;
+                if (compare(source.rec, 0, heap[child].rec, 0) <= 0) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = source;
+        }
+
+        public boolean hasNext() {
+            return heapSize > 0;
+        }
+
+        public ReadEndsForMarkDuplicates next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final RecordSource source = heap[0];
+            final ReadEndsForMarkDuplicates readEnds = decode(source.rec, 0);
+            if (source.advance()) {
+                siftDown();
+            } else {
+                source.close();
+                heap[0] = heap[--heapSize];
+                heap[heapSize] = null;
+                if (heapSize > 0) siftDown();
+            }
+            return readEnds;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            for (int i = 0; i < heapSize; ++i) heap[i].close();
+            heapSize = 0;
+        }
+    }
+}
@@ -21,57 +21,173 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
-
 package picard.sam.markduplicates.util;
 
 import picard.PicardException;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * This stores records that are comparable for detecting optical duplicates.
+ * <p/>
+ * The physical locations (library, read group, tile, x and y, each a short) are packed into a long and a short and held
+ * in an open-addressing hash set, so that adding an end allocates nothing.  Sets are cleared and reused by MarkQueue
+ * once their ends have been used for optical duplicate detection.
  */
 public class PhysicalLocationForMateCigarSet {
+    private static final int INITIAL_CAPACITY = 8;
+    /** Sets that grew larger than this are shrunk when cleared, so that a pooled set does not hold onto a large pile */
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+
     /**
-     * We want to return a set of ReadEnds but want to compare based on physical location, hence we store two sets.
+     * We want to return the ends but want to compare based on physical location, hence we store both.  The ends are in
+     * the order they were added, with null where an end was removed.
      */
-    private final Set<ReadEnds> readEnds = new HashSet<ReadEnds>();
-    private final Set<PhysicalLocationForMateCigar> physicalLocations = new HashSet<PhysicalLocationForMateCigar>();
+    private ReadEndsForMateCigar[] readEnds;
+    private int readEndsLength;
+
+    /** Open-addressing hash set of packed physical locations, with linear probing */
+    private long[] locationKeys;
+    private short[] locationXs;
+    private boolean[] locationUsed;
+    private int locationCount;
+
+    public PhysicalLocationForMateCigarSet() {
+        allocate();
+    }
 
-    public PhysicalLocationForMateCigarSet() {}
+    private void allocate() {
+        readEnds = new ReadEndsForMateCigar[INITIAL_CAPACITY];
+        locationKeys = new long[2 * INITIAL_CAPACITY];
+        locationXs = new short[2 * INITIAL_CAPACITY];
+        locationUsed = new boolean[2 * INITIAL_CAPACITY];
+    }
 
     /** Adds the end to this set, if not already added based on physical location */
     public void add(final ReadEndsForMateCigar end) {
-        final PhysicalLocationForMateCigar location = new PhysicalLocationForMateCigar(end);
-        if (!physicalLocations.contains(location)) {
-            readEnds.add(end);
-            physicalLocations.add(new PhysicalLocationForMateCigar(location));
-        }
+        if (findLocation(end) >= 0) return;
+        addLocation(end);
+        if (readEndsLength == readEnds.length) readEnds = Arrays.copyOf(readEnds, readEnds.length * 2);
+        readEnds[readEndsLength++] = end;
     }
 
     /** The number of records in this set */
-    public int size() { return physicalLocations.size(); }
+    public int size() { return locationCount; }
 
     /** Removes the end from this set, if present */
     public void remove(final ReadEndsForMateCigar end) {
-        final PhysicalLocationForMateCigar location = new PhysicalLocationForMateCigar(end);
-        if (physicalLocations.contains(location)) {
-            readEnds.remove(end);
-            physicalLocations.remove(location);
+        final int slot = findLocation(end);
+        if (slot >= 0) {
+            // The end being removed is most often the first added, since it is the one that identifies the set
+            for (int i = 0; i < readEndsLength; ++i) {
+                if (readEnds[i] == end) {
+                    readEnds[i] = null;
+                    break;
+                }
+            }
+            removeLocation(slot);
         }
     }
 
     /** Gets the set of read ends */
-    public Set<ReadEnds> getReadEnds() { return this.readEnds; }
+    public Set<ReadEnds> getReadEnds() { return new LinkedHashSet<>(getReadEndList()); }
+
+    /** Gets the read ends, in the order they were added */
+    public List<ReadEnds> getReadEndList() {
+        final List<ReadEnds> ends = new ArrayList<>(readEndsLength);
+        for (int i = 0; i < readEndsLength; ++i) {
+            if (readEnds[i] != null) ends.add(readEnds[i]);
+        }
+        return ends;
+    }
 
     /** Replaces a given end with the other end.  This ensures that that current is in this set */
     public void replace(final ReadEndsForMateCigar current, final ReadEndsForMateCigar other) {
-        final PhysicalLocationForMateCigar location = new PhysicalLocationForMateCigar(current);
-        if (!physicalLocations.contains(location)) {
+        if (findLocation(current) < 0) {
             throw new PicardException("Trying to replace something not in the set");
         }
         this.remove(current);
         this.add(other);
     }
+
+    /** Empties this set so that it can be reused */
+    public void clear() {
+        if (readEnds.length > MAX_RETAINED_CAPACITY) {
+            allocate();
+        } else {
+            Arrays.fill(readEnds, 0, readEndsLength, null);
+            Arrays.fill(locationUsed, false);
+        }
+        readEndsLength = 0;
+        locationCount = 0;
+    }
+
+    /** Packs all of the physical location but x, as PhysicalLocationForMateCigar stores them */
+    private static long locationKey(final ReadEnds end) {
+        return ((long) end.getLibraryId() << 48) | ((long) (end.getReadGroup() & 0xFFFF) << 32)
+                | ((long) (end.getTile() & 0xFFFF) << 16) | (((short) end.getY()) & 0xFFFF);
+    }
+
+    private int hashSlot(final long key, final short x) {
+        long h = (key ^ (key >>> 29) ^ x) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (locationUsed.length - 1);
+    }
+
+    /** Returns the slot holding the end's location, or -1 if the location is not in this set */
+    private int findLocation(final ReadEnds end) {
+        final long key = locationKey(end);
+        final short x = (short) end.getX();
+        for (int slot = hashSlot(key, x); locationUsed[slot]; slot = (slot + 1) & (locationUsed.length - 1)) {
+            if (locationKeys[slot] == key && locationXs[slot] == x) return slot;
+        }
+        return -1;
+    }
+
+    private void addLocation(final ReadEnds end) {
+        if (2 * (locationCount + 1) > locationUsed.length) resize();
+        insert(locationKey(end), (short) end.getX());
+        ++locationCount;
+    }
+
+    private void insert(final long key, final short x) {
+        int slot = hashSlot(key, x);
+        while (locationUsed[slot]) slot = (slot + 1) & (locationUsed.length - 1);
+        locationKeys[slot] = key;
+        locationXs[slot] = x;
+        locationUsed[slot] = true;
+    }
+
+    /** Removes the location in the slot, moving back any later locations in its probe sequence */
+    private void removeLocation(int slot) {
+        final int mask = locationUsed.length - 1;
+        locationUsed[slot] = false;
+        --locationCount;
+        for (int next = (slot + 1) & mask; locationUsed[next]; next = (next + 1) & mask) {
+            final int home = hashSlot(locationKeys[next], locationXs[next]);
+            // move the location back if its home is not cyclically within (slot, next]
+            if (slot <= next ? (home <= slot || home > next) : (home <= slot && home > next)) {
+                locationKeys[slot] = locationKeys[next];
+                locationXs[slot] = locationXs[next];
+                locationUsed[slot] = true;
+                locationUsed[next] = false;
+                slot = next;
+            }
+        }
+    }
+
+    private void resize() {
+        final long[] keys = locationKeys;
+        final short[] xs = locationXs;
+        final boolean[] used = locationUsed;
+        locationKeys = new long[keys.length * 2];
+        locationXs = new short[keys.length * 2];
+        locationUsed = new boolean[keys.length * 2];
+        for (int i = 0; i < keys.length; ++i) {
+            if (used[i]) insert(keys[i], xs[i]);
+        }
+    }
 }
@@ -0,0 +1,615 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.util;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+import picard.util.ParallelBlockCompressedOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A replacement for SortingCollection&lt;SAMRecord&gt; with SAMRecordCoordinateComparator that holds records as their
+ * serialized BAM bytes in one large byte[] rather than as SAMRecord objects, and that is bounded by a number of bytes
+ * as well as by a number of records.  Alongside the bytes a long sort key is extracted for each record from the
+ * reference index, alignment start and strand, so that most comparisons never look at the record bytes.  Ties are
+ * broken on the remaining fields of SAMRecordCoordinateComparator read directly from the bytes and finally on the
+ * order in which records were added, so the output is exactly that of a stable sort with SAMRecordCoordinateComparator.
+ * <p/>
+ * When the buffer is full it is sorted and spilled to a BGZF-compressed run, deflated on numThreads threads.  When
+ * more than one thread is available the runs are also read back in batches on a pool of numThreads threads, so that
+ * inflating the next batch of each run overlaps with the merge.
+ */
+public class PackedSAMRecordSortingCollection implements Iterable<SAMRecord> {
+    /** Bytes held per record in addition to its serialized form: its sort key and its offset in the buffer. */
+    public static final int BYTES_PER_RECORD_OVERHEAD = 8 + 4;
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int SPILL_COMPRESSION_LEVEL = 1;
+    private static final int RUN_BATCH_RECORDS = 1000;
+
+    // Offsets of fixed-length fields within a serialized BAM record, including the leading block_size
+    private static final int REFERENCE_INDEX_OFFSET = 4;
+    private static final int POSITION_OFFSET = 8;
+    private static final int READ_NAME_LENGTH_OFFSET = 12;
+    private static final int MAPPING_QUALITY_OFFSET = 13;
+    private static final int FLAGS_OFFSET = 18;
+    private static final int MATE_REFERENCE_INDEX_OFFSET = 24;
+    private static final int MATE_POSITION_OFFSET = 28;
+    private static final int INSERT_SIZE_OFFSET = 32;
+    private static final int READ_NAME_OFFSET = 36;
+
+    private final SAMFileHeader header;
+    private final int maxRecordsInRam;
+    private final int maxBytesInRam;
+    private final int numThreads;
+    private final File[] tmpDirs;
+    private final BAMRecordCodec encoder;
+    private final RecordBuffer buffer = new RecordBuffer();
+
+    private long[] keys = new long[1024];
+    private int[] offsets = new int[1024];
+    private int numRecords = 0;
+    private final List<File> runs = new ArrayList<File>();
+    private int numSpilledRuns = 0;
+    private boolean doneAdding = false;
+    private boolean cleanedUp = false;
+
+    /**
+     * Records are spilled to disk when either limit is reached.
+     *
+     * @param header          the header of the records to be sorted
+     * @param maxRecordsInRam the number of records to accumulate before spilling to disk
+     * @param maxBytesInRam   the number of bytes of records and bookkeeping to accumulate before spilling to disk
+     * @param numThreads      the number of threads used to compress spilled runs and to read them back
+     * @param tmpDirs         directories in which to write the spilled runs
+     */
+    public PackedSAMRecordSortingCollection(final SAMFileHeader header, final int maxRecordsInRam, final long maxBytesInRam,
+                                            final int numThreads, final List<File> tmpDirs) {
+        if (maxRecordsInRam <= 0) throw new IllegalArgumentException("maxRecordsInRam must be > 0");
+        if (maxBytesInRam <= 0) throw new IllegalArgumentException("maxBytesInRam must be > 0");
+        if (numThreads < 1) throw new IllegalArgumentException("numThreads must be >= 1");
+        this.header = header;
+        this.maxRecordsInRam = maxRecordsInRam;
+        // The records are held in a single array so cannot take more than Integer.MAX_VALUE bytes
+        this.maxBytesInRam = (int) Math.min(maxBytesInRam, Integer.MAX_VALUE - 8);
+        this.numThreads = numThreads;
+        this.tmpDirs = tmpDirs.toArray(new File[tmpDirs.size()]);
+        this.encoder = new BAMRecordCodec(header);
+        this.encoder.setOutputStream(buffer);
+    }
+
+    /**
+     * Returns a budget of maxMemoryRatio of the JVM's maximum heap, in the form expected by the constructor.
+     */
+    public static long getMaxBytesInRam(final double maxMemoryRatio) {
+        return (long) (Runtime.getRuntime().maxMemory() * maxMemoryRatio);
+    }
+
+    public void add(final SAMRecord rec) {
+        if (doneAdding) throw new IllegalStateException("Cannot add after calling doneAdding()");
+
+        if (numRecords == keys.length) {
+            keys = Arrays.copyOf(keys, numRecords * 2);
+            offsets = Arrays.copyOf(offsets, numRecords * 2);
+        }
+        final int offset = buffer.size;
+        encoder.encode(rec);
+        keys[numRecords] = key(buffer.data, offset);
+        offsets[numRecords] = offset;
+        ++numRecords;
+
+        if (numRecords >= maxRecordsInRam ||
+                (long) buffer.size + (long) numRecords * BYTES_PER_RECORD_OVERHEAD >= maxBytesInRam) {
+            spillToDisk();
+        }
+    }
+
+    /** Sorts the records in RAM.  No more records may be added after this is called. */
+    public void doneAdding() {
+        if (cleanedUp) throw new IllegalStateException("Cannot call doneAdding() after cleanup() was called.");
+        if (doneAdding) return;
+        doneAdding = true;
+        sort(0, numRecords - 1);
+    }
+
+    /** Returns the records in coordinate order, merging any spilled runs with the records still in RAM. */
+    public CloseableIterator<SAMRecord> iterator() {
+        if (cleanedUp) throw new IllegalStateException("Cannot call iterator() after cleanup() was called.");
+        doneAdding();
+        return new MergingIterator();
+    }
+
+    /** Returns the number of times the records in RAM have been spilled to disk. */
+    public int getNumSpilledRuns() {
+        return numSpilledRuns;
+    }
+
+    /** Deletes any spilled runs and releases the in-RAM buffer. */
+    public void cleanup() {
+        cleanedUp = true;
+        buffer.data = null;
+        keys = null;
+        offsets = null;
+        IOUtil.deleteFiles(runs);
+        runs.clear();
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Comparison of serialized records
+    //////////////////////////////////////////////////////////////////////////
+
+    private static int readInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | bytes[offset + 3] << 24;
+    }
+
+    private static int readUShort(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    /**
+     * Packs the reference index, alignment start and strand into a word that orders as SAMRecordCoordinateComparator
+     * does on those fields.  Unmapped records with no reference go last and their alignment start is ignored.
+     */
+    private static long key(final byte[] bytes, final int offset) {
+        final int referenceIndex = readInt(bytes, offset + REFERENCE_INDEX_OFFSET);
+        final long strand = (readUShort(bytes, offset + FLAGS_OFFSET) & 0x10) == 0 ? 0 : 1;
+        if (referenceIndex == -1) return ((long) Integer.MAX_VALUE << 32) | strand;
+        // The serialized position is zero-based, so the one-based alignment start is never negative
+        final long alignmentStart = readInt(bytes, offset + POSITION_OFFSET) + 1L;
+        return ((long) referenceIndex << 32) | (alignmentStart << 1) | strand;
+    }
+
+    /** Compares the fields SAMRecordCoordinateComparator uses after the reference, alignment start and strand. */
+    private static int compareTies(final byte[] lhs, final int lhsOffset, final byte[] rhs, final int rhsOffset) {
+        // Read names are ASCII so comparing unsigned bytes agrees with String.compareTo; the lengths include the NUL
+        final int lhsNameLength = (lhs[lhsOffset + READ_NAME_LENGTH_OFFSET] & 0xff) - 1;
+        final int rhsNameLength = (rhs[rhsOffset + READ_NAME_LENGTH_OFFSET] & 0xff) - 1;
+        final int n = Math.min(lhsNameLength, rhsNameLength);
+        for (int i = 0; i < n; ++i) {
+            final int cmp = (lhs[lhsOffset + READ_NAME_OFFSET + i] & 0xff) - (rhs[rhsOffset + READ_NAME_OFFSET + i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        int cmp = Integer.compare(lhsNameLength, rhsNameLength);
+        if (cmp == 0) cmp = Integer.compare(readUShort(lhs, lhsOffset + FLAGS_OFFSET), readUShort(rhs, rhsOffset + FLAGS_OFFSET));
+        if (cmp == 0) cmp = Integer.compare(lhs[lhsOffset + MAPPING_QUALITY_OFFSET] & 0xff, rhs[rhsOffset + MAPPING_QUALITY_OFFSET] & 0xff);
+        if (cmp == 0) cmp = Integer.compare(readInt(lhs, lhsOffset + MATE_REFERENCE_INDEX_OFFSET), readInt(rhs, rhsOffset + MATE_REFERENCE_INDEX_OFFSET));
+        if (cmp == 0) cmp = Integer.compare(readInt(lhs, lhsOffset + MATE_POSITION_OFFSET), readInt(rhs, rhsOffset + MATE_POSITION_OFFSET));
+        if (cmp == 0) cmp = Integer.compare(readInt(lhs, lhsOffset + INSERT_SIZE_OFFSET), readInt(rhs, rhsOffset + INSERT_SIZE_OFFSET));
+        return cmp;
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Sorting
+    //////////////////////////////////////////////////////////////////////////
+
+    /** Compares two buffered records; records are appended to the buffer so the offset gives the order they were added. */
+    private int compare(final long lhsKey, final int lhsOffset, final long rhsKey, final int rhsOffset) {
+        int cmp = Long.compare(lhsKey, rhsKey);
+        if (cmp == 0) cmp = compareTies(buffer.data, lhsOffset, buffer.data, rhsOffset);
+        if (cmp == 0) cmp = Integer.compare(lhsOffset, rhsOffset);
+        return cmp;
+    }
+
+    private int compareRecords(final int lhs, final int rhs) {
+        return compare(keys[lhs], offsets[lhs], keys[rhs], offsets[rhs]);
+    }
+
+    private void swap(final int lhs, final int rhs) {
+        final long key = keys[lhs];
+        keys[lhs] = keys[rhs];
+        keys[rhs] = key;
+        final int offset = offsets[lhs];
+        offsets[lhs] = offsets[rhs];
+        offsets[rhs] = offset;
+    }
+
+    /** In-place quicksort of the keys and offsets with indices in [lo, hi]; the record bytes are not moved. */
+    private void sort(int lo, int hi) {
+        while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+            // Median of three, leaving the median at mid
+            final int mid = (lo + hi) >>> 1;
+            if (compareRecords(mid, lo) < 0) swap(mid, lo);
+            if (compareRecords(hi, lo) < 0) swap(hi, lo);
+            if (compareRecords(hi, mid) < 0) swap(hi, mid);
+            final long pivotKey = keys[mid];
+            final int pivotOffset = offsets[mid];
+
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (compare(keys[i], offsets[i], pivotKey, pivotOffset) < 0) ++i;
+                while (compare(keys[j], offsets[j], pivotKey, pivotOffset) > 0) --j;
+                if (i <= j) swap(i++, j--);
+            }
+
+            // Recurse into the smaller partition to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; ++i) {
+            for (int j = i; j > lo && compareRecords(j - 1, j) > 0; --j) swap(j - 1, j);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Spilling and merging
+    //////////////////////////////////////////////////////////////////////////
+
+    private void spillToDisk() {
+        sort(0, numRecords - 1);
+        try {
+            final File file = IOUtil.newTempFile("sortingcollection.", ".bgzf", tmpDirs);
+            file.deleteOnExit();
+            runs.add(file);
+            ++numSpilledRuns;
+            try (final OutputStream out = new ParallelBlockCompressedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), 1 << 16), SPILL_COMPRESSION_LEVEL, numThreads)) {
+                for (int i = 0; i < numRecords; ++i) {
+                    final int offset = offsets[i];
+                    out.write(buffer.data, offset, readInt(buffer.data, offset) + 4);
+                }
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Exception spilling SAMRecords to disk.", ioe);
+        }
+        numRecords = 0;
+        buffer.size = 0;
+    }
+
+    /** The records in the buffer, as a growable OutputStream that BAMRecordCodec encodes into. */
+    private class RecordBuffer extends OutputStream {
+        byte[] data = new byte[1 << 16];
+        int size = 0;
+
+        @Override
+        public void write(final int b) {
+            ensureCapacity(size + 1);
+            data[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) {
+            ensureCapacity(size + length);
+            System.arraycopy(bytes, offset, data, size, length);
+            size += length;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (capacity > data.length) {
+                if (capacity < 0) throw new PicardException("Too many bytes of SAMRecords held in RAM.");
+                data = Arrays.copyOf(data, (int) Math.min(Math.max(capacity, data.length * 2L), Integer.MAX_VALUE - 8));
+            }
+        }
+    }
+
+    /** An InputStream over one serialized record, so that the same BAMRecordCodec can decode from any source. */
+    private static class RecordInputStream extends InputStream {
+        private byte[] bytes;
+        private int position;
+        private int end;
+
+        void set(final byte[] bytes, final int offset) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.end = offset + readInt(bytes, offset) + 4;
+        }
+
+        @Override
+        public int read() {
+            return position < end ? bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (position >= end) return -1;
+            final int n = Math.min(len, end - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+    /** Reads serialized records back from a spilled run, one byte[] per record. */
+    private static class RunIterator implements CloseableIterator<byte[]> {
+        private final File file;
+        private final BlockCompressedInputStream in;
+        private final byte[] blockSize = new byte[4];
+        private byte[] next;
+
+        RunIterator(final File file) {
+            this.file = file;
+            try {
+                this.in = new BlockCompressedInputStream(file);
+            } catch (final IOException ioe) {
+                throw new PicardException("Exception opening spilled SAMRecords file " + file, ioe);
+            }
+            advance();
+        }
+
+        private void advance() {
+            try {
+                if (!readFully(blockSize, 0, true)) {
+                    next = null;
+                    return;
+                }
+                next = new byte[readInt(blockSize, 0) + 4];
+                System.arraycopy(blockSize, 0, next, 0, 4);
+                readFully(next, 4, false);
+            } catch (final IOException ioe) {
+                throw new PicardException("Exception reading spilled SAMRecords from " + file, ioe);
+            }
+        }
+
+        /** Fills bytes from offset onwards, returning false if the stream is exhausted before the first byte. */
+        private boolean readFully(final byte[] bytes, final int offset, final boolean eofAllowed) throws IOException {
+            int read = offset;
+            while (read < bytes.length) {
+                final int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    if (eofAllowed && read == offset) return false;
+                    throw new EOFException("Truncated record in " + file);
+                }
+                read += n;
+            }
+            return true;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public byte[] next() {
+            if (next == null) throw new NoSuchElementException();
+            final byte[] ret = next;
+            advance();
+            return ret;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            CloserUtil.close(in);
+        }
+    }
+
+    /** A sorted source of serialized records; the current record starts at offset within bytes. */
+    private abstract static class RecordSource {
+        final int rank;
+        byte[] bytes;
+        int offset;
+        long key;
+
+        RecordSource(final int rank) {
+            this.rank = rank;
+        }
+
+        /** Moves to the next record, returning false if the source is exhausted. */
+        abstract boolean advance();
+
+        void close() {}
+    }
+
+    private class InMemorySource extends RecordSource {
+        private int next = 0;
+
+        InMemorySource(final int rank) {
+            super(rank);
+            bytes = buffer.data;
+        }
+
+        boolean advance() {
+            if (next == numRecords) return false;
+            key = keys[next];
+            offset = offsets[next++];
+            return true;
+        }
+    }
+
+    private static class FileSource extends RecordSource {
+        private final RunIterator run;
+        private final ExecutorService readAheadPool;
+        private final Callable<List<byte[]>> readBatch = new Callable<List<byte[]>>() {
+            public List<byte[]> call() {
+                final List<byte[]> batch = new ArrayList<byte[]>(RUN_BATCH_RECORDS);
+                while (batch.size() < RUN_BATCH_RECORDS && run.hasNext()) batch.add(run.next());
+                return batch;
+            }
+        };
+        private List<byte[]> batch = Collections.emptyList();
+        private int next = 0;
+        private Future<List<byte[]>> nextBatch = null;
+
+        /** If readAheadPool is non-null the next batch of records is read on it while the current batch is merged. */
+        FileSource(final int rank, final RunIterator run, final ExecutorService readAheadPool) {
+            super(rank);
+            this.run = run;
+            this.readAheadPool = readAheadPool;
+            if (readAheadPool != null) nextBatch = readAheadPool.submit(readBatch);
+        }
+
+        boolean advance() {
+            if (next == batch.size()) {
+                try {
+                    batch = nextBatch == null ? readBatch.call() : nextBatch.get();
+                } catch (final ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                    throw new PicardException("Exception reading spilled SAMRecords.", ee.getCause());
+                } catch (final Exception e) {
+                    throw new PicardException("Exception reading spilled SAMRecords.", e);
+                }
+                next = 0;
+                if (batch.isEmpty()) {
+                    nextBatch = null;
+                    return false;
+                }
+                if (readAheadPool != null) nextBatch = readAheadPool.submit(readBatch);
+            }
+            bytes = batch.get(next++);
+            offset = 0;
+            key = key(bytes, 0);
+            return true;
+        }
+
+        void close() {
+            if (nextBatch != null) {
+                // Wait for any read in progress before closing the stream underneath it
+                try {
+                    nextBatch.get();
+                } catch (final Exception e) {
+                    // The source is being discarded, so there is nothing useful to do with the failure
+                }
+                nextBatch = null;
+            }
+            run.close();
+        }
+    }
+
+    /**
+     * Merges the sources using a binary min-heap ordered on the current record of each source.  Runs were spilled in
+     * the order records were added, so ties between sources are broken on the rank of the source.
+     */
+    private class MergingIterator implements CloseableIterator<SAMRecord> {
+        private final RecordSource[] heap;
+        private int heapSize = 0;
+        private final BAMRecordCodec decoder = new BAMRecordCodec(header);
+        private final RecordInputStream recordInputStream = new RecordInputStream();
+        private final ExecutorService readAheadPool;
+
+        MergingIterator() {
+            decoder.setInputStream(recordInputStream);
+            if (numThreads > 1 && !runs.isEmpty()) {
+                readAheadPool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "SortingCollectionRunReader");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            } else {
+                readAheadPool = null;
+            }
+            heap = new RecordSource[runs.size() + 1];
+            for (int i = 0; i < runs.size(); ++i) push(new FileSource(i, new RunIterator(runs.get(i)), readAheadPool));
+            push(new InMemorySource(runs.size()));
+        }
+
+        private int compare(final RecordSource lhs, final RecordSource rhs) {
+            int cmp = Long.compare(lhs.key, rhs.key);
+            if (cmp == 0) cmp = compareTies(lhs.bytes, lhs.offset, rhs.bytes, rhs.offset);
+            if (cmp == 0) cmp = Integer.compare(lhs.rank, rhs.rank);
+            return cmp;
+        }
+
+        private void push(final RecordSource source) {
+            if (!source.advance()) {
+                source.close();
+                return;
+            }
+            int i = heapSize++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (compare(heap[parent], source) <= 0) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = source;
+        }
+
+        private void siftDown() {
+            final RecordSource source = heap[0];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) break;
+                if (child + 1 < heapSize && compare(heap[child + 1], heap[child]) < 0) ++child;
+                if (compare(source, heap[child]) <= 0) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = source;
+        }
+
+        public boolean hasNext() {
+            return heapSize > 0;
+        }
+
+        public SAMRecord next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final RecordSource source = heap[0];
+            recordInputStream.set(source.bytes, source.offset);
+            final SAMRecord rec = decoder.decode();
+            if (source.advance()) {
+                siftDown();
+            } else {
+                source.close();
+                heap[0] = heap[--heapSize];
+                heap[heapSize] = null;
+                if (heapSize > 0) siftDown();
+            }
+            return rec;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            for (int i = 0; i < heapSize; ++i) heap[i].close();
+            heapSize = 0;
+            if (readAheadPool != null) readAheadPool.shutdown();
+        }
+    }
+}
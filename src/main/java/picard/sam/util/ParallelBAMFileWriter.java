@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.util;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMFileWriterImpl;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Md5CalculatingOutputStream;
+import htsjdk.samtools.util.RuntimeIOException;
+import picard.util.ParallelBlockCompressedOutputStream;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BAM writer that encodes records on the calling thread but compresses them through a
+ * ParallelBlockCompressedOutputStream, so deflate runs on a pool of threads and blocks are written in order by a
+ * dedicated writer thread.  The bytes written are identical to those written by htsjdk's BAMFileWriter.
+ * <p/>
+ * When an index is requested, each record's span is remembered in terms of block ordinals and the record is passed
+ * to the BAMIndexer from the writer thread as soon as the blocks it spans have been written and their addresses are
+ * known.
+ */
+public class ParallelBAMFileWriter extends SAMFileWriterImpl {
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+    private final File file;
+    private final ParallelBlockCompressedOutputStream blockCompressedOutputStream;
+    private final BinaryCodec outputBinaryCodec;
+    private BAMRecordCodec bamRecordCodec = null;
+
+    // Index construction; the indexer and block addresses are only touched on the writer thread until close()
+    private BAMIndexer bamIndexer = null;
+    private final ConcurrentLinkedQueue<PendingRecord> pendingRecords = new ConcurrentLinkedQueue<PendingRecord>();
+    private long[] blockAddresses = new long[64];
+    private long firstRetainedBlock = 0;
+    private long lastWrittenBlock = -1;
+    /**
+     * The block in which the record being encoded starts, or Long.MAX_VALUE between records.  Its blocks may be written
+     * before it reaches pendingRecords, so the writer thread must keep that block's address until then.
+     */
+    private final AtomicLong encodingStartBlock = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * @param header           the header to write; its sort order is the sort order of the output
+     * @param presorted        if true, the records added are asserted to be in the header's sort order
+     * @param file             the BAM file to write
+     * @param compressionLevel the deflate level, 0-9
+     * @param numThreads       the number of deflater threads
+     * @param createIndex      if true and the output is coordinate sorted, write a .bai alongside the BAM
+     * @param createMd5File    if true write a .md5 alongside the BAM
+     */
+    public ParallelBAMFileWriter(final SAMFileHeader header, final boolean presorted, final File file, final int compressionLevel,
+                                 final int numThreads, final boolean createIndex, final boolean createMd5File) {
+        this.file = file;
+        try {
+            OutputStream os = IOUtil.maybeBufferOutputStream(new FileOutputStream(file, false));
+            if (createMd5File && IOUtil.isRegularPath(file)) os = new Md5CalculatingOutputStream(os, new File(file.getAbsolutePath() + ".md5"));
+            this.blockCompressedOutputStream = new ParallelBlockCompressedOutputStream(os, compressionLevel, numThreads);
+        } catch (final IOException ioe) {
+            throw new RuntimeIOException("Error opening file: " + file.getAbsolutePath(), ioe);
+        }
+        this.outputBinaryCodec = new BinaryCodec(new DataOutputStream(blockCompressedOutputStream));
+        this.outputBinaryCodec.setOutputFileName(file.getAbsolutePath());
+
+        setSortOrder(header.getSortOrder(), presorted);
+        setHeader(header);
+
+        if (createIndex && IOUtil.isRegularPath(file) && getSortOrder() == SAMFileHeader.SortOrder.coordinate) {
+            final String path = file.getAbsolutePath();
+            final File indexFile = new File((path.endsWith(".bam") ? path.substring(0, path.lastIndexOf('.')) : path) + ".bai");
+            if (indexFile.exists() && !indexFile.canWrite()) {
+                throw new SAMException("Not creating BAM index since unable to write index file " + indexFile);
+            }
+            this.bamIndexer = new BAMIndexer(indexFile, getFileHeader());
+            this.blockCompressedOutputStream.setBlockListener(new ParallelBlockCompressedOutputStream.BlockListener() {
+                public void blockWritten(final long blockNumber, final long blockAddress, final int compressedSize) {
+                    recordBlockAddress(blockNumber, blockAddress);
+                    recordBlockAddress(blockNumber + 1, blockAddress + compressedSize);
+                    lastWrittenBlock = blockNumber;
+                    indexWrittenRecords();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void writeHeader(final String textHeader) {
+        outputBinaryCodec.writeBytes(BAM_MAGIC);
+        outputBinaryCodec.writeString(textHeader, true, false);
+        outputBinaryCodec.writeInt(getFileHeader().getSequenceDictionary().size());
+        for (final SAMSequenceRecord sequenceRecord : getFileHeader().getSequenceDictionary().getSequences()) {
+            outputBinaryCodec.writeString(sequenceRecord.getSequenceName(), true, true);
+            outputBinaryCodec.writeInt(sequenceRecord.getSequenceLength());
+        }
+    }
+
+    @Override
+    protected void writeAlignment(final SAMRecord alignment) {
+        if (bamRecordCodec == null) {
+            bamRecordCodec = new BAMRecordCodec(getFileHeader());
+            bamRecordCodec.setOutputStream(outputBinaryCodec.getOutputStream(), getFilename());
+        }
+
+        if (bamIndexer != null) {
+            final long start = blockCompressedOutputStream.getPosition();
+            encodingStartBlock.set(ParallelBlockCompressedOutputStream.getBlockNumber(start));
+            bamRecordCodec.encode(alignment);
+            pendingRecords.add(new PendingRecord(new IndexedRecord(getFileHeader(), alignment), start, blockCompressedOutputStream.getPosition()));
+            encodingStartBlock.set(Long.MAX_VALUE);
+        } else {
+            bamRecordCodec.encode(alignment);
+        }
+    }
+
+    @Override
+    protected void finish() {
+        // Closing the stream joins the writer thread, after which the index state may be touched from this thread
+        outputBinaryCodec.close();
+        if (bamIndexer != null) {
+            try {
+                indexWrittenRecords();
+                if (!pendingRecords.isEmpty()) throw new IllegalStateException("Records remain unindexed after all blocks were written.");
+                bamIndexer.finish();
+            } catch (final Exception e) {
+                throw new SAMException("Exception writing BAM index file", e);
+            }
+        }
+    }
+
+    @Override
+    protected String getFilename() {
+        return file.getAbsolutePath();
+    }
+
+    private void recordBlockAddress(final long blockNumber, final long blockAddress) {
+        final long i = blockNumber - firstRetainedBlock;
+        if (i >= blockAddresses.length) blockAddresses = Arrays.copyOf(blockAddresses, (int) Math.max(i + 1, blockAddresses.length * 2L));
+        blockAddresses[(int) i] = blockAddress;
+    }
+
+    /** Passes to the indexer every pending record whose blocks have all been written. */
+    private void indexWrittenRecords() {
+        // Read before the queue: a record that is no longer being encoded by now has already been queued
+        final long encodingBlock = encodingStartBlock.get();
+        PendingRecord pending;
+        while ((pending = pendingRecords.peek()) != null) {
+            final long endBlock = ParallelBlockCompressedOutputStream.getBlockNumber(pending.end);
+            final int endOffset = ParallelBlockCompressedOutputStream.getBlockOffset(pending.end);
+            // A record that ends exactly at a block boundary ends at offset 0 of the next block, whose address is known
+            if (endBlock > lastWrittenBlock && !(endBlock == lastWrittenBlock + 1 && endOffset == 0)) break;
+
+            pendingRecords.poll();
+            final long startOffset = toVirtualFilePointer(pending.start);
+            final long stopOffset = toVirtualFilePointer(pending.end);
+            pending.record.setFileSpan(startOffset, stopOffset);
+            bamIndexer.processAlignment(pending.record);
+        }
+
+        // Discard the addresses of blocks that no pending record, nor the record being encoded, can start in
+        long firstNeeded = Math.min(encodingBlock, lastWrittenBlock + 1);
+        if (pending != null) firstNeeded = Math.min(firstNeeded, ParallelBlockCompressedOutputStream.getBlockNumber(pending.start));
+        final int discard = (int) (firstNeeded - firstRetainedBlock);
+        if (discard > 0) {
+            System.arraycopy(blockAddresses, discard, blockAddresses, 0, blockAddresses.length - discard);
+            firstRetainedBlock = firstNeeded;
+        }
+    }
+
+    private long toVirtualFilePointer(final long position) {
+        final long blockAddress = blockAddresses[(int) (ParallelBlockCompressedOutputStream.getBlockNumber(position) - firstRetainedBlock)];
+        return (blockAddress << 16) | ParallelBlockCompressedOutputStream.getBlockOffset(position);
+    }
+
+    /** A record that has been encoded but whose blocks may not yet have been written. */
+    private static class PendingRecord {
+        final IndexedRecord record;
+        final long start;
+        final long end;
+
+        PendingRecord(final IndexedRecord record, final long start, final long end) {
+            this.record = record;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * A snapshot of just the fields of a record that BAMIndexer looks at, so that the caller is free to modify or
+     * discard the original once it has been added, and so that the file source can be set once it is known.
+     */
+    private static class IndexedRecord extends SAMRecord {
+        private static final long serialVersionUID = 1L;
+
+        private final int alignmentEnd;
+
+        IndexedRecord(final SAMFileHeader header, final SAMRecord rec) {
+            super(header);
+            setFlags(rec.getFlags());
+            setReferenceIndex(rec.getReferenceIndex());
+            setAlignmentStart(rec.getAlignmentStart());
+            setReadName(rec.getReadName());
+            this.alignmentEnd = rec.getAlignmentEnd();
+        }
+
+        @Override
+        public int getAlignmentEnd() {
+            return alignmentEnd;
+        }
+
+        void setFileSpan(final long startOffset, final long stopOffset) {
+            setFileSource(new SAMFileSource(null, new BAMFileSpan(new Chunk(startOffset, stopOffset))));
+        }
+    }
+}
@@ -24,15 +24,14 @@
 package picard.util;
 
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.SequenceUtil;
 import htsjdk.samtools.util.StringUtil;
 
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Store one or more AdapterPairs to use to mark adapter sequence of SAMRecords.  This is a very compute-intensive process, so
@@ -61,10 +60,12 @@ public class AdapterMarker {
     // thread and the array is being replaced.
     private final AtomicReference<AdapterPair[]> adapters = new AtomicReference<AdapterPair[]>();
 
-    // All the members below are only accessed within a synchronized block.
-    private boolean thresholdReached = false;
-    private int numAdaptersSeen = 0;
-    private final CollectionUtil.DefaultingMap<AdapterPair, Integer> seenCounts = new CollectionUtil.DefaultingMap<AdapterPair, Integer>(0);
+    // The adapters as truncated and collapsed by the ctor, and the number of times each has been found.  The counts
+    // are striped so that threads marking adapters at once do not contend for them.
+    private final AdapterPair[] truncatedAdapters;
+    private final LongAdder[] seenCounts;
+    private final LongAdder numAdaptersSeen = new LongAdder();
+    private final AtomicBoolean thresholdReached = new AtomicBoolean(false);
 
     /**
      * Truncates adapters to DEFAULT_ADAPTER_LENGTH
@@ -91,7 +92,10 @@ public class AdapterMarker {
                 matchingAdapter.setName(matchingAdapter.getName() + "|" + adapter.getName());
             }
         }
-        adapters.set(truncatedAdapters.toArray(new AdapterPair[truncatedAdapters.size()]));
+        this.truncatedAdapters = truncatedAdapters.toArray(new AdapterPair[truncatedAdapters.size()]);
+        this.seenCounts = new LongAdder[this.truncatedAdapters.length];
+        for (int i = 0; i < seenCounts.length; ++i) seenCounts[i] = new LongAdder();
+        adapters.set(this.truncatedAdapters.clone());
     }
 
     public int getNumAdaptersToKeep() {
@@ -225,56 +229,53 @@ public class AdapterMarker {
     }
 
     /**
-     * Keep track of every time an adapter is found, until it is time to prune the list of adapters.
+     * Keep track of every time an adapter is found, until it is time to prune the list of adapters.  Threads tally
+     * without blocking one another; the thread that finds the total has reached the threshold is the only one to prune.
      */
     private void tallyFoundAdapter(final AdapterPair foundAdapter) {
         // If caller does not want adapter pruning, do nothing.
         if (thresholdForSelectingAdaptersToKeep < 1) return;
-        synchronized (this) {
-            // Already pruned adapter list, so nothing more to do.
-            if (thresholdReached) return;
-
-            // Tally this adapter
-            seenCounts.put(foundAdapter, seenCounts.get(foundAdapter) + 1);
-
-            // Keep track of the number of times an adapter has been seen.
-            numAdaptersSeen += 1;
-
-            // Reached the threshold for pruning the list.
-            if (numAdaptersSeen >= thresholdForSelectingAdaptersToKeep) {
-
-                // Sort adapters by number of times each has been seen.
-                final TreeMap<Integer, AdapterPair> sortedAdapters = new TreeMap<Integer, AdapterPair>(new Comparator<Integer>() {
-                    @Override
-                    public int compare(final Integer integer, final Integer integer2) {
-                        // Reverse of natural ordering
-                        return integer2.compareTo(integer);
-                    }
-                });
-                for (final Map.Entry<AdapterPair, Integer> entry : seenCounts.entrySet()) {
-                    sortedAdapters.put(entry.getValue(), entry.getKey());
-                }
-
-                // Keep the #numAdaptersToKeep adapters that have been seen the most, plus any ties.
-                final ArrayList<AdapterPair> bestAdapters = new ArrayList<AdapterPair>(numAdaptersToKeep);
-                int countOfLastAdapter = Integer.MAX_VALUE;
-                for (final Map.Entry<Integer, AdapterPair> entry : sortedAdapters.entrySet()) {
-                    if (bestAdapters.size() >= numAdaptersToKeep) {
-                        if (entry.getKey() == countOfLastAdapter) {
-                            bestAdapters.add(entry.getValue());
-                        } else {
-                            break;
-                        }
-                    } else {
-                        countOfLastAdapter = entry.getKey();
-                        bestAdapters.add(entry.getValue());
-                    }
-                }
-                // Replace the existing list with the pruned list.
-                thresholdReached = true;
-                adapters.set(bestAdapters.toArray(new AdapterPair[bestAdapters.size()]));
-            }
+        // Already pruned adapter list, so nothing more to do.
+        if (thresholdReached.get()) return;
+
+        // Tally this adapter
+        int index = 0;
+        while (index < truncatedAdapters.length && truncatedAdapters[index] != foundAdapter) ++index;
+        if (index == truncatedAdapters.length) return;
+        seenCounts[index].increment();
+
+        // Keep track of the number of times an adapter has been seen.
+        numAdaptersSeen.increment();
+
+        // Reached the threshold for pruning the list.
+        if (numAdaptersSeen.sum() >= thresholdForSelectingAdaptersToKeep && thresholdReached.compareAndSet(false, true)) {
+            // Replace the existing list with the pruned list.
+            adapters.set(selectAdaptersToKeep());
+        }
+    }
+
+    /**
+     * Returns the #numAdaptersToKeep adapters that have been seen the most, plus any ties, most seen first.  Adapters
+     * seen equally often are kept in the order they were given to the ctor, so the choice depends only on the counts.
+     */
+    private AdapterPair[] selectAdaptersToKeep() {
+        final long[] counts = new long[truncatedAdapters.length];
+        final List<Integer> seenAdapters = new ArrayList<Integer>();
+        for (int i = 0; i < truncatedAdapters.length; ++i) {
+            counts[i] = seenCounts[i].sum();
+            if (counts[i] > 0) seenAdapters.add(i);
+        }
+        // Sort adapters by number of times each has been seen; the sort is stable, so ties stay in ctor order.
+        seenAdapters.sort((lhs, rhs) -> Long.compare(counts[rhs], counts[lhs]));
+
+        final ArrayList<AdapterPair> bestAdapters = new ArrayList<AdapterPair>(numAdaptersToKeep);
+        long countOfLastAdapter = Long.MAX_VALUE;
+        for (final int i : seenAdapters) {
+            if (bestAdapters.size() >= numAdaptersToKeep && counts[i] != countOfLastAdapter) break;
+            countOfLastAdapter = counts[i];
+            bestAdapters.add(truncatedAdapters[i]);
         }
+        return bestAdapters.toArray(new AdapterPair[bestAdapters.size()]);
     }
 
     private static final class TruncatedAdapterPair implements AdapterPair {
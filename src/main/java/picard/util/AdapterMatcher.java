@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.SequenceUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds an adapter sequence in reads as ClippingUtility.findIndexOfClipSequence does, but compares the adapter with
+ * the read at every start position at once.  Start positions are held as the bits of long words: for each base of the
+ * adapter, one shift and mask of the read's bitmask for that base gives the starts at which it mismatches, and those
+ * are added into mismatch counters that are themselves held one bit of the count per word.  A counter that goes past
+ * the most mismatches any start could be allowed marks its start as failed, so only a few bits are ever needed.
+ * <p/>
+ * The adapter is compiled once, and a matcher may be used from any number of threads at once.
+ */
+public class AdapterMatcher {
+    /** The byte values of read bases that can compare equal to an adapter base, as SequenceUtil.basesEqual allows. */
+    private static final int NUM_BASE_VALUES = 127;
+
+    private final int adapterLength;
+    /** The positions in the adapter that are not no-calls, in increasing order, which are the only ones compared. */
+    private final int[] positions;
+    /** The class of equal bases to which the adapter base at each of positions belongs. */
+    private final int[] positionClasses;
+    /** For each byte value a read base may have, the class of adapter bases it equals, or -1 if none. */
+    private final int[] baseClasses = new int[NUM_BASE_VALUES];
+    private final int numClasses;
+
+    public AdapterMatcher(final byte[] adapter) {
+        this.adapterLength = adapter.length;
+        final List<Byte> classBases = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+        final List<Integer> positionClasses = new ArrayList<>();
+        for (int i = 0; i < adapter.length; ++i) {
+            if (SequenceUtil.isNoCall(adapter[i])) continue;
+            int cls = 0;
+            while (cls < classBases.size() && !SequenceUtil.basesEqual(classBases.get(cls), adapter[i])) ++cls;
+            if (cls == classBases.size()) classBases.add(adapter[i]);
+            positions.add(i);
+            positionClasses.add(cls);
+        }
+        this.numClasses = classBases.size();
+        this.positions = positions.stream().mapToInt(Integer::intValue).toArray();
+        this.positionClasses = positionClasses.stream().mapToInt(Integer::intValue).toArray();
+        for (int b = 0; b < NUM_BASE_VALUES; ++b) {
+            baseClasses[b] = -1;
+            for (int cls = 0; cls < numClasses; ++cls) {
+                if (SequenceUtil.basesEqual(classBases.get(cls), (byte) b)) baseClasses[b] = cls;
+            }
+        }
+    }
+
+    /**
+     * Returns the last start position in read at which the adapter matches at least minMatch bases, with no more
+     * than maxErrorRate of the bases that overlap the read mismatching, or ClippingUtility.NO_MATCH.
+     */
+    public int findIndex(final byte[] read, final int minMatch, final double maxErrorRate) {
+        if (read == null || read.length < minMatch) return ClippingUtility.NO_MATCH;
+        final int readLength = read.length;
+        final int lastStart = readLength - minMatch;
+        // Nothing overlaps the read at the last start, so there is nothing to mismatch
+        if (minMatch <= 0) return lastStart;
+
+        // Group the starts by the number of mismatches allowed, from the last start back, as that varies only where
+        // the adapter runs off the end of the read.
+        final List<int[]> groups = new ArrayList<>();
+        int maxAllowed = 0;
+        for (int hi = lastStart; hi >= 0; ) {
+            final int allowed = allowedMismatches(Math.min(readLength - hi, adapterLength), maxErrorRate);
+            int lo = hi;
+            if (readLength - hi >= adapterLength) {
+                lo = 0;
+            } else {
+                while (lo > 0 && readLength - (lo - 1) < adapterLength &&
+                        allowedMismatches(readLength - (lo - 1), maxErrorRate) == allowed) --lo;
+            }
+            groups.add(new int[]{lo, hi, allowed});
+            maxAllowed = Math.max(maxAllowed, allowed);
+            hi = lo - 1;
+        }
+
+        final int numWords = (lastStart >> 6) + 1;
+        final long[][] baseMasks = new long[numClasses][((readLength - 1) >> 6) + (adapterLength >> 6) + 3];
+        for (int p = 0; p < readLength; ++p) {
+            final int base = read[p];
+            if (base >= 0 && base < NUM_BASE_VALUES && baseClasses[base] >= 0) baseMasks[baseClasses[base]][p >> 6] |= 1L << p;
+        }
+
+        final int numCountBits = 32 - Integer.numberOfLeadingZeros(maxAllowed);
+        final long[][] counts = new long[numCountBits][numWords];
+        final long[] failed = new long[numWords];
+        for (int j = 0; j < positions.length; ++j) {
+            final int i = positions[j];
+            if (i >= readLength) break;
+            final long[] baseMask = baseMasks[positionClasses[j]];
+            final int wordShift = i >> 6;
+            final int bitShift = i & 63;
+            boolean allFailed = true;
+            for (int w = 0; w < numWords; ++w) {
+                // Bit s of matches is set if read[s + i] equals adapter[i]
+                long matches = baseMask[w + wordShift] >>> bitShift;
+                if (bitShift != 0) matches |= baseMask[w + wordShift + 1] << (64 - bitShift);
+                long carry = ~matches & rangeMask(0, readLength - i - 1, w);
+                for (int b = 0; b < numCountBits && carry != 0; ++b) {
+                    final long next = counts[b][w] & carry;
+                    counts[b][w] ^= carry;
+                    carry = next;
+                }
+                failed[w] |= carry;
+                allFailed &= (~failed[w] & rangeMask(0, lastStart, w)) == 0;
+            }
+            if (allFailed) return ClippingUtility.NO_MATCH;
+        }
+
+        for (final int[] group : groups) {
+            final int lo = group[0], hi = group[1], allowed = group[2];
+            for (int w = hi >> 6; w >= lo >> 6; --w) {
+                // Bit-sliced comparison of the mismatch counts with allowed, from the most significant bit down
+                long greater = 0;
+                long equal = -1L;
+                for (int b = numCountBits - 1; b >= 0; --b) {
+                    if ((allowed >> b & 1) == 0) {
+                        greater |= equal & counts[b][w];
+                        equal &= ~counts[b][w];
+                    } else {
+                        equal &= counts[b][w];
+                    }
+                }
+                final long matched = rangeMask(lo, hi, w) & ~failed[w] & ~greater;
+                if (matched != 0) return (w << 6) + 63 - Long.numberOfLeadingZeros(matched);
+            }
+        }
+        return ClippingUtility.NO_MATCH;
+    }
+
+    /**
+     * The number of mismatches allowed over length bases.  As in ClippingUtility, a start only fails on a mismatch, so
+     * a negative number allows none.
+     */
+    private static int allowedMismatches(final int length, final double maxErrorRate) {
+        return Math.max(0, (int) (length * maxErrorRate));
+    }
+
+    /** Returns the bits of word w that are for positions lo to hi inclusive. */
+    private static long rangeMask(final int lo, final int hi, final int w) {
+        final int first = lo - (w << 6);
+        final int last = hi - (w << 6);
+        if (last < 0 || first > 63) return 0;
+        final long upTo = last >= 63 ? -1L : (1L << (last + 1)) - 1;
+        return first <= 0 ? upTo : upTo & (-1L << first);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
+import picard.cmdline.CommandLineProgram;
+import picard.cmdline.CommandLineProgramProperties;
+import picard.cmdline.Option;
+import picard.cmdline.StandardOptionDefinitions;
+import picard.cmdline.programgroups.VcfOrBcf;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Builds, or verifies, the memory-mapped cache of dbSNP sites that DbSnpBitSetUtil uses in place of parsing the VCF.
+ */
+@CommandLineProgramProperties(
+        usage = BuildDbSnpBitSetCache.USAGE_SUMMARY + BuildDbSnpBitSetCache.USAGE_DETAILS,
+        usageShort = BuildDbSnpBitSetCache.USAGE_SUMMARY,
+        programGroup = VcfOrBcf.class
+)
+public class BuildDbSnpBitSetCache extends CommandLineProgram {
+    static final String USAGE_SUMMARY = "Builds or verifies a cache of the sites in a dbSNP VCF.  ";
+    static final String USAGE_DETAILS = "Tools that take a dbSNP file (e.g. CollectVariantCallingMetrics, CollectOxoGMetrics and " +
+            "CollectSequencingArtifactMetrics) parse the whole VCF on every run to learn which loci are dbSNP sites.  This tool " +
+            "parses it once and writes the SNP, indel and all-site bitsets of every contig to a file alongside the VCF, named " +
+            "by appending \"" + DbSnpBitSetCache.FILE_EXTENSION + "\" to the VCF's name.  Those tools then memory-map the " +
+            "cache instead of parsing the VCF, unless the VCF has changed since the cache was built, the cache was built " +
+            "with a different sequence dictionary, or the tool restricts dbSNP to a set of intervals." +
+            "<br /><br />" +
+            "With VERIFY=true, the existing cache is checked against the VCF's checksum and against the sites parsed " +
+            "from the VCF, and the tool fails if they differ." +
+            "<h4>Usage example:</h4>" +
+            "<pre>" +
+            "java -jar picard.jar BuildDbSnpBitSetCache \\<br />" +
+            "      DBSNP=dbsnp.vcf.gz \\<br />" +
+            "      SD=reference_sequence.dict" +
+            "</pre>" +
+            "<hr />";
+
+    @Option(doc = "The dbSNP file in VCF format.")
+    public File DBSNP;
+
+    @Option(shortName = StandardOptionDefinitions.SEQUENCE_DICTIONARY_SHORT_NAME, optional = true,
+            doc = "The sequence dictionary of the reference.  If given, the cache may only be used with this dictionary.")
+    public File SEQUENCE_DICTIONARY;
+
+    @Option(shortName = StandardOptionDefinitions.OUTPUT_SHORT_NAME, optional = true,
+            doc = "The cache file to write or verify.  Tools only look for the cache alongside DBSNP, which is the default.")
+    public File OUTPUT;
+
+    @Option(doc = "If true, do not build the cache but check that the existing cache is current and holds the sites in DBSNP.")
+    public boolean VERIFY = false;
+
+    private final Log log = Log.getInstance(BuildDbSnpBitSetCache.class);
+
+    // Stock main method
+    public static void main(final String[] args) {
+        new BuildDbSnpBitSetCache().instanceMainWithExit(args);
+    }
+
+    @Override
+    protected int doWork() {
+        IOUtil.assertFileIsReadable(DBSNP);
+        if (SEQUENCE_DICTIONARY != null) IOUtil.assertFileIsReadable(SEQUENCE_DICTIONARY);
+        final File cacheFile = OUTPUT != null ? OUTPUT : DbSnpBitSetCache.getCacheFile(DBSNP);
+        final SAMSequenceDictionary sequenceDictionary = SEQUENCE_DICTIONARY == null ? null :
+                SAMSequenceDictionaryExtractor.extractDictionary(SEQUENCE_DICTIONARY);
+
+        if (!VERIFY) {
+            IOUtil.assertFileIsWritable(cacheFile);
+            DbSnpBitSetCache.write(DBSNP, sequenceDictionary, cacheFile, Optional.of(log));
+            log.info("Wrote dbSNP cache " + cacheFile);
+            return 0;
+        }
+
+        final DbSnpBitSetCache cache = DbSnpBitSetCache.open(cacheFile);
+        final String md5 = DbSnpBitSetCache.md5(DBSNP);
+        if (!md5.equals(cache.getDbSnpMd5())) {
+            log.error("Cache " + cacheFile + " was built from a file with MD5 " + cache.getDbSnpMd5() + " but " + DBSNP + " has MD5 " + md5);
+            return 1;
+        }
+        if (!cache.isCompatible(sequenceDictionary)) {
+            log.error("Cache " + cacheFile + " was built with a different sequence dictionary.");
+            return 1;
+        }
+
+        int mismatches = 0;
+        final Map<DbSnpBitSetCache.SiteType, Map<String, BitSet>> sites = DbSnpBitSetUtil.loadSites(DBSNP, sequenceDictionary, Optional.of(log));
+        for (final Map.Entry<DbSnpBitSetCache.SiteType, Map<String, BitSet>> entry : sites.entrySet()) {
+            final Set<String> contigs = new HashSet<>(cache.getContigs());
+            contigs.addAll(entry.getValue().keySet());
+            for (final String contig : contigs) {
+                if (!cache.hasSameSites(entry.getKey(), contig, entry.getValue().get(contig))) {
+                    log.error("Cache " + cacheFile + " has different " + entry.getKey() + " sites on " + contig + " than " + DBSNP);
+                    ++mismatches;
+                }
+            }
+        }
+        if (mismatches > 0) return 1;
+
+        log.info("Cache " + cacheFile + " matches " + DBSNP);
+        return 0;
+    }
+}
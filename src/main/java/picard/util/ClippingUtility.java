@@ -29,6 +29,9 @@ import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.SequenceUtil;
 
+import java.util.Map;
+import java.util.WeakHashMap;
+
 /**
  * Utilities to clip the adapter sequence from a SAMRecord read
  *
@@ -61,6 +64,12 @@ public class ClippingUtility {
 
     private static final Log log = Log.getInstance(ClippingUtility.class);
 
+    /**
+     * The compiled matchers of each thread, by adapter array.  Arrays hash by identity, and the map is weak, so a
+     * matcher lives only as long as the array it was compiled from.
+     */
+    private static final ThreadLocal<Map<byte[], AdapterMatcher>> adapterMatchers = ThreadLocal.withInitial(WeakHashMap::new);
+
     /**
      * @deprecated          Use the varargs version.  This no longer returns a warning string..
      */
@@ -249,11 +258,31 @@ public class ClippingUtility {
      * Finds the first index of the adapterSequence sequence in the read sequence requiring at least minMatch
      * bases of pairwise alignment with a maximum number of errors dictated by maxErrorRate.
      *
+     * The search is done by an AdapterMatcher compiled for adapterSequence, and kept for as long as adapterSequence
+     * itself is, so that callers passing the same adapter array for each read compile it once per thread.
+     *
      * @param read
      */
     public static int findIndexOfClipSequence(final byte[] read, final byte[] adapterSequence, final int minMatch, final double maxErrorRate) {
         // If the read's too short we can't possibly match it
         if (read == null || read.length < minMatch) return NO_MATCH;
+
+        final Map<byte[], AdapterMatcher> matchers = adapterMatchers.get();
+        AdapterMatcher matcher = matchers.get(adapterSequence);
+        if (matcher == null) {
+            matcher = new AdapterMatcher(adapterSequence);
+            matchers.put(adapterSequence, matcher);
+        }
+        return matcher.findIndex(read, minMatch, maxErrorRate);
+    }
+
+    /**
+     * The base-by-base search that AdapterMatcher replaces, which tries each start position from the end of the read
+     * in turn.  Kept to check and to benchmark AdapterMatcher against.
+     */
+    static int findIndexOfClipSequenceByBase(final byte[] read, final byte[] adapterSequence, final int minMatch, final double maxErrorRate) {
+        // If the read's too short we can't possibly match it
+        if (read == null || read.length < minMatch) return NO_MATCH;
         final int minClipPosition = 0;
 
         // Walk backwards down the read looking for the sequence
@@ -0,0 +1,330 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A compiled form of the sites in a dbSNP VCF, so that DbSnpBitSetUtil need not parse the VCF on every run.
+ * <p/>
+ * The cache holds, for each contig, one bitset of SNP sites, one of indel sites and one of all sites, laid out as
+ * big-endian 64-bit words.  It is opened by memory-mapping each contig's words read-only, so lookups go straight to the
+ * mapped pages and the pages are shared by every process on the host that opens the same cache.
+ * <p/>
+ * The cache records the length, modification time and MD5 of the VCF it was built from, and the MD5 of the sequence
+ * dictionary if one was given, so that a stale or mismatched cache can be recognised and ignored.
+ */
+public class DbSnpBitSetCache {
+    /** Extension appended to the name of a dbSNP VCF to give the name of its cache. */
+    public static final String FILE_EXTENSION = ".bitset";
+
+    private static final int MAGIC = 0x44425342; // "DBSB"
+    private static final int VERSION = 1;
+
+    /** The kinds of site for which the cache holds a bitset. */
+    public enum SiteType {
+        SNP, INDEL, ALL;
+
+        /**
+         * Returns the site type holding exactly the sites DbSnpBitSetUtil loads for the given variant types, or null if
+         * the cache holds no such bitset.
+         */
+        public static SiteType forVariantTypes(final Collection<VariantType> variantsToMatch) {
+            if (variantsToMatch.isEmpty()) return ALL;
+            final boolean snp = variantsToMatch.contains(VariantType.SNP);
+            final boolean indel = variantsToMatch.contains(VariantType.insertion) || variantsToMatch.contains(VariantType.deletion);
+            if (snp && !indel) return SNP;
+            if (indel && !snp) return INDEL;
+            return null;
+        }
+    }
+
+    private final File file;
+    private final long dbSnpLength;
+    private final long dbSnpLastModified;
+    private final String dbSnpMd5;
+    private final String dictionaryMd5;
+    private final Map<String, Contig> contigs = new LinkedHashMap<>();
+
+    /** The mapped bitsets of one contig, one per site type. */
+    private static class Contig {
+        final long numBits;
+        final ByteBuffer[] words = new ByteBuffer[SiteType.values().length];
+
+        Contig(final long numBits) {
+            this.numBits = numBits;
+        }
+
+        boolean get(final SiteType type, final int pos) {
+            if (pos < 0 || pos >= numBits) return false;
+            return (words[type.ordinal()].getLong((pos >>> 6) << 3) & (1L << (pos & 63))) != 0;
+        }
+    }
+
+    private DbSnpBitSetCache(final File file, final long dbSnpLength, final long dbSnpLastModified,
+                             final String dbSnpMd5, final String dictionaryMd5) {
+        this.file = file;
+        this.dbSnpLength = dbSnpLength;
+        this.dbSnpLastModified = dbSnpLastModified;
+        this.dbSnpMd5 = dbSnpMd5;
+        this.dictionaryMd5 = dictionaryMd5;
+    }
+
+    /** Returns the file in which the cache for the given dbSNP VCF is looked for by default. */
+    public static File getCacheFile(final File dbSnpFile) {
+        return new File(dbSnpFile.getPath() + FILE_EXTENSION);
+    }
+
+    /**
+     * Parses the dbSNP VCF once and writes the SNP, indel and all-site bitsets of every contig to the cache file.
+     *
+     * @param dbSnpFile the dbSNP VCF
+     * @param sequenceDictionary if not null, bitsets are sized to the contig lengths and the cache may only be used with
+     *                           this dictionary
+     * @param cacheFile the cache file to write
+     */
+    public static void write(final File dbSnpFile, final SAMSequenceDictionary sequenceDictionary, final File cacheFile,
+                             final Optional<Log> log) {
+        final Map<SiteType, Map<String, BitSet>> sites = DbSnpBitSetUtil.loadSites(dbSnpFile, sequenceDictionary, log);
+
+        final Set<String> contigNames = new LinkedHashSet<>();
+        if (sequenceDictionary != null) {
+            sequenceDictionary.getSequences().forEach(s -> contigNames.add(s.getSequenceName()));
+        }
+        for (final Map<String, BitSet> bitSets : sites.values()) contigNames.addAll(bitSets.keySet());
+
+        // The largest position any bitset has set, per contig, bounds the words that need to be written
+        final Map<String, Long> numBits = new LinkedHashMap<>();
+        for (final String contig : contigNames) {
+            long n = sequenceDictionary == null || sequenceDictionary.getSequence(contig) == null ? 0 :
+                    sequenceDictionary.getSequence(contig).getSequenceLength() + 1L;
+            for (final Map<String, BitSet> bitSets : sites.values()) {
+                final BitSet bits = bitSets.get(contig);
+                if (bits != null) n = Math.max(n, bits.length());
+            }
+            numBits.put(contig, n);
+        }
+
+        final File tmp = new File(cacheFile.getPath() + ".tmp");
+        try {
+            // The header is written twice; the first time only to learn its length and so the offset of the first word
+            final String dbSnpMd5 = md5(dbSnpFile);
+            final String dictionaryMd5 = sequenceDictionary == null ? "" : sequenceDictionary.md5();
+            final ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeHeader(new DataOutputStream(header), dbSnpFile, dbSnpMd5, dictionaryMd5, numBits, 0);
+            final long dataStart = header.size();
+            header.reset();
+            writeHeader(new DataOutputStream(header), dbSnpFile, dbSnpMd5, dictionaryMd5, numBits, dataStart);
+
+            // Written by way of a temporary file so that readers never see a partial cache
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), Defaults.BUFFER_SIZE))) {
+                header.writeTo(out);
+                for (final Map.Entry<String, Long> contig : numBits.entrySet()) {
+                    for (final SiteType type : SiteType.values()) {
+                        final BitSet bits = sites.get(type).get(contig.getKey());
+                        final long[] words = bits == null ? new long[0] : bits.toLongArray();
+                        final long numWords = numWords(contig.getValue());
+                        for (long i = 0; i < numWords; ++i) out.writeLong(i < words.length ? words[(int) i] : 0L);
+                    }
+                }
+            }
+        } catch (final IOException ioe) {
+            throw new RuntimeIOException("Error writing dbSNP cache " + tmp.getAbsolutePath(), ioe);
+        }
+        if (!tmp.renameTo(cacheFile)) {
+            throw new PicardException("Unable to move " + tmp.getAbsolutePath() + " to " + cacheFile.getAbsolutePath());
+        }
+    }
+
+    private static void writeHeader(final DataOutputStream out, final File dbSnpFile, final String dbSnpMd5, final String dictionaryMd5,
+                                    final Map<String, Long> numBits, final long dataStart) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(dbSnpFile.length());
+        out.writeLong(dbSnpFile.lastModified());
+        out.writeUTF(dbSnpMd5);
+        out.writeUTF(dictionaryMd5);
+        out.writeInt(numBits.size());
+        long offset = dataStart;
+        for (final Map.Entry<String, Long> contig : numBits.entrySet()) {
+            out.writeUTF(contig.getKey());
+            out.writeLong(contig.getValue());
+            out.writeLong(offset);
+            offset += numWords(contig.getValue()) * 8 * SiteType.values().length;
+        }
+    }
+
+    /** Opens the cache file and maps its bitsets read-only. */
+    public static DbSnpBitSetCache open(final File cacheFile) {
+        IOUtil.assertFileIsReadable(cacheFile);
+        DataInputStream in = null;
+        RandomAccessFile raf = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != MAGIC) throw new PicardException(cacheFile.getAbsolutePath() + " is not a dbSNP cache.");
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new PicardException("dbSNP cache " + cacheFile.getAbsolutePath() + " has version " + version + " but version " + VERSION + " is required.");
+            }
+            final DbSnpBitSetCache cache = new DbSnpBitSetCache(cacheFile, in.readLong(), in.readLong(), in.readUTF(), in.readUTF());
+
+            raf = new RandomAccessFile(cacheFile, "r");
+            final FileChannel channel = raf.getChannel();
+            final int numContigs = in.readInt();
+            for (int i = 0; i < numContigs; ++i) {
+                final String name = in.readUTF();
+                final Contig contig = new Contig(in.readLong());
+                final long size = numWords(contig.numBits) * 8;
+                long offset = in.readLong();
+                if (contig.numBits < 0 || offset < 0 || offset + size * SiteType.values().length > channel.size()) {
+                    throw new PicardException("dbSNP cache " + cacheFile.getAbsolutePath() + " is truncated or corrupt.");
+                }
+                for (final SiteType type : SiteType.values()) {
+                    contig.words[type.ordinal()] = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                    offset += size;
+                }
+                cache.contigs.put(name, contig);
+            }
+            return cache;
+        } catch (final IOException ioe) {
+            throw new RuntimeIOException("Error reading dbSNP cache " + cacheFile.getAbsolutePath(), ioe);
+        } finally {
+            // The mappings remain valid after the channel is closed
+            CloserUtil.close(in);
+            CloserUtil.close(raf);
+        }
+    }
+
+    /**
+     * Returns true if the cache was built from the given dbSNP VCF as it is now.  If the VCF's length and modification
+     * time are those recorded in the cache it is assumed not to have changed; otherwise its MD5 is computed and compared.
+     */
+    public boolean isCurrent(final File dbSnpFile) {
+        if (dbSnpFile.length() != dbSnpLength) return false;
+        return dbSnpFile.lastModified() == dbSnpLastModified || md5(dbSnpFile).equals(dbSnpMd5);
+    }
+
+    /**
+     * Returns true if the cache may be used with the given sequence dictionary: either the cache was built with the same
+     * dictionary, or it was built without one and every contig it holds is in the given dictionary.
+     */
+    public boolean isCompatible(final SAMSequenceDictionary sequenceDictionary) {
+        if (sequenceDictionary == null) return true;
+        if (dictionaryMd5.isEmpty()) {
+            for (final String contig : contigs.keySet()) {
+                if (sequenceDictionary.getSequence(contig) == null) return false;
+            }
+            return true;
+        }
+        return dictionaryMd5.equals(sequenceDictionary.md5());
+    }
+
+    /** Returns true if the bitset of the given type has the given 1-based position of the given contig set. */
+    public boolean isSet(final SiteType type, final String contig, final int pos) {
+        final Contig c = contigs.get(contig);
+        return c != null && c.get(type, pos);
+    }
+
+    /** Returns the names of the contigs for which the cache holds bitsets. */
+    public Set<String> getContigs() {
+        return Collections.unmodifiableSet(contigs.keySet());
+    }
+
+    /** Returns true if the bitset of the given type for the given contig has exactly the given bits set. */
+    public boolean hasSameSites(final SiteType type, final String contig, final BitSet expected) {
+        final Contig c = contigs.get(contig);
+        if (c == null) return expected == null || expected.isEmpty();
+        if (expected != null && expected.length() > c.numBits) return false;
+        final ByteBuffer words = c.words[type.ordinal()];
+        final long[] expectedWords = expected == null ? new long[0] : expected.toLongArray();
+        for (long i = 0, n = numWords(c.numBits); i < n; ++i) {
+            final long expectedWord = i < expectedWords.length ? expectedWords[(int) i] : 0L;
+            if (words.getLong((int) (i << 3)) != expectedWord) return false;
+        }
+        return true;
+    }
+
+    /** The MD5 of the dbSNP VCF from which the cache was built. */
+    public String getDbSnpMd5() {
+        return dbSnpMd5;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private static long numWords(final long numBits) {
+        return (numBits + 63) >>> 6;
+    }
+
+    /** Computes the MD5 of a file's contents as a hex string. */
+    static String md5(final File file) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new PicardException("MD5 algorithm not found", e);
+        }
+        final byte[] buffer = new byte[1024 * 1024];
+        try (final InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) digest.update(buffer, 0, n);
+        } catch (final IOException ioe) {
+            throw new RuntimeIOException("Error reading " + file.getAbsolutePath(), ioe);
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : digest.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
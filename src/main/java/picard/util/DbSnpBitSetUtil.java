@@ -38,11 +38,20 @@ import java.util.*;
 /**
  * Utility class to use with DbSnp files to determine is a locus is
  * a dbSnp site.
+ *
+ * If a cache built by BuildDbSnpBitSetCache sits alongside the dbSnp file, is current and matches the sequence
+ * dictionary, sites are looked up in the memory-mapped cache rather than loaded by parsing the VCF.  The cache is not
+ * used when intervals are given, because a variant overlapping an interval marks all its bases, which the cache
+ * cannot reproduce.
  */
 public class DbSnpBitSetUtil {
 
     private final Map<String, BitSet> sequenceToBitSet = new HashMap<>();
 
+    /** If not null, sites are looked up in this cache rather than in sequenceToBitSet. */
+    private DbSnpBitSetCache cache = null;
+    private DbSnpBitSetCache.SiteType cachedSiteType = null;
+
     /** Little tuple class to contain one bitset for SNPs and another for Indels. */
     public static class DbSnpBitSets {
         public DbSnpBitSetUtil snps;
@@ -96,7 +105,9 @@ public class DbSnpBitSetUtil {
         if (dbSnpFile == null) throw new IllegalArgumentException("null dbSnpFile");
         final Map<DbSnpBitSetUtil, Set<VariantType>> tmp = new HashMap<>();
         tmp.put(this, EnumSet.copyOf(variantsToMatch));
-        loadVcf(dbSnpFile, sequenceDictionary, tmp, intervals, log);
+        if (!loadCache(dbSnpFile, sequenceDictionary, tmp, intervals, log)) {
+            loadVcf(dbSnpFile, sequenceDictionary, tmp, intervals, log);
+        }
     }
 
     /** Factory method to create both a SNP bitmask and an indel bitmask in a single pass of the VCF. */
@@ -128,10 +139,71 @@ public class DbSnpBitSetUtil {
         final Map<DbSnpBitSetUtil, Set<VariantType>> map = new HashMap<>();
         map.put(sets.snps,   EnumSet.of(VariantType.SNP));
         map.put(sets.indels, EnumSet.of(VariantType.insertion, VariantType.deletion));
-        loadVcf(dbSnpFile, sequenceDictionary, map, intervals, log);
+        if (!loadCache(dbSnpFile, sequenceDictionary, map, intervals, log)) {
+            loadVcf(dbSnpFile, sequenceDictionary, map, intervals, log);
+        }
         return sets;
     }
 
+    /** Reads through the VCF once and returns the SNP, indel and all-site bit sets for each sequence, for caching. */
+    static Map<DbSnpBitSetCache.SiteType, Map<String, BitSet>> loadSites(final File dbSnpFile,
+                                                                         final SAMSequenceDictionary sequenceDictionary,
+                                                                         final Optional<Log> log) {
+        final Map<DbSnpBitSetCache.SiteType, DbSnpBitSetUtil> bitSets = new EnumMap<>(DbSnpBitSetCache.SiteType.class);
+        final Map<DbSnpBitSetUtil, Set<VariantType>> map = new HashMap<>();
+        for (final DbSnpBitSetCache.SiteType type : DbSnpBitSetCache.SiteType.values()) bitSets.put(type, new DbSnpBitSetUtil());
+        map.put(bitSets.get(DbSnpBitSetCache.SiteType.SNP),   EnumSet.of(VariantType.SNP));
+        map.put(bitSets.get(DbSnpBitSetCache.SiteType.INDEL), EnumSet.of(VariantType.insertion, VariantType.deletion));
+        map.put(bitSets.get(DbSnpBitSetCache.SiteType.ALL),   EnumSet.noneOf(VariantType.class));
+        loadVcf(dbSnpFile, sequenceDictionary, map, null, log);
+
+        final Map<DbSnpBitSetCache.SiteType, Map<String, BitSet>> sites = new EnumMap<>(DbSnpBitSetCache.SiteType.class);
+        for (final Map.Entry<DbSnpBitSetCache.SiteType, DbSnpBitSetUtil> entry : bitSets.entrySet()) {
+            sites.put(entry.getKey(), entry.getValue().sequenceToBitSet);
+        }
+        return sites;
+    }
+
+    /**
+     * Private helper method to point one or more bit sets at the cache alongside the VCF.  Returns false, leaving the
+     * bit sets untouched, if there is no usable cache.
+     */
+    private static boolean loadCache(final File dbSnpFile,
+                                     final SAMSequenceDictionary sequenceDictionary,
+                                     final Map<DbSnpBitSetUtil, Set<VariantType>> bitSetsToVariantTypes,
+                                     final IntervalList intervals,
+                                     final Optional<Log> log) {
+        final File cacheFile = DbSnpBitSetCache.getCacheFile(dbSnpFile);
+        if (intervals != null || !cacheFile.exists()) return false;
+        for (final Set<VariantType> variantsToMatch : bitSetsToVariantTypes.values()) {
+            if (DbSnpBitSetCache.SiteType.forVariantTypes(variantsToMatch) == null) return false;
+        }
+
+        final DbSnpBitSetCache cache;
+        try {
+            cache = DbSnpBitSetCache.open(cacheFile);
+        } catch (final RuntimeException e) {
+            // Includes a cache that is truncated, corrupt or of another version, or cannot be read or mapped
+            log.ifPresent(l -> l.warn("Ignoring dbSNP cache " + cacheFile + ": " + e.getMessage()));
+            return false;
+        }
+        if (!cache.isCurrent(dbSnpFile)) {
+            log.ifPresent(l -> l.warn("Ignoring dbSNP cache " + cacheFile + " because " + dbSnpFile + " has changed since it was built."));
+            return false;
+        }
+        if (!cache.isCompatible(sequenceDictionary)) {
+            log.ifPresent(l -> l.warn("Ignoring dbSNP cache " + cacheFile + " because it was built with a different sequence dictionary."));
+            return false;
+        }
+
+        for (final Map.Entry<DbSnpBitSetUtil, Set<VariantType>> tuple : bitSetsToVariantTypes.entrySet()) {
+            tuple.getKey().cache = cache;
+            tuple.getKey().cachedSiteType = DbSnpBitSetCache.SiteType.forVariantTypes(tuple.getValue());
+        }
+        log.ifPresent(l -> l.info("Loaded dbSNP sites from cache " + cacheFile));
+        return true;
+    }
+
     /** Private helper method to read through the VCF and create one or more bit sets. */
     private static void loadVcf(final File dbSnpFile,
                                 final SAMSequenceDictionary sequenceDictionary,
@@ -182,6 +254,8 @@ public class DbSnpBitSetUtil {
      * Returns true if there is a dbSnp entry at pos in sequenceName, otherwise false
      */
     public boolean isDbSnpSite(final String sequenceName, final int pos) {
+        if (cache != null) return cache.isSet(cachedSiteType, sequenceName, pos);
+
         // When we have a dbSnpFile with no sequence dictionary, this line will be necessary
         return sequenceToBitSet.get(sequenceName) != null &&
                 pos <= sequenceToBitSet.get(sequenceName).length() &&
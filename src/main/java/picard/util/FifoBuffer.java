@@ -8,9 +8,15 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.None;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 
@@ -81,6 +87,28 @@ public class FifoBuffer extends CommandLineProgram {
         this(System.in, System.out);
     }
 
+    /**
+     * Returns a channel that reads from the input stream.  When reading stdin or a file the bytes go straight from the
+     * file descriptor into the buffer, and otherwise they are copied through the stream.
+     */
+    private ReadableByteChannel inputChannel() {
+        if (inputStream == System.in) return new FileInputStream(FileDescriptor.in).getChannel();
+        if (inputStream instanceof FileInputStream) return ((FileInputStream) inputStream).getChannel();
+        return Channels.newChannel(inputStream);
+    }
+
+    /**
+     * Returns a channel that writes to the output stream.  When writing stdout the bytes go straight from the buffer
+     * to the file descriptor, and otherwise they are copied through the stream.
+     */
+    private WritableByteChannel outputChannel() {
+        if (outputStream == System.out) {
+            System.out.flush();
+            return new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        return Channels.newChannel(outputStream);
+    }
+
     // Stock main method
     public static void main(final String[] args) {
         new FifoBuffer().instanceMainWithExit(args);
@@ -88,20 +116,17 @@ public class FifoBuffer extends CommandLineProgram {
 
     @Override
     protected int doWork() {
-        final CircularByteBuffer fifo = new CircularByteBuffer(BUFFER_SIZE);
+        final SpscByteRingBuffer fifo = new SpscByteRingBuffer(BUFFER_SIZE);
+        final ReadableByteChannel inputChannel = inputChannel();
+        final WritableByteChannel outputChannel = outputChannel();
 
         // Input thread that reads from inputStream until it is closed and writes the contents
         // into the circular byte buffer.
         final Thread input = new Thread(new Runnable() {
             @Override public void run() {
                 try {
-                    final byte[] buffer = new byte[IO_SIZE];
-                    int read = 0;
-                    while ((read = inputStream.read(buffer)) > -1) {
-                        int start = 0;
-                        while (start < read) {
-                            start += fifo.write(buffer, start, read-start);
-                        }
+                    while (fifo.readFrom(inputChannel, IO_SIZE) > -1) {
+                        // keep reading
                     }
                 }
                 catch (final IOException ioe) {
@@ -117,10 +142,14 @@ public class FifoBuffer extends CommandLineProgram {
         // the results to the outputStream
         final Thread output = new Thread(new Runnable() {
             @Override public void run() {
-                final byte[] buffer = new byte[IO_SIZE];
-                int read = 0;
-                while ((read = fifo.read(buffer, 0, buffer.length)) > 0 || !fifo.isClosed()) {
-                    outputStream.write(buffer, 0, read);
+                try {
+                    while (fifo.writeTo(outputChannel, IO_SIZE) > -1) {
+                        // keep writing
+                    }
+                    outputStream.flush();
+                }
+                catch (final IOException ioe) {
+                    throw new RuntimeIOException(ioe);
                 }
             }
         });
@@ -156,7 +185,7 @@ public class FifoBuffer extends CommandLineProgram {
             input.start();
 
             final LoggingExceptionHandler outputExceptionHandler = new LoggingExceptionHandler();
-            output.setUncaughtExceptionHandler(new LoggingExceptionHandler());
+            output.setUncaughtExceptionHandler(outputExceptionHandler);
             output.setName("Fifo Output Thread");
             output.start();
 
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+/**
+ * Computes two-sided p-values of Fisher's exact test on 2x2 contingency tables, for callers such as strand bias filters
+ * that test the same small tables over and over.
+ * <p/>
+ * Log-factorials are precomputed up to maxExactDepth, and tables with more observations than that are tested with a
+ * continuity-corrected chi-squared test instead.  Exact p-values are kept in a bounded cache, which is keyed on the
+ * table with its rows and columns ordered canonically since the test is unchanged by swapping rows, swapping columns or
+ * transposing.  Each p-value is computed from the canonical table whether or not it is cached, so caching never changes
+ * a result.  Instances are safe to use from several threads.
+ */
+public class FisherExactTest {
+    /** The default number of observations up to which tables are tested exactly. */
+    public static final int DEFAULT_MAX_EXACT_DEPTH = 10000;
+    /** The default number of p-values to cache. */
+    public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
+    /** Tables are cached only if they are exact and each count fits in 16 bits of the key. */
+    private static final int MAX_CACHED_DEPTH = 0xFFFF;
+    /** Tables at most this much more likely than the observed table are counted as no more likely, against rounding. */
+    private static final double RELATIVE_ERROR = 1 + 1e-7;
+
+    private final int maxExactDepth;
+    private final double[] logFactorials;
+    /** A direct-mapped cache.  Entries are immutable, so a racing read sees either a whole entry or none. */
+    private final CacheEntry[] cache;
+
+    private static final class CacheEntry {
+        final long table;
+        final double pValue;
+
+        CacheEntry(final long table, final double pValue) {
+            this.table = table;
+            this.pValue = pValue;
+        }
+    }
+
+    public FisherExactTest() {
+        this(DEFAULT_MAX_EXACT_DEPTH, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param maxExactDepth the largest number of observations in a table for which the exact test is used
+     * @param cacheSize the number of p-values to cache, rounded up to a power of two, or 0 to cache none
+     */
+    public FisherExactTest(final int maxExactDepth, final int cacheSize) {
+        if (maxExactDepth < 0) throw new IllegalArgumentException("maxExactDepth must not be negative: " + maxExactDepth);
+        if (cacheSize < 0 || cacheSize > 1 << 30) throw new IllegalArgumentException("cacheSize must be between 0 and 2^30: " + cacheSize);
+        this.maxExactDepth = maxExactDepth;
+        this.logFactorials = new double[maxExactDepth + 1];
+        for (int i = 2; i <= maxExactDepth; ++i) {
+            logFactorials[i] = logFactorials[i - 1] + Math.log(i);
+        }
+        if (cacheSize == 0) {
+            this.cache = null;
+        } else {
+            int size = 1;
+            while (size < cacheSize) size <<= 1;
+            this.cache = new CacheEntry[size];
+        }
+    }
+
+    /**
+     * Returns the two-sided p-value for the table {{a, b}, {c, d}}: the probability, given its row and column totals,
+     * of a table no more likely than it.
+     */
+    public double twoSidedPValue(final int a, final int b, final int c, final int d) {
+        if (a < 0 || b < 0 || c < 0 || d < 0) {
+            throw new IllegalArgumentException("Table counts must not be negative: " + a + ", " + b + ", " + c + ", " + d);
+        }
+        final long n = (long) a + b + c + d;
+        if (n > maxExactDepth) return chiSquaredPValue(a, b, c, d);
+
+        // Order the cells around the table as a, b, d, c, starting and turning so as to put the smallest first
+        final int[] cells = {a, b, d, c};
+        int bestStart = 0, bestStep = 1;
+        for (int start = 0; start < 4; ++start) {
+            for (int step = 1; step <= 3; step += 2) {
+                if (compareRotations(cells, start, step, bestStart, bestStep) < 0) {
+                    bestStart = start;
+                    bestStep = step;
+                }
+            }
+        }
+        final int ca = cells[bestStart];
+        final int cb = cells[(bestStart + bestStep) & 3];
+        final int cd = cells[(bestStart + 2 * bestStep) & 3];
+        final int cc = cells[(bestStart + 3 * bestStep) & 3];
+
+        if (cache == null || n > MAX_CACHED_DEPTH) return exactPValue(ca, cb, cc, cd);
+
+        final long key = (long) ca << 48 | (long) cb << 32 | (long) cc << 16 | cd;
+        final int index = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (cache.length - 1);
+        final CacheEntry entry = cache[index];
+        if (entry != null && entry.table == key) return entry.pValue;
+        final double pValue = exactPValue(ca, cb, cc, cd);
+        cache[index] = new CacheEntry(key, pValue);
+        return pValue;
+    }
+
+    /** Returns the phred-scaled two-sided p-value for the table {{a, b}, {c, d}}, capped so as to be finite. */
+    public double phredScaledPValue(final int a, final int b, final int c, final int d) {
+        return -10 * Math.log10(Math.max(twoSidedPValue(a, b, c, d), Double.MIN_VALUE));
+    }
+
+    /** Compares the cells read from start1 in steps of step1 with those read from start2 in steps of step2. */
+    private static int compareRotations(final int[] cells, final int start1, final int step1, final int start2, final int step2) {
+        for (int i = 0; i < 4; ++i) {
+            final int cmp = Integer.compare(cells[(start1 + i * step1) & 3], cells[(start2 + i * step2) & 3]);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    /** Sums the hypergeometric probabilities of the tables with the same totals that are no more likely than this one. */
+    private double exactPValue(final int a, final int b, final int c, final int d) {
+        final int row1 = a + b, row2 = c + d, column1 = a + c, column2 = b + d, n = row1 + row2;
+        final double logTotals = logFactorials[row1] + logFactorials[row2] + logFactorials[column1] + logFactorials[column2] - logFactorials[n];
+        final double observed = Math.exp(logTotals - logFactorials[a] - logFactorials[b] - logFactorials[c] - logFactorials[d]) * RELATIVE_ERROR;
+
+        double pValue = 0;
+        for (int x = Math.max(0, column1 - row2); x <= Math.min(row1, column1); ++x) {
+            final double p = Math.exp(logTotals - logFactorials[x] - logFactorials[row1 - x] - logFactorials[column1 - x] - logFactorials[row2 - column1 + x]);
+            if (p <= observed) pValue += p;
+        }
+        return Math.min(pValue, 1.0);
+    }
+
+    /** The p-value of Pearson's chi-squared test with Yates's continuity correction, which approximates the exact test. */
+    static double chiSquaredPValue(final int a, final int b, final int c, final int d) {
+        final double row1 = (double) a + b, row2 = (double) c + d, column1 = (double) a + c, column2 = (double) b + d;
+        final double n = row1 + row2;
+        final double difference = Math.abs((double) a * d - (double) b * c) - n / 2;
+        if (row1 == 0 || row2 == 0 || column1 == 0 || column2 == 0 || difference <= 0) return 1.0;
+        final double chiSquared = n * (difference / row1) * (difference / row2) / column1 / column2;
+        return erfc(Math.sqrt(chiSquared / 2));
+    }
+
+    /** The complementary error function for x >= 0, to a relative error of less than 1.2e-7. */
+    private static double erfc(final double x) {
+        final double t = 1 / (1 + 0.5 * x);
+        return t * Math.exp(-x * x - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418 +
+                t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 +
+                t * (-0.82215223 + t * 0.17087277)))))))));
+    }
+}
@@ -0,0 +1,661 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.CoordMath;
+import htsjdk.samtools.util.FormatUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.PeekableIterator;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.StringLineReader;
+import htsjdk.samtools.util.StringUtil;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import picard.PicardException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Streaming versions of the IntervalList operations used by IntervalListTools, for interval lists too large to hold in
+ * memory.  Each operation consumes and produces iterators of intervals in coordinate order, holding only as many
+ * intervals as overlap at one position, and gives the same intervals, names included, as the IntervalList method it
+ * mirrors would for the same input.
+ */
+final class IntervalListStreams {
+    private static final Log log = Log.getInstance(IntervalListStreams.class);
+
+    private IntervalListStreams() { }
+
+    /**
+     * Orders intervals by sequence index, start, end, strand and then name, as IntervalList.sorted() does.  This is
+     * the order in which every stream below is produced and expected.
+     */
+    static Comparator<Interval> coordinateComparator(final SAMFileHeader header) {
+        return (lhs, rhs) -> {
+            int retval = header.getSequenceIndex(lhs.getContig()) - header.getSequenceIndex(rhs.getContig());
+            if (retval == 0) retval = lhs.getStart() - rhs.getStart();
+            if (retval == 0) retval = lhs.getEnd() - rhs.getEnd();
+            if (retval == 0 && lhs.isNegativeStrand() != rhs.isNegativeStrand()) retval = lhs.isPositiveStrand() ? -1 : 1;
+            if (retval == 0) {
+                if (lhs.getName() == null) return rhs.getName() == null ? 0 : -1;
+                if (rhs.getName() == null) return 1;
+                return lhs.getName().compareTo(rhs.getName());
+            }
+            return retval;
+        };
+    }
+
+    /**
+     * The intervals of an interval_list or VCF file, read one at a time in the order they are in the file.  Intervals
+     * on sequences not in an interval_list's header are skipped, and VCF records are made into intervals, as
+     * IntervalList.fromFile() and VCFFileReader.fromVcf() do.
+     */
+    static class FileIntervals implements CloseableIterator<Interval> {
+        private final SAMFileHeader header;
+        private final BufferedReader reader;
+        private final VCFFileReader vcfReader;
+        private final Iterator<VariantContext> variants;
+        private final boolean includeFiltered;
+        private final FormatUtil format = new FormatUtil();
+        private String line;
+        private int unnamedVariants = 0;
+        private Interval next;
+
+        FileIntervals(final File file, final boolean isVcf, final boolean includeFiltered) {
+            this.includeFiltered = includeFiltered;
+            if (!isVcf) {
+                this.vcfReader = null;
+                this.variants = null;
+                this.reader = IOUtil.openFileForBufferedReading(file);
+                final StringBuilder builder = new StringBuilder(4096);
+                try {
+                    while ((line = reader.readLine()) != null && line.startsWith("@")) {
+                        builder.append(line).append('\n');
+                    }
+                } catch (final IOException ioe) {
+                    throw new RuntimeIOException("Error reading " + file, ioe);
+                }
+                if (builder.length() == 0) {
+                    throw new IllegalStateException("Interval list file must contain header. ");
+                }
+                this.header = new SAMTextHeaderCodec().decode(new StringLineReader(builder.toString()), file.toString());
+            } else {
+                this.reader = null;
+                this.vcfReader = new VCFFileReader(file, false);
+                this.variants = vcfReader.iterator();
+                this.header = new SAMFileHeader();
+                this.header.setSequenceDictionary(vcfReader.getFileHeader().getSequenceDictionary());
+            }
+            advance();
+        }
+
+        SAMFileHeader getHeader() { return header; }
+
+        @Override
+        public boolean hasNext() { return next != null; }
+
+        @Override
+        public Interval next() {
+            if (next == null) throw new NoSuchElementException();
+            final Interval result = next;
+            advance();
+            return result;
+        }
+
+        @Override
+        public void close() {
+            CloserUtil.close(reader);
+            CloserUtil.close(vcfReader);
+        }
+
+        private void advance() {
+            next = reader != null ? nextFromIntervalList() : nextFromVcf();
+        }
+
+        private Interval nextFromIntervalList() {
+            try {
+                for (; line != null; line = reader.readLine()) {
+                    if (line.trim().isEmpty()) continue;
+                    final String[] fields = line.split("\t");
+                    if (fields.length != 5) {
+                        throw new SAMException("Invalid interval record contains " + fields.length + " fields: " + line);
+                    }
+                    final boolean negative;
+                    if (fields[3].equals("-")) negative = true;
+                    else if (fields[3].equals("+")) negative = false;
+                    else throw new IllegalArgumentException("Invalid strand field: " + fields[3]);
+                    final Interval interval = new Interval(fields[0], format.parseInt(fields[1]), format.parseInt(fields[2]), negative, fields[4]);
+                    if (header.getSequence(fields[0]) == null) {
+                        log.warn("Ignoring interval for unknown reference: " + interval);
+                        continue;
+                    }
+                    line = reader.readLine();
+                    return interval;
+                }
+                return null;
+            } catch (final IOException ioe) {
+                throw new RuntimeIOException("Error reading interval list", ioe);
+            }
+        }
+
+        private Interval nextFromVcf() {
+            while (variants.hasNext()) {
+                final VariantContext vc = variants.next();
+                if (!includeFiltered && vc.isFiltered()) continue;
+                String name = vc.getID();
+                final Integer intervalEnd = vc.getCommonInfo().getAttributeAsInt("END", vc.getEnd());
+                if (".".equals(name) || name == null) {
+                    name = "interval-" + ++unnamedVariants;
+                }
+                final Interval interval = new Interval(vc.getContig(), vc.getStart(), intervalEnd, false, name);
+                if (header.getSequence(interval.getContig()) == null) {
+                    throw new IllegalArgumentException(String.format("Cannot add interval %s, contig not in header", interval.toString()));
+                }
+                return interval;
+            }
+            return null;
+        }
+    }
+
+    /** An iterator that computes its elements a few at a time into a queue. */
+    private abstract static class QueueingIterator implements Iterator<Interval> {
+        protected final ArrayDeque<Interval> queue = new ArrayDeque<>();
+
+        /** Adds to the queue, or returns false if there is nothing more to add. */
+        protected abstract boolean fill();
+
+        @Override
+        public boolean hasNext() {
+            while (queue.isEmpty()) {
+                if (!fill()) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public Interval next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return queue.removeFirst();
+        }
+    }
+
+    /** Passes each interval to action as it is returned. */
+    static Iterator<Interval> peek(final Iterator<Interval> intervals, final Consumer<Interval> action) {
+        return new Iterator<Interval>() {
+            @Override
+            public boolean hasNext() { return intervals.hasNext(); }
+
+            @Override
+            public Interval next() {
+                final Interval next = intervals.next();
+                action.accept(next);
+                return next;
+            }
+        };
+    }
+
+    /** Pads each interval as IntervalList.padded() does. */
+    static Iterator<Interval> padded(final Iterator<Interval> intervals, final SAMSequenceDictionary dictionary, final int padding) {
+        if (padding < 0) throw new IllegalArgumentException("Padding values must be >= 0.");
+        return new Iterator<Interval>() {
+            @Override
+            public boolean hasNext() { return intervals.hasNext(); }
+
+            @Override
+            public Interval next() {
+                final Interval i = intervals.next();
+                final int start = Math.max(1, i.getStart() - padding);
+                final int end = Math.min(dictionary.getSequence(i.getContig()).getSequenceLength(), i.getEnd() + padding);
+                return new Interval(i.getContig(), start, end, i.isNegativeStrand(), i.getName());
+            }
+        };
+    }
+
+    /**
+     * Puts intervals that are in order of sequence and start into full coordinate order, which only requires sorting
+     * the intervals that start at the same position.
+     *
+     * @throws PicardException if the intervals are not in order of sequence and start
+     */
+    static Iterator<Interval> sorted(final Iterator<Interval> intervals, final SAMFileHeader header, final String source) {
+        final PeekableIterator<Interval> iterator = new PeekableIterator<>(intervals);
+        final PriorityQueue<Interval> sameStart = new PriorityQueue<>(coordinateComparator(header));
+        return new QueueingIterator() {
+            private int lastSequence = -1, lastStart = 0;
+
+            @Override
+            protected boolean fill() {
+                if (!iterator.hasNext()) return false;
+                final Interval first = iterator.next();
+                final int sequence = header.getSequenceIndex(first.getContig());
+                if (sequence < lastSequence || (sequence == lastSequence && first.getStart() < lastStart)) {
+                    throw new PicardException("Intervals in " + source + " are not sorted by coordinate: " + first +
+                            " follows an interval starting at " + header.getSequence(lastSequence).getSequenceName() + ":" + lastStart);
+                }
+                lastSequence = sequence;
+                lastStart = first.getStart();
+                sameStart.add(first);
+                while (iterator.hasNext() && iterator.peek().getStart() == lastStart && iterator.peek().getContig().equals(first.getContig())) {
+                    sameStart.add(iterator.next());
+                }
+                while (!sameStart.isEmpty()) queue.add(sameStart.poll());
+                return true;
+            }
+        };
+    }
+
+    /** Merges streams that are each in coordinate order into one, as sorting their concatenation would. */
+    static Iterator<Interval> merge(final List<? extends Iterator<Interval>> streams, final SAMFileHeader header) {
+        final Comparator<Interval> comparator = coordinateComparator(header);
+        final List<PeekableIterator<Interval>> iterators = new ArrayList<>(streams.size());
+        for (final Iterator<Interval> stream : streams) iterators.add(new PeekableIterator<>(stream));
+        // Streams with equal intervals are taken in their order, as a stable sort of the concatenation would
+        final PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, streams.size()), (a, b) -> {
+            final int cmp = comparator.compare(iterators.get(a).peek(), iterators.get(b).peek());
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+        for (int i = 0; i < iterators.size(); ++i) {
+            if (iterators.get(i).hasNext()) heads.add(i);
+        }
+        return new Iterator<Interval>() {
+            @Override
+            public boolean hasNext() { return !heads.isEmpty(); }
+
+            @Override
+            public Interval next() {
+                if (heads.isEmpty()) throw new NoSuchElementException();
+                final int stream = heads.poll();
+                final Interval result = iterators.get(stream).next();
+                if (iterators.get(stream).hasNext()) heads.add(stream);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Merges overlapping and abutting intervals as IntervalList.uniqued() does, concatenating their names, for
+     * intervals that are added in coordinate order.  Merged intervals are passed on as soon as they are complete.
+     */
+    static class UniqueIntervalMerger {
+        private final Consumer<Interval> output;
+        /** The distinct intervals being merged; of several with the same extent, only the first is kept. */
+        private final List<Interval> toBeMerged = new ArrayList<>();
+        private String contig;
+        private int start, end;
+
+        UniqueIntervalMerger(final Consumer<Interval> output) {
+            this.output = output;
+        }
+
+        void add(final Interval next) {
+            if (!toBeMerged.isEmpty()) {
+                if (next.getContig().equals(contig) && (CoordMath.overlaps(start, end, next.getStart(), next.getEnd()) ||
+                        start == next.getEnd() + 1 || next.getStart() == end + 1)) {
+                    final Interval last = toBeMerged.get(toBeMerged.size() - 1);
+                    if (next.getStart() != last.getStart() || next.getEnd() != last.getEnd()) toBeMerged.add(next);
+                    end = Math.max(end, next.getEnd());
+                    return;
+                }
+                flush();
+            }
+            toBeMerged.add(next);
+            contig = next.getContig();
+            start = next.getStart();
+            end = next.getEnd();
+        }
+
+        /** Passes on the interval being merged, if any. */
+        void flush() {
+            if (toBeMerged.isEmpty()) return;
+            final Interval first = toBeMerged.get(0);
+            int mergedStart = first.getStart();
+            int mergedEnd = toBeMerged.get(toBeMerged.size() - 1).getEnd();
+            final LinkedHashSet<String> names = new LinkedHashSet<>();
+            for (final Interval i : toBeMerged) {
+                if (i.getName() != null) names.add(i.getName());
+                mergedStart = Math.min(mergedStart, i.getStart());
+                mergedEnd = Math.max(mergedEnd, i.getEnd());
+            }
+            toBeMerged.clear();
+            output.accept(new Interval(first.getContig(), mergedStart, mergedEnd, first.isNegativeStrand(),
+                    names.isEmpty() ? null : StringUtil.join("|", names)));
+        }
+    }
+
+    /** Merges overlapping and abutting intervals, which must be in coordinate order, as IntervalList.uniqued() does. */
+    static Iterator<Interval> uniqued(final Iterator<Interval> intervals) {
+        return new QueueingIterator() {
+            private final UniqueIntervalMerger merger = new UniqueIntervalMerger(queue::add);
+
+            @Override
+            protected boolean fill() {
+                if (intervals.hasNext()) {
+                    merger.add(intervals.next());
+                    return true;
+                }
+                merger.flush();
+                return !queue.isEmpty();
+            }
+        };
+    }
+
+    /**
+     * Intersects two streams in coordinate order as IntervalList.intersection(list1, list2) does: each overlapping pair
+     * gives an interval named "&lt;list2 name&gt; intersection &lt;list1 name&gt;", and the result is uniqued.  As in
+     * the overlap detector that method uses, intervals of list1 with the same extent as an earlier one are ignored.
+     */
+    static Iterator<Interval> intersection(final Iterator<Interval> list1, final Iterator<Interval> list2, final SAMFileHeader header) {
+        final PeekableIterator<Interval> lhs = new PeekableIterator<>(list1);
+        final PeekableIterator<Interval> rhs = new PeekableIterator<>(list2);
+        final Comparator<Interval> comparator = coordinateComparator(header);
+        final Iterator<Interval> overlaps = new QueueingIterator() {
+            /** The intervals from each list that may overlap intervals still to come. */
+            private final List<Interval> activeLhs = new ArrayList<>(), activeRhs = new ArrayList<>();
+
+            @Override
+            protected boolean fill() {
+                final boolean fromLhs;
+                if (lhs.hasNext() && rhs.hasNext()) fromLhs = comparator.compare(lhs.peek(), rhs.peek()) <= 0;
+                else if (lhs.hasNext()) fromLhs = true;
+                else if (rhs.hasNext()) fromLhs = false;
+                else return false;
+
+                final Interval next = (fromLhs ? lhs : rhs).next();
+                if (next.getStart() > next.getEnd()) return true;
+                // Everything active started at or before next, so overlaps it if it has not ended
+                final List<Interval> others = fromLhs ? activeRhs : activeLhs;
+                others.removeIf(i -> !i.getContig().equals(next.getContig()) || i.getEnd() < next.getStart());
+                for (final Interval other : others) {
+                    queue.add(fromLhs ? other.intersect(next) : next.intersect(other));
+                }
+                final List<Interval> same = fromLhs ? activeLhs : activeRhs;
+                same.removeIf(i -> !i.getContig().equals(next.getContig()) || i.getEnd() < next.getStart());
+                if (!fromLhs || same.stream().noneMatch(i -> i.getStart() == next.getStart() && i.getEnd() == next.getEnd())) {
+                    same.add(next);
+                }
+                return true;
+            }
+        };
+        // Each overlap starts where the later of its pair does, so the overlaps are in order of start
+        return uniqued(sorted(overlaps, header, "intersection"));
+    }
+
+    /** Returns the gaps between intervals in coordinate order, named as IntervalList.invert() names them. */
+    static Iterator<Interval> invert(final Iterator<Interval> intervals, final SAMFileHeader header) {
+        final PeekableIterator<Interval> unique = new PeekableIterator<>(uniqued(intervals));
+        final Iterator<SAMSequenceRecord> sequences = header.getSequenceDictionary().getSequences().iterator();
+        return new QueueingIterator() {
+            private int inverted = 0;
+
+            @Override
+            protected boolean fill() {
+                if (!sequences.hasNext()) return false;
+                final SAMSequenceRecord sequence = sequences.next();
+                int lastCoveredPosition = 0;
+                while (unique.hasNext() && header.getSequenceIndex(unique.peek().getContig()) == sequence.getSequenceIndex()) {
+                    final Interval i = unique.next();
+                    if (i.getStart() > lastCoveredPosition + 1) {
+                        queue.add(new Interval(sequence.getSequenceName(), lastCoveredPosition + 1, i.getStart() - 1, false, "interval-" + ++inverted));
+                    }
+                    lastCoveredPosition = i.getEnd();
+                }
+                if (sequence.getSequenceLength() > lastCoveredPosition) {
+                    queue.add(new Interval(sequence.getSequenceName(), lastCoveredPosition + 1, sequence.getSequenceLength(), false, "interval-" + ++inverted));
+                }
+                return true;
+            }
+        };
+    }
+
+    /** Breaks intervals up at multiples of bandMultiple as IntervalList.breakIntervalsAtBandMultiples() does. */
+    static Iterator<Interval> breakAtBandMultiples(final Iterator<Interval> intervals, final int bandMultiple) {
+        return new QueueingIterator() {
+            @Override
+            protected boolean fill() {
+                if (!intervals.hasNext()) return false;
+                queue.addAll(IntervalList.breakIntervalsAtBandMultiples(Collections.singletonList(intervals.next()), bandMultiple));
+                return true;
+            }
+        };
+    }
+
+    /** A consumer of intervals that is closed once it has been given all of them. */
+    interface IntervalSink extends Consumer<Interval>, AutoCloseable {
+        /** As AutoCloseable.close(), but throwing only unchecked exceptions. */
+        @Override
+        void close();
+    }
+
+    /** Writes interval_list files one interval at a time, in the format of IntervalList.write(). */
+    static class IntervalListWriter implements IntervalSink {
+        private final File file;
+        private final BufferedWriter out;
+        private final FormatUtil format = new FormatUtil();
+        private long count = 0, baseCount = 0;
+
+        IntervalListWriter(final File file, final SAMFileHeader header) {
+            this.file = file;
+            this.out = IOUtil.openFileForBufferedWriting(file);
+            new SAMTextHeaderCodec().encode(out, header);
+        }
+
+        @Override
+        public void accept(final Interval interval) {
+            try {
+                out.write(interval.getContig());
+                out.write('\t');
+                out.write(format.format(interval.getStart()));
+                out.write('\t');
+                out.write(format.format(interval.getEnd()));
+                out.write('\t');
+                out.write(interval.isPositiveStrand() ? '+' : '-');
+                out.write('\t');
+                out.write(interval.getName() != null ? interval.getName() : ".");
+                out.newLine();
+            } catch (final IOException ioe) {
+                throw new RuntimeIOException("Error writing out interval list to file: " + file.getAbsolutePath(), ioe);
+            }
+            ++count;
+            baseCount += interval.length();
+        }
+
+        /** The number of intervals written. */
+        long getCount() { return count; }
+
+        /** The number of bases in the intervals written. */
+        long getBaseCount() { return baseCount; }
+
+        @Override
+        public void close() {
+            try {
+                out.close();
+            } catch (final IOException ioe) {
+                throw new RuntimeIOException("Error writing out interval list to file: " + file.getAbsolutePath(), ioe);
+            }
+        }
+    }
+
+    /**
+     * Scatters intervals exactly as IntervalListScatterer.scatter(list, scatterCount, true) does, but one interval at a
+     * time: the caller first adds every interval to count() and then, from a second stream of the same intervals,
+     * to scatter().
+     */
+    static class Scatterer {
+        private final IntervalListScatterer.Mode mode;
+        private final int scatterCount;
+        private long totalBaseCount = 0;
+        private int widestIntervalLength = Integer.MIN_VALUE;
+
+        Scatterer(final IntervalListScatterer.Mode mode, final int scatterCount) {
+            if (scatterCount < 1) throw new IllegalArgumentException("scatterCount < 1");
+            this.mode = mode;
+            this.scatterCount = scatterCount;
+        }
+
+        /** Counts an interval in the first pass. */
+        void count(final Interval interval) {
+            totalBaseCount += interval.length();
+            widestIntervalLength = Math.max(widestIntervalLength, interval.length());
+        }
+
+        private long idealSplitLength() {
+            final int splitWidth = Math.max((int) Math.floor(totalBaseCount / (1.0 * scatterCount)), 1);
+            switch (mode) {
+                case INTERVAL_SUBDIVISION:
+                    return splitWidth;
+                case BALANCING_WITHOUT_INTERVAL_SUBDIVISION:
+                case BALANCING_WITHOUT_INTERVAL_SUBDIVISION_WITH_OVERFLOW:
+                    if (widestIntervalLength == Integer.MIN_VALUE) throw new NoSuchElementException();
+                    return Math.max(widestIntervalLength, splitWidth);
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        private boolean shouldAddToRunningIntervalList(final long idealSplitLength, final long projectedSize, final double projectedSizeOfRemainingDivisions) {
+            switch (mode) {
+                case BALANCING_WITHOUT_INTERVAL_SUBDIVISION_WITH_OVERFLOW:
+                    return (projectedSize <= idealSplitLength || idealSplitLength < projectedSizeOfRemainingDivisions);
+                default:
+                    return (projectedSize <= idealSplitLength);
+            }
+        }
+
+        /**
+         * Scatters the intervals, which must be those that were counted, into consecutive lists, each of which is
+         * uniqued and passed to the consumer returned by newList for its index, counting from 0.  Returns the number of
+         * lists.
+         */
+        <T extends IntervalSink> int scatter(final Iterator<Interval> intervals, final IntFunction<T> newList) {
+            final long idealSplitLength = idealSplitLength();
+            final RunningList<T> running = new RunningList<>(newList);
+            Interval pushedBack = null;
+            long numBasesLeft = totalBaseCount;
+
+            while ((pushedBack != null || intervals.hasNext()) && running.index < scatterCount - 1) {
+                final Interval interval;
+                if (pushedBack != null) {
+                    interval = pushedBack;
+                    pushedBack = null;
+                } else {
+                    interval = intervals.next();
+                }
+                final long projectedSize = running.baseCount + interval.length();
+                final double projectedSizeOfRemainingDivisions = (numBasesLeft - running.baseCount) / ((double) (scatterCount - running.index - 1));
+
+                if (shouldAddToRunningIntervalList(idealSplitLength, projectedSize, projectedSizeOfRemainingDivisions)) {
+                    running.add(interval);
+                } else {
+                    switch (mode) {
+                        case INTERVAL_SUBDIVISION:
+                            final int amountToConsume = (int) (idealSplitLength - running.baseCount);
+                            running.add(new Interval(interval.getContig(), interval.getStart(), interval.getStart() + amountToConsume - 1,
+                                    interval.isNegativeStrand(), interval.getName()));
+                            pushedBack = new Interval(interval.getContig(), interval.getStart() + amountToConsume, interval.getEnd(),
+                                    interval.isNegativeStrand(), interval.getName());
+                            break;
+
+                        case BALANCING_WITHOUT_INTERVAL_SUBDIVISION:
+                        case BALANCING_WITHOUT_INTERVAL_SUBDIVISION_WITH_OVERFLOW:
+                            if (running.size == 0) {
+                                running.add(interval);
+                            } else {
+                                pushedBack = interval;
+                                numBasesLeft -= running.baseCount;
+                                running.finish();
+                            }
+                            break;
+                    }
+                }
+
+                if (running.baseCount >= idealSplitLength) {
+                    numBasesLeft -= running.baseCount;
+                    running.finish();
+                }
+            }
+
+            // Flush the remaining intervals into the last split.
+            if (pushedBack != null) running.add(pushedBack);
+            while (intervals.hasNext()) running.add(intervals.next());
+            if (running.size > 0) running.finish();
+            return running.index;
+        }
+
+        /** The list being filled, whose uniqued intervals are passed on as they are merged. */
+        private static class RunningList<T extends IntervalSink> {
+            private final IntFunction<T> newList;
+            int index = 0;
+            long size = 0, baseCount = 0;
+            private T list;
+            private UniqueIntervalMerger merger;
+
+            RunningList(final IntFunction<T> newList) {
+                this.newList = newList;
+            }
+
+            void add(final Interval interval) {
+                if (list == null) {
+                    list = newList.apply(index);
+                    merger = new UniqueIntervalMerger(list);
+                }
+                merger.add(interval);
+                ++size;
+                baseCount += interval.length();
+            }
+
+            void finish() {
+                merger.flush();
+                list.close();
+                list = null;
+                ++index;
+                size = 0;
+                baseCount = 0;
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package picard.util;
 import htsjdk.samtools.SAMException;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMProgramRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Interval;
@@ -23,8 +25,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Supplier;
 
 /**
  * Little class to aid working with interval lists.
@@ -108,6 +112,11 @@ public class IntervalListTools extends CommandLineProgram {
     @Option(doc = "Produce the inverse list", optional = true)
     public boolean INVERT = false;
 
+    @Option(doc = "If true, the INPUT and SECOND_INPUT files are assumed to be sorted by coordinate, and are read and written " +
+            "one interval at a time rather than loaded into memory, so that memory use does not grow with the number of intervals. " +
+            "Intervals that start at the same position may be in any order.  Implies SORT=true.  Scattering reads the inputs twice.")
+    public boolean ASSUME_SORTED = false;
+
     private static final Log LOG = Log.getInstance(IntervalListTools.class);
 
     public enum Action implements CommandLineParser.ClpEnum {
@@ -119,6 +128,11 @@ public class IntervalListTools extends CommandLineProgram {
                     throw new IllegalArgumentException(String.format("Second List found when action was %s. Ignoring second list.", this.name()));
                 return IntervalList.concatenate(list);
             }
+
+            @Override
+            Iterator<Interval> actStreaming(final List<Supplier<Iterator<Interval>>> list1, final List<Supplier<Iterator<Interval>>> list2, final SAMFileHeader header) {
+                return IntervalListStreams.merge(open(list1), header);
+            }
         },
         UNION("Like CONCATENATE but with UNIQUE and SORT implied, the result being the set-wise union of all INPUTS.") {
             @Override
@@ -127,6 +141,11 @@ public class IntervalListTools extends CommandLineProgram {
                     throw new IllegalArgumentException(String.format("Second List found when action was %s. Ignoring second list.", this.name()));
                 return IntervalList.union(list);
             }
+
+            @Override
+            Iterator<Interval> actStreaming(final List<Supplier<Iterator<Interval>>> list1, final List<Supplier<Iterator<Interval>>> list2, final SAMFileHeader header) {
+                return IntervalListStreams.uniqued(IntervalListStreams.merge(open(list1), header));
+            }
         },
         INTERSECT("The sorted, uniqued set of all loci that are contained in all of the INPUTs.") {
             @Override
@@ -135,6 +154,15 @@ public class IntervalListTools extends CommandLineProgram {
                     throw new IllegalArgumentException(String.format("Second List found when action was %s. Ignoring second list.", this.name()));
                 return IntervalList.intersection(list);
             }
+
+            @Override
+            Iterator<Interval> actStreaming(final List<Supplier<Iterator<Interval>>> list1, final List<Supplier<Iterator<Interval>>> list2, final SAMFileHeader header) {
+                Iterator<Interval> intersection = list1.get(0).get();
+                for (final Supplier<Iterator<Interval>> list : list1.subList(1, list1.size())) {
+                    intersection = IntervalListStreams.intersection(intersection, list.get(), header);
+                }
+                return intersection;
+            }
         },
         SUBTRACT("Subtracts SECOND_INPUT from INPUT. The resulting loci are there in INPUT that are not in SECOND_INPUT") {
             @Override
@@ -142,12 +170,23 @@ public class IntervalListTools extends CommandLineProgram {
                 return IntervalList.subtract(list1, list2);
 
             }
+
+            @Override
+            Iterator<Interval> actStreaming(final List<Supplier<Iterator<Interval>>> list1, final List<Supplier<Iterator<Interval>>> list2, final SAMFileHeader header) {
+                return subtract(list1, list2, header);
+            }
         },
         SYMDIFF("Find loci that are in INPUT or SECOND_INPUT but are not in both.") {
             @Override
             IntervalList act(final List<IntervalList> list1, final List<IntervalList> list2) {
                 return IntervalList.difference(list1, list2);
             }
+
+            @Override
+            Iterator<Interval> actStreaming(final List<Supplier<Iterator<Interval>>> list1, final List<Supplier<Iterator<Interval>>> list2, final SAMFileHeader header) {
+                return IntervalListStreams.uniqued(IntervalListStreams.merge(
+                        Arrays.asList(subtract(list1, list2, header), subtract(list2, list1, header)), header));
+            }
         };
 
         String helpdoc;
@@ -163,6 +202,29 @@ public class IntervalListTools extends CommandLineProgram {
 
         abstract IntervalList act(final List<IntervalList> list1, final List<IntervalList> list2);
 
+        /**
+         * Streaming equivalent of act(), for inputs in coordinate order, whose result is in coordinate order.  The lists
+         * are opened by calling get(), once for each time they are read.
+         */
+        abstract Iterator<Interval> actStreaming(final List<Supplier<Iterator<Interval>>> list1,
+                                                 final List<Supplier<Iterator<Interval>>> list2,
+                                                 final SAMFileHeader header);
+
+        private static List<Iterator<Interval>> open(final List<Supplier<Iterator<Interval>>> lists) {
+            final List<Iterator<Interval>> opened = new ArrayList<>(lists.size());
+            for (final Supplier<Iterator<Interval>> list : lists) opened.add(list.get());
+            return opened;
+        }
+
+        /** Streaming equivalent of IntervalList.subtract(). */
+        private static Iterator<Interval> subtract(final List<Supplier<Iterator<Interval>>> lhs,
+                                                   final List<Supplier<Iterator<Interval>>> rhs,
+                                                   final SAMFileHeader header) {
+            final Iterator<Interval> lhsUnion = IntervalListStreams.uniqued(IntervalListStreams.merge(open(lhs), header));
+            final Iterator<Interval> rhsUnion = IntervalListStreams.uniqued(IntervalListStreams.merge(open(rhs), header));
+            return IntervalListStreams.intersection(lhsUnion, IntervalListStreams.invert(rhsUnion, header), header);
+        }
+
     }
 
     // Stock main method
@@ -184,6 +246,11 @@ public class IntervalListTools extends CommandLineProgram {
             }
         }
 
+        if (ASSUME_SORTED) {
+            streamIntervalLists();
+            return 0;
+        }
+
         // Read in the interval lists and apply any padding
         final List<IntervalList> lists = openIntervalLists(INPUT);
 
@@ -217,26 +284,8 @@ public class IntervalListTools extends CommandLineProgram {
             finalIntervals = IntervalList.breakIntervalsAtBandMultiples(finalIntervals, BREAK_BANDS_AT_MULTIPLES_OF);
         }
 
-        // Decide on a PG ID and make a program group
         final SAMFileHeader header = result.getHeader();
-        final Set<String> pgs = new HashSet<String>();
-        for (final SAMProgramRecord pg : header.getProgramRecords()) pgs.add(pg.getId());
-        for (int i = 1; i < Integer.MAX_VALUE; ++i) {
-            if (!pgs.contains(String.valueOf(i))) {
-                final SAMProgramRecord pg = new SAMProgramRecord(String.valueOf(i));
-                pg.setCommandLine(getCommandLine());
-                pg.setProgramName(getClass().getSimpleName());
-                header.addProgramRecord(pg);
-                break;
-            }
-        }
-
-        // Add any comments
-        if (COMMENT != null) {
-            for (final String comment : COMMENT) {
-                header.addComment(comment);
-            }
-        }
+        addProgramRecordAndComments(header);
 
         final IntervalList output = new IntervalList(header);
         for (final Interval i : finalIntervals) {
@@ -250,15 +299,7 @@ public class IntervalListTools extends CommandLineProgram {
                 resultIntervals = Arrays.asList(output);
             } else {
                 final List<IntervalList> scattered = writeScatterIntervals(output);
-                LOG.info(String.format("Wrote %s scatter subdirectories to %s.", scattered.size(), OUTPUT));
-                if (scattered.size() != SCATTER_COUNT) {
-                    LOG.warn(String.format(
-                            "Requested scatter width of %s, but only emitted %s.  (This may be an expected consequence of running in %s mode.)",
-                            SCATTER_COUNT,
-                            scattered.size(),
-                            SUBDIVISION_MODE
-                    ));
-                }
+                logScatterCount(scattered.size());
                 resultIntervals = scattered;
             }
         } else {
@@ -278,6 +319,148 @@ public class IntervalListTools extends CommandLineProgram {
     }
 
 
+    /** Decides on a PG ID and adds a program group, and adds any comments, to the output header. */
+    private void addProgramRecordAndComments(final SAMFileHeader header) {
+        final Set<String> pgs = new HashSet<String>();
+        for (final SAMProgramRecord pg : header.getProgramRecords()) pgs.add(pg.getId());
+        for (int i = 1; i < Integer.MAX_VALUE; ++i) {
+            if (!pgs.contains(String.valueOf(i))) {
+                final SAMProgramRecord pg = new SAMProgramRecord(String.valueOf(i));
+                pg.setCommandLine(getCommandLine());
+                pg.setProgramName(getClass().getSimpleName());
+                header.addProgramRecord(pg);
+                break;
+            }
+        }
+
+        // Add any comments
+        if (COMMENT != null) {
+            for (final String comment : COMMENT) {
+                header.addComment(comment);
+            }
+        }
+    }
+
+    private void logScatterCount(final int scatteredCount) {
+        LOG.info(String.format("Wrote %s scatter subdirectories to %s.", scatteredCount, OUTPUT));
+        if (scatteredCount != SCATTER_COUNT) {
+            LOG.warn(String.format(
+                    "Requested scatter width of %s, but only emitted %s.  (This may be an expected consequence of running in %s mode.)",
+                    SCATTER_COUNT,
+                    scatteredCount,
+                    SUBDIVISION_MODE
+            ));
+        }
+    }
+
+    /**
+     * Does what doWork() does for inputs that are sorted, one interval at a time, holding only the intervals that
+     * overlap the current position.  The output header, and any error from the action or from the inputs' sequence
+     * dictionaries not matching, come from acting on empty lists with the inputs' headers.
+     */
+    private void streamIntervalLists() {
+        final List<CloseableIterator<Interval>> opened = new ArrayList<>();
+        try {
+            final IntervalList emptyResult = ACTION.act(emptyIntervalLists(INPUT), emptyIntervalLists(SECOND_INPUT));
+            final SAMFileHeader header = emptyResult.getHeader();
+            addProgramRecordAndComments(header);
+
+            if (!SORT) {
+                LOG.warn("ASSUME_SORTED=true implies sorting but SORT=false was specified.  Results will be sorted!");
+            }
+            if (SCATTER_COUNT > 1 || INVERT) UNIQUE = true;
+
+            // The result before breaking at bands, which is sorted and so can be uniqued to count its unique bases
+            final Supplier<Iterator<Interval>> unbrokenResult = () -> {
+                Iterator<Interval> result = ACTION.actStreaming(streamIntervalLists(INPUT, opened), streamIntervalLists(SECOND_INPUT, opened), header);
+                if (INVERT) result = IntervalListStreams.invert(result, header);
+                if (UNIQUE) result = IntervalListStreams.uniqued(result);
+                return result;
+            };
+
+            long totalUniqueBaseCount = 0;
+            long intervalCount = 0;
+            if (OUTPUT != null && SCATTER_COUNT > 1) {
+                final IntervalListStreams.Scatterer scatterer = new IntervalListStreams.Scatterer(SUBDIVISION_MODE, SCATTER_COUNT);
+                for (final Iterator<Interval> intervals = breakAtBands(unbrokenResult.get()); intervals.hasNext(); ) {
+                    scatterer.count(intervals.next());
+                }
+                CloserUtil.close(opened);
+                opened.clear();
+
+                // The directories are named for the number of lists, which is only known at the end
+                createDirectoryOrFail(OUTPUT);
+                final DecimalFormat fileNameFormatter = new DecimalFormat("0000");
+                final List<File> scatterFiles = new ArrayList<>();
+                final List<IntervalListStreams.IntervalListWriter> writers = new ArrayList<>();
+                final int scatteredCount = scatterer.scatter(breakAtBands(unbrokenResult.get()), index -> {
+                    final File file = new File(OUTPUT, ".scattered_" + fileNameFormatter.format(index + 1) + IntervalList.INTERVAL_LIST_FILE_EXTENSION);
+                    scatterFiles.add(file);
+                    writers.add(new IntervalListStreams.IntervalListWriter(file, header));
+                    return writers.get(writers.size() - 1);
+                });
+                for (int i = 0; i < scatteredCount; ++i) {
+                    final File scatterFile = createDirectoryAndGetScatterFile(OUTPUT, scatteredCount, fileNameFormatter.format(i + 1));
+                    if (!scatterFiles.get(i).renameTo(scatterFile)) {
+                        throw new PicardException("Unable to move " + scatterFiles.get(i).getAbsolutePath() + " to " + scatterFile.getAbsolutePath());
+                    }
+                    // Each scattered list is uniqued, so its bases are unique
+                    totalUniqueBaseCount += writers.get(i).getBaseCount();
+                    intervalCount += writers.get(i).getCount();
+                }
+                logScatterCount(scatteredCount);
+            } else {
+                final long[] uniqueBaseCount = {0};
+                final IntervalListStreams.UniqueIntervalMerger uniqueCounter =
+                        new IntervalListStreams.UniqueIntervalMerger(interval -> uniqueBaseCount[0] += interval.length());
+                final Iterator<Interval> intervals = breakAtBands(IntervalListStreams.peek(unbrokenResult.get(), uniqueCounter::add));
+                if (OUTPUT != null) {
+                    try (final IntervalListStreams.IntervalListWriter writer = new IntervalListStreams.IntervalListWriter(OUTPUT, header)) {
+                        while (intervals.hasNext()) writer.accept(intervals.next());
+                        intervalCount = writer.getCount();
+                    }
+                } else {
+                    for (; intervals.hasNext(); intervals.next()) ++intervalCount;
+                }
+                uniqueCounter.flush();
+                totalUniqueBaseCount = uniqueBaseCount[0];
+            }
+
+            LOG.info("Produced " + intervalCount + " intervals totalling " + totalUniqueBaseCount + " unique bases.");
+        } finally {
+            CloserUtil.close(opened);
+        }
+    }
+
+    private Iterator<Interval> breakAtBands(final Iterator<Interval> intervals) {
+        return BREAK_BANDS_AT_MULTIPLES_OF > 0 ? IntervalListStreams.breakAtBandMultiples(intervals, BREAK_BANDS_AT_MULTIPLES_OF) : intervals;
+    }
+
+    /** Returns empty, padded interval lists with the headers of the files. */
+    private List<IntervalList> emptyIntervalLists(final List<File> files) {
+        final List<IntervalList> lists = new ArrayList<>();
+        for (final File f : files) {
+            try (final IntervalListStreams.FileIntervals intervals = new IntervalListStreams.FileIntervals(f, TYPE.forFile(f) == TYPE.VCF, INCLUDE_FILTERED)) {
+                lists.add(new IntervalList(intervals.getHeader()).padded(PADDING));
+            }
+        }
+        return lists;
+    }
+
+    /** Returns suppliers that each open a file as a stream of padded intervals in coordinate order. */
+    private List<Supplier<Iterator<Interval>>> streamIntervalLists(final List<File> files, final List<CloseableIterator<Interval>> opened) {
+        final List<Supplier<Iterator<Interval>>> lists = new ArrayList<>();
+        for (final File f : files) {
+            lists.add(() -> {
+                final IntervalListStreams.FileIntervals intervals = new IntervalListStreams.FileIntervals(f, TYPE.forFile(f) == TYPE.VCF, INCLUDE_FILTERED);
+                opened.add(intervals);
+                final SAMFileHeader header = intervals.getHeader();
+                return IntervalListStreams.sorted(IntervalListStreams.padded(intervals, header.getSequenceDictionary(), PADDING), header, f.getAbsolutePath());
+            });
+        }
+        return lists;
+    }
+
     private List<IntervalList> openIntervalLists(final List<File> files){
         final List<IntervalList> lists = new ArrayList<IntervalList>();
         for (final File f : files) {
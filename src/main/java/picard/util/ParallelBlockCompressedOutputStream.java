@@ -0,0 +1,328 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A BGZF output stream that compresses blocks on a pool of deflater threads and writes them, in order, from a single
+ * writer thread.  Blocks are cut at exactly the same places as BlockCompressedOutputStream (full blocks of
+ * DEFAULT_UNCOMPRESSED_BLOCK_SIZE bytes, plus a partial block whenever flush() is called) and are deflated with a
+ * Deflater from the same default DeflaterFactory, so the bytes written are identical to the single-threaded stream.
+ * <p/>
+ * Because the address of a block is only known once all the blocks before it have been compressed, getPosition()
+ * returns a virtual file pointer in which the block address is replaced by the block's ordinal number.  A
+ * BlockListener is told the real address of each block as it is written, which is enough to translate those pointers.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+
+    /** Notified on the writer thread, in order, as each block is written to the underlying stream. */
+    public interface BlockListener {
+        void blockWritten(long blockNumber, long blockAddress, int compressedSize);
+    }
+
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+    private static volatile int threadsCreated = 0; // Just used for thread naming.
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final ExecutorService deflaterPool;
+    private final ThreadLocal<BlockDeflater> deflaters = new ThreadLocal<BlockDeflater>() {
+        @Override
+        protected BlockDeflater initialValue() {
+            return new BlockDeflater(compressionLevel);
+        }
+    };
+    private final BlockingQueue<PendingBlock> pendingBlocks;
+    private final Thread writer;
+    private final AtomicReference<Throwable> ex = new AtomicReference<Throwable>(null);
+    private volatile BlockListener blockListener = null;
+
+    private byte[] uncompressedBuffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    private int numUncompressedBytes = 0;
+    private long blockNumber = 0;
+    private boolean isClosed = false;
+    private final byte[] singleByteArray = new byte[1];
+
+    /**
+     * @param out              the stream to which the compressed blocks are written
+     * @param compressionLevel the deflate level, 0-9
+     * @param numThreads       the number of deflater threads
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream out, final int compressionLevel, final int numThreads) {
+        if (compressionLevel < 0 || compressionLevel > 9) throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        if (numThreads < 1) throw new IllegalArgumentException("numThreads must be >= 1");
+        this.out = out;
+        this.compressionLevel = compressionLevel;
+        this.pendingBlocks = new ArrayBlockingQueue<PendingBlock>(numThreads * BLOCKS_IN_FLIGHT_PER_THREAD);
+
+        final int id = threadsCreated++;
+        this.deflaterPool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private int n = 0;
+
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "BgzfDeflater" + id + "-" + n++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.writer = new Thread(new WriterRunnable(), "BgzfWriter" + id);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public void setBlockListener(final BlockListener blockListener) {
+        this.blockListener = blockListener;
+    }
+
+    /**
+     * Returns a virtual file pointer for the next byte to be written, with the ordinal number of the current block in
+     * place of its address.
+     */
+    public long getPosition() {
+        return (blockNumber << 16) | numUncompressedBytes;
+    }
+
+    /** Returns the ordinal number of the block part of a pointer returned by getPosition(). */
+    public static long getBlockNumber(final long position) {
+        return position >>> 16;
+    }
+
+    /** Returns the offset within the block of a pointer returned by getPosition(). */
+    public static int getBlockOffset(final long position) {
+        return (int) (position & 0xffff);
+    }
+
+    @Override
+    public void write(final int bite) throws IOException {
+        singleByteArray[0] = (byte) bite;
+        write(singleByteArray, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void write(final byte[] bytes, int startIndex, int numBytes) throws IOException {
+        assertOpen();
+        while (numBytes > 0) {
+            final int bytesToWrite = Math.min(uncompressedBuffer.length - numUncompressedBytes, numBytes);
+            System.arraycopy(bytes, startIndex, uncompressedBuffer, numUncompressedBytes, bytesToWrite);
+            numUncompressedBytes += bytesToWrite;
+            startIndex += bytesToWrite;
+            numBytes -= bytesToWrite;
+            if (numUncompressedBytes == uncompressedBuffer.length) submitBlock();
+        }
+    }
+
+    /** Compresses any buffered bytes as a (possibly short) block and waits until everything has been written. */
+    @Override
+    public void flush() throws IOException {
+        assertOpen();
+        submitBlock();
+        final CountDownLatch flushed = new CountDownLatch(1);
+        enqueue(new PendingBlock(null, flushed));
+        try {
+            while (!flushed.await(1, TimeUnit.SECONDS)) checkAndRethrow();
+        } catch (final InterruptedException ie) {
+            throw new RuntimeException("Interrupted waiting for blocks to be written.", ie);
+        }
+        checkAndRethrow();
+    }
+
+    /** Flushes, writes the BGZF terminator block and closes the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) return;
+        try {
+            flush();
+            isClosed = true;
+            enqueue(new PendingBlock(null, null));
+            writer.join();
+        } catch (final InterruptedException ie) {
+            throw new RuntimeException("Interrupted waiting on writer thread.", ie);
+        } finally {
+            deflaterPool.shutdown();
+        }
+        checkAndRethrow();
+        out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        out.close();
+    }
+
+    private void submitBlock() {
+        if (numUncompressedBytes == 0) return;
+        final byte[] block = uncompressedBuffer;
+        final int length = numUncompressedBytes;
+        final Future<byte[]> compressed;
+        try {
+            compressed = deflaterPool.submit(new Callable<byte[]>() {
+                public byte[] call() {
+                    return deflaters.get().deflate(block, length);
+                }
+            });
+        } catch (final RejectedExecutionException ree) {
+            // The pool is shut down once the writer has failed; report why it failed
+            checkAndRethrow();
+            throw ree;
+        }
+        enqueue(new PendingBlock(compressed, null));
+        uncompressedBuffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        numUncompressedBytes = 0;
+        ++blockNumber;
+    }
+
+    private void enqueue(final PendingBlock pendingBlock) {
+        try {
+            while (!pendingBlocks.offer(pendingBlock, 1, TimeUnit.SECONDS)) checkAndRethrow();
+        } catch (final InterruptedException ie) {
+            throw new RuntimeException("Interrupted queueing block for writing.", ie);
+        }
+    }
+
+    private void assertOpen() {
+        if (isClosed) throw new RuntimeIOException("ParallelBlockCompressedOutputStream already closed.");
+        checkAndRethrow();
+    }
+
+    /**
+     * Checks to see if an exception has been raised in the writer or deflater threads and if so rethrows it as an
+     * Error or RuntimeException as appropriate.
+     */
+    private void checkAndRethrow() {
+        final Throwable t = this.ex.get();
+        if (t != null) {
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            else throw new RuntimeIOException(t);
+        }
+    }
+
+    /** A compressed block (or flush/end marker when data is null) waiting to be written. */
+    private static class PendingBlock {
+        final Future<byte[]> data;
+        final CountDownLatch flushed;
+
+        PendingBlock(final Future<byte[]> data, final CountDownLatch flushed) {
+            this.data = data;
+            this.flushed = flushed;
+        }
+    }
+
+    /** Takes blocks off the queue in submission order and writes them as soon as each has been compressed. */
+    private class WriterRunnable implements Runnable {
+        public void run() {
+            long blockAddress = 0;
+            long writtenBlocks = 0;
+            try {
+                while (true) {
+                    final PendingBlock pendingBlock = pendingBlocks.take();
+                    if (pendingBlock.data != null) {
+                        final byte[] compressed = pendingBlock.data.get();
+                        out.write(compressed);
+                        final BlockListener listener = blockListener;
+                        if (listener != null) listener.blockWritten(writtenBlocks, blockAddress, compressed.length);
+                        blockAddress += compressed.length;
+                        ++writtenBlocks;
+                    } else if (pendingBlock.flushed != null) {
+                        out.flush();
+                        pendingBlock.flushed.countDown();
+                    } else {
+                        return;
+                    }
+                }
+            } catch (final ExecutionException ee) {
+                ex.compareAndSet(null, ee.getCause());
+                deflaterPool.shutdownNow();
+            } catch (final Throwable t) {
+                ex.compareAndSet(null, t);
+                deflaterPool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Per-thread deflater state.  Mirrors BlockCompressedOutputStream.deflateBlock(), including falling back to
+     * storing the block uncompressed if deflating it would not fit in a BGZF block.  Also used by ParallelGzipOutputStream.
+     */
+    static class BlockDeflater {
+        private final Deflater deflater;
+        private final Deflater noCompressionDeflater = new Deflater(Deflater.NO_COMPRESSION, true);
+        private final CRC32 crc32 = new CRC32();
+        private final byte[] compressedBuffer = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE -
+                BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+
+        BlockDeflater(final int compressionLevel) {
+            this.deflater = BlockCompressedOutputStream.getDefaultDeflaterFactory().makeDeflater(compressionLevel, true);
+        }
+
+        byte[] deflate(final byte[] uncompressed, final int length) {
+            deflater.reset();
+            deflater.setInput(uncompressed, 0, length);
+            deflater.finish();
+            int compressedSize = deflater.deflate(compressedBuffer, 0, compressedBuffer.length);
+            if (!deflater.finished()) {
+                noCompressionDeflater.reset();
+                noCompressionDeflater.setInput(uncompressed, 0, length);
+                noCompressionDeflater.finish();
+                compressedSize = noCompressionDeflater.deflate(compressedBuffer, 0, compressedBuffer.length);
+                if (!noCompressionDeflater.finished()) throw new IllegalStateException("Uncompressed block does not fit in a BGZF block.");
+            }
+            crc32.reset();
+            crc32.update(uncompressed, 0, length);
+
+            final int totalBlockSize = compressedSize + BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH +
+                    BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+            final ByteBuffer block = ByteBuffer.allocate(totalBlockSize).order(ByteOrder.LITTLE_ENDIAN);
+            block.put(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE);
+            block.putShort((short) (totalBlockSize - 1));
+            block.put(compressedBuffer, 0, compressedSize);
+            block.putInt((int) crc32.getValue());
+            block.putInt(length);
+            return block.array();
+        }
+    }
+}
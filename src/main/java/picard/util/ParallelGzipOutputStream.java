@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip output stream that cuts its input into chunks, compresses each chunk as a separate gzip member on a
+ * DeflaterPool, and writes the members in order.  A file of several gzip members is itself a valid gzip file, which
+ * gunzip and GZIPInputStream read as the concatenation of the members.  In BGZF format each chunk is a BGZF block, as
+ * BlockCompressedOutputStream would write it, and the stream ends with the BGZF terminator block.
+ * <p/>
+ * Any number of streams may share one DeflaterPool, so that the number of threads compressing is set by the pool rather
+ * than by the number of files being written.  Compressed chunks are written to the underlying stream by the thread
+ * writing to this stream, as they become ready, so a stream needs no thread of its own.  Like GZIPOutputStream, a
+ * stream must not be written to by more than one thread at once.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    public enum Format {
+        /** Chunks of GZIP_CHUNK_SIZE bytes, each compressed as a plain gzip member. */
+        GZIP,
+        /** Chunks of the BGZF block size, each compressed as a BGZF block. */
+        BGZF
+    }
+
+    /** Large enough that the extra gzip header and footer of each member cost nothing measurable. */
+    public static final int GZIP_CHUNK_SIZE = 256 * 1024;
+    private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * Threads that compress the chunks of any number of ParallelGzipOutputStreams.  The number of chunks submitted but
+     * not yet compressed is limited across all the streams, so that memory does not grow with the number of streams.
+     */
+    public static class DeflaterPool implements Closeable {
+        private static volatile int poolsCreated = 0; // Just used for thread naming.
+
+        private final int compressionLevel;
+        private final int maxChunksInFlight;
+        private final ExecutorService executor;
+        private final Semaphore chunksInFlight;
+        private final ThreadLocal<MemberDeflater> gzipDeflaters = new ThreadLocal<MemberDeflater>() {
+            @Override
+            protected MemberDeflater initialValue() {
+                return new MemberDeflater(compressionLevel);
+            }
+        };
+        private final ThreadLocal<ParallelBlockCompressedOutputStream.BlockDeflater> bgzfDeflaters =
+                new ThreadLocal<ParallelBlockCompressedOutputStream.BlockDeflater>() {
+                    @Override
+                    protected ParallelBlockCompressedOutputStream.BlockDeflater initialValue() {
+                        return new ParallelBlockCompressedOutputStream.BlockDeflater(compressionLevel);
+                    }
+                };
+
+        /**
+         * @param compressionLevel the deflate level, 0-9
+         * @param numThreads       the number of deflater threads
+         */
+        public DeflaterPool(final int compressionLevel, final int numThreads) {
+            if (compressionLevel < 0 || compressionLevel > 9) throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+            if (numThreads < 1) throw new IllegalArgumentException("numThreads must be >= 1");
+            this.compressionLevel = compressionLevel;
+            this.maxChunksInFlight = numThreads * CHUNKS_IN_FLIGHT_PER_THREAD;
+            this.chunksInFlight = new Semaphore(maxChunksInFlight);
+            final int id = poolsCreated++;
+            this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                private int n = 0;
+
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "GzipDeflater" + id + "-" + n++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        /** Compresses length bytes of chunk, which the caller must not touch again, blocking while too many chunks are in flight. */
+        private Future<byte[]> submit(final byte[] chunk, final int length, final Format format) {
+            try {
+                chunksInFlight.acquire();
+            } catch (final InterruptedException ie) {
+                throw new RuntimeException("Interrupted waiting to compress chunk.", ie);
+            }
+            return executor.submit(() -> {
+                try {
+                    return format == Format.BGZF ? bgzfDeflaters.get().deflate(chunk, length) : gzipDeflaters.get().deflate(chunk, length);
+                } finally {
+                    chunksInFlight.release();
+                }
+            });
+        }
+
+        /** Stops the deflater threads.  All streams using the pool must have been closed. */
+        @Override
+        public void close() {
+            executor.shutdown();
+        }
+    }
+
+    private final OutputStream out;
+    private final Format format;
+    private final DeflaterPool pool;
+    private final int chunkSize;
+    /** Chunks submitted for compression, in the order they are to be written. */
+    private final ArrayDeque<Future<byte[]>> pendingChunks = new ArrayDeque<Future<byte[]>>();
+
+    private byte[] uncompressedBuffer;
+    private int numUncompressedBytes = 0;
+    private boolean isClosed = false;
+    private boolean anyChunkSubmitted = false;
+    private final byte[] singleByteArray = new byte[1];
+
+    /**
+     * @param out    the stream to which the compressed chunks are written
+     * @param format whether to write plain gzip members or BGZF blocks
+     * @param pool   the threads that compress the chunks
+     */
+    public ParallelGzipOutputStream(final OutputStream out, final Format format, final DeflaterPool pool) {
+        this.out = out;
+        this.format = format;
+        this.pool = pool;
+        this.chunkSize = format == Format.BGZF ? BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE : GZIP_CHUNK_SIZE;
+        this.uncompressedBuffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(final int bite) throws IOException {
+        singleByteArray[0] = (byte) bite;
+        write(singleByteArray, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void write(final byte[] bytes, int startIndex, int numBytes) throws IOException {
+        if (isClosed) throw new RuntimeIOException("ParallelGzipOutputStream already closed.");
+        while (numBytes > 0) {
+            final int bytesToWrite = Math.min(chunkSize - numUncompressedBytes, numBytes);
+            System.arraycopy(bytes, startIndex, uncompressedBuffer, numUncompressedBytes, bytesToWrite);
+            numUncompressedBytes += bytesToWrite;
+            startIndex += bytesToWrite;
+            numBytes -= bytesToWrite;
+            if (numUncompressedBytes == chunkSize) submitChunk();
+        }
+    }
+
+    /** Compresses any buffered bytes as a (possibly short) chunk and waits until everything has been written. */
+    @Override
+    public void flush() throws IOException {
+        if (isClosed) throw new RuntimeIOException("ParallelGzipOutputStream already closed.");
+        submitChunk();
+        writeChunks(true);
+        out.flush();
+    }
+
+    /**
+     * Flushes, writes the BGZF terminator block if writing BGZF, and closes the underlying stream.  As for
+     * GZIPOutputStream, an empty stream is written as a single empty gzip member.
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) return;
+        if (format == Format.GZIP && !anyChunkSubmitted) {
+            pendingChunks.add(pool.submit(uncompressedBuffer, 0, format));
+            anyChunkSubmitted = true;
+        }
+        flush();
+        isClosed = true;
+        if (format == Format.BGZF) out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        out.close();
+    }
+
+    private void submitChunk() throws IOException {
+        if (numUncompressedBytes == 0) return;
+        pendingChunks.add(pool.submit(uncompressedBuffer, numUncompressedBytes, format));
+        anyChunkSubmitted = true;
+        uncompressedBuffer = new byte[chunkSize];
+        numUncompressedBytes = 0;
+        // Don't let chunks that have been compressed pile up behind one that is taking a while
+        writeChunks(pendingChunks.size() >= pool.maxChunksInFlight);
+    }
+
+    /** Writes the chunks at the head of the queue that have been compressed, or if wait then all of them. */
+    private void writeChunks(final boolean wait) throws IOException {
+        while (!pendingChunks.isEmpty() && (wait || pendingChunks.peek().isDone())) {
+            try {
+                out.write(pendingChunks.poll().get());
+            } catch (final InterruptedException ie) {
+                throw new RuntimeException("Interrupted waiting for chunk to be compressed.", ie);
+            } catch (final ExecutionException ee) {
+                final Throwable t = ee.getCause();
+                if (t instanceof Error) throw (Error) t;
+                if (t instanceof RuntimeException) throw (RuntimeException) t;
+                throw new RuntimeIOException(t);
+            }
+        }
+    }
+
+    /** Per-thread deflater state for compressing a chunk as a plain gzip member, as GZIPOutputStream would. */
+    private static class MemberDeflater {
+        /** ID1, ID2, CM = deflate, FLG = 0, MTIME = 0, XFL = 0, OS = 0, as written by GZIPOutputStream */
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+        private final Deflater deflater;
+        private final CRC32 crc32 = new CRC32();
+        private final byte[] deflateBuffer = new byte[64 * 1024];
+        private final ByteArrayOutputStream member = new ByteArrayOutputStream(GZIP_CHUNK_SIZE);
+
+        MemberDeflater(final int compressionLevel) {
+            this.deflater = new Deflater(compressionLevel, true);
+        }
+
+        byte[] deflate(final byte[] uncompressed, final int length) {
+            member.reset();
+            member.write(HEADER, 0, HEADER.length);
+            deflater.reset();
+            deflater.setInput(uncompressed, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                final int compressedSize = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+                member.write(deflateBuffer, 0, compressedSize);
+            }
+            crc32.reset();
+            crc32.update(uncompressed, 0, length);
+            writeInt((int) crc32.getValue());
+            writeInt(length);
+            return member.toByteArray();
+        }
+
+        private void writeInt(final int value) {
+            member.write(value & 0xff);
+            member.write((value >>> 8) & 0xff);
+            member.write((value >>> 16) & 0xff);
+            member.write((value >>> 24) & 0xff);
+        }
+    }
+}
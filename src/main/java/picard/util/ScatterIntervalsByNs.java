@@ -1,22 +1,23 @@
 package picard.util;
 
-import htsjdk.samtools.util.SequenceUtil;
+import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.programgroups.Intervals;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import htsjdk.samtools.util.IOUtil;
-import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
-import htsjdk.samtools.util.StringUtil;
+import picard.reference.ReferenceNIndex;
 
 import java.io.File;
 import java.lang.Boolean;
@@ -67,6 +68,10 @@ public class ScatterIntervalsByNs extends CommandLineProgram {
     @Option(shortName = "N", doc = "Maximal number of contiguous N bases to tolerate, thereby continuing the current ACGT interval.", optional = true)
     public int MAX_TO_MERGE = 1;
 
+    @Option(doc = "An index of the Ns in the reference made by CreateReferenceNIndex.  Defaults to the one next to the reference, " +
+            "if there is one; if there is none the reference is scanned.", optional = true)
+    public File N_INDEX = null;
+
     //not using an enum since Interval.name is a String, and am using that to define the type of the Interval
     private static final String
             ACGTmer = "ACGTmer",
@@ -89,7 +94,6 @@ public class ScatterIntervalsByNs extends CommandLineProgram {
     }
 
     private static final Log log = Log.getInstance(ScatterIntervalsByNs.class);
-    private static final ProgressLogger locusProgress = new ProgressLogger(log, (int) 1e7, "examined", "loci");
     private static final ProgressLogger intervalProgress = new ProgressLogger(log, (int) 10, "found", "intervals");
 
     public static void main(final String[] args) {
@@ -102,11 +106,13 @@ public class ScatterIntervalsByNs extends CommandLineProgram {
         IOUtil.assertFileIsWritable(OUTPUT);
 
         final ReferenceSequenceFile refFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE, true);
+        final SAMSequenceDictionary dictionary = refFile.getSequenceDictionary();
+        CloserUtil.close(refFile);
 
         // get the intervals
-        final IntervalList intervals = segregateReference(refFile, MAX_TO_MERGE);
+        final IntervalList intervals = segregateReference(dictionary, ReferenceNIndex.load(REFERENCE, N_INDEX), MAX_TO_MERGE);
 
-        log.info(String.format("Found %d intervals in %d loci during %s seconds", intervalProgress.getCount(), locusProgress.getCount(), locusProgress.getElapsedSeconds()));
+        log.info(String.format("Found %d intervals in %d loci during %s seconds", intervalProgress.getCount(), dictionary.getReferenceLength(), intervalProgress.getElapsedSeconds()));
 
         /**********************************
          * Now output regions for calling *
@@ -120,7 +126,7 @@ public class ScatterIntervalsByNs extends CommandLineProgram {
         log.info("Writing Intervals.");
         outputIntervals.write(OUTPUT);
 
-        log.info(String.format("Execution ending. Total time %d seconds", locusProgress.getElapsedSeconds()));
+        log.info(String.format("Execution ending. Total time %d seconds", intervalProgress.getElapsedSeconds()));
 
         return 0;
     }
@@ -131,34 +137,39 @@ public class ScatterIntervalsByNs extends CommandLineProgram {
      * ****************************************************************
      */
     static IntervalList segregateReference(final ReferenceSequenceFile refFile, final int maxNmerToMerge) {
+        return segregateReference(refFile.getSequenceDictionary(), ReferenceNIndex.build(refFile), maxNmerToMerge);
+    }
+
+    /**
+     * Generates the same intervals from the no-call runs in an index of the reference
+     */
+    static IntervalList segregateReference(final SAMSequenceDictionary dictionary, final ReferenceNIndex nIndex, final int maxNmerToMerge) {
         final List<Interval> preliminaryIntervals = new LinkedList<>();
         final SAMFileHeader header = new SAMFileHeader();
-        header.setSequenceDictionary(refFile.getSequenceDictionary());
+        header.setSequenceDictionary(dictionary);
         header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
         final IntervalList finalIntervals = new IntervalList(header);
 
-        //iterate over all the sequences in the dictionary
-        for (final SAMSequenceRecord rec : refFile.getSequenceDictionary().getSequences()) {
-            final ReferenceSequence ref = refFile.getSequence(rec.getSequenceName());
-            final byte[] bytes = ref.getBases();
-            StringUtil.toUpperCase(bytes);
-
-            boolean nBlockIsOpen = SequenceUtil.isNoCall(bytes[0]);
-            int start = 0;
-
-            for (int i = 0; i < bytes.length; ++i) {
-                locusProgress.record(rec.getSequenceName(), i);
-                final boolean currentBaseIsN = SequenceUtil.isNoCall(bytes[i]);
+        //iterate over all the sequences in the dictionary, alternating between the runs of Ns and the bases between them
+        for (final SAMSequenceRecord rec : dictionary.getSequences()) {
+            final ReferenceNIndex.Contig contig = nIndex.getContig(rec.getSequenceName());
+            if (contig == null || contig.getLength() != rec.getSequenceLength()) {
+                throw new PicardException("The N index does not match the reference's sequence dictionary at " + rec.getSequenceName());
+            }
 
-                //create intervals when switching, i.e "nBlockIsOpen" disagrees with "currentBaseIsN"
-                if (nBlockIsOpen != currentBaseIsN) {
-                    preliminaryIntervals.add(new Interval(rec.getSequenceName(), start + 1, i, false, nBlockIsOpen ? Nmer : ACGTmer));
-                    start = i;
-                    nBlockIsOpen = !nBlockIsOpen;
+            int start = 1;
+            for (int run = 0; run < contig.getNoCallRunCount(); ++run) {
+                final int runStart = contig.getNoCallRunStart(run);
+                if (start < runStart) {
+                    preliminaryIntervals.add(new Interval(rec.getSequenceName(), start, runStart - 1, false, ACGTmer));
                 }
+                preliminaryIntervals.add(new Interval(rec.getSequenceName(), runStart, contig.getNoCallRunEnd(run), false, Nmer));
+                start = contig.getNoCallRunEnd(run) + 1;
             }
             // Catch the last block of chromosome
-            preliminaryIntervals.add(new Interval(rec.getSequenceName(), start + 1, bytes.length, false, nBlockIsOpen ? Nmer : ACGTmer));
+            if (start <= contig.getLength()) {
+                preliminaryIntervals.add(new Interval(rec.getSequenceName(), start, contig.getLength(), false, ACGTmer));
+            }
         }
 
         // now that we have the whole list, we need to remove the short Nmers.
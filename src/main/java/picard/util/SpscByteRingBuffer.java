@@ -0,0 +1,225 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import picard.PicardException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular byte buffer for exactly one writing thread and one reading thread, which unlike CircularByteBuffer takes
+ * no locks.  The bytes are held in a direct ByteBuffer, so that they can be read from and written to channels without
+ * being copied through the Java heap.
+ * <p/>
+ * The writer and reader each own a count of the bytes they have transferred, and publish it with an ordered write that
+ * the other reads to find how much space or data there is.  The two counts are kept on separate cache lines so that
+ * updating one does not slow reading the other.  A thread that finds the buffer full (or empty) spins, then yields,
+ * then parks until the other thread makes progress.
+ */
+public class SpscByteRingBuffer {
+    /** Spinning only helps if the other thread can run at the same time. */
+    private static final int SPIN_TRIES = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+    private static final int YIELD_TRIES = 100;
+    /** Parking is bounded in case an unpark is missed; the other thread unparks a parked thread when it makes progress. */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** The counts are this many longs apart, i.e. 128 bytes, and so on different cache lines on any common platform. */
+    private static final int PADDING = 16;
+    private static final int WRITE_SEQUENCE = PADDING;
+    private static final int READ_SEQUENCE = 3 * PADDING;
+
+    private final int capacity;
+    /** The total bytes written and read, at WRITE_SEQUENCE and READ_SEQUENCE. */
+    private final AtomicLongArray sequences = new AtomicLongArray(4 * PADDING);
+    /** Each thread has its own view of the bytes, since a ByteBuffer's position and limit are not thread safe. */
+    private final ByteBuffer writerView, readerView;
+
+    /** The read sequence as the writer last saw it, and the write sequence as the reader last saw it. */
+    private long writerCachedReadSequence = 0, readerCachedWriteSequence = 0;
+
+    private volatile boolean closed = false;
+    private volatile Thread parkedWriter, parkedReader;
+
+    /** Constructs a buffer capable of holding the given number of bytes. */
+    public SpscByteRingBuffer(final int size) {
+        if (size < 1) throw new IllegalArgumentException("Buffer size must be positive: " + size);
+        this.capacity = size;
+        this.writerView = ByteBuffer.allocateDirect(size);
+        this.readerView = this.writerView.duplicate();
+    }
+
+    /**
+     * Write bytes into the buffer from the supplied array, waiting until there is space for at least one.  It writes
+     * as many of the size bytes starting at start as fit contiguously in the buffer.
+     *
+     * @return the number of bytes copied into the buffer
+     */
+    public int write(final byte[] bytes, final int start, final int size) {
+        final int length = prepareWrite(size);
+        writerView.put(bytes, start, length);
+        publishWrite(length);
+        return length;
+    }
+
+    /**
+     * Reads at most maxBytes bytes from the channel directly into the buffer, waiting until there is space for at least
+     * one.
+     *
+     * @return the number of bytes read, possibly zero, or -1 if the channel has reached end-of-stream
+     */
+    public int readFrom(final ReadableByteChannel channel, final int maxBytes) throws IOException {
+        prepareWrite(maxBytes);
+        final int length = channel.read(writerView);
+        if (length > 0) publishWrite(length);
+        return length;
+    }
+
+    /**
+     * Read bytes from the buffer into the supplied array, waiting until there is at least one or the buffer is closed.
+     * It reads as many as are available contiguously, up to size.
+     *
+     * @return the number of bytes copied into the array, which is 0 only if the buffer is closed and empty
+     */
+    public int read(final byte[] bytes, final int start, final int size) {
+        final int length = prepareRead(size);
+        if (length == 0) return 0;
+        readerView.get(bytes, start, length);
+        publishRead(length);
+        return length;
+    }
+
+    /**
+     * Writes at most maxBytes bytes from the buffer directly to the channel, waiting until there is at least one or
+     * the buffer is closed.
+     *
+     * @return the number of bytes written, possibly zero, or -1 if the buffer is closed and empty
+     */
+    public int writeTo(final WritableByteChannel channel, final int maxBytes) throws IOException {
+        final int length = prepareRead(maxBytes);
+        if (length == 0) return -1;
+        final int written = channel.write(readerView);
+        if (written > 0) publishRead(written);
+        return written;
+    }
+
+    /** Signals that no further writes will occur.  Only the writing thread may call this. */
+    public void close() {
+        this.closed = true;
+        LockSupport.unpark(parkedReader);
+    }
+
+    /** Returns true if the buffer is closed, false otherwise. */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /** Returns the total capacity of the buffer (empty+filled). */
+    public int getCapacity() { return this.capacity; }
+
+    /** Returns the number of bytes that are in the buffer at the time of the method invocation. */
+    public int getBytesAvailableToRead() {
+        final long read = sequences.get(READ_SEQUENCE);
+        return (int) (sequences.get(WRITE_SEQUENCE) - read);
+    }
+
+    /** Waits for space, and sets the writer's view to the contiguous space available, up to maxBytes. */
+    private int prepareWrite(final int maxBytes) {
+        if (closed) throw new IllegalStateException("Cannot write to closed buffer.");
+        final long writeSequence = sequences.get(WRITE_SEQUENCE);
+        if (writeSequence - writerCachedReadSequence == capacity) {
+            writerCachedReadSequence = sequences.get(READ_SEQUENCE);
+            for (int tries = 0; writeSequence - writerCachedReadSequence == capacity; ++tries) {
+                pause(tries, true);
+                writerCachedReadSequence = sequences.get(READ_SEQUENCE);
+            }
+        }
+        final int writePos = (int) (writeSequence % capacity);
+        final long available = capacity - (writeSequence - writerCachedReadSequence);
+        final int length = (int) Math.min(Math.min(available, capacity - writePos), maxBytes);
+        writerView.limit(writePos + length).position(writePos);
+        return length;
+    }
+
+    private void publishWrite(final int length) {
+        sequences.lazySet(WRITE_SEQUENCE, sequences.get(WRITE_SEQUENCE) + length);
+        final Thread reader = parkedReader;
+        if (reader != null) LockSupport.unpark(reader);
+    }
+
+    /**
+     * Waits for data or the buffer to be closed, and sets the reader's view to the contiguous data available, up to
+     * maxBytes.  Returns 0 only if the buffer is closed and empty.
+     */
+    private int prepareRead(final int maxBytes) {
+        final long readSequence = sequences.get(READ_SEQUENCE);
+        if (readerCachedWriteSequence == readSequence) {
+            readerCachedWriteSequence = sequences.get(WRITE_SEQUENCE);
+            for (int tries = 0; readerCachedWriteSequence == readSequence; ++tries) {
+                // The last write is published before closed is set, so look for it once more after seeing closed
+                if (closed) {
+                    readerCachedWriteSequence = sequences.get(WRITE_SEQUENCE);
+                    if (readerCachedWriteSequence == readSequence) return 0;
+                    break;
+                }
+                pause(tries, false);
+                readerCachedWriteSequence = sequences.get(WRITE_SEQUENCE);
+            }
+        }
+        final int readPos = (int) (readSequence % capacity);
+        final long available = readerCachedWriteSequence - readSequence;
+        final int length = (int) Math.min(Math.min(available, capacity - readPos), maxBytes);
+        readerView.limit(readPos + length).position(readPos);
+        return length;
+    }
+
+    private void publishRead(final int length) {
+        sequences.lazySet(READ_SEQUENCE, sequences.get(READ_SEQUENCE) + length);
+        final Thread writer = parkedWriter;
+        if (writer != null) LockSupport.unpark(writer);
+    }
+
+    /** Spins, then yields, then parks, the longer the calling thread has been waiting. */
+    private void pause(final int tries, final boolean isWriter) {
+        if (tries < SPIN_TRIES) return;
+        if (tries < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+            return;
+        }
+        final Thread self = Thread.currentThread();
+        if (isWriter) parkedWriter = self;
+        else parkedReader = self;
+        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+        if (isWriter) parkedWriter = null;
+        else parkedReader = null;
+        if (Thread.interrupted()) {
+            throw new PicardException("Interrupted while waiting to " + (isWriter ? "write to" : "read from") + " fifo.");
+        }
+    }
+}
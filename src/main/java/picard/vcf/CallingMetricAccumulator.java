@@ -24,10 +24,10 @@ package picard.vcf;
  * THE SOFTWARE.
  */
 
-import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypesContext;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextUtils;
 import htsjdk.variant.vcf.VCFHeader;
@@ -35,10 +35,11 @@ import picard.util.DbSnpBitSetUtil;
 import picard.vcf.processor.VariantProcessor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import static picard.vcf.CollectVariantCallingMetrics.VariantCallingDetailMetrics;
 import static picard.vcf.CollectVariantCallingMetrics.VariantCallingSummaryMetrics;
@@ -46,6 +47,10 @@ import static picard.vcf.CollectVariantCallingMetrics.VariantCallingSummaryMetri
 /**
  * Collects variants and generates metrics about them.  To use, construct, call {@link #setup(VCFHeader)} once, then
  * {@link #accumulate(htsjdk.variant.variantcontext.VariantContext)} as desired, then call {@link #result()}.
+ * <p/>
+ * Every sample with a call at a variant has its detail metric amended in the same way, according to the kind of the
+ * variant, so rather than update a metric object per sample per variant the accumulator counts, per sample, the
+ * variants of each kind in {@link SampleCounts}, and builds the detail metrics from the counts at the end.
  *
  * @author mccowan
  */
@@ -53,78 +58,104 @@ public class CallingMetricAccumulator implements VariantProcessor.Accumulator<Ca
     public static class Result {
         final VariantCallingSummaryMetrics summary;
         final Collection<VariantCallingDetailMetrics> details;
+        private final SampleCounts sampleCounts;
 
-        Result(final VariantCallingSummaryMetrics summary, final Collection<VariantCallingDetailMetrics> details) {
+        Result(final VariantCallingSummaryMetrics summary, final SampleCounts sampleCounts) {
             this.summary = summary;
-            this.details = details;
+            this.sampleCounts = sampleCounts;
+            this.details = sampleCounts.toDetailMetrics();
         }
 
+        /** Merges the results, whose detail metrics are listed in the sample order of the header of the first result that had one. */
         public static Result merge(final Collection<Result> results) {
-            final Collection<VariantCallingDetailMetrics> details = new ArrayList<>();
             final Collection<VariantCallingSummaryMetrics> summaries = new ArrayList<>();
-            results.stream().forEach(result -> {
+            String[] headerSamples = new String[0];
+            for (final Result result : results) {
+                if (headerSamples.length == 0) headerSamples = result.sampleCounts.getHeaderSampleNames();
+            }
+            final SampleCounts sampleCounts = new SampleCounts(headerSamples);
+            for (final Result result : results) {
                 summaries.add(result.summary);
-                details.addAll(result.details);
-            });
-
-            final Map<String, List<VariantCallingDetailMetrics>> sampleDetailsMap =
-                    details.stream().collect(Collectors.groupingBy(vcDetailMetrics -> vcDetailMetrics.SAMPLE_ALIAS));
-
-            final Collection<CollectVariantCallingMetrics.VariantCallingDetailMetrics> collapsedDetails = new ArrayList<>();
-
-            sampleDetailsMap.values().stream().forEach(sampleDetails -> {
-                final VariantCallingDetailMetrics collapsed = new VariantCallingDetailMetrics();
-                VariantCallingDetailMetrics.foldInto(collapsed, sampleDetails);
-                collapsedDetails.add(collapsed);
-                collapsed.calculateDerivedFields();
-            });
+                sampleCounts.add(result.sampleCounts);
+            }
 
             final VariantCallingSummaryMetrics collapsedSummary = new VariantCallingSummaryMetrics();
             VariantCallingSummaryMetrics.foldInto(collapsedSummary, summaries);
             collapsedSummary.calculateDerivedFields();
 
-            return new Result(collapsedSummary, collapsedDetails);
+            return new Result(collapsedSummary, sampleCounts);
         }
     }
 
     private static final Log LOG = Log.getInstance(CallingMetricAccumulator.class);
     private static final ProgressLogger progress = new ProgressLogger(LOG, 10000);
 
+    /** The kinds of variant, each of which amends a metric differently; see {@link #addVariants(VariantCallingSummaryMetrics, int, long)}. */
+    private static final int OTHER = 0, FILTERED_SNP = 1, FILTERED_INDEL = 2, FILTERED_OTHER = 3,
+            DBSNP_TRANSITION = 4, DBSNP_TRANSVERSION = 5, NOVEL_TRANSITION = 6, NOVEL_TRANSVERSION = 7,
+            DBSNP_MULTIALLELIC_SNP = 8, NOVEL_MULTIALLELIC_SNP = 9,
+            DBSNP_INSERTION = 10, DBSNP_DELETION = 11, NOVEL_INSERTION = 12, NOVEL_DELETION = 13,
+            DBSNP_COMPLEX_INDEL = 14, NOVEL_COMPLEX_INDEL = 15, NUM_VARIANT_KINDS = 16;
+
     private final DbSnpBitSetUtil.DbSnpBitSets dbsnp;
     private final VariantCallingSummaryMetrics summaryMetric = new VariantCallingSummaryMetrics();
-    /**
-     * A map of sample names to metrics.  If .get() for a not-yet-existing sample name, a metric is generated, inserted into the map,
-     * then returned.
-     */
-    private final CollectionUtil.DefaultingMap<String, VariantCallingDetailMetrics> sampleMetricsMap =
-            new CollectionUtil.DefaultingMap<>(
-                    sampleName -> {
-                        final VariantCallingDetailMetrics detail = new VariantCallingDetailMetrics();
-                        detail.SAMPLE_ALIAS = sampleName;
-                        return detail;
-                    }, true);
+    private SampleCounts sampleCounts = new SampleCounts(new String[0]);
 
     public CallingMetricAccumulator(final DbSnpBitSetUtil.DbSnpBitSets dbsnp) {
         this.dbsnp = dbsnp;
     }
 
+    /** Numbers the samples in the header, which is the order in which a VariantContext read with the header holds its genotypes. */
     public void setup(final VCFHeader vcfHeader) {
-        //noop.
+        final List<String> samples = vcfHeader.getGenotypeSamples();
+        sampleCounts = new SampleCounts(samples == null ? new String[0] : samples.toArray(new String[samples.size()]));
     }
 
     /** Incorporates the provided variant's data into the metric analysis. */
     @Override
     public void accumulate(final VariantContext vc) {
         progress.record(vc.getContig(), vc.getStart());
-        if (!isVariantExcluded(vc)) {
-            final String singletonSample = getSingletonSample(vc);
-            updateSummaryMetric(summaryMetric, null, vc, singletonSample != null); // The summary metric has no genotype.
-
-            vc.getSampleNames().stream()
-                    .filter(sampleName -> !vc.getGenotype(sampleName).isHomRef())
-                    .forEach(sampleName ->
-                            updateDetailMetric(sampleMetricsMap.get(sampleName), vc.getGenotype(sampleName), vc,
-                                    sampleName.equals(singletonSample)));
+        if (!vc.isVariant()) return;
+
+        final int kind = getVariantKind(vc);
+        final boolean isFiltered = vc.isFiltered();
+        final boolean isBiallelicSnp = kind >= DBSNP_TRANSITION && kind <= NOVEL_TRANSVERSION;
+        final GenotypesContext genotypes = vc.getGenotypes();
+        int variantChromosomes = 0;
+        int singletonSample = -1;
+        boolean anyNonHomRef = false;
+
+        for (int i = 0; i < genotypes.size(); ++i) {
+            final Genotype genotype = genotypes.get(i);
+            if (genotype.isHomRef()) continue;
+            anyNonHomRef = true;
+
+            final int sample = sampleCounts.getIndex(i, genotype.getSampleName());
+            if (genotype.isHet() || genotype.isHomVar()) {
+                if (variantChromosomes == 0) singletonSample = sample;
+                variantChromosomes += genotype.isHet() ? 1 : 2;
+            }
+
+            // A no-call still gets a detail metric, but contributes nothing to it
+            if (genotype.isNoCall()) continue;
+            sampleCounts.variants[kind][sample]++;
+            if (isFiltered) continue;
+
+            if (genotype.isHet()) {
+                sampleCounts.hets[sample]++;
+                if (isBiallelicSnp) countAlleleDepths(vc, genotype, sample);
+            } else if (genotype.isHomVar()) {
+                sampleCounts.homVars[sample]++;
+            }
+        }
+
+        // Exclude the variant if no sample has it
+        if (!anyNonHomRef) return;
+
+        addVariants(summaryMetric, kind, 1);
+        if (variantChromosomes == 1 && !isFiltered) {
+            ++summaryMetric.NUM_SINGLETONS;
+            sampleCounts.singletons[singletonSample]++;
         }
     }
 
@@ -133,144 +164,224 @@ public class CallingMetricAccumulator implements VariantProcessor.Accumulator<Ca
      * are not homref, or no samples that are not homref.
      */
     protected static String getSingletonSample(final VariantContext vc) {
-
-        // peek can only change effectively final variables...workaround
-        final String[] sampleName = new String[1];
-
-        if (vc.getGenotypes()
-                .stream()
-                        // look at het or homVar genotypes
-                .filter(genotype -> genotype.isHet() || genotype.isHomVar())
-                        // two such genotypes will be enough
-                .limit(2)
-                        //get any of the sample names
-                .peek(genotype -> sampleName[0] = genotype.getSampleName())
-                        //map to the number of variant chromosomes
-                .mapToInt(genotype -> genotype.isHet() ? 1 : 2)
-                        //add them up
-                .reduce(Integer::sum)
-                        // compare to 1 with 0 as default
-                .orElse(0) == 1) {
-            return sampleName[0];
-        } else {
-            return null;
+        final GenotypesContext genotypes = vc.getGenotypes();
+        String sampleName = null;
+        int variantChromosomes = 0;
+        for (int i = 0; i < genotypes.size() && variantChromosomes < 2; ++i) {
+            final Genotype genotype = genotypes.get(i);
+            if (genotype.isHet()) ++variantChromosomes;
+            else if (genotype.isHomVar()) variantChromosomes += 2;
+            else continue;
+            sampleName = genotype.getSampleName();
         }
+        return variantChromosomes == 1 ? sampleName : null;
     }
 
     public Result result() {
-        final Collection<VariantCallingDetailMetrics> values = sampleMetricsMap.values();
-        values.forEach(CollectVariantCallingMetrics.VariantCallingDetailMetrics::calculateDerivedFields);
-
         summaryMetric.calculateDerivedFields();
-        return new Result(summaryMetric, values);
-    }
-
-    /** Returns true if the variant is --NOT-- interesting enough to be included in metrics calculations. */
-    static private boolean isVariantExcluded(final VariantContext vc) {
-
-        // If the entire record is not a variant, exclude it
-        return !vc.isVariant() || vc.getGenotypes().stream().allMatch(Genotype::isHomRef);
-    }
-
-    private void updateDetailMetric(final VariantCallingDetailMetrics metric,
-                                    final Genotype genotype,
-                                    final VariantContext vc,
-                                    final boolean hasSingletonSample) {
-        updateSummaryMetric(metric, genotype, vc, hasSingletonSample);
-
-        if (genotype != null && !vc.isFiltered()) {
-            if (genotype.isHet()) {
-                ++metric.numHets;
-            } else if (genotype.isHomVar()) {
-                ++metric.numHomVar;
-            }
-        }
+        return new Result(summaryMetric, sampleCounts);
     }
 
-    /** Amends the provided metric with the data in the provided variant.  Also amends the summary metric re: reference bias. */
-    private void updateSummaryMetric(final VariantCallingSummaryMetrics metric,
-                                     final Genotype genotype,
-                                     final VariantContext vc,
-                                     final boolean hasSingletonSample) {
-
-        // If this sample's genotype doesn't have any variation, exclude it
-        if (genotype != null && genotype.isNoCall()) return;
-
-        // Tally up the filtered SNPs & indels, then exit. The other metrics shouldn't be
-        // computed on low-confidence calls.
+    /** Returns which of the kinds of variant vc is, looking it up in dbSNP if need be. */
+    private int getVariantKind(final VariantContext vc) {
         if (vc.isFiltered()) {
-            if (vc.isSNP()) metric.FILTERED_SNPS++;
-            else if (vc.isIndel()) metric.FILTERED_INDELS++;
-            return;
-        }
-
-        if (hasSingletonSample) {
-            ++metric.NUM_SINGLETONS;
+            if (vc.isSNP()) return FILTERED_SNP;
+            else if (vc.isIndel()) return FILTERED_INDEL;
+            else return FILTERED_OTHER;
         }
 
         if (vc.isBiallelic() && vc.isSNP()) {
             // Biallelic SNPs
             final boolean isInDbSnp = dbsnp.snps.isDbSnpSite(vc.getContig(), vc.getStart());
             final boolean isTransition = VariantContextUtils.isTransition(vc);
-
-            metric.TOTAL_SNPS++;
-
-            if (isInDbSnp) {
-                metric.NUM_IN_DB_SNP++;
-                if (isTransition) metric.dbSnpTransitions++;
-                else metric.dbSnpTransversions++;
-            } else {
-                if (isTransition) metric.novelTransitions++;
-                else metric.novelTransversions++;
-            }
-
-            // Calculate reference bias numbers.  Note: genotype == null for summary metric, so this block won't be called when metric ==
-            // summaryMetric.
-            if (genotype != null && genotype.isHet()) { //
-                final int[] alleleDepths = genotype.getAD();
-                /*
-                 * Null check: work around GATK issue in which some biallelic sites are missing allele depth.  This should affect only ~1%
-                 * of samples and should not have a significant impact on the reference bias calculation.
-                 */
-                if (alleleDepths != null) {
-                    final int indexOfRef = vc.getAlleleIndex(vc.getReference());
-                    final int indexOfAlt = (indexOfRef + 1) % 2;
-
-                    metric.refAlleleObs += alleleDepths[indexOfRef];
-                    metric.altAlleleObs += alleleDepths[indexOfAlt];
-
-                    // Always count these values for summary metrics.
-                    summaryMetric.refAlleleObs += alleleDepths[indexOfRef];
-                    summaryMetric.altAlleleObs += alleleDepths[indexOfAlt];
-                } else {
-                    LOG.debug("Skipping aggregation of genotype due to missing allele depth data: ", genotype, ".");
-                }
-            }
+            if (isInDbSnp) return isTransition ? DBSNP_TRANSITION : DBSNP_TRANSVERSION;
+            else return isTransition ? NOVEL_TRANSITION : NOVEL_TRANSVERSION;
         } else if (vc.isSNP() && vc.getAlternateAlleles().size() > 1) {
             // Multiallelic SNPs
-            metric.TOTAL_MULTIALLELIC_SNPS++;
-            if (dbsnp.snps.isDbSnpSite(vc.getContig(), vc.getStart())) metric.NUM_IN_DB_SNP_MULTIALLELIC++;
+            return dbsnp.snps.isDbSnpSite(vc.getContig(), vc.getStart()) ? DBSNP_MULTIALLELIC_SNP : NOVEL_MULTIALLELIC_SNP;
         } else if (vc.isIndel() && !vc.isComplexIndel()) {
             // Simple Indels
             final boolean isInDbSnp = dbsnp.indels.isDbSnpSite(vc.getContig(), vc.getStart());
             final boolean isInsertion = vc.isSimpleInsertion();
+            if (isInDbSnp) return isInsertion ? DBSNP_INSERTION : DBSNP_DELETION;
+            else return isInsertion ? NOVEL_INSERTION : NOVEL_DELETION;
+        } else if (vc.isComplexIndel()) {
+            // Complex Indels
+            return dbsnp.indels.isDbSnpSite(vc.getContig(), vc.getStart()) ? DBSNP_COMPLEX_INDEL : NOVEL_COMPLEX_INDEL;
+        }
+        return OTHER;
+    }
 
-            metric.TOTAL_INDELS++;
+    /** Amends the metric with count variants of the given kind. */
+    private static void addVariants(final VariantCallingSummaryMetrics metric, final int kind, final long count) {
+        switch (kind) {
+            case FILTERED_SNP:
+                metric.FILTERED_SNPS += count;
+                break;
+            case FILTERED_INDEL:
+                metric.FILTERED_INDELS += count;
+                break;
+            case DBSNP_TRANSITION:
+            case DBSNP_TRANSVERSION:
+                metric.TOTAL_SNPS += count;
+                metric.NUM_IN_DB_SNP += count;
+                if (kind == DBSNP_TRANSITION) metric.dbSnpTransitions += count;
+                else metric.dbSnpTransversions += count;
+                break;
+            case NOVEL_TRANSITION:
+            case NOVEL_TRANSVERSION:
+                metric.TOTAL_SNPS += count;
+                if (kind == NOVEL_TRANSITION) metric.novelTransitions += count;
+                else metric.novelTransversions += count;
+                break;
+            case DBSNP_MULTIALLELIC_SNP:
+            case NOVEL_MULTIALLELIC_SNP:
+                metric.TOTAL_MULTIALLELIC_SNPS += count;
+                if (kind == DBSNP_MULTIALLELIC_SNP) metric.NUM_IN_DB_SNP_MULTIALLELIC += count;
+                break;
+            case DBSNP_INSERTION:
+            case DBSNP_DELETION:
+                metric.TOTAL_INDELS += count;
+                metric.NUM_IN_DB_SNP_INDELS += count;
+                if (kind == DBSNP_INSERTION) metric.dbSnpInsertions += count;
+                else metric.dbSnpDeletions += count;
+                break;
+            case NOVEL_INSERTION:
+            case NOVEL_DELETION:
+                metric.TOTAL_INDELS += count;
+                if (kind == NOVEL_INSERTION) metric.novelInsertions += count;
+                else metric.novelDeletions += count;
+                break;
+            case DBSNP_COMPLEX_INDEL:
+            case NOVEL_COMPLEX_INDEL:
+                metric.TOTAL_COMPLEX_INDELS += count;
+                if (kind == DBSNP_COMPLEX_INDEL) metric.NUM_IN_DB_SNP_COMPLEX_INDELS += count;
+                break;
+            default:
+                break;
+        }
+    }
 
-            if (isInDbSnp) {
-                metric.NUM_IN_DB_SNP_INDELS++;
-                if (isInsertion) metric.dbSnpInsertions++;
-                else metric.dbSnpDeletions++;
-            } else {
-                if (isInsertion) metric.novelInsertions++;
-                else {
-                    metric.novelDeletions++;
+    /** Adds the reference and alternate allele depths of a het genotype at a biallelic SNP to its sample and the summary, for the reference bias. */
+    private void countAlleleDepths(final VariantContext vc, final Genotype genotype, final int sample) {
+        final int[] alleleDepths = genotype.getAD();
+        /*
+         * Null check: work around GATK issue in which some biallelic sites are missing allele depth.  This should affect only ~1%
+         * of samples and should not have a significant impact on the reference bias calculation.
+         */
+        if (alleleDepths != null) {
+            final int indexOfRef = vc.getAlleleIndex(vc.getReference());
+            final int indexOfAlt = (indexOfRef + 1) % 2;
+
+            sampleCounts.refAlleleObs[sample] += alleleDepths[indexOfRef];
+            sampleCounts.altAlleleObs[sample] += alleleDepths[indexOfAlt];
+
+            // Always count these values for summary metrics.
+            summaryMetric.refAlleleObs += alleleDepths[indexOfRef];
+            summaryMetric.altAlleleObs += alleleDepths[indexOfAlt];
+        } else {
+            LOG.debug("Skipping aggregation of genotype due to missing allele depth data: ", genotype, ".");
+        }
+    }
+
+    /**
+     * Per-sample counts, each held in an array indexed by the number of the sample.  Samples are numbered in the order of
+     * the VCF header, and samples not in the header are numbered after them as they are seen.  A sample gets a detail
+     * metric once it has a genotype other than hom-ref at some variant, and the detail metrics are listed in the order
+     * of the samples' numbers.
+     */
+    static class SampleCounts {
+        private String[] sampleNames;
+        private final int numHeaderSamples;
+        private final Map<String, Integer> sampleIndices = new HashMap<>();
+        /** Whether each sample has a detail metric. */
+        private boolean[] seen;
+
+        /** The number of variants of each kind, by kind then sample. */
+        private final long[][] variants = new long[NUM_VARIANT_KINDS][];
+        private long[] singletons, hets, homVars, refAlleleObs, altAlleleObs;
+
+        SampleCounts(final String[] sampleNames) {
+            this.sampleNames = sampleNames;
+            this.numHeaderSamples = sampleNames.length;
+            for (int i = 0; i < sampleNames.length; ++i) sampleIndices.put(sampleNames[i], i);
+            allocate(sampleNames.length);
+        }
+
+        /** Returns the samples of the header with which these counts were set up. */
+        String[] getHeaderSampleNames() {
+            return Arrays.copyOf(sampleNames, numHeaderSamples);
+        }
+
+        /**
+         * Returns the number of the named sample, whose genotype is the position'th of a VariantContext, and notes that it
+         * has a detail metric.
+         */
+        int getIndex(final int position, final String sampleName) {
+            // A VariantContext read with the header holds its genotypes in header order, so this is nearly always a hit
+            int index = position < sampleNames.length && sampleNames[position].equals(sampleName) ? position : -1;
+            if (index == -1) {
+                final Integer i = sampleIndices.get(sampleName);
+                if (i != null) {
+                    index = i;
+                } else {
+                    index = sampleNames.length;
+                    sampleNames = Arrays.copyOf(sampleNames, index + 1);
+                    sampleNames[index] = sampleName;
+                    sampleIndices.put(sampleName, index);
+                    if (index == seen.length) allocate(Math.max(16, 2 * index));
                 }
             }
-        } else if (vc.isComplexIndel()) {
-            // Complex Indels
-            metric.TOTAL_COMPLEX_INDELS++;
-            if (dbsnp.indels.isDbSnpSite(vc.getContig(), vc.getStart())) metric.NUM_IN_DB_SNP_COMPLEX_INDELS++;
+            seen[index] = true;
+            return index;
+        }
+
+        private void allocate(final int size) {
+            seen = seen == null ? new boolean[size] : Arrays.copyOf(seen, size);
+            for (int kind = 0; kind < NUM_VARIANT_KINDS; ++kind) {
+                variants[kind] = variants[kind] == null ? new long[size] : Arrays.copyOf(variants[kind], size);
+            }
+            singletons = singletons == null ? new long[size] : Arrays.copyOf(singletons, size);
+            hets = hets == null ? new long[size] : Arrays.copyOf(hets, size);
+            homVars = homVars == null ? new long[size] : Arrays.copyOf(homVars, size);
+            refAlleleObs = refAlleleObs == null ? new long[size] : Arrays.copyOf(refAlleleObs, size);
+            altAlleleObs = altAlleleObs == null ? new long[size] : Arrays.copyOf(altAlleleObs, size);
+        }
+
+        /**
+         * Adds the counts of another SampleCounts, matching samples by name.  Samples new to this are numbered in the
+         * order of the other's detail metrics.
+         */
+        void add(final SampleCounts other) {
+            for (int from = 0; from < other.sampleNames.length; ++from) {
+                if (!other.seen[from]) continue;
+                final int to = getIndex(Integer.MAX_VALUE, other.sampleNames[from]);
+                for (int kind = 0; kind < NUM_VARIANT_KINDS; ++kind) variants[kind][to] += other.variants[kind][from];
+                singletons[to] += other.singletons[from];
+                hets[to] += other.hets[from];
+                homVars[to] += other.homVars[from];
+                refAlleleObs[to] += other.refAlleleObs[from];
+                altAlleleObs[to] += other.altAlleleObs[from];
+            }
+        }
+
+        /** Builds the detail metric of each sample that has one, in the order of the samples' numbers. */
+        Collection<VariantCallingDetailMetrics> toDetailMetrics() {
+            final Collection<VariantCallingDetailMetrics> details = new ArrayList<>();
+            for (int sample = 0; sample < sampleNames.length; ++sample) {
+                if (!seen[sample]) continue;
+                final VariantCallingDetailMetrics detail = new VariantCallingDetailMetrics();
+                detail.SAMPLE_ALIAS = sampleNames[sample];
+                for (int kind = 0; kind < NUM_VARIANT_KINDS; ++kind) addVariants(detail, kind, variants[kind][sample]);
+                detail.NUM_SINGLETONS = singletons[sample];
+                detail.numHets = hets[sample];
+                detail.numHomVar = homVars[sample];
+                detail.refAlleleObs = refAlleleObs[sample];
+                detail.altAlleleObs = altAlleleObs[sample];
+                detail.calculateDerivedFields();
+                details.add(detail);
+            }
+            return details;
         }
     }
 }
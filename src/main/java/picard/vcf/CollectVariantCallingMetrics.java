@@ -254,7 +254,10 @@ public class CollectVariantCallingMetrics extends CommandLineProgram {
         }
     }
 
-    /** A collection of metrics relating to snps and indels within a variant-calling file (VCF) for a given sample. */
+    /**
+     * A collection of metrics relating to snps and indels within a variant-calling file (VCF) for a given sample.  The
+     * samples' metrics are listed in the order of the samples in the VCF header.
+     */
     public static class VariantCallingDetailMetrics extends CollectVariantCallingMetrics.VariantCallingSummaryMetrics {
         /** The name of the sample being assayed */
         @MergeByAssertEquals
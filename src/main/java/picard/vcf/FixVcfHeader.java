@@ -183,6 +183,13 @@ public class FixVcfHeader extends CommandLineProgram {
             log.info("VCF header re-built.");
         }
 
+        if (VcfHeaderRewriter.canRewrite(INPUT, OUTPUT, true)) {
+            // The records are written as they are read, so only the header has to change
+            CloserUtil.close(reader);
+            VcfHeaderRewriter.rewrite(INPUT, outHeader, OUTPUT, true);
+            return 0;
+        }
+
         final VariantContextWriter writer = new VariantContextWriterBuilder().setOption(Options.INDEX_ON_THE_FLY)
                 .setOutputFile(OUTPUT).setReferenceDictionary(outHeader.getSequenceDictionary()).build();
         writer.writeHeader(outHeader);
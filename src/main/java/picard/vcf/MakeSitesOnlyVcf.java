@@ -85,8 +85,10 @@ public class MakeSitesOnlyVcf extends CommandLineProgram {
         final VCFHeader header = new VCFHeader(inputVcfHeader.getMetaDataInInputOrder(), SAMPLE);
         writer.writeHeader(header);
 
-        // Go through the input, strip the records and write them to the output
-        final CloseableIterator<VariantContext> iterator = reader.iterator();
+        // Go through the input, strip the records and write them to the output.  When no samples are kept, the sample
+        // columns of a text VCF need never be read into memory.
+        final CloseableIterator<VariantContext> iterator = SAMPLE.isEmpty() && SitesOnlyVcfIterator.canRead(INPUT) ?
+                new SitesOnlyVcfIterator(INPUT, reader.getFileHeader()) : reader.iterator();
 	    while (iterator.hasNext()) {
 		    final VariantContext full = iterator.next();
             final VariantContext site = subsetToSamplesWithOriginalAnnotations(full, SAMPLE);
@@ -97,6 +97,13 @@ public class RenameSampleInVcf extends CommandLineProgram {
         if (CREATE_INDEX) options.add(Options.INDEX_ON_THE_FLY); else options.remove(Options.INDEX_ON_THE_FLY);
 
         final VCFHeader outHeader = new VCFHeader(header.getMetaDataInInputOrder(), CollectionUtil.makeList(NEW_SAMPLE_NAME));
+        if (VcfHeaderRewriter.canRewrite(INPUT, OUTPUT, CREATE_INDEX)) {
+            // Only the header names the sample, so the records can be copied as they are
+            in.close();
+            VcfHeaderRewriter.rewrite(INPUT, outHeader, OUTPUT, CREATE_INDEX);
+            return 0;
+        }
+
         final VariantContextWriter out = new VariantContextWriterBuilder()
                 .setOptions(options)
                 .setOutputFile(OUTPUT).setReferenceDictionary(outHeader.getSequenceDictionary()).build();
@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.vcf;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the sites of a text VCF, with no genotypes.  Only the eight site columns of each line are copied out
+ * of the input and decoded; the FORMAT and sample columns are skipped over byte by byte without ever being made into
+ * Strings, which for VCFs with many samples is nearly all of the cost of reading them.
+ * <p/>
+ * Each site is decoded by a VCFCodec exactly as the same line of a sites-only VCF would be, so it is the
+ * VariantContext that VCFFileReader would give for the line, less its genotypes.
+ */
+public class SitesOnlyVcfIterator implements CloseableIterator<VariantContext> {
+    /** The number of columns, CHROM to INFO, that describe a site. */
+    private static final int NUM_SITE_COLUMNS = 8;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPosition = 0;
+    private int bufferEnd = 0;
+    private byte[] line = new byte[1024];
+
+    private final VCFCodec codec = new VCFCodec();
+    private VariantContext next;
+
+    /**
+     * @param vcf    a VCF, optionally gzipped, but not a BCF
+     * @param header the header of vcf, as read by VCFFileReader
+     */
+    public SitesOnlyVcfIterator(final File vcf, final VCFHeader header) {
+        this.in = IOUtil.openFileForReading(vcf);
+        final String versionLine = readSiteColumns();
+        if (versionLine == null) throw new PicardException(vcf + " has no VCF header.");
+        String headerLine = versionLine;
+        while (headerLine != null && headerLine.startsWith("#")) headerLine = readSiteColumns();
+        codec.setVCFHeader(new VCFHeader(header.getMetaDataInInputOrder()), VCFHeaderVersion.getHeaderVersion(versionLine));
+        this.next = decode(headerLine);
+    }
+
+    /** Returns true if vcf is a text VCF that this can read, i.e. has a .vcf or .vcf.gz extension. */
+    public static boolean canRead(final File vcf) {
+        return vcf.getName().endsWith(".vcf") || vcf.getName().endsWith(".vcf.gz");
+    }
+
+    private VariantContext decode(String siteLine) {
+        while (siteLine != null) {
+            final VariantContext vc = codec.decode(siteLine);
+            if (vc != null) return vc;
+            siteLine = readSiteColumns();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next line of input, less its line terminator and anything from its eighth tab on, or null at the end
+     * of the input.  Empty lines are skipped.
+     */
+    private String readSiteColumns() {
+        try {
+            int length = 0;
+            int numTabs = 0;
+            boolean skipping = false;
+            while (true) {
+                if (bufferPosition == bufferEnd) {
+                    bufferEnd = in.read(buffer);
+                    bufferPosition = 0;
+                    if (bufferEnd <= 0) {
+                        bufferEnd = 0;
+                        return length > 0 ? makeLine(length) : null;
+                    }
+                }
+                if (skipping) {
+                    int i = bufferPosition;
+                    while (i < bufferEnd && buffer[i] != '\n') ++i;
+                    if (i < bufferEnd) {
+                        bufferPosition = i + 1;
+                        return makeLine(length);
+                    }
+                    bufferPosition = bufferEnd;
+                    continue;
+                }
+
+                final byte b = buffer[bufferPosition++];
+                if (b == '\n') {
+                    if (length > 0 && line[length - 1] == '\r') --length;
+                    if (length > 0) return makeLine(length);
+                    continue;
+                }
+                if (b == '\t' && ++numTabs == NUM_SITE_COLUMNS) {
+                    skipping = true;
+                    continue;
+                }
+                if (length == line.length) line = Arrays.copyOf(line, 2 * length);
+                line[length++] = b;
+            }
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error reading VCF", e);
+        }
+    }
+
+    private String makeLine(final int length) {
+        return new String(line, 0, length);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public VariantContext next() {
+        if (next == null) throw new NoSuchElementException();
+        final VariantContext result = next;
+        next = decode(readSiteColumns());
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        CloserUtil.close(in);
+    }
+}
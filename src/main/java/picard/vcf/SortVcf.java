@@ -7,14 +7,12 @@ import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
-import htsjdk.samtools.util.SortingCollection;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
-import htsjdk.variant.vcf.VCFRecordCodec;
 import htsjdk.variant.vcf.VCFUtils;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
@@ -63,6 +61,11 @@ public class SortVcf extends CommandLineProgram {
     @Option(shortName = StandardOptionDefinitions.SEQUENCE_DICTIONARY_SHORT_NAME, optional = true)
     public File SEQUENCE_DICTIONARY;
 
+    @Option(shortName = "NP", doc = "The number of input files to read at once.  The output does not depend on the number of " +
+            "threads.  If NUM_PROCESSORS = 0, the number of cores available on the machine is used.  If NUM_PROCESSORS < 0 " +
+            "then the number of cores used will be the number available on the machine less NUM_PROCESSORS.")
+    public int NUM_PROCESSORS = 1;
+
     private final Log log = Log.getInstance(SortVcf.class);
 
     private final List<VCFFileReader> inputReaders = new ArrayList<VCFFileReader>();
@@ -98,7 +101,7 @@ public class SortVcf extends CommandLineProgram {
         final VCFHeader outputHeader = new VCFHeader(VCFUtils.smartMergeHeaders(inputHeaders, false), sampleList);
 
         // Load entries into the sorting collection
-        final SortingCollection<VariantContext> sortedOutput = sortInputs(inputReaders, outputHeader);
+        final VcfSortingCollection sortedOutput = sortInputs(inputReaders, outputHeader);
 
         // Output to the final file
         writeSortedOutput(outputHeader, sortedOutput);
@@ -140,7 +143,7 @@ public class SortVcf extends CommandLineProgram {
     }
 
     /**
-     * Merge the inputs and sort them by adding each input's content to a single SortingCollection.
+     * Merge the inputs and sort them by adding each input's content to a single VcfSortingCollection.
      * <p/>
      * NB: It would be better to have a merging iterator as in MergeSamFiles, as this would perform better for pre-sorted inputs.
      * Here, we are assuming inputs are unsorted, and so adding their VariantContexts iteratively is fine for now.
@@ -149,32 +152,26 @@ public class SortVcf extends CommandLineProgram {
      * @param readers      - a list of VCFFileReaders, one for each input VCF
      * @param outputHeader - The merged header whose information we intend to use in the final output file
      */
-    private SortingCollection<VariantContext> sortInputs(final List<VCFFileReader> readers, final VCFHeader outputHeader) {
+    private VcfSortingCollection sortInputs(final List<VCFFileReader> readers, final VCFHeader outputHeader) {
         final ProgressLogger readProgress = new ProgressLogger(log, 25000, "read", "records");
 
-        // NB: The default MAX_RECORDS_IN_RAM may not be appropriate here. VariantContexts are smaller than SamRecords
-        // We would have to play around empirically to find an appropriate value. We are not performing this optimization at this time.
-        final SortingCollection<VariantContext> sorter =
-                SortingCollection.newInstance(
-                        VariantContext.class,
-                        new VCFRecordCodec(outputHeader, VALIDATION_STRINGENCY != ValidationStringency.STRICT),
-                        outputHeader.getVCFRecordComparator(),
-                        MAX_RECORDS_IN_RAM,
-                        TMP_DIR);
-        int readerCount = 1;
-        for (final VCFFileReader reader : readers) {
-            log.info("Reading entries from input file " + readerCount);
-            for (final VariantContext variantContext : reader) {
-                sorter.add(variantContext);
-                readProgress.record(variantContext.getContig(), variantContext.getStart());
-            }
-            reader.close();
-            readerCount++;
-        }
+        // Records are held as their encoded VCF lines, so MAX_RECORDS_IN_RAM counts compact byte arrays rather than
+        // VariantContexts, and records spilled to disk are not parsed again until they are written.
+        final VcfSortingCollection sorter = new VcfSortingCollection(outputHeader,
+                VALIDATION_STRINGENCY != ValidationStringency.STRICT, MAX_RECORDS_IN_RAM, TMP_DIR);
+        log.info("Reading entries from " + readers.size() + " input file(s)");
+        sorter.addAll(readers, getNumProcessors(), readProgress);
         return sorter;
     }
 
-    private void writeSortedOutput(final VCFHeader outputHeader, final SortingCollection<VariantContext> sortedOutput) {
+    /** Resolves NUM_PROCESSORS into a number of threads, counting 0 and negative values against the available cores. */
+    private int getNumProcessors() {
+        if (NUM_PROCESSORS == 0) return Runtime.getRuntime().availableProcessors();
+        if (NUM_PROCESSORS < 0) return Math.max(1, Runtime.getRuntime().availableProcessors() + NUM_PROCESSORS);
+        return NUM_PROCESSORS;
+    }
+
+    private void writeSortedOutput(final VCFHeader outputHeader, final VcfSortingCollection sortedOutput) {
         final ProgressLogger writeProgress = new ProgressLogger(log, 25000, "wrote", "records");
         final EnumSet<Options> options = CREATE_INDEX ? EnumSet.of(Options.INDEX_ON_THE_FLY) : EnumSet.noneOf(Options.class);
         final VariantContextWriter out = new VariantContextWriterBuilder().
@@ -182,10 +179,12 @@ public class SortVcf extends CommandLineProgram {
                 setOptions(options).
                 setOutputFile(OUTPUT).build();
         out.writeHeader(outputHeader);
+        sortedOutput.doneAdding();
         for (final VariantContext variantContext : sortedOutput) {
             out.add(variantContext);
             writeProgress.record(variantContext.getContig(), variantContext.getStart());
         }
         out.close();
+        sortedOutput.cleanup();
     }
 }
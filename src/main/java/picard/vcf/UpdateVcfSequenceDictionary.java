@@ -86,6 +86,13 @@ public class UpdateVcfSequenceDictionary extends CommandLineProgram {
         final VCFFileReader fileReader = new VCFFileReader(INPUT, false);
         final VCFHeader fileHeader = fileReader.getFileHeader();
 
+        if (VcfHeaderRewriter.canRewrite(INPUT, OUTPUT, CREATE_INDEX)) {
+            CloserUtil.close(fileReader);
+            fileHeader.setSequenceDictionary(samSequenceDictionary);
+            VcfHeaderRewriter.rewrite(INPUT, fileHeader, OUTPUT, CREATE_INDEX);
+            return 0;
+        }
+
         final VariantContextWriterBuilder builder = new VariantContextWriterBuilder()
                 .setReferenceDictionary(samSequenceDictionary)
                 .clearOptions();
@@ -0,0 +1,320 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.vcf;
+
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.tribble.util.TabixUtils;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Replaces the header of a bgzipped VCF without decoding its records.  The new header is compressed into fresh BGZF
+ * blocks together with the records that shared the last block of the old header, and every later block is copied
+ * byte for byte.  The tabix index, if wanted, is made by moving the virtual offsets of the input's index to where the
+ * same records now start, so that neither the records nor the index are rebuilt.
+ * <p/>
+ * This only applies when the records are to be written unchanged, i.e. when a tool changes nothing but the header.
+ * Since the records keep the encoding of the input's VCF version, so does the header: its ##fileformat line is that of
+ * the input rather than the version a VCF writer would declare.
+ */
+public class VcfHeaderRewriter {
+    private static final Log log = Log.getInstance(VcfHeaderRewriter.class);
+
+    private static final String BGZIPPED_VCF_EXTENSION = ".vcf.gz";
+    private static final byte[] TABIX_MAGIC = {'T', 'B', 'I', 1};
+    /** The bin of the tabix pseudo-bin, whose second chunk holds record counts rather than virtual offsets. */
+    private static final int PSEUDO_BIN = 37450;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    private static final String FILE_FORMAT_PREFIX = "##fileformat=";
+
+    private VcfHeaderRewriter() {}
+
+    /**
+     * Returns true if the header of input can be replaced in output without rewriting the records, i.e. both are
+     * bgzipped VCFs and, if an index is wanted, input has a tabix index that is no older than itself.
+     */
+    public static boolean canRewrite(final File input, final File output, final boolean createIndex) {
+        if (!input.getName().endsWith(BGZIPPED_VCF_EXTENSION) || !output.getName().endsWith(BGZIPPED_VCF_EXTENSION)) return false;
+        if (!input.isFile()) return false;
+        if (createIndex) {
+            final File index = getTabixIndex(input);
+            if (!index.isFile() || index.lastModified() < input.lastModified()) return false;
+        }
+        try (final InputStream in = new BufferedInputStream(new FileInputStream(input))) {
+            return BlockCompressedInputStream.isValidFile(in);
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes output as input with its header replaced by header, and, if createIndex is true, writes output's tabix
+     * index from that of input.  The caller must have checked {@link #canRewrite(File, File, boolean)}.
+     */
+    public static void rewrite(final File input, final VCFHeader header, final File output, final boolean createIndex) {
+        log.info("Replacing the header of " + input + " and copying its records unchanged.");
+        try {
+            final byte[] headerBytes = withFileFormatOf(input, encodeHeader(header));
+            final BodyStart bodyStart = findBodyStart(input);
+            final Map<Long, Long> boundaryOffsets = new HashMap<>();
+            final long bodyStartInOutput;
+            final long addressShift;
+
+            try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(output), COPY_BUFFER_SIZE)) {
+                final BlockCompressedOutputStream headerOut = new BlockCompressedOutputStream(out, null);
+                headerOut.write(headerBytes);
+                bodyStartInOutput = headerOut.getFilePointer();
+
+                // Rewrite the records that shared a block with the old header, noting where any indexed offset into
+                // them ends up so that the index can be moved along with them
+                final TreeSet<Integer> indexedOffsets = new TreeSet<>();
+                if (createIndex && bodyStart.remainder.length > 0) {
+                    transformIndex(getTabixIndex(input), null, pointer -> {
+                        if (BlockCompressedFilePointerUtil.getBlockAddress(pointer) == bodyStart.blockAddress &&
+                                BlockCompressedFilePointerUtil.getBlockOffset(pointer) >= bodyStart.blockOffset) {
+                            indexedOffsets.add(BlockCompressedFilePointerUtil.getBlockOffset(pointer) - bodyStart.blockOffset);
+                        }
+                        return pointer;
+                    });
+                }
+                int written = 0;
+                for (final int offset : indexedOffsets) {
+                    headerOut.write(bodyStart.remainder, written, offset - written);
+                    written = offset;
+                    boundaryOffsets.put(makeFilePointer(bodyStart.blockAddress, bodyStart.blockOffset + offset), headerOut.getFilePointer());
+                }
+                headerOut.write(bodyStart.remainder, written, bodyStart.remainder.length - written);
+                headerOut.flush();
+
+                addressShift = BlockCompressedFilePointerUtil.getBlockAddress(headerOut.getFilePointer()) - bodyStart.nextBlockAddress;
+                copyBlocks(input, bodyStart.nextBlockAddress, out);
+                out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            }
+
+            if (createIndex) {
+                transformIndex(getTabixIndex(input), getTabixIndex(output), pointer -> {
+                    final long address = BlockCompressedFilePointerUtil.getBlockAddress(pointer);
+                    if (address >= bodyStart.nextBlockAddress) {
+                        return makeFilePointer(address + addressShift, BlockCompressedFilePointerUtil.getBlockOffset(pointer));
+                    }
+                    // Anything else that is not a record in the first block of records points into the old header, and
+                    // is a lower bound on where the records start
+                    final Long moved = boundaryOffsets.get(pointer);
+                    return moved != null ? moved : bodyStartInOutput;
+                });
+            }
+        } catch (final IOException e) {
+            throw new RuntimeIOException("Error replacing the header of " + input, e);
+        }
+    }
+
+    private static File getTabixIndex(final File vcf) {
+        return new File(vcf.getPath() + TabixUtils.STANDARD_INDEX_EXTENSION);
+    }
+
+    private static long makeFilePointer(final long blockAddress, final int blockOffset) {
+        return blockAddress << 16 | blockOffset;
+    }
+
+    /** Encodes the header exactly as a VCF writer would write it. */
+    private static byte[] encodeHeader(final VCFHeader header) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final VariantContextWriter writer = new VariantContextWriterBuilder().clearOptions().setOutputStream(bytes).build();
+        writer.writeHeader(header);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /** Returns the encoded header with its ##fileformat line replaced by that of input, if input has one. */
+    private static byte[] withFileFormatOf(final File input, final byte[] headerBytes) throws IOException {
+        final String fileFormat;
+        try (final BlockCompressedInputStream in = new BlockCompressedInputStream(input)) {
+            fileFormat = in.readLine();
+        }
+        if (fileFormat == null || !fileFormat.startsWith(FILE_FORMAT_PREFIX)) return headerBytes;
+
+        int lineEnd = 0;
+        while (lineEnd < headerBytes.length && headerBytes[lineEnd] != '\n') ++lineEnd;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(headerBytes.length + fileFormat.length());
+        bytes.write(fileFormat.getBytes(StandardCharsets.UTF_8));
+        bytes.write(headerBytes, lineEnd, headerBytes.length - lineEnd);
+        return bytes.toByteArray();
+    }
+
+    /** Where the first record of a bgzipped VCF starts, and the uncompressed records from there to the end of its block. */
+    private static class BodyStart {
+        final long blockAddress;
+        final int blockOffset;
+        final long nextBlockAddress;
+        final byte[] remainder;
+
+        BodyStart(final long blockAddress, final int blockOffset, final long nextBlockAddress, final byte[] remainder) {
+            this.blockAddress = blockAddress;
+            this.blockOffset = blockOffset;
+            this.nextBlockAddress = nextBlockAddress;
+            this.remainder = remainder;
+        }
+    }
+
+    private static BodyStart findBodyStart(final File input) throws IOException {
+        final BlockCompressedInputStream in = new BlockCompressedInputStream(input);
+        try {
+            long lineStart = -1;
+            boolean atLineStart = true;
+            while (true) {
+                if (atLineStart) {
+                    if (in.available() == 0) break;
+                    final long pointer = in.getFilePointer();
+                    if (in.read() != '#') {
+                        lineStart = pointer;
+                        break;
+                    }
+                    atLineStart = false;
+                } else {
+                    final int c = in.read();
+                    if (c == -1) break;
+                    atLineStart = c == '\n';
+                }
+            }
+            if (lineStart == -1) {
+                // No records, so there is nothing to copy
+                final long end = input.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+                return new BodyStart(end, 0, end, new byte[0]);
+            }
+
+            final long blockAddress = BlockCompressedFilePointerUtil.getBlockAddress(lineStart);
+            final int blockOffset = BlockCompressedFilePointerUtil.getBlockOffset(lineStart);
+            if (blockOffset == 0) return new BodyStart(blockAddress, 0, blockAddress, new byte[0]);
+
+            in.seek(lineStart);
+            final byte[] remainder = new byte[in.available()];
+            if (in.read(remainder) != remainder.length) throw new IOException("Could not read the first records of " + input);
+            return new BodyStart(blockAddress, blockOffset, blockAddress + readBlockSize(input, blockAddress), remainder);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readBlockSize(final File input, final long blockAddress) throws IOException {
+        try (final RandomAccessFile file = new RandomAccessFile(input, "r")) {
+            file.seek(blockAddress + BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET);
+            return (file.readUnsignedByte() | file.readUnsignedByte() << 8) + 1;
+        }
+    }
+
+    /** Copies the compressed blocks of input from start to the end, leaving off any terminator block. */
+    private static void copyBlocks(final File input, final long start, final OutputStream out) throws IOException {
+        long end = input.length();
+        if (BlockCompressedInputStream.checkTermination(input) == BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK) {
+            end -= BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+        }
+        try (final RandomAccessFile file = new RandomAccessFile(input, "r")) {
+            file.seek(start);
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long remaining = end - start;
+            while (remaining > 0) {
+                final int n = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) throw new IOException("Premature end of " + input);
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * Applies transform to every virtual offset in a tabix index, writing the result to output unless it is null.  The
+     * layout is that of the tabix format specification.
+     */
+    private static void transformIndex(final File input, final File output, final LongUnaryOperator transform) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final InputStream in = new BlockCompressedInputStream(input)) {
+            IOUtil.copyStream(in, bytes);
+        }
+        final ByteBuffer index = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        final byte[] magic = new byte[TABIX_MAGIC.length];
+        index.get(magic);
+        if (!Arrays.equals(magic, TABIX_MAGIC)) throw new PicardException(input + " is not a tabix index.");
+
+        final int numReferences = index.getInt();
+        index.position(index.position() + 6 * Integer.BYTES); // format, sequence, begin and end columns, meta character and lines to skip
+        final int namesLength = index.getInt();
+        index.position(index.position() + namesLength);
+
+        for (int ref = 0; ref < numReferences; ++ref) {
+            final int numBins = index.getInt();
+            for (int b = 0; b < numBins; ++b) {
+                final int bin = index.getInt();
+                final int numChunks = index.getInt();
+                for (int c = 0; c < numChunks; ++c) {
+                    if (bin == PSEUDO_BIN && c == 1) {
+                        index.position(index.position() + 2 * Long.BYTES);
+                        continue;
+                    }
+                    transformOffset(index, transform);
+                    transformOffset(index, transform);
+                }
+            }
+            final int numIntervals = index.getInt();
+            for (int i = 0; i < numIntervals; ++i) transformOffset(index, transform);
+        }
+
+        if (output != null) {
+            final BlockCompressedOutputStream out = new BlockCompressedOutputStream(output);
+            out.write(index.array());
+            out.close();
+        }
+    }
+
+    private static void transformOffset(final ByteBuffer index, final LongUnaryOperator transform) {
+        final int position = index.position();
+        index.putLong(position, transform.applyAsLong(index.getLong()));
+    }
+}
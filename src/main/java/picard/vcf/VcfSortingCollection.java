@@ -0,0 +1,275 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.vcf;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.ProgressLogger;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.SortingCollection;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+import picard.PicardException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sorts VariantContexts into the order of the header's VCFRecordComparator, holding each one as its encoded VCF line
+ * together with a sort key extracted when it is added.  Records are never parsed back while sorting or spilling, and
+ * are decoded one at a time as they are iterated over.
+ * <p/>
+ * Records that compare equal by contig and start are returned in the order they were added, or, when added from
+ * several sources with {@link #addAll(List, int, ProgressLogger)}, in source order and then in the order within each
+ * source.  This is the order a SortingCollection of VariantContexts produces when the sources are added one by one.
+ */
+public class VcfSortingCollection implements Iterable<VariantContext> {
+    /** The number of records each reader thread encodes before handing them to the sorter. */
+    private static final int RECORDS_PER_BATCH = 1000;
+
+    /** The number of bits of the order key given to the position of a record within its source. */
+    private static final int RECORD_INDEX_BITS = 40;
+
+    private final VCFHeader header;
+    private final boolean allowMissingFieldsInHeader;
+    private final Map<String, Integer> contigIndices = new HashMap<>();
+    private final Map<Integer, String> contigNames = new HashMap<>();
+    private final SortingCollection<EncodedVariant> sorter;
+    private final VCFEncoder encoder;
+    private long numAdded = 0;
+
+    /** A VariantContext encoded as a VCF line, with the fields it is sorted on. */
+    static class EncodedVariant {
+        final int contigIndex;
+        final int start;
+        final long order;
+        final byte[] line;
+
+        EncodedVariant(final int contigIndex, final int start, final long order, final byte[] line) {
+            this.contigIndex = contigIndex;
+            this.start = start;
+            this.order = order;
+            this.line = line;
+        }
+    }
+
+    private static final Comparator<EncodedVariant> COMPARATOR = new Comparator<EncodedVariant>() {
+        public int compare(final EncodedVariant lhs, final EncodedVariant rhs) {
+            int cmp = Integer.compare(lhs.contigIndex, rhs.contigIndex);
+            if (cmp == 0) cmp = Integer.compare(lhs.start, rhs.start);
+            if (cmp == 0) cmp = Long.compare(lhs.order, rhs.order);
+            return cmp;
+        }
+    };
+
+    /**
+     * @param header                     the header against which records are encoded and decoded; its contig lines
+     *                                   define the sort order
+     * @param allowMissingFieldsInHeader as for VCFRecordCodec
+     * @param maxRecordsInRam            the number of records to hold in memory before spilling to disk
+     * @param tmpDirs                    the directories to spill into
+     */
+    public VcfSortingCollection(final VCFHeader header, final boolean allowMissingFieldsInHeader, final int maxRecordsInRam,
+                                final Collection<File> tmpDirs) {
+        this.header = header;
+        this.allowMissingFieldsInHeader = allowMissingFieldsInHeader;
+        for (final VCFContigHeaderLine contig : header.getContigLines()) {
+            contigIndices.put(contig.getID(), contig.getContigIndex());
+            contigNames.put(contig.getContigIndex(), contig.getID());
+        }
+        this.encoder = new VCFEncoder(header, allowMissingFieldsInHeader, false);
+        this.sorter = SortingCollection.newInstance(EncodedVariant.class, new EncodedVariantCodec(), COMPARATOR, maxRecordsInRam, tmpDirs);
+    }
+
+    /** Adds a record, which sorts after any record with the same contig and start already added. */
+    public void add(final VariantContext vc) {
+        sorter.add(encode(encoder, vc, numAdded++));
+    }
+
+    /**
+     * Reads each source on one of a pool of threads, encoding its records there, and adds them all.  Sources are closed
+     * once read if they are Closeable.
+     *
+     * @param sources    the sources of records, in the order in which records with equal keys should be returned
+     * @param numThreads the number of sources to read at once
+     * @param progress   records the progress of reading, or null
+     */
+    public void addAll(final List<? extends Iterable<VariantContext>> sources, final int numThreads, final ProgressLogger progress) {
+        if (sources.size() >= (1 << (63 - RECORD_INDEX_BITS))) throw new PicardException("Too many sources to sort: " + sources.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, sources.size())), r -> {
+            final Thread t = new Thread(r, "VcfSortingCollectionReader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < sources.size(); ++i) {
+                final long sourceOrder = ((long) i) << RECORD_INDEX_BITS;
+                final Iterable<VariantContext> source = sources.get(i);
+                futures.add(executor.submit(() -> {
+                    final VCFEncoder sourceEncoder = new VCFEncoder(header, allowMissingFieldsInHeader, false);
+                    final List<EncodedVariant> batch = new ArrayList<>(RECORDS_PER_BATCH);
+                    long recordIndex = 0;
+                    for (final VariantContext vc : source) {
+                        batch.add(encode(sourceEncoder, vc, sourceOrder | recordIndex++));
+                        if (batch.size() == RECORDS_PER_BATCH) addBatch(batch, progress);
+                    }
+                    addBatch(batch, progress);
+                    CloserUtil.close(source);
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (final InterruptedException e) {
+                    throw new PicardException("Interrupted while reading VCFs", e);
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    throw new PicardException("Error reading VCF", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void addBatch(final List<EncodedVariant> batch, final ProgressLogger progress) {
+        synchronized (sorter) {
+            for (final EncodedVariant variant : batch) {
+                sorter.add(variant);
+                if (progress != null) progress.record(contigNames.get(variant.contigIndex), variant.start);
+            }
+        }
+        batch.clear();
+    }
+
+    private EncodedVariant encode(final VCFEncoder encoder, final VariantContext vc, final long order) {
+        final Integer contigIndex = contigIndices.get(vc.getContig());
+        if (contigIndex == null) throw new PicardException("Contig " + vc.getContig() + " is not in the sequence dictionary of the header.");
+        return new EncodedVariant(contigIndex, vc.getStart(), order, encoder.encode(vc).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void doneAdding() {
+        sorter.doneAdding();
+    }
+
+    /** Returns the records in sorted order, decoding each as it is returned. */
+    public CloseableIterator<VariantContext> iterator() {
+        final VCFCodec decoder = new VCFCodec();
+        decoder.setVCFHeader(header, VCFHeaderVersion.VCF4_2);
+        final CloseableIterator<EncodedVariant> iterator = sorter.iterator();
+        return new CloseableIterator<VariantContext>() {
+            public void close() {
+                iterator.close();
+            }
+
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public VariantContext next() {
+                return decoder.decode(new String(iterator.next().line, StandardCharsets.UTF_8));
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public void cleanup() {
+        sorter.cleanup();
+    }
+
+    /** Spills the sort key and encoded line of each record, so that read-back involves no parsing. */
+    static class EncodedVariantCodec implements SortingCollection.Codec<EncodedVariant> {
+        private DataOutputStream out;
+        private DataInputStream in;
+
+        public void setOutputStream(final OutputStream os) {
+            out = new DataOutputStream(os);
+        }
+
+        public void setInputStream(final InputStream is) {
+            in = new DataInputStream(is);
+        }
+
+        public void encode(final EncodedVariant variant) {
+            try {
+                out.writeInt(variant.contigIndex);
+                out.writeInt(variant.start);
+                out.writeLong(variant.order);
+                out.writeInt(variant.line.length);
+                out.write(variant.line);
+            } catch (final IOException e) {
+                throw new RuntimeIOException("Exception writing variant to temporary file.", e);
+            }
+        }
+
+        public EncodedVariant decode() {
+            final int contigIndex;
+            try {
+                contigIndex = in.readInt();
+            } catch (final EOFException e) {
+                return null;
+            } catch (final IOException e) {
+                throw new RuntimeIOException("Exception reading variant from temporary file.", e);
+            }
+            try {
+                final int start = in.readInt();
+                final long order = in.readLong();
+                final byte[] line = new byte[in.readInt()];
+                in.readFully(line);
+                return new EncodedVariant(contigIndex, start, order, line);
+            } catch (final IOException e) {
+                throw new RuntimeIOException("Exception reading variant from temporary file.", e);
+            }
+        }
+
+        public EncodedVariantCodec clone() {
+            return new EncodedVariantCodec();
+        }
+    }
+}
@@ -26,23 +26,38 @@ package picard.vcf.filter;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CloserUtil;
 
-import htsjdk.samtools.util.ListMap;
 import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.LazyGenotypesContext;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextBuilder;
+import picard.PicardException;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Iterator that dynamically applies filter strings to VariantContext records supplied by an underlying
  * iterator.  Returns all records from the underlying stream and does not remove any.
  *
+ * If constructed with more than one thread, records are read ahead in batches and filtered on a pool of threads, and
+ * are returned in the order of the underlying iterator; the filters must then be safe to call from several threads.
+ * The number of records each filter is applied to, the number it filters and the time spent in it are counted for
+ * all records returned, and are available from getFilterMetrics().
+ *
  * @author tfennell
  */
 public class FilterApplyingVariantIterator implements CloseableIterator<VariantContext> {
@@ -51,9 +66,19 @@ public class FilterApplyingVariantIterator implements CloseableIterator<VariantC
     /** The "PASS"ing filter String. */
     public static final String PASS_FILTER = "PASS";
 
+    private static final int RECORDS_PER_BATCH = 1000;
+
     private final Iterator<VariantContext> iterator;
     private final VariantFilter[] filters;
     private final GenotypeFilter[] gtFilters;
+    /** Counts for the records returned so far. */
+    private final FilterCounts totals;
+
+    /** The pool filtering batches of records, or null if filtering on the calling thread. */
+    private final ExecutorService pool;
+    private final int maxBatchesInFlight;
+    private final Deque<Future<Batch>> batchesInFlight = new ArrayDeque<>();
+    private Iterator<VariantContext> filteredRecords = Collections.emptyIterator();
 
     /**
      * Constructs an iterator from an underlying iterator and the provided (possibly empty)
@@ -62,9 +87,31 @@ public class FilterApplyingVariantIterator implements CloseableIterator<VariantC
     public FilterApplyingVariantIterator(final Iterator<VariantContext> iterator,
                                          final Collection<VariantFilter> filters,
                                          final Collection<GenotypeFilter> gtFilters) {
+        this(iterator, filters, gtFilters, 1);
+    }
+
+    /**
+     * Constructs an iterator from an underlying iterator and the provided (possibly empty) collections of variant and
+     * genotype filters, which filters records on numThreads threads.
+     */
+    public FilterApplyingVariantIterator(final Iterator<VariantContext> iterator,
+                                         final Collection<VariantFilter> filters,
+                                         final Collection<GenotypeFilter> gtFilters,
+                                         final int numThreads) {
         this.iterator = iterator;
         this.filters = filters.toArray(new VariantFilter[filters.size()]);
         this.gtFilters = gtFilters.toArray(new GenotypeFilter[gtFilters.size()]);
+        this.totals = new FilterCounts(this.filters.length + this.gtFilters.length);
+        this.maxBatchesInFlight = numThreads * 2;
+        if (numThreads > 1) {
+            this.pool = Executors.newFixedThreadPool(numThreads, r -> {
+                final Thread t = new Thread(r, "FilterApplyingVariantIterator");
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            this.pool = null;
+        }
     }
 
     /**
@@ -73,62 +120,189 @@ public class FilterApplyingVariantIterator implements CloseableIterator<VariantC
      */
     @Override
     public VariantContext next() {
-        final VariantContext ctx = this.iterator.next();
-        final Set<String> filterStrings = new HashSet<String>();
+        if (pool == null) return applyFilters(this.iterator.next(), this.totals);
+        if (!hasNext()) throw new NoSuchElementException();
+        return filteredRecords.next();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (pool == null) return this.iterator.hasNext();
+        if (!filteredRecords.hasNext()) {
+            submitBatches();
+            if (batchesInFlight.isEmpty()) return false;
+            final Future<Batch> next = batchesInFlight.removeFirst();
+            submitBatches();
+            filteredRecords = takeBatch(next).iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) pool.shutdownNow();
+        CloserUtil.close(this.iterator);
+    }
 
+    @Override public void remove() { throw new UnsupportedOperationException("remove() not supported by FilterApplyingVariantIterator."); }
+
+    /** Returns metrics for each variant filter and then each genotype filter, over the records returned so far. */
+    public List<FilterMetrics> getFilterMetrics() {
+        final List<FilterMetrics> metrics = new ArrayList<>(totals.evaluations.length);
+        for (int i = 0; i < totals.evaluations.length; ++i) {
+            final FilterMetrics metric = new FilterMetrics();
+            final boolean isVariantFilter = i < filters.length;
+            metric.FILTER = (isVariantFilter ? filters[i] : gtFilters[i - filters.length]).getClass().getSimpleName();
+            metric.FILTER_TYPE = isVariantFilter ? "VARIANT" : "GENOTYPE";
+            metric.EVALUATIONS = totals.evaluations[i];
+            metric.FILTERED = totals.filtered[i];
+            metric.SECONDS = totals.nanos[i] / 1e9;
+            metrics.add(metric);
+        }
+        return metrics;
+    }
+
+    /**
+     * Applies the filters to a single record, adding to counts.  Nothing is allocated besides the new record unless
+     * some filter is failed or a genotype was already filtered, in which case the genotypes are rebuilt.
+     */
+    private VariantContext applyFilters(final VariantContext ctx, final FilterCounts counts) {
         // Collect variant level filters
-        for (final VariantFilter filter : this.filters) {
-            final String val = filter.filter(ctx);
-            if (val != null) filterStrings.add(val);
+        Set<String> filterStrings = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < this.filters.length; ++i) {
+            final String val = this.filters[i].filter(ctx);
+            final long end = System.nanoTime();
+            counts.add(i, val != null, end - start);
+            start = end;
+            if (val != null) {
+                if (filterStrings == null) filterStrings = new HashSet<>();
+                filterStrings.add(val);
+            }
         }
 
-        // Collect genotype level filters in a Map of Sample -> List<filter string>
-        final ListMap<String,String> gtFilterStrings = new ListMap<String,String>();
-        final Set<String> variantSamples = new HashSet<String>();
-        for (final Genotype gt : ctx.getGenotypes()) {
-            if (gt.isCalled() && !gt.isHomRef()) variantSamples.add(gt.getSampleName());
+        // Apply genotype level filters, leaving any genotype that passes and had no filters alone
+        final GenotypesContext genotypes = ctx.getGenotypes();
+        List<Genotype> newGenotypes = null;
+        boolean allVariantGenotypesFiltered = true;
+        for (int g = 0; g < genotypes.size(); ++g) {
+            final Genotype gt = genotypes.get(g);
+            List<String> gtFilterStrings = null;
+            start = System.nanoTime();
+            for (int i = 0; i < gtFilters.length; ++i) {
+                final String filterString = gtFilters[i].filter(ctx, gt);
+                final long end = System.nanoTime();
+                counts.add(this.filters.length + i, filterString != null, end - start);
+                start = end;
+                if (filterString != null) {
+                    if (gtFilterStrings == null) gtFilterStrings = new ArrayList<>(gtFilters.length);
+                    gtFilterStrings.add(filterString);
+                }
+            }
+
+            if (gtFilterStrings == null && gt.isCalled() && !gt.isHomRef()) allVariantGenotypesFiltered = false;
 
-            for (final GenotypeFilter filter : gtFilters) {
-                final String filterString = filter.filter(ctx,gt);
-                if (filterString != null)  gtFilterStrings.add(gt.getSampleName(), filterString);
+            if (newGenotypes == null && (gtFilterStrings != null || gt.isFiltered())) {
+                newGenotypes = new ArrayList<>(genotypes.size());
+                for (int previous = 0; previous < g; ++previous) newGenotypes.add(genotypes.get(previous));
+            }
+            if (newGenotypes != null) {
+                // Setting the PASS filter on a genotype leaves it unfiltered
+                final GenotypeBuilder gtBuilder = new GenotypeBuilder(gt);
+                if (gtFilterStrings == null) gtBuilder.filter(PASS_FILTER);
+                else gtBuilder.filters(gtFilterStrings);
+                newGenotypes.add(gtBuilder.make());
             }
         }
 
         // If all genotypes are filtered apply a site level filter
-        if (gtFilterStrings.keySet().containsAll(variantSamples)) {
+        if (allVariantGenotypesFiltered) {
+            if (filterStrings == null) filterStrings = new HashSet<>();
             filterStrings.add(ALL_GTS_FILTERED);
         }
 
         // Make a builder and set the site level filter appropriately
         final VariantContextBuilder builder = new VariantContextBuilder(ctx);
-        if (filterStrings.isEmpty()) {
+        if (filterStrings == null) {
             builder.passFilters();
         }
         else {
             builder.filters(filterStrings);
         }
+        if (newGenotypes != null) builder.genotypes(newGenotypes);
 
-        // Apply filters to the necessary genotypes
-        builder.noGenotypes();
-        final List<Genotype> newGenotypes = new ArrayList<Genotype>(ctx.getNSamples());
-        for (final Genotype gt : ctx.getGenotypes()) {
-            final GenotypeBuilder gtBuilder = new GenotypeBuilder(gt);
-            final List<String> filters = gtFilterStrings.get(gt.getSampleName());
+        return builder.make();
+    }
 
-            if (filters == null || filters.isEmpty()) {
-                gtBuilder.filter(PASS_FILTER);
-            }
-            else {
-                gtBuilder.filters(filters);
+    /** Reads batches of records and submits them to the pool until enough are in flight or the input is exhausted. */
+    private void submitBatches() {
+        while (batchesInFlight.size() < maxBatchesInFlight && this.iterator.hasNext()) {
+            final List<VariantContext> records = new ArrayList<>(RECORDS_PER_BATCH);
+            while (records.size() < RECORDS_PER_BATCH && this.iterator.hasNext()) {
+                final VariantContext ctx = this.iterator.next();
+                // Lazily decoded genotypes are parsed by the codec that read them, which is not thread safe
+                final GenotypesContext genotypes = ctx.getGenotypes();
+                if (genotypes instanceof LazyGenotypesContext) ((LazyGenotypesContext) genotypes).decode();
+                records.add(ctx);
             }
-            newGenotypes.add(gtBuilder.make());
+            batchesInFlight.addLast(pool.submit(() -> {
+                final Batch batch = new Batch(records.size(), totals.evaluations.length);
+                for (final VariantContext ctx : records) batch.records.add(applyFilters(ctx, batch.counts));
+                return batch;
+            }));
         }
-        builder.genotypes(newGenotypes);
+    }
 
-        return builder.make();
+    /** Waits for a batch to be filtered, adds its counts to the totals, and returns its records. */
+    private List<VariantContext> takeBatch(final Future<Batch> future) {
+        final Batch batch;
+        try {
+            batch = future.get();
+        } catch (final ExecutionException ee) {
+            pool.shutdownNow();
+            if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+            throw new PicardException("Exception filtering variants", ee.getCause());
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted waiting for variants to be filtered", ie);
+        }
+        totals.add(batch.counts);
+        return batch.records;
     }
 
-    @Override public boolean hasNext() { return this.iterator.hasNext(); }
-    @Override public void close() { CloserUtil.close(this.iterator); }
-    @Override public void remove() { throw new UnsupportedOperationException("remove() not supported by FilterApplyingVariantIterator."); }
+    /** The number of records each filter was applied to, the number it filtered, and the time spent in it. */
+    private static class FilterCounts {
+        final long[] evaluations, filtered, nanos;
+
+        FilterCounts(final int numFilters) {
+            this.evaluations = new long[numFilters];
+            this.filtered = new long[numFilters];
+            this.nanos = new long[numFilters];
+        }
+
+        void add(final int filter, final boolean wasFiltered, final long elapsedNanos) {
+            ++evaluations[filter];
+            if (wasFiltered) ++filtered[filter];
+            nanos[filter] += elapsedNanos;
+        }
+
+        void add(final FilterCounts other) {
+            for (int i = 0; i < evaluations.length; ++i) {
+                evaluations[i] += other.evaluations[i];
+                filtered[i] += other.filtered[i];
+                nanos[i] += other.nanos[i];
+            }
+        }
+    }
+
+    /** A batch of filtered records and the counts from filtering them. */
+    private static class Batch {
+        final List<VariantContext> records;
+        final FilterCounts counts;
+
+        Batch(final int numRecords, final int numFilters) {
+            this.records = new ArrayList<>(numRecords);
+            this.counts = new FilterCounts(numFilters);
+        }
+    }
 }
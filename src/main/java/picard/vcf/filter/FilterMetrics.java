@@ -0,0 +1,46 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.vcf.filter;
+
+import htsjdk.samtools.metrics.MetricBase;
+
+/**
+ * Metrics describing the work done by, and the effect of, one variant or genotype filter applied by FilterVcf.
+ */
+public class FilterMetrics extends MetricBase {
+    /** The name of the filter's class. */
+    public String FILTER;
+
+    /** VARIANT for a filter applied to each site, GENOTYPE for a filter applied to each genotype at each site. */
+    public String FILTER_TYPE;
+
+    /** The number of sites, or genotypes, that the filter was applied to. */
+    public long EVALUATIONS;
+
+    /** The number of sites, or genotypes, that the filter filtered out. */
+    public long FILTERED;
+
+    /** The total time, summed over all threads, spent applying the filter. */
+    public double SECONDS;
+}
@@ -25,9 +25,11 @@
 package picard.vcf.filter;
 
 import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.filter.JavascriptVariantFilter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
@@ -44,6 +46,7 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.VcfOrBcf;
+import picard.util.FisherExactTest;
 
 import java.io.File;
 import java.io.IOException;
@@ -82,6 +85,14 @@ public class FilterVcf extends CommandLineProgram {
     @Option(doc="The maximum phred scaled fisher strand value before a site will be filtered out.")
     public double MAX_FS = Double.MAX_VALUE;
 
+    @Option(doc="If true, sites without an FS value are filtered by MAX_FS on a fisher strand value computed from the " +
+            "per-sample SB counts summed over all samples.  Otherwise such sites are not filtered for strand bias.")
+    public boolean FS_FROM_SB = false;
+
+    @Option(doc="With FS_FROM_SB, the largest number of reads for which Fisher's exact test is used.  Sites with more " +
+            "reads use a chi-squared approximation.")
+    public int FS_EXACT_TEST_MAX_DEPTH = FisherExactTest.DEFAULT_MAX_EXACT_DEPTH;
+
     @Option(doc="The minimum QD value to accept or otherwise filter out the variant.")
     public double MIN_QD = 0;
     
@@ -93,6 +104,15 @@ public class FilterVcf extends CommandLineProgram {
 	        optional = true)
 	public File JAVASCRIPT_FILE = null;
 
+    @Option(doc = "The number of threads to filter records on.  Records are written in the order they are read whatever the number.")
+    public int THREAD_COUNT = 1;
+
+    @Option(shortName = "M", doc = "File to write, for each filter, the number of sites or genotypes it was applied to and " +
+            "filtered out, and the time spent applying it.", optional = true)
+    public File METRICS_FILE = null;
+
+    private static final Log log = Log.getInstance(FilterVcf.class);
+
 
     /** Constructor to default to having index creation on. */
     public FilterVcf() { this.CREATE_INDEX = true; }
@@ -106,6 +126,7 @@ public class FilterVcf extends CommandLineProgram {
     protected int doWork() {
         IOUtil.assertFileIsReadable(INPUT);
         IOUtil.assertFileIsWritable(OUTPUT);
+        if (METRICS_FILE != null) IOUtil.assertFileIsWritable(METRICS_FILE);
 
         VCFFileReader in = null;
         VariantContextWriter out = null;
@@ -113,7 +134,7 @@ public class FilterVcf extends CommandLineProgram {
             in = new VCFFileReader(INPUT, false);
             final List<VariantFilter> variantFilters = new ArrayList<>(4);
             variantFilters.add(new AlleleBalanceFilter(MIN_AB));
-            variantFilters.add(new FisherStrandFilter(MAX_FS));
+            variantFilters.add(new FisherStrandFilter(MAX_FS, FS_FROM_SB, FS_EXACT_TEST_MAX_DEPTH));
             variantFilters.add(new QdFilter(MIN_QD));
             if (JAVASCRIPT_FILE != null) {
                 try {
@@ -124,7 +145,7 @@ public class FilterVcf extends CommandLineProgram {
             }
             final List<GenotypeFilter> genotypeFilters = CollectionUtil.makeList(new GenotypeQualityFilter(MIN_GQ), new DepthFilter(MIN_DP));
             @SuppressWarnings("resource")
-            final FilterApplyingVariantIterator iterator = new FilterApplyingVariantIterator(in.iterator(), variantFilters, genotypeFilters);
+            final FilterApplyingVariantIterator iterator = new FilterApplyingVariantIterator(in.iterator(), variantFilters, genotypeFilters, THREAD_COUNT);
 
             final VCFHeader header = in.getFileHeader();
             // If the user is writing to a .bcf or .vcf, VariantContextBuilderWriter requires a Sequence Dictionary.  Make sure that the
@@ -149,6 +170,15 @@ public class FilterVcf extends CommandLineProgram {
             while (iterator.hasNext()) {
                 out.add(iterator.next());
             }
+            iterator.close();
+
+            final MetricsFile<FilterMetrics, Integer> metricsFile = getMetricsFile();
+            for (final FilterMetrics metric : iterator.getFilterMetrics()) {
+                log.info(String.format("%s filtered %d of %d %s in %.3f seconds.", metric.FILTER, metric.FILTERED,
+                        metric.EVALUATIONS, metric.FILTER_TYPE.equals("VARIANT") ? "sites" : "genotypes", metric.SECONDS));
+                metricsFile.addMetric(metric);
+            }
+            if (METRICS_FILE != null) metricsFile.write(METRICS_FILE);
             return 0;
         } finally {
             CloserUtil.close(out);
@@ -181,10 +211,10 @@ public class FilterVcf extends CommandLineProgram {
 
         /**
          * returns the filterName if the javascript doesn't accept the variant,
-         * null otherwise
+         * null otherwise.  The script engine is not thread safe, so only one thread may run the script at a time.
          */
         @Override
-        public String filter(final VariantContext ctx) {
+        public synchronized String filter(final VariantContext ctx) {
             return (super.accept(ctx) ? null : this.filterName );
         }
 
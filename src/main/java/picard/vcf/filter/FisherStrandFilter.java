@@ -24,32 +24,96 @@
 package picard.vcf.filter;
 
 import htsjdk.samtools.util.CollectionUtil;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypesContext;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFFilterHeaderLine;
+import picard.PicardException;
+import picard.util.FisherExactTest;
 
 import java.util.List;
 
 /**
  * Filters records based on the phred scaled p-value from the Fisher Strand test stored in
- * the FS attribute.
+ * the FS attribute.  Optionally, records without an FS attribute are tested for strand bias with Fisher's exact test
+ * on the per-sample strand bias counts in the SB format field summed over all samples, if there are any.
  *
  * @author tfennell
  */
 public class FisherStrandFilter implements VariantFilter {
+    /** The per-sample counts of reference forward, reference reverse, alternate forward and alternate reverse reads. */
+    public static final String STRAND_BIAS_KEY = "SB";
+
     private final double maxPhredScalePValue;
+    /** Null unless records without FS are tested on their SB counts */
+    private final FisherExactTest fisherExactTest;
 
     public FisherStrandFilter(final double maxPhredScalePValue) {
+        this(maxPhredScalePValue, false, FisherExactTest.DEFAULT_MAX_EXACT_DEPTH);
+    }
+
+    /**
+     * @param useStrandBiasCounts whether records without FS are tested on the SB counts summed over samples
+     * @param maxExactDepth the largest number of reads for which the strand bias test is exact rather than approximate
+     */
+    public FisherStrandFilter(final double maxPhredScalePValue, final boolean useStrandBiasCounts, final int maxExactDepth) {
         this.maxPhredScalePValue= maxPhredScalePValue;
+        this.fisherExactTest = useStrandBiasCounts ? new FisherExactTest(maxExactDepth, FisherExactTest.DEFAULT_CACHE_SIZE) : null;
     }
 
     @Override
     public List<VCFFilterHeaderLine> headerLines() {
-        return CollectionUtil.makeList(new VCFFilterHeaderLine("StrandBias", "Site exhibits excessive allele/strand correlation."));
+        final String description = fisherExactTest == null ? "Site exhibits excessive allele/strand correlation."
+                : "Site exhibits excessive allele/strand correlation, by its FS or, for a site without FS, by Fisher's " +
+                  "exact test on the " + STRAND_BIAS_KEY + " counts summed over all samples.";
+        return CollectionUtil.makeList(new VCFFilterHeaderLine("StrandBias", description));
     }
 
     @Override
     public String filter(final VariantContext ctx) {
-        final double fs = ctx.getAttributeAsDouble("FS", 0);
+        final double fs;
+        if (ctx.hasAttribute("FS")) fs = ctx.getAttributeAsDouble("FS", 0);
+        else fs = fisherExactTest == null ? 0 : strandBiasFromGenotypes(ctx);
         return (fs > maxPhredScalePValue) ? "StrandBias" : null;
     }
+
+    /** Returns the phred scaled Fisher Strand p-value of the summed SB counts, or 0 if no genotype has them. */
+    private double strandBiasFromGenotypes(final VariantContext ctx) {
+        int refForward = 0, refReverse = 0, altForward = 0, altReverse = 0;
+        boolean hasStrandBias = false;
+        final GenotypesContext genotypes = ctx.getGenotypes();
+        for (int i = 0; i < genotypes.size(); ++i) {
+            final Genotype gt = genotypes.get(i);
+            final Object value = gt.getExtendedAttribute(STRAND_BIAS_KEY);
+            if (value == null) continue;
+            final int[] counts = parseStrandBias(value, ctx);
+            refForward += counts[0];
+            refReverse += counts[1];
+            altForward += counts[2];
+            altReverse += counts[3];
+            hasStrandBias = true;
+        }
+        if (!hasStrandBias) return 0;
+        return fisherExactTest.phredScaledPValue(refForward, refReverse, altForward, altReverse);
+    }
+
+    /** Decodes an SB value, which is an int[] if the record was built in memory and a String if it was read from a VCF. */
+    private static int[] parseStrandBias(final Object value, final VariantContext ctx) {
+        final int[] counts;
+        if (value instanceof int[]) {
+            counts = (int[]) value;
+        } else {
+            final String[] fields = (value instanceof List ? CollectionUtil.join((List<?>) value, ",") : value.toString()).split(",");
+            counts = new int[fields.length];
+            try {
+                for (int i = 0; i < fields.length; ++i) counts[i] = Integer.parseInt(fields[i].trim());
+            } catch (final NumberFormatException e) {
+                throw new PicardException("Malformed " + STRAND_BIAS_KEY + " value '" + value + "' at " + ctx.getContig() + ":" + ctx.getStart(), e);
+            }
+        }
+        if (counts.length != 4) {
+            throw new PicardException("Expected four " + STRAND_BIAS_KEY + " counts but found " + counts.length + " at " + ctx.getContig() + ":" + ctx.getStart());
+        }
+        return counts;
+    }
 }
@@ -0,0 +1,223 @@
+package picard.fingerprint;
+
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.PicardException;
+import picard.analysis.FingerprintDatabaseMatchMetrics;
+import picard.vcf.VcfTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that FingerprintDatabase stores fingerprints faithfully and that scanning it gives the same results as
+ * FingerprintChecker.calculateMatchResults()
+ */
+public class FingerprintDatabaseTest {
+    private static final double DELTA = 1e-9;
+    private static final File TEST_DATA_DIR = new File("testdata/picard/fingerprint/");
+    private static final File HAPLOTYPE_MAP = new File(TEST_DATA_DIR, "Homo_sapiens_assembly19.haplotype_database.subset.txt");
+    private static final String[] VCFS = {"NA12891.vcf", "NA12891.fp.vcf", "NA12892.vcf", "NA12892.fp.vcf"};
+
+    private final HaplotypeMap map = new HaplotypeMap(HAPLOTYPE_MAP);
+    private final List<File> vcfs = new ArrayList<>();
+    private final List<Fingerprint> fingerprints = new ArrayList<>();
+    private File tmpDir;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("FingerprintDatabaseTest").toFile();
+        final FingerprintChecker checker = new FingerprintChecker(map);
+        for (final String vcf : VCFS) {
+            final File indexedVcf = VcfTestUtils.createTemporaryIndexedVcfFromInput(new File(TEST_DATA_DIR, vcf), "fingerprintdatabasetest.tmp.");
+            vcfs.add(indexedVcf);
+            fingerprints.addAll(checker.loadFingerprints(indexedVcf, null).values());
+        }
+        Assert.assertEquals(fingerprints.size(), VCFS.length);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    private File newDatabaseFile() throws IOException {
+        return File.createTempFile("fingerprints", ".db", tmpDir);
+    }
+
+    @DataProvider(name = "scanParameters")
+    public Object[][] scanParameters() {
+        return new Object[][]{{0.0, 0.0}, {0.01, 0.5}, {0.01, 0.1}};
+    }
+
+    @Test(dataProvider = "scanParameters")
+    public void testScanAgreesWithCalculateMatchResults(final double minPExpected, final double pLoH) throws IOException {
+        final FingerprintDatabase database = new FingerprintDatabase(newDatabaseFile(), map);
+        database.add(fingerprints);
+        Assert.assertEquals(database.size(), fingerprints.size());
+
+        for (final Fingerprint observed : fingerprints) {
+            final List<MatchResults> results = database.scan(observed, minPExpected, pLoH, 1);
+            Assert.assertEquals(results.size(), fingerprints.size());
+            for (int i = 0; i < fingerprints.size(); ++i) {
+                final Fingerprint expected = fingerprints.get(i);
+                final MatchResults expectedResult = FingerprintChecker.calculateMatchResults(observed, expected, minPExpected, pLoH);
+                final MatchResults result = results.get(i);
+                Assert.assertEquals(database.getSample(i), expected.getSample());
+                Assert.assertEquals(database.getSource(i), expected.getSource().getPath());
+                Assert.assertEquals(result.getSample(), expectedResult.getSample());
+                Assert.assertEquals(result.getFingerprintFile(), expectedResult.getFingerprintFile());
+                Assert.assertEquals(result.getSampleLikelihood(), expectedResult.getSampleLikelihood(), DELTA);
+                Assert.assertEquals(result.getPopulationLikelihood(), expectedResult.getPopulationLikelihood(), DELTA);
+                Assert.assertEquals(result.getLOD(), expectedResult.getLOD(), DELTA);
+                Assert.assertEquals(result.getLodTN(), expectedResult.getLodTN(), DELTA);
+                Assert.assertEquals(result.getLodNT(), expectedResult.getLodNT(), DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void testAppendAndReopen() throws IOException {
+        final File file = newDatabaseFile();
+        final FingerprintDatabase database = new FingerprintDatabase(file, map);
+        Assert.assertEquals(database.size(), 0);
+        database.add(fingerprints.subList(0, 1));
+        database.add(Collections.emptyList());
+        database.add(fingerprints.subList(1, 3));
+        Assert.assertEquals(database.size(), 3);
+
+        // Another reader of the file sees samples added after it was opened once it is refreshed
+        final FingerprintDatabase other = new FingerprintDatabase(file, map);
+        Assert.assertEquals(other.size(), 3);
+        database.add(fingerprints.subList(3, 4));
+        Assert.assertEquals(other.size(), 3);
+        other.refresh();
+        Assert.assertEquals(other.size(), 4);
+
+        final FingerprintDatabase reopened = new FingerprintDatabase(file, map);
+        Assert.assertEquals(reopened.size(), fingerprints.size());
+        for (int i = 0; i < fingerprints.size(); ++i) {
+            Assert.assertEquals(reopened.getSample(i), fingerprints.get(i).getSample());
+        }
+        assertSameResults(reopened.scan(fingerprints.get(0), 0.01, 0.5, 1), database.scan(fingerprints.get(0), 0.01, 0.5, 1));
+    }
+
+    @Test
+    public void testMultiThreadedScan() throws IOException {
+        final FingerprintDatabase database = new FingerprintDatabase(newDatabaseFile(), map);
+        // Enough samples for several scan tasks
+        for (int i = 0; i < 800; ++i) database.add(fingerprints);
+        for (final Fingerprint observed : fingerprints) {
+            assertSameResults(database.scan(observed, 0.01, 0.5, 4), database.scan(observed, 0.01, 0.5, 1));
+        }
+    }
+
+    @DataProvider(name = "incompleteSamples")
+    public Object[][] incompleteSamples() {
+        return new Object[][]{
+                // The start of a sample whose length runs past the end of the file
+                {new byte[]{0, 0, 1, 0, 0, 0, 0, 7, 'N', 'A'}},
+                // Lengths too short for any sample, which must not stall or move the read backwards
+                {new byte[]{-1, -1, -1, -4, 0, 0, 0, 0}},
+                {new byte[]{-1, -1, -1, -100, 0, 0, 0, 0}},
+                {new byte[]{0, 0, 0, 0, 0, 0, 0, 0}},
+                {new byte[]{0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0}}
+        };
+    }
+
+    @Test(dataProvider = "incompleteSamples")
+    public void testIncompleteSampleIsIgnoredAndOverwritten(final byte[] incompleteSample) throws IOException {
+        final File file = newDatabaseFile();
+        new FingerprintDatabase(file, map).add(fingerprints.subList(0, 2));
+        final long completeLength = file.length();
+        try (final FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(incompleteSample);
+        }
+
+        final FingerprintDatabase database = new FingerprintDatabase(file, map);
+        Assert.assertEquals(database.size(), 2);
+        database.add(fingerprints.subList(2, 4));
+        Assert.assertEquals(database.size(), 4);
+
+        final File expectedFile = newDatabaseFile();
+        final FingerprintDatabase expected = new FingerprintDatabase(expectedFile, map);
+        expected.add(fingerprints);
+        Assert.assertTrue(file.length() > completeLength);
+        Assert.assertEquals(file.length(), expectedFile.length());
+        for (final Fingerprint observed : fingerprints) {
+            assertSameResults(database.scan(observed, 0.01, 0.5, 1), expected.scan(observed, 0.01, 0.5, 1));
+        }
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testDifferentHaplotypeMap() throws IOException {
+        final File file = newDatabaseFile();
+        new FingerprintDatabase(file, map).add(fingerprints);
+        new FingerprintDatabase(file, new HaplotypeMap(new File(TEST_DATA_DIR, "haplotypeMap.txt")));
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testNotADatabase() throws IOException {
+        new FingerprintDatabase(vcfs.get(0), map);
+    }
+
+    @Test
+    public void testCommandLinePrograms() throws IOException {
+        final File database = new File(tmpDir, "clp.db");
+        final String[] addArgs = {
+                "INPUT=" + vcfs.get(1),
+                "INPUT=" + vcfs.get(3),
+                "HAPLOTYPE_MAP=" + HAPLOTYPE_MAP,
+                "DATABASE=" + database
+        };
+        Assert.assertEquals(new AddFingerprintsToDatabase().instanceMain(addArgs), 0);
+        Assert.assertEquals(new FingerprintDatabase(database, map).size(), 2);
+
+        final File output = new File(tmpDir, "clp.match_metrics");
+        final String[] checkArgs = {
+                "INPUT=" + vcfs.get(0),
+                "INPUT=" + vcfs.get(2),
+                "HAPLOTYPE_MAP=" + HAPLOTYPE_MAP,
+                "DATABASE=" + database,
+                "OUTPUT=" + output,
+                "MAX_MATCHES=1",
+                "ADD_TO_DATABASE=true"
+        };
+        Assert.assertEquals(new CheckFingerprintAgainstDatabase().instanceMain(checkArgs), 0);
+        Assert.assertEquals(new FingerprintDatabase(database, map).size(), 4);
+
+        final MetricsFile<FingerprintDatabaseMatchMetrics, ?> metricsFile = new MetricsFile<>();
+        metricsFile.read(new FileReader(output));
+        final List<FingerprintDatabaseMatchMetrics> metrics = metricsFile.getMetrics();
+        Assert.assertEquals(metrics.size(), 2);
+        for (final FingerprintDatabaseMatchMetrics metric : metrics) {
+            Assert.assertEquals(metric.DATABASE_SAMPLE, metric.SAMPLE);
+            Assert.assertEquals(metric.RANK, 1);
+            Assert.assertTrue(metric.LOD > 0);
+        }
+        Assert.assertEquals(Arrays.asList(metrics.get(0).SAMPLE, metrics.get(1).SAMPLE), Arrays.asList("NA12891", "NA12892"));
+    }
+
+    private static void assertSameResults(final List<MatchResults> actual, final List<MatchResults> expected) {
+        Assert.assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < actual.size(); ++i) {
+            Assert.assertEquals(actual.get(i).getSample(), expected.get(i).getSample());
+            Assert.assertEquals(actual.get(i).getSampleLikelihood(), expected.get(i).getSampleLikelihood());
+            Assert.assertEquals(actual.get(i).getPopulationLikelihood(), expected.get(i).getPopulationLikelihood());
+            Assert.assertEquals(actual.get(i).getLodTN(), expected.get(i).getLodTN());
+            Assert.assertEquals(actual.get(i).getLodNT(), expected.get(i).getLodNT());
+        }
+    }
+}
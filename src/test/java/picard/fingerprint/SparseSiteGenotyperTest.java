@@ -0,0 +1,239 @@
+package picard.fingerprint;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.filter.NotPrimaryAlignmentFilter;
+import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.SamLocusIterator;
+import htsjdk.samtools.util.StringUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests that SparseSiteGenotyper finds the same evidence at the SNPs as SamLocusIterator did for FingerprintChecker.
+ */
+public class SparseSiteGenotyperTest {
+    private static final String[] CIGARS = {"50M", "10S40M", "20M5D30M", "20M3I27M", "15M100N35M", "5H50M", "25M25S", "1M1I1M1D47M"};
+
+    private File tmpDir;
+    private File indexedBam;
+    private File unindexedSam;
+    private HaplotypeMap haplotypes;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("SparseSiteGenotyperTest").toFile();
+        final Random random = new Random(42);
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate, false, 1000000);
+        final SAMReadGroupRecord rg1 = new SAMReadGroupRecord("rg1");
+        rg1.setSample("sample1");
+        final SAMReadGroupRecord rg2 = new SAMReadGroupRecord("rg2");
+        rg2.setSample("sample2");
+        rg2.setPlatformUnit("pu2");
+        builder.getHeader().addReadGroup(rg1);
+        builder.getHeader().addReadGroup(rg2);
+        builder.setReadLength(50);
+
+        // SNPs clustered in a few regions on a few contigs, some adjacent and some sharing a haplotype block
+        haplotypes = new HaplotypeMap(builder.getHeader());
+        int snpNumber = 0;
+        for (final int contig : new int[]{0, 1, 3}) {
+            final String chrom = builder.getHeader().getSequence(contig).getSequenceName();
+            for (final int regionStart : new int[]{1000, 5000, 300000}) {
+                int pos = regionStart;
+                HaplotypeBlock block = null;
+                for (int i = 0; i < 15; ++i) {
+                    if (block == null || random.nextInt(3) == 0) {
+                        if (block != null) haplotypes.addHaplotype(block);
+                        block = new HaplotypeBlock(0.3);
+                    }
+                    block.addSnp(new Snp("snp" + snpNumber++, chrom, pos, (byte) 'A', (byte) 'C', 0.3, Collections.singletonList("panel")));
+                    pos += random.nextInt(4) == 0 ? 1 : random.nextInt(60) + 2;
+                }
+                haplotypes.addHaplotype(block);
+            }
+        }
+
+        // Fragments and pairs around the SNPs, with all the flags and CIGARs the genotyper has to handle
+        final List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 4000; ++i) {
+            final int contig = new int[]{0, 1, 3}[random.nextInt(3)];
+            final int start = new int[]{1000, 5000, 300000}[random.nextInt(3)] - 100 + random.nextInt(900);
+            final String name = "read" + i;
+            final String cigar1 = CIGARS[random.nextInt(CIGARS.length)];
+            switch (random.nextInt(4)) {
+                case 0:
+                    records.add(builder.addFrag(name, contig, start, random.nextBoolean(), false, cigar1, null, 30,
+                            random.nextInt(10) == 0, random.nextInt(10) == 0));
+                    break;
+                case 1: {
+                    // Mate on another contig
+                    final int mateContig = (contig + 1) % 4;
+                    records.addAll(builder.addPair(name, contig, mateContig, start, 1000 + random.nextInt(400), false, false,
+                            cigar1, CIGARS[random.nextInt(CIGARS.length)], false, true, false, false, 30));
+                    break;
+                }
+                default:
+                    // Mate nearby, possibly overlapping this read or covering the same SNPs
+                    records.addAll(builder.addPair(name, contig, start, Math.max(1, start + random.nextInt(400) - 100), false,
+                            random.nextInt(20) == 0, cigar1, CIGARS[random.nextInt(CIGARS.length)], false, true, 30));
+            }
+        }
+        for (final SAMRecord rec : records) {
+            rec.setAttribute(SAMTag.RG.name(), random.nextBoolean() ? "rg1" : "rg2");
+            if (!rec.getReadUnmappedFlag()) rec.setMappingQuality(random.nextInt(60));
+            rec.setDuplicateReadFlag(random.nextInt(8) == 0);
+            final byte[] quals = new byte[rec.getReadLength()];
+            for (int q = 0; q < quals.length; ++q) quals[q] = (byte) random.nextInt(40);
+            rec.setBaseQualities(quals);
+            final byte[] bases = new byte[rec.getReadLength()];
+            for (int b = 0; b < bases.length; ++b) bases[b] = StringUtil.toLowerCase((byte) "ACGTN".charAt(random.nextInt(5)));
+            rec.setReadBases(bases);
+        }
+
+        indexedBam = new File(tmpDir, "reads.bam");
+        unindexedSam = new File(tmpDir, "reads.sam");
+        for (final File file : new File[]{indexedBam, unindexedSam}) {
+            final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeWriter(builder.getHeader(), true, file, null);
+            for (final SAMRecord rec : builder.getRecords()) writer.addAlignment(rec);
+            writer.close();
+        }
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    @DataProvider(name = "settings")
+    public Object[][] settings() {
+        final List<Object[]> ret = new ArrayList<>();
+        for (final boolean indexed : new boolean[]{true, false}) {
+            for (final boolean allowDuplicates : new boolean[]{true, false}) {
+                ret.add(new Object[]{indexed, allowDuplicates, FingerprintChecker.DEFAULT_MINIMUM_MAPPING_QUALITY, FingerprintChecker.DEFAULT_MINIMUM_BASE_QUALITY});
+                ret.add(new Object[]{indexed, allowDuplicates, 0, 0});
+            }
+        }
+        return ret.toArray(new Object[ret.size()][]);
+    }
+
+    @Test(dataProvider = "settings")
+    public void testMatchesSamLocusIterator(final boolean indexed, final boolean allowDuplicates, final int minMappingQuality,
+                                            final int minBaseQuality) {
+        final File samFile = indexed ? indexedBam : unindexedSam;
+        final FingerprintChecker checker = new FingerprintChecker(haplotypes);
+        checker.setAllowDuplicateReads(allowDuplicates);
+        checker.setMinimumMappingQuality(minMappingQuality);
+        checker.setMinimumBaseQuality(minBaseQuality);
+        final Map<SAMReadGroupRecord, Fingerprint> actual = checker.fingerprintSamFile(samFile, haplotypes.getIntervalList());
+        final Map<SAMReadGroupRecord, Fingerprint> expected =
+                fingerprintWithSamLocusIterator(samFile, haplotypes.getIntervalList(), allowDuplicates, minMappingQuality, minBaseQuality);
+
+        Assert.assertEquals(actual.keySet(), expected.keySet());
+        int totalObservations = 0;
+        for (final SAMReadGroupRecord rg : expected.keySet()) {
+            for (final HaplotypeBlock block : haplotypes.getHaplotypes()) {
+                final HaplotypeProbabilitiesFromSequence a = (HaplotypeProbabilitiesFromSequence) actual.get(rg).get(block);
+                final HaplotypeProbabilitiesFromSequence e = (HaplotypeProbabilitiesFromSequence) expected.get(rg).get(block);
+                Assert.assertEquals(a.getObsAllele1(), e.getObsAllele1());
+                Assert.assertEquals(a.getObsAllele2(), e.getObsAllele2());
+                Assert.assertEquals(a.getTotalObs(), e.getTotalObs());
+                for (int i = 0; i < e.getLogLikelihoods().length; ++i) {
+                    Assert.assertEquals(a.getLogLikelihoods()[i], e.getLogLikelihoods()[i], 1e-12);
+                }
+                totalObservations += e.getTotalObs();
+            }
+        }
+        Assert.assertTrue(totalObservations > 100, "Too little evidence for a meaningful test: " + totalObservations);
+    }
+
+    @Test
+    public void testRestrictedLoci() {
+        final IntervalList loci = new IntervalList(haplotypes.getHeader());
+        final IntervalList all = haplotypes.getIntervalList();
+        for (int i = 0; i < all.size(); i += 3) loci.add(all.getIntervals().get(i));
+
+        final SparseSiteGenotyper genotyper = new SparseSiteGenotyper(haplotypes, loci);
+        Assert.assertEquals(genotyper.getNumSnps(), loci.size());
+
+        final Set<String> observedSnps = new HashSet<>();
+        final SamReader in = SamReaderFactory.makeDefault().open(indexedBam);
+        genotyper.genotype(in, (rec, haplotypeBlock, snp, base, qual) -> observedSnps.add(snp.getName()));
+        final Set<String> lociNames = new HashSet<>();
+        for (int i = 0; i < loci.size(); ++i) lociNames.add(loci.getIntervals().get(i).getName());
+        Assert.assertFalse(observedSnps.isEmpty());
+        Assert.assertTrue(lociNames.containsAll(observedSnps));
+    }
+
+    @Test
+    public void testQueryIntervalsMergeNearbySnps() {
+        final SparseSiteGenotyper genotyper = new SparseSiteGenotyper(haplotypes, null);
+        // Three clusters of SNPs on each of three contigs
+        Assert.assertEquals(genotyper.getQueryIntervals().length, 9);
+        Assert.assertEquals(genotyper.getNumSnps(), haplotypes.getAllSnps().size());
+    }
+
+    /** The way FingerprintChecker.fingerprintSamFile collected evidence before it used SparseSiteGenotyper. */
+    private Map<SAMReadGroupRecord, Fingerprint> fingerprintWithSamLocusIterator(final File samFile, final IntervalList loci,
+                                                                                final boolean allowDuplicateReads,
+                                                                                final int minimumMappingQuality,
+                                                                                final int minimumBaseQuality) {
+        final SamReader in = SamReaderFactory.makeDefault().open(samFile);
+        final SamLocusIterator iterator = new SamLocusIterator(in, loci, in.hasIndex());
+        iterator.setEmitUncoveredLoci(true);
+        iterator.setMappingQualityScoreCutoff(minimumMappingQuality);
+        iterator.setQualityScoreCutoff(minimumBaseQuality);
+        if (allowDuplicateReads) {
+            final List<SamRecordFilter> filters = new ArrayList<>(1);
+            filters.add(new NotPrimaryAlignmentFilter());
+            iterator.setSamFilters(filters);
+        }
+
+        final Map<SAMReadGroupRecord, Fingerprint> fingerprintsByReadGroup = new HashMap<>();
+        for (final SAMReadGroupRecord rg : in.getFileHeader().getReadGroups()) {
+            final Fingerprint fingerprint = new Fingerprint(rg.getSample(), samFile, rg.getPlatformUnit() != null ? rg.getPlatformUnit() : rg.getId());
+            fingerprintsByReadGroup.put(rg, fingerprint);
+            for (final HaplotypeBlock h : haplotypes.getHaplotypes()) fingerprint.add(new HaplotypeProbabilitiesFromSequence(h));
+        }
+
+        final Set<String> usedReadNames = new HashSet<>();
+        for (final SamLocusIterator.LocusInfo info : iterator) {
+            final HaplotypeBlock haplotypeBlock = haplotypes.getHaplotype(info.getSequenceName(), info.getPosition());
+            final Snp snp = haplotypes.getSnp(info.getSequenceName(), info.getPosition());
+            for (final SamLocusIterator.RecordAndOffset rec : info.getRecordAndOffsets()) {
+                final String readName = rec.getRecord().getReadName();
+                if (usedReadNames.add(readName)) {
+                    final HaplotypeProbabilitiesFromSequence probs = (HaplotypeProbabilitiesFromSequence)
+                            fingerprintsByReadGroup.get(rec.getRecord().getReadGroup()).get(haplotypeBlock);
+                    probs.addToProbs(snp, StringUtil.toUpperCase(rec.getReadBase()), rec.getBaseQuality());
+                }
+            }
+        }
+        iterator.close();
+        return fingerprintsByReadGroup;
+    }
+}
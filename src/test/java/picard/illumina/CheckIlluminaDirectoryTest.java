@@ -24,6 +24,7 @@ import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -340,6 +341,33 @@ public class CheckIlluminaDirectoryTest extends CommandLineProgramTest {
         Assert.assertEquals(runPicardCommandLine(args), 1);
     }
 
+    @Test
+    public void runFolderSnapshotTest() {
+        final int lane = 5;
+        final List<Integer> tiles = makeList(1, 2, 3, 4);
+        final int[] cycles = IlluminaFileUtilTest.cycleRange(1, 50);
+        final IlluminaDataType[] dataTypes = new IlluminaDataType[]{BaseCalls, IlluminaDataType.QualityScores};
+
+        makeFiles(new SupportedIlluminaFormat[]{Bcl, Filter}, lane, tiles, cycles);
+        writeTileMetricsOutFile(makeMap(makeList(lane - 1, lane + 1, lane),
+                Arrays.asList(makeList(1, 2, 3), tiles, tiles)));
+
+        final File snapshotFile = new File(illuminaDir, "run_folder.snapshot");
+        final List<String> args = new ArrayList<String>(Arrays.asList(
+                makeCheckerArgs(basecallDir, lane, "50T", dataTypes, new ArrayList<Integer>(), false, false)));
+        args.add("RUN_FOLDER_SNAPSHOT=" + snapshotFile);
+        final String[] argsArray = args.toArray(new String[args.size()]);
+
+        // The first run writes the snapshot, and the second checks the files against it
+        Assert.assertEquals(runPicardCommandLine(argsArray), 0);
+        Assert.assertTrue(snapshotFile.exists());
+        Assert.assertEquals(runPicardCommandLine(argsArray), 0);
+
+        // Removing a file changes its directory, so the snapshot is taken again and the missing file found
+        Assert.assertTrue(new File(basecallDir, "L005/C9.1/s_5_3.bcl").delete());
+        Assert.assertEquals(runPicardCommandLine(argsArray), 1);
+    }
+
     @Test(expectedExceptions = SAMException.class)
     public void basedirDoesntExistTest() {
         final String[] args = makeCheckerArgs(new File("a_made_up_file/in_some_weird_location"), 1, "76T76T",
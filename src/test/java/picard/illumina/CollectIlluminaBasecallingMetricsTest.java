@@ -151,7 +151,22 @@ public class CollectIlluminaBasecallingMetricsTest {
         Assert.assertEquals(metricsFile.getMetrics().size(),1);
     }
 
+    @Test(dataProvider="testIndexedRunLane1DataProvider")
+    public void testMultipleProcessorsMatchSingleProcessor(final boolean isIndexed) throws Exception {
+        final String readStructure = isIndexed ? "25T8B25T" : "125T125T";
+        final MetricsFile<IlluminaBasecallingMetrics, Integer> expected =
+                runIt(1, readStructure, readStructure + "/Data/Intensities/BaseCalls", null, isIndexed, 1);
+        final MetricsFile<IlluminaBasecallingMetrics, Integer> actual =
+                runIt(1, readStructure, readStructure + "/Data/Intensities/BaseCalls", null, isIndexed, 4);
+        Assert.assertFalse(expected.getMetrics().isEmpty());
+        Assert.assertEquals(actual.getMetrics(), expected.getMetrics());
+    }
+
     private MetricsFile<IlluminaBasecallingMetrics, Integer> runIt(final int lane, final String readStructure, final String basecallsDirName, final File barcodesDir, final boolean isIndexed) throws Exception {
+        return runIt(lane, readStructure, basecallsDirName, barcodesDir, isIndexed, 1);
+    }
+
+    private MetricsFile<IlluminaBasecallingMetrics, Integer> runIt(final int lane, final String readStructure, final String basecallsDirName, final File barcodesDir, final boolean isIndexed, final int numProcessors) throws Exception {
         final File metricsFile = File.createTempFile("cibm.", ".metrics");
         metricsFile.deleteOnExit();
 
@@ -165,6 +180,7 @@ public class CollectIlluminaBasecallingMetricsTest {
 
         if (readStructure != null) argsList.add("READ_STRUCTURE=" + readStructure);
         if (isIndexed) argsList.add("INPUT=" + new File(basecallsDir.getPath(),"barcodeData." + lane).getPath());
+        argsList.add("NUM_PROCESSORS=" + numProcessors);
 
         final String[] args = new String[argsList.size()];
         argsList.toArray(args);
@@ -23,21 +23,31 @@
  */
 package picard.illumina;
 
+import htsjdk.samtools.util.BlockCompressedInputStream;
 import htsjdk.samtools.util.BufferedLineReader;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.LineReader;
 import htsjdk.samtools.util.StringUtil;
 import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 import picard.illumina.parser.ReadStructure;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 public class IlluminaBasecallsToFastqTest extends CommandLineProgramTest {
 
@@ -76,6 +86,52 @@ public class IlluminaBasecallsToFastqTest extends CommandLineProgramTest {
         IOUtil.assertFilesEqual(outputFastq2, new File(TEST_DATA_DIR, "nonBarcoded.2.fastq"));
     }
 
+    @DataProvider(name = "compressedOutputs")
+    public Object[][] compressedOutputs() {
+        return new Object[][]{{false, 1}, {false, 3}, {true, 3}};
+    }
+
+    @Test(dataProvider = "compressedOutputs")
+    public void testNonBarcodedCompressed(final boolean useBgzf, final int numProcessors) throws Exception {
+        final String suffix = ".1.fastq.gz";
+        final File outputFastq1 = File.createTempFile("nonBarcodedCompressed.", suffix);
+        outputFastq1.deleteOnExit();
+        final String outputPrefix = outputFastq1.getAbsolutePath().substring(0, outputFastq1.getAbsolutePath().length() - suffix.length());
+        final File outputFastq2 = new File(outputPrefix + ".2.fastq.gz");
+        outputFastq2.deleteOnExit();
+        runPicardCommandLine(new String[]{
+                "BASECALLS_DIR=" + BASECALLS_DIR,
+                "LANE=1",
+                "READ_STRUCTURE=25T8B25T",
+                "OUTPUT_PREFIX=" + outputPrefix,
+                "RUN_BARCODE=HiMom",
+                "MACHINE_NAME=machine1",
+                "FLOWCELL_BARCODE=abcdeACXX",
+                "COMPRESS_OUTPUTS=true",
+                "USE_BGZF=" + useBgzf,
+                "NUM_PROCESSORS=" + numProcessors,
+                "CREATE_MD5_FILE=true"
+        });
+        assertDecompressedEquals(outputFastq1, new File(TEST_DATA_DIR, "nonBarcoded.1.fastq"));
+        assertDecompressedEquals(outputFastq2, new File(TEST_DATA_DIR, "nonBarcoded.2.fastq"));
+        if (useBgzf) Assert.assertTrue(BlockCompressedInputStream.isValidFile(new BufferedInputStream(new FileInputStream(outputFastq1))));
+    }
+
+    /** Checks that compressed decompresses to expected, and that its MD5 file is of the compressed bytes. */
+    private void assertDecompressedEquals(final File compressed, final File expected) throws Exception {
+        final File md5File = new File(compressed.getAbsolutePath() + ".md5");
+        md5File.deleteOnExit();
+        final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (final InputStream in = new GZIPInputStream(new FileInputStream(compressed))) {
+            IOUtil.copyStream(in, decompressed);
+        }
+        Assert.assertEquals(decompressed.toByteArray(), Files.readAllBytes(expected.toPath()));
+
+        final MessageDigest md5 = MessageDigest.getInstance("MD5");
+        final String expectedMd5 = new BigInteger(1, md5.digest(Files.readAllBytes(compressed.toPath()))).toString(16);
+        Assert.assertEquals(IOUtil.slurp(md5File).trim(), expectedMd5);
+    }
+
     @Test
     public void testMultiplexWithIlluminaReadNameHeaders() throws Exception {
         final File outputDir = File.createTempFile("testMultiplexRH.", ".dir");
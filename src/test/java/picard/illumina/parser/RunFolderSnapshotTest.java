@@ -0,0 +1,198 @@
+package picard.illumina.parser;
+
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.PicardException;
+import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for RunFolderSnapshot, and that IlluminaFileUtil finds the same files from a snapshot as from the file system
+ */
+public class RunFolderSnapshotTest {
+    private static final File TEST_DATA_DIR = new File("testdata/picard/illumina");
+    private static final String[] RUN_FOLDERS = {"25T8B25T", "125T125T", "25T8B8B25T"};
+    private static final List<Integer> LANES = Arrays.asList(1, 2);
+
+    private File tmpDir;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("RunFolderSnapshotTest").toFile();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    private static File basecallDir(final String runFolder) {
+        return new File(TEST_DATA_DIR, runFolder + "/Data/Intensities/BaseCalls");
+    }
+
+    @DataProvider(name = "runFolders")
+    public Object[][] runFolders() {
+        final List<Object[]> ret = new ArrayList<Object[]>();
+        for (final String runFolder : RUN_FOLDERS) {
+            if (basecallDir(runFolder).isDirectory()) ret.add(new Object[]{runFolder});
+        }
+        return ret.toArray(new Object[ret.size()][]);
+    }
+
+    @Test(dataProvider = "runFolders")
+    public void testSnapshotAgreesWithFileSystem(final String runFolder) {
+        final File basecallDir = basecallDir(runFolder);
+        final RunFolderSnapshot snapshot = IlluminaFileUtil.snapshotLanes(basecallDir, null, LANES, null, 4);
+
+        final List<File> directories = new ArrayList<File>(Arrays.asList(basecallDir, basecallDir.getParentFile()));
+        for (final int lane : LANES) {
+            directories.add(new File(basecallDir, IlluminaFileUtil.longLaneStr(lane)));
+            directories.add(new File(basecallDir.getParentFile(), IlluminaFileUtil.longLaneStr(lane)));
+        }
+        final Pattern anything = Pattern.compile(".*");
+        for (int d = 0; d < directories.size(); ++d) {
+            final File directory = directories.get(d);
+            Assert.assertEquals(snapshot.exists(directory), directory.exists(), directory.getPath());
+            Assert.assertEquals(snapshot.isDirectory(directory), directory.isDirectory(), directory.getPath());
+            final File[] files = IOUtil.getFilesMatchingRegexp(directory, anything);
+            final File[] snapshotFiles = snapshot.getFilesMatchingRegexp(directory, anything);
+            if (files == null) {
+                Assert.assertNull(snapshotFiles, directory.getPath());
+                continue;
+            }
+            Assert.assertEquals(new HashSet<File>(Arrays.asList(snapshotFiles)), new HashSet<File>(Arrays.asList(files)));
+            for (final File file : files) {
+                Assert.assertTrue(snapshot.exists(file), file.getPath());
+                Assert.assertEquals(snapshot.isDirectory(file), file.isDirectory(), file.getPath());
+                if (file.isDirectory()) {
+                    // Only the lane directories are listed recursively
+                    if (d >= 2) directories.add(file);
+                } else {
+                    Assert.assertEquals(snapshot.length(file), file.length(), file.getPath());
+                }
+            }
+            Assert.assertFalse(snapshot.exists(new File(directory, "no_such_file")));
+            Assert.assertEquals(snapshot.length(new File(directory, "no_such_file")), 0);
+        }
+    }
+
+    @Test(dataProvider = "runFolders")
+    public void testFileUtilAgreesWithFileSystem(final String runFolder) {
+        final File basecallDir = basecallDir(runFolder);
+        final RunFolderSnapshot snapshot = IlluminaFileUtil.snapshotLanes(basecallDir, null, LANES, null, 4);
+        final int[] cycles = IlluminaFileUtilTest.cycleRange(1, 60);
+        for (final int lane : LANES) {
+            final IlluminaFileUtil live = new IlluminaFileUtil(basecallDir, null, lane);
+            final IlluminaFileUtil snapshotted = new IlluminaFileUtil(basecallDir, null, lane, snapshot);
+            for (final IlluminaFileUtil.SupportedIlluminaFormat format : IlluminaFileUtil.SupportedIlluminaFormat.values()) {
+                final ParameterizedFileUtil expected = live.getUtil(format);
+                final ParameterizedFileUtil actual = snapshotted.getUtil(format);
+                final String message = runFolder + " lane " + lane + " " + format;
+                Assert.assertEquals(actual.filesAvailable(), expected.filesAvailable(), message);
+                if (expected.getTiles() == null) {
+                    // Some formats do not list their tiles when they have no files
+                    Assert.assertNull(actual.getTiles(), message);
+                    continue;
+                }
+                final List<Integer> expectedTiles = new ArrayList<Integer>(expected.getTiles());
+                final List<Integer> actualTiles = new ArrayList<Integer>(actual.getTiles());
+                Collections.sort(expectedTiles);
+                Collections.sort(actualTiles);
+                Assert.assertEquals(actualTiles, expectedTiles, message);
+                Assert.assertEquals(actual.verify(expectedTiles, cycles), expected.verify(expectedTiles, cycles), message);
+            }
+        }
+    }
+
+    @Test
+    public void testFactoryFindsFilesFromSnapshot() throws IOException {
+        final File runFolder = new File(tmpDir, "factory");
+        IOUtil.copyDirectoryTree(new File(TEST_DATA_DIR, "25T8B25T"), runFolder);
+        final File basecallDir = new File(runFolder, "Data/Intensities/BaseCalls");
+        final ReadStructure readStructure = new ReadStructure("25T8B25T");
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy =
+                new BclQualityEvaluationStrategy(BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY);
+        final List<Integer> tiles = new IlluminaDataProviderFactory(basecallDir, 1, readStructure,
+                bclQualityEvaluationStrategy, IlluminaDataType.PF, IlluminaDataType.Position).getAvailableTiles();
+        final RunFolderSnapshot snapshot = IlluminaFileUtil.snapshotLanes(basecallDir, null, Collections.singletonList(1), null, 4);
+
+        // Once the lane's files are gone, only a factory that looks them up in the snapshot still finds its tiles
+        IOUtil.deleteDirectoryTree(new File(basecallDir, "L001"));
+        final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(basecallDir, null, 1, readStructure,
+                bclQualityEvaluationStrategy, snapshot, IlluminaDataType.PF, IlluminaDataType.Position);
+        Assert.assertEquals(factory.getAvailableTiles(), tiles);
+        try {
+            new IlluminaDataProviderFactory(basecallDir, 1, readStructure, bclQualityEvaluationStrategy,
+                    IlluminaDataType.PF, IlluminaDataType.Position);
+            Assert.fail("Found the files of a deleted lane on the file system");
+        } catch (final PicardException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWriteAndReadBack() throws IOException {
+        final File runFolder = new File(tmpDir, "run");
+        IOUtil.copyDirectoryTree(new File(TEST_DATA_DIR, "25T8B25T"), runFolder);
+        final File basecallDir = new File(runFolder, "Data/Intensities/BaseCalls");
+        final File snapshotFile = new File(tmpDir, "run.snapshot");
+
+        final RunFolderSnapshot snapshot = IlluminaFileUtil.snapshotLanes(basecallDir, null, LANES, snapshotFile, 4);
+        Assert.assertTrue(snapshotFile.exists());
+        final List<File> directoryRoots = Arrays.asList(basecallDir, basecallDir.getParentFile());
+        final List<File> treeRoots = Arrays.asList(new File(basecallDir, "L001"), new File(basecallDir, "L002"),
+                new File(basecallDir.getParentFile(), "L001"), new File(basecallDir.getParentFile(), "L002"));
+        Assert.assertTrue(snapshot.isCurrent(directoryRoots, treeRoots));
+
+        final RunFolderSnapshot readBack = RunFolderSnapshot.read(snapshotFile);
+        Assert.assertTrue(readBack.isCurrent(directoryRoots, treeRoots));
+        // A snapshot of some lanes does not do for others
+        Assert.assertFalse(readBack.isCurrent(directoryRoots, Collections.singletonList(new File(basecallDir, "L003"))));
+
+        final File cycleDir = new File(basecallDir, "L001/C1.1");
+        for (final File file : IOUtil.getFilesMatchingRegexp(cycleDir, Pattern.compile(".*"))) {
+            Assert.assertEquals(readBack.exists(file), true, file.getPath());
+            Assert.assertEquals(readBack.length(file), file.length(), file.getPath());
+        }
+
+        // Adding a file modifies its directory, so the snapshot is no longer current
+        final File newFile = new File(cycleDir, "s_1_9999.bcl");
+        Assert.assertTrue(newFile.createNewFile());
+        Assert.assertTrue(cycleDir.setLastModified(cycleDir.lastModified() + 2000));
+        Assert.assertFalse(readBack.isCurrent(directoryRoots, treeRoots));
+        Assert.assertFalse(readBack.exists(newFile));
+
+        final RunFolderSnapshot retaken = IlluminaFileUtil.snapshotLanes(basecallDir, null, LANES, snapshotFile, 4);
+        Assert.assertTrue(retaken.exists(newFile));
+        Assert.assertTrue(RunFolderSnapshot.read(snapshotFile).exists(newFile));
+    }
+
+    @Test
+    public void testUnreadableSnapshotIsReplaced() throws IOException {
+        final File basecallDir = basecallDir("25T8B25T");
+        final File snapshotFile = new File(tmpDir, "unreadable.snapshot");
+        IlluminaFileUtil.snapshotLanes(basecallDir, null, LANES, snapshotFile, 4);
+        final byte[] bytes = Files.readAllBytes(snapshotFile.toPath());
+
+        // A truncated snapshot, and one that is not a snapshot at all, e.g. of an older format
+        for (final byte[] unreadable : new byte[][]{Arrays.copyOf(bytes, bytes.length / 2), "not a snapshot".getBytes()}) {
+            Files.write(snapshotFile.toPath(), unreadable);
+            final RunFolderSnapshot snapshot = IlluminaFileUtil.snapshotLanes(basecallDir, null, LANES, snapshotFile, 4);
+            Assert.assertTrue(snapshot.isSnapshotted(new File(basecallDir, "L001")));
+            Assert.assertTrue(RunFolderSnapshot.read(snapshotFile).isSnapshotted(new File(basecallDir, "L001")));
+        }
+    }
+}
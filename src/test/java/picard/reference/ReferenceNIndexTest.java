@@ -0,0 +1,204 @@
+package picard.reference;
+
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.SequenceUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that ReferenceNIndex answers as scanning the bases would, however it is built, written or read
+ */
+public class ReferenceNIndexTest {
+    private static final String BASES = "ACGTacgtNNNNnn.RYKMSWBDHVrykmswbdhv";
+
+    private File tmpDir;
+    private File reference;
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> sequences = new ArrayList<>();
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("ReferenceNIndexTest").toFile();
+        reference = new File(tmpDir, "reference.fasta");
+
+        // Contigs that start and end with runs of Ns, and an empty one
+        final Random random = new Random(17);
+        final int[] lengths = {5000, 1, 0, 12345, 777};
+        for (int i = 0; i < lengths.length; ++i) {
+            final byte[] bases = new byte[lengths[i]];
+            for (int j = 0; j < bases.length; ) {
+                final byte base = (byte) BASES.charAt(random.nextInt(random.nextInt(4) == 0 ? BASES.length() : 8));
+                for (int run = 1 + random.nextInt(random.nextInt(10) == 0 ? 200 : 3); run > 0 && j < bases.length; --run) {
+                    bases[j++] = base;
+                }
+            }
+            names.add("contig" + i);
+            sequences.add(bases);
+        }
+        writeIndexedFasta(reference);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    /** Writes the sequences one line each, with a .fai and .dict, so that the reference is indexed. */
+    private void writeIndexedFasta(final File fasta) throws IOException {
+        final String basename = fasta.getName().replaceFirst("\\.fasta$", "");
+        try (final PrintWriter out = new PrintWriter(new FileWriter(fasta));
+             final PrintWriter fai = new PrintWriter(new FileWriter(new File(fasta.getParentFile(), fasta.getName() + ".fai")));
+             final PrintWriter dict = new PrintWriter(new FileWriter(new File(fasta.getParentFile(), basename + ".dict")))) {
+            long offset = 0;
+            dict.print("@HD\tVN:1.5\n");
+            for (int i = 0; i < names.size(); ++i) {
+                final String header = ">" + names.get(i) + "\n";
+                out.print(header);
+                out.print(new String(sequences.get(i)) + "\n");
+                offset += header.length();
+                final int length = sequences.get(i).length;
+                fai.print(names.get(i) + "\t" + length + "\t" + offset + "\t" + Math.max(length, 1) + "\t" + (Math.max(length, 1) + 1) + "\n");
+                dict.print("@SQ\tSN:" + names.get(i) + "\tLN:" + length + "\n");
+                offset += length + 1;
+            }
+        }
+    }
+
+    @DataProvider(name = "threads")
+    public Object[][] threads() {
+        return new Object[][]{{1}, {3}};
+    }
+
+    @Test(dataProvider = "threads")
+    public void testBuildMatchesBases(final int numThreads) {
+        assertMatchesBases(ReferenceNIndex.build(reference, numThreads));
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        final File file = new File(tmpDir, "written" + ReferenceNIndex.FILE_EXTENSION);
+        ReferenceNIndex.build(reference, 2).write(file);
+        assertMatchesBases(ReferenceNIndex.read(file));
+    }
+
+    @Test
+    public void testLoadUsesIndexOnlyIfReferenceIsUnchanged() throws IOException {
+        final File copy = new File(tmpDir, "copy.fasta");
+        writeIndexedFasta(copy);
+
+        // An index that disagrees with the bases shows whether it was used
+        final ReferenceNIndex.Contig fake = ReferenceNIndex.scan(new ReferenceSequence("fake", 0, "ACNNNT".getBytes()));
+        ReferenceNIndex.of(copy, Collections.singletonList(fake)).write(ReferenceNIndex.getDefaultIndexFile(copy));
+        Assert.assertNotNull(ReferenceNIndex.load(copy, null).getContig("fake"));
+
+        Assert.assertTrue(copy.setLastModified(copy.lastModified() - 10000));
+        Assert.assertNull(ReferenceNIndex.load(copy, null).getContig("fake"));
+        assertMatchesBases(ReferenceNIndex.load(copy, null));
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testReadNotAnIndex() {
+        ReferenceNIndex.read(reference);
+    }
+
+    @Test
+    public void testDotIsANoCallButNotAnN() {
+        final ReferenceNIndex.Contig contig = ReferenceNIndex.scan(new ReferenceSequence("dots", 0, "AC..NNnT.".getBytes()));
+        Assert.assertEquals(contig.getNoCallRunCount(), 2);
+        Assert.assertEquals(contig.getNoCallRunStart(0), 3);
+        Assert.assertEquals(contig.getNoCallRunEnd(0), 7);
+        Assert.assertEquals(contig.countNoCalls(1, 9), 6);
+        Assert.assertEquals(contig.countNs(1, 9), 3);
+        Assert.assertEquals(contig.countNs(4, 5), 1);
+        Assert.assertEquals(contig.getNonNBaseCount(), 6);
+    }
+
+    @Test
+    public void testNormalizeFastaCreatesIndex() throws IOException {
+        final File output = new File(tmpDir, "normalized.fasta");
+        final String[] args = {
+                "INPUT=" + reference.getAbsolutePath(),
+                "OUTPUT=" + output.getAbsolutePath(),
+                "LINE_LENGTH=60",
+                "CREATE_N_INDEX=true"
+        };
+        Assert.assertEquals(new NormalizeFasta().instanceMain(args), 0);
+        final ReferenceNIndex index = ReferenceNIndex.read(ReferenceNIndex.getDefaultIndexFile(output));
+        assertMatchesBases(index);
+    }
+
+    @Test
+    public void testNonNFastaSize() throws IOException {
+        final File indexFile = new File(tmpDir, "nonn" + ReferenceNIndex.FILE_EXTENSION);
+        final String[] createArgs = {"REFERENCE=" + reference.getAbsolutePath(), "OUTPUT=" + indexFile.getAbsolutePath(), "THREAD_COUNT=2"};
+        Assert.assertEquals(new CreateReferenceNIndex().instanceMain(createArgs), 0);
+
+        long expected = 0;
+        for (final byte[] bases : sequences) {
+            for (final byte base : bases) if (base != 'N' && base != 'n') ++expected;
+        }
+        for (final File nIndex : new File[]{indexFile, null}) {
+            final File output = File.createTempFile("nonNcount", ".txt", tmpDir);
+            final List<String> args = new ArrayList<>();
+            args.add("INPUT=" + reference.getAbsolutePath());
+            args.add("OUTPUT=" + output.getAbsolutePath());
+            if (nIndex != null) args.add("N_INDEX=" + nIndex.getAbsolutePath());
+            Assert.assertEquals(new NonNFastaSize().instanceMain(args.toArray(new String[args.size()])), 0);
+            try (final BufferedReader reader = IOUtil.openFileForBufferedReading(output)) {
+                Assert.assertEquals(Long.parseLong(reader.readLine()), expected);
+            }
+        }
+    }
+
+    private void assertMatchesBases(final ReferenceNIndex index) {
+        Assert.assertEquals(index.getContigs().size(), names.size());
+        final Random random = new Random(5);
+        long nonNBases = 0;
+        for (int i = 0; i < names.size(); ++i) {
+            final ReferenceNIndex.Contig contig = index.getContig(names.get(i));
+            final byte[] bases = sequences.get(i);
+            Assert.assertEquals(contig.getName(), names.get(i));
+            Assert.assertEquals(contig.getLength(), bases.length);
+
+            final long[] noCallsUpTo = new long[bases.length + 1], nsUpTo = new long[bases.length + 1];
+            for (int position = 1; position <= bases.length; ++position) {
+                final byte base = bases[position - 1];
+                final boolean noCall = SequenceUtil.isNoCall(base);
+                final boolean ambiguous = !noCall && "ACGTacgt".indexOf(base) < 0;
+                Assert.assertEquals(contig.isNoCall(position), noCall, "position " + position);
+                Assert.assertEquals(contig.isAmbiguous(position), ambiguous, "position " + position);
+                noCallsUpTo[position] = noCallsUpTo[position - 1] + (noCall ? 1 : 0);
+                nsUpTo[position] = nsUpTo[position - 1] + (base == 'N' || base == 'n' ? 1 : 0);
+            }
+            Assert.assertEquals(contig.getNonNBaseCount(), bases.length - nsUpTo[bases.length]);
+            nonNBases += contig.getNonNBaseCount();
+
+            for (int j = 0; j < 200 && bases.length > 0; ++j) {
+                final int start = 1 + random.nextInt(bases.length);
+                final int end = Math.min(bases.length, start + random.nextInt(1000));
+                Assert.assertEquals(contig.countNoCalls(start, end), noCallsUpTo[end] - noCallsUpTo[start - 1]);
+                Assert.assertEquals(contig.countNs(start, end), nsUpTo[end] - nsUpTo[start - 1]);
+            }
+            for (int run = 1; run < contig.getNoCallRunCount(); ++run) {
+                Assert.assertTrue(contig.getNoCallRunStart(run) > contig.getNoCallRunEnd(run - 1) + 1);
+            }
+        }
+        Assert.assertEquals(index.getNonNBaseCount(), nonNBases);
+    }
+}
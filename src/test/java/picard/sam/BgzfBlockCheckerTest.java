@@ -0,0 +1,126 @@
+package picard.sam;
+
+import htsjdk.samtools.util.BlockCompressedInputStream.FileTermination;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that BgzfBlockChecker finds the same blocks and problems whether it walks a file in one range or many.
+ */
+public class BgzfBlockCheckerTest {
+    private File tmpDir;
+    private File bgzf;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("BgzfBlockCheckerTest").toFile();
+        bgzf = new File(tmpDir, "blocks.gz");
+
+        // Stored rather than compressed, so that the chains of fake block headers in the data appear in the file
+        final Random random = new Random(7);
+        final byte[] fakeBlock = Arrays.copyOf(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 100);
+        fakeBlock[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET] = (byte) (fakeBlock.length - 1);
+        try (final BlockCompressedOutputStream out = new BlockCompressedOutputStream(bgzf, 0)) {
+            for (int i = 0; i < 3000; ++i) {
+                if (random.nextInt(3) == 0) {
+                    for (int j = random.nextInt(5); j >= 0; --j) out.write(fakeBlock);
+                } else {
+                    final byte[] bytes = new byte[random.nextInt(2000)];
+                    random.nextBytes(bytes);
+                    out.write(bytes);
+                }
+            }
+        }
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    @Test
+    public void testRangesMatchSingleWalk() {
+        final BgzfBlockChecker.Result expected = BgzfBlockChecker.check(bgzf, 1);
+        Assert.assertEquals(expected.getTermination(), FileTermination.HAS_TERMINATOR_BLOCK);
+        Assert.assertNull(expected.getProblem());
+        Assert.assertTrue(expected.getBlockCount() > 10);
+        for (final long minRangeSize : new long[]{1000, 12345, 100000}) {
+            final BgzfBlockChecker.Result actual = BgzfBlockChecker.check(bgzf, 3, minRangeSize);
+            Assert.assertEquals(actual.getTermination(), expected.getTermination());
+            Assert.assertEquals(actual.getBlockCount(), expected.getBlockCount());
+            Assert.assertNull(actual.getProblem());
+        }
+    }
+
+    @Test
+    public void testMissingTerminator() throws IOException {
+        final File copy = copy("noTerminator.gz", bgzf.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length);
+        for (final int numThreads : new int[]{1, 3}) {
+            final BgzfBlockChecker.Result result = BgzfBlockChecker.check(copy, numThreads, 1000);
+            Assert.assertEquals(result.getTermination(), FileTermination.HAS_HEALTHY_LAST_BLOCK);
+            Assert.assertNull(result.getProblem());
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        final File copy = copy("truncated.gz", bgzf.length() / 2);
+        for (final int numThreads : new int[]{1, 3}) {
+            final BgzfBlockChecker.Result result = BgzfBlockChecker.check(copy, numThreads, 1000);
+            Assert.assertEquals(result.getTermination(), FileTermination.DEFECTIVE);
+            Assert.assertTrue(result.getProblem().contains("truncated"), result.getProblem());
+        }
+    }
+
+    @Test
+    public void testCorruptBlockHeader() throws IOException {
+        final File copy = copy("corrupt.gz", bgzf.length());
+        final long[] blockStarts = blockStarts(copy);
+        final long corruptBlock = blockStarts[blockStarts.length / 2];
+        try (final RandomAccessFile file = new RandomAccessFile(copy, "rw")) {
+            file.seek(corruptBlock + 12);
+            file.write('X');
+        }
+        for (final int numThreads : new int[]{1, 3}) {
+            final BgzfBlockChecker.Result result = BgzfBlockChecker.check(copy, numThreads, 1000);
+            Assert.assertEquals(result.getTermination(), FileTermination.DEFECTIVE);
+            Assert.assertEquals(result.getProblem(), "File has a corrupt gzip block header at offset " + corruptBlock);
+            Assert.assertEquals(result.getBlockCount(), blockStarts.length / 2);
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        Assert.assertEquals(BgzfBlockChecker.check(copy("empty.gz", 0), 3).getTermination(), FileTermination.DEFECTIVE);
+    }
+
+    /** Finds where each block starts by following the block lengths from the start of the file. */
+    private static long[] blockStarts(final File file) throws IOException {
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        final long[] starts = new long[bytes.length];
+        int numBlocks = 0;
+        for (int offset = 0; offset < bytes.length; ) {
+            starts[numBlocks++] = offset;
+            offset += ((bytes[offset + 16] & 0xFF) | (bytes[offset + 17] & 0xFF) << 8) + 1;
+        }
+        return Arrays.copyOf(starts, numBlocks);
+    }
+
+    private File copy(final String name, final long length) throws IOException {
+        final File copy = new File(tmpDir, name);
+        Files.write(copy.toPath(), Arrays.copyOf(Files.readAllBytes(bgzf.toPath()), (int) length));
+        return copy;
+    }
+}
@@ -32,7 +32,11 @@ import picard.PicardException;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.List;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 /**
@@ -132,4 +136,66 @@ public class CreateSequenceDictionaryTest extends CommandLineProgramTest {
         Assert.assertEquals(runPicardCommandLine(argv), 0);
         Assert.fail("Exception should have been thrown.");
     }
+
+    /** Writes a fasta of mixed-case bases in 60-base lines, with a .fai index if requested. */
+    private static File makeFasta(final boolean withIndex) throws IOException {
+        final File dir = Files.createTempDirectory("CreateSequenceDictionaryTest").toFile();
+        dir.deleteOnExit();
+        final File fasta = new File(dir, "mixed_case.fasta");
+        final File index = new File(dir, "mixed_case.fasta.fai");
+        fasta.deleteOnExit();
+        index.deleteOnExit();
+
+        final byte[] alphabet = "ACGTNacgtnMr".getBytes();
+        final int[] lengths = {1, 59, 60, 61, 1500000, 2100001, 1000};
+        final Random random = new Random(17);
+        long offset = 0;
+        try (final PrintWriter fastaWriter = new PrintWriter(fasta); final PrintWriter indexWriter = new PrintWriter(index)) {
+            for (int i = 0; i < lengths.length; ++i) {
+                final String header = ">seq" + i + " description of seq" + i;
+                fastaWriter.print(header + "\n");
+                offset += header.length() + 1;
+                indexWriter.print("seq" + i + "\t" + lengths[i] + "\t" + offset + "\t60\t61\n");
+                for (int start = 0; start < lengths[i]; start += 60) {
+                    final byte[] line = new byte[Math.min(60, lengths[i] - start)];
+                    for (int j = 0; j < line.length; ++j) line[j] = alphabet[random.nextInt(alphabet.length)];
+                    fastaWriter.print(new String(line) + "\n");
+                    offset += line.length + 1;
+                }
+            }
+        }
+        if (!withIndex) index.delete();
+        return fasta;
+    }
+
+    private String[] makeArgs(final File fasta, final File outputDict, final int numProcessors) {
+        return new String[]{
+                "REFERENCE=" + fasta,
+                "OUTPUT=" + outputDict,
+                "URI=test",
+                "NUM_PROCESSORS=" + numProcessors
+        };
+    }
+
+    @Test
+    public void testParallelIndexedMatchesSerial() throws Exception {
+        final File serialDict = File.createTempFile("CreateSequenceDictionaryTest.", ".dict");
+        final File indexedDict = File.createTempFile("CreateSequenceDictionaryTest.", ".dict");
+        final File parallelDict = File.createTempFile("CreateSequenceDictionaryTest.", ".dict");
+        for (final File dict : new File[]{serialDict, indexedDict, parallelDict}) {
+            dict.delete();
+            dict.deleteOnExit();
+        }
+
+        // Without an index the fasta is parsed sequence by sequence, even if more threads are requested
+        Assert.assertEquals(runPicardCommandLine(makeArgs(makeFasta(false), serialDict, 4)), 0);
+        final File indexedFasta = makeFasta(true);
+        Assert.assertEquals(runPicardCommandLine(makeArgs(indexedFasta, indexedDict, 1)), 0);
+        Assert.assertEquals(runPicardCommandLine(makeArgs(indexedFasta, parallelDict, 4)), 0);
+
+        final List<String> expected = Files.readAllLines(serialDict.toPath());
+        Assert.assertEquals(expected.size(), 8);
+        Assert.assertEquals(Files.readAllLines(indexedDict.toPath()), expected);
+        Assert.assertEquals(Files.readAllLines(parallelDict.toPath()), expected);
+    }
 }
@@ -323,6 +323,28 @@ public class MergeBamAlignmentTest extends CommandLineProgramTest {
         Assert.assertEquals(aln, 6, "Incorrect number of aligned reads in merged BAM file");
     }
 
+    /**
+     * The coordinate sort is sized by the heap alone unless a record cap is set, so the merge of a handful of reads
+     * never spills, while a cap below the number of reads does.
+     */
+    @Test
+    public void testCoordinateSortSpillsOnlyWithExplicitRecordCap() throws IOException {
+        Assert.assertEquals(mergeIntoCoordinateOrder(null), 0);
+        Assert.assertTrue(mergeIntoCoordinateOrder(2) > 0);
+    }
+
+    private int mergeIntoCoordinateOrder(final Integer maxRecordsInRam) throws IOException {
+        final File target = File.createTempFile("target", ".bam");
+        target.deleteOnExit();
+        final SamAlignmentMerger merger = new SamAlignmentMerger(unmappedBam, target, fasta, null, true, false,
+                false, Collections.singletonList(alignedQuerynameSortedBam), 1, null, null, null, null, null, null,
+                Collections.singletonList(SamPairUtil.PairOrientation.FR), SAMFileHeader.SortOrder.coordinate,
+                new BestMapqPrimaryAlignmentSelectionStrategy(), false, false, 30);
+        if (maxRecordsInRam != null) merger.setMaxRecordsInRam(maxRecordsInRam);
+        merger.mergeAlignment(Defaults.REFERENCE_FASTA);
+        return merger.getNumSpilledSortRuns();
+    }
+
     @DataProvider(name="data")
     public Object[][] getDataForSortingTest() {
         return new Object[][] {
@@ -1798,6 +1820,78 @@ public class MergeBamAlignmentTest extends CommandLineProgramTest {
         }
     }
 
+    @DataProvider(name = "parallelMergeSortOrders")
+    public Object[][] parallelMergeSortOrders() {
+        return new Object[][]{
+                {SAMFileHeader.SortOrder.coordinate},
+                {SAMFileHeader.SortOrder.queryname}
+        };
+    }
+
+    /** Merging on several threads must produce exactly the records that a single-threaded merge produces. */
+    @Test(dataProvider = "parallelMergeSortOrders")
+    public void testParallelMergeMatchesSerialMerge(final SAMFileHeader.SortOrder sortOrder) throws IOException {
+        final SAMSequenceDictionary dictionary = SamReaderFactory.makeDefault().getFileHeader(sequenceDict).getSequenceDictionary();
+        final SAMRecordSetBuilder unmappedBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.queryname);
+        final SAMRecordSetBuilder alignedBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.queryname);
+        unmappedBuilder.getHeader().setSequenceDictionary(dictionary);
+        alignedBuilder.getHeader().setSequenceDictionary(dictionary);
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 2500; ++i) {
+            final String name = "read" + i;
+            unmappedBuilder.addUnmappedPair(name);
+            if (random.nextInt(10) == 0) continue;
+            final int numHits = random.nextInt(5) == 0 ? 3 : 1;
+            for (int hit = 0; hit < numHits; ++hit) {
+                final List<SAMRecord> pair = alignedBuilder.addPair(name, random.nextInt(6), 1 + random.nextInt(60), 1 + random.nextInt(60),
+                        false, false, "36M", "36M", random.nextBoolean(), random.nextBoolean(), hit > 0, hit > 0, 30);
+                for (final SAMRecord rec : pair) rec.setMappingQuality(random.nextInt(60));
+            }
+        }
+
+        final File unmappedSam = File.createTempFile("parallelMerge.unmapped.", ".sam");
+        final File alignedSam = File.createTempFile("parallelMerge.aligned.", ".sam");
+        unmappedSam.deleteOnExit();
+        alignedSam.deleteOnExit();
+        writeRecords(unmappedBuilder, unmappedSam);
+        writeRecords(alignedBuilder, alignedSam);
+
+        final List<String> serial = new ArrayList<>();
+        final List<String> parallel = new ArrayList<>();
+        for (final int numProcessors : new int[]{1, 4}) {
+            final File mergedSam = File.createTempFile("parallelMerge.merged.", ".sam");
+            mergedSam.deleteOnExit();
+            final String[] args = {
+                    "UNMAPPED_BAM=" + unmappedSam.getAbsolutePath(),
+                    "ALIGNED_BAM=" + alignedSam.getAbsolutePath(),
+                    "OUTPUT=" + mergedSam.getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + fasta.getAbsolutePath(),
+                    "PROGRAM_RECORD_ID=0",
+                    "PROGRAM_GROUP_VERSION=1.0",
+                    "PROGRAM_GROUP_COMMAND_LINE=align!",
+                    "PROGRAM_GROUP_NAME=myAligner",
+                    "SORT_ORDER=" + sortOrder.name(),
+                    "NUM_PROCESSORS=" + numProcessors
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0, "Merge did not succeed");
+
+            final SamReader reader = SamReaderFactory.makeDefault().open(mergedSam);
+            for (final SAMRecord rec : reader) {
+                (numProcessors == 1 ? serial : parallel).add(rec.getSAMString());
+            }
+            CloserUtil.close(reader);
+        }
+        Assert.assertEquals(parallel.size(), serial.size());
+        Assert.assertEquals(parallel, serial);
+    }
+
+    private void writeRecords(final SAMRecordSetBuilder builder, final File file) {
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(builder.getHeader(), true, file);
+        for (final SAMRecord rec : builder) writer.addAlignment(rec);
+        writer.close();
+    }
+
     @Test
     public void testMergeHeaderMappedAndReference() throws IOException {
         final File unmappedSam = new File(TEST_DATA_DIR, "specialHeader.unmapped.sam");
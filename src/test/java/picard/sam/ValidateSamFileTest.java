@@ -0,0 +1,189 @@
+package picard.sam;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that ValidateSamFile counts the same errors in SUMMARY mode whether it validates in one pass or in parallel.
+ */
+public class ValidateSamFileTest {
+    private File tmpDir;
+    private File bam;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("ValidateSamFileTest").toFile();
+        bam = new File(tmpDir, "input.bam");
+
+        // Pairs within and across references, some with a missing mate or with mate fields that do not match the mate
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate, true, 100000);
+        final int numReferences = builder.getHeader().getSequenceDictionary().size();
+        final Random random = new Random(29);
+        final List<SAMRecord> records = new ArrayList<>();
+        for (int i = 0; i < 3000; ++i) {
+            final int contig1 = random.nextInt(numReferences);
+            final int contig2 = random.nextInt(4) == 0 ? random.nextInt(numReferences) : contig1;
+            final List<SAMRecord> pair = builder.addPair("pair" + i, contig1, contig2, 1 + random.nextInt(99000),
+                    1 + random.nextInt(99000), random.nextInt(20) == 0, random.nextInt(20) == 0, "50M", "50M",
+                    random.nextBoolean(), random.nextBoolean(), false, false, 30);
+            for (final SAMRecord record : pair) {
+                final int error = random.nextInt(100);
+                if (error == 0) continue;
+                if (error == 1) record.setMateAlignmentStart(record.getMateAlignmentStart() + 1);
+                if (error == 2) record.setMateNegativeStrandFlag(!record.getMateNegativeStrandFlag());
+                if (error == 3) record.setFirstOfPairFlag(!record.getFirstOfPairFlag());
+                if (error == 4) record.setAttribute(SAMTag.MC.name(), "49M1S");
+                if (error == 5) record.setAttribute(SAMTag.RG.name(), "notInHeader");
+                records.add(record);
+            }
+        }
+        for (int i = 0; i < 200; ++i) {
+            builder.addUnmappedPair("unmapped" + i);
+            if (random.nextInt(10) == 0) builder.addFrag("frag" + i, random.nextInt(numReferences), 1 + random.nextInt(99000), false);
+        }
+        for (final SAMRecord record : builder.getRecords()) {
+            if (record.getReadName().startsWith("unmapped") || record.getReadName().startsWith("frag")) records.add(record);
+        }
+        // A pair whose name appears three times
+        records.addAll(builder.addPair("pair0", 0, 5, 100, 200, false, false, "50M", "50M", false, true, false, false, 30));
+
+        // An error in the header, which each shard also finds
+        builder.getHeader().addReadGroup(new SAMReadGroupRecord("noPlatform"));
+
+        try (final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(builder.getHeader(), false, bam)) {
+            records.forEach(writer::addAlignment);
+        }
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    @DataProvider(name = "arguments")
+    public Object[][] arguments() {
+        return new Object[][]{
+                {new String[]{}},
+                {new String[]{"IGNORE_WARNINGS=true"}},
+                {new String[]{"IGNORE=MATE_NOT_FOUND", "IGNORE=MISSING_PLATFORM_VALUE"}},
+                {new String[]{"MAX_RECORDS_IN_RAM=10", "VALIDATE_INDEX=false", "INDEX_VALIDATION_STRINGENCY=NONE"}}
+        };
+    }
+
+    @Test(dataProvider = "arguments")
+    public void testParallelMatchesSinglePass(final String[] extraArgs) throws IOException {
+        assertSameSummary(bam, extraArgs);
+    }
+
+    @Test
+    public void testMissingTerminatorBlock() throws IOException {
+        final File oldBam = copyBam(bam, "old.bam", bam.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length);
+        final List<String> summary = assertSameSummary(oldBam, new String[]{});
+        Assert.assertTrue(summary.stream().anyMatch(line -> line.startsWith("WARNING:BAM_FILE_MISSING_TERMINATOR_BLOCK\t1")), summary.toString());
+    }
+
+    @Test
+    public void testTruncatedFileIsNotDecoded() throws IOException {
+        final File truncated = copyBam(bam, "truncated.bam", bam.length() / 2);
+        final File output = new File(tmpDir, "truncated.txt");
+        Assert.assertEquals(runValidateSamFile(truncated, output, "THREAD_COUNT=3"), 1);
+        final List<String> summary = readSummary(output);
+        Assert.assertTrue(summary.contains("ERROR:TRUNCATED_FILE\t1"), summary.toString());
+        Assert.assertEquals(summary.stream().filter(line -> line.startsWith("ERROR:") || line.startsWith("WARNING:")).count(), 1);
+    }
+
+    @Test
+    public void testUnplaceableRecordIsValidated() throws IOException {
+        // An unmapped read with a reference but no alignment start, which the index cannot place, and its mapped mate
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate, true, 100000);
+        final List<SAMRecord> pair = builder.addPair("unplaceable", 0, 0, 100, 100, false, true, "50M", null,
+                false, true, false, false, 30);
+        pair.get(1).setAlignmentStart(0);
+        pair.get(0).setMateAlignmentStart(0);
+        builder.addFrag("frag", 0, 200, false);
+        final File input = new File(tmpDir, "unplaceable.bam");
+        try (final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(builder.getHeader(), false, input)) {
+            builder.getRecords().forEach(writer::addAlignment);
+        }
+
+        // The shards cannot read the unplaceable record, so the file is validated again in a single pass
+        Assert.assertNotNull(validateInParallel(bam));
+        Assert.assertNull(validateInParallel(input));
+        final List<String> summary = assertSameSummary(input, new String[0]);
+        Assert.assertTrue(summary.contains("ERROR:INVALID_ALIGNMENT_START\t2"), summary.toString());
+        Assert.assertFalse(summary.stream().anyMatch(line -> line.startsWith("ERROR:MATE_NOT_FOUND")), summary.toString());
+    }
+
+    /** Checks that validating in parallel gives the same output and exit status as a single pass, and returns it. */
+    private List<String> assertSameSummary(final File input, final String[] extraArgs) throws IOException {
+        final File singlePass = File.createTempFile("singlePass", ".txt", tmpDir);
+        final File parallel = File.createTempFile("parallel", ".txt", tmpDir);
+        final int singlePassStatus = runValidateSamFile(input, singlePass, extraArgs);
+        final List<String> parallelArgs = new ArrayList<>(Arrays.asList(extraArgs));
+        parallelArgs.add("THREAD_COUNT=3");
+        final int parallelStatus = runValidateSamFile(input, parallel, parallelArgs.toArray(new String[parallelArgs.size()]));
+
+        final List<String> summary = readSummary(singlePass);
+        Assert.assertEquals(readSummary(parallel), summary);
+        Assert.assertEquals(parallelStatus, singlePassStatus);
+        Assert.assertTrue(summary.size() > 2, summary.toString());
+        return summary;
+    }
+
+    /** Returns the result of ParallelSamFileValidator, null if its shards did not read every record. */
+    private static Boolean validateInParallel(final File input) throws IOException {
+        final SamReaderFactory factory = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT);
+        try (final SamReader reader = factory.open(input)) {
+            final ParallelSamFileValidator validator = new ParallelSamFileValidator(factory, 3, 8000, 500000,
+                    Collections.singletonList(IOUtil.getDefaultTmpDir()));
+            return validator.validateSamFileSummary(input, reader, null, new PrintWriter(new StringWriter()));
+        }
+    }
+
+    private static int runValidateSamFile(final File input, final File output, final String... extraArgs) {
+        final List<String> args = new ArrayList<>(Arrays.asList(extraArgs));
+        args.add("INPUT=" + input.getAbsolutePath());
+        args.add("OUTPUT=" + output.getAbsolutePath());
+        args.add("MODE=SUMMARY");
+        return new ValidateSamFile().instanceMain(args.toArray(new String[args.size()]));
+    }
+
+    private static List<String> readSummary(final File output) throws IOException {
+        return Files.readAllLines(output.toPath());
+    }
+
+    /** Copies the first length bytes of the BAM, and its index. */
+    private File copyBam(final File input, final String name, final long length) throws IOException {
+        final File copy = new File(tmpDir, name);
+        Files.write(copy.toPath(), Arrays.copyOf(Files.readAllBytes(input.toPath()), (int) length));
+        Files.copy(new File(tmpDir, input.getName().replaceFirst("\\.bam$", ".bai")).toPath(),
+                new File(tmpDir, name.replaceFirst("\\.bam$", ".bai")).toPath());
+        return copy;
+    }
+}
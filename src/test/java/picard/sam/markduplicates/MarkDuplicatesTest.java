@@ -41,6 +41,8 @@ import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -145,6 +147,33 @@ public class MarkDuplicatesTest extends AbstractMarkDuplicatesCommandLineProgram
         }
     }
 
+    @Test
+    public void testParallelCompressionMatchesSerialOutput() throws IOException {
+        final File outputDir = IOUtil.createTempDir(TEST_BASE_NAME + ".", ".tmp");
+        try {
+            final File[] outputs = new File[2];
+            final int[] numThreads = {1, 4};
+            for (int i = 0; i < numThreads.length; ++i) {
+                final ArrayList<String> args = new ArrayList<String>();
+                for (int j = 1; j <= 3; ++j) {
+                    args.add("INPUT=" + new File(TEST_DATA_DIR, "merge" + j + ".sam").getAbsolutePath());
+                }
+                outputs[i] = new File(outputDir, TEST_BASE_NAME + "." + numThreads[i] + ".bam");
+                args.add("OUTPUT=" + outputs[i].getAbsolutePath());
+                args.add("METRICS_FILE=" + new File(outputDir, TEST_BASE_NAME + "." + numThreads[i] + ".duplicate_metrics").getAbsolutePath());
+                args.add("PROGRAM_RECORD_ID=null");
+                args.add("CREATE_INDEX=true");
+                args.add("NUM_COMPRESSION_THREADS=" + numThreads[i]);
+                Assert.assertEquals(new MarkDuplicates().instanceMain(args.toArray(new String[args.size()])), 0);
+            }
+            Assert.assertEquals(Files.readAllBytes(outputs[1].toPath()), Files.readAllBytes(outputs[0].toPath()));
+            Assert.assertEquals(Files.readAllBytes(new File(outputDir, TEST_BASE_NAME + ".4.bai").toPath()),
+                    Files.readAllBytes(new File(outputDir, TEST_BASE_NAME + ".1.bai").toPath()));
+        } finally {
+            TestUtil.recursiveDelete(outputDir);
+        }
+    }
+
     /**
      * Represents an expected PN value and VN value for a PG record.  If one of thexe is null, any value is allowed
      * in the PG record being tested.
@@ -0,0 +1,148 @@
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for OffHeapReadEndsForMarkDuplicatesMap
+ */
+public class OffHeapReadEndsForMarkDuplicatesMapTest {
+    private static final List<File> TMP_DIRS = Collections.singletonList(IOUtil.getDefaultTmpDir());
+
+    private static ReadEndsForMarkDuplicates makeReadEnds(final int i, final int mateSequence, final boolean useBarcodes) {
+        final ReadEndsForMarkDuplicates ends;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = i * 3;
+            withBarcodes.readOneBarcode = i * 5;
+            withBarcodes.readTwoBarcode = -i;
+            ends = withBarcodes;
+        } else {
+            ends = new ReadEndsForMarkDuplicates();
+        }
+        ends.score = (short) (i % 1000);
+        ends.libraryId = (short) (i % 7);
+        ends.orientation = ReadEnds.R;
+        ends.orientationForOpticalDuplicates = ReadEnds.FR;
+        ends.readGroup = (short) (i % 3);
+        ends.tile = (short) (1100 + i % 10);
+        ends.x = i * 11;
+        ends.y = i * 13;
+        ends.read1ReferenceIndex = 0;
+        ends.read1Coordinate = i;
+        ends.read2ReferenceIndex = mateSequence;
+        ends.read2Coordinate = -1;
+        ends.read1IndexInFile = i * 17L;
+        ends.read2IndexInFile = -1;
+        return ends;
+    }
+
+    private static void assertReadEndsEqual(final ReadEndsForMarkDuplicates actual, final ReadEndsForMarkDuplicates expected) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(actual.score, expected.score);
+        Assert.assertEquals(actual.libraryId, expected.libraryId);
+        Assert.assertEquals(actual.orientation, expected.orientation);
+        Assert.assertEquals(actual.orientationForOpticalDuplicates, expected.orientationForOpticalDuplicates);
+        Assert.assertEquals(actual.readGroup, expected.readGroup);
+        Assert.assertEquals(actual.tile, expected.tile);
+        Assert.assertEquals(actual.x, expected.x);
+        Assert.assertEquals(actual.y, expected.y);
+        Assert.assertEquals(actual.read1ReferenceIndex, expected.read1ReferenceIndex);
+        Assert.assertEquals(actual.read1Coordinate, expected.read1Coordinate);
+        Assert.assertEquals(actual.read2ReferenceIndex, expected.read2ReferenceIndex);
+        Assert.assertEquals(actual.read2Coordinate, expected.read2Coordinate);
+        Assert.assertEquals(actual.read1IndexInFile, expected.read1IndexInFile);
+        Assert.assertEquals(actual.read2IndexInFile, expected.read2IndexInFile);
+        if (expected instanceof ReadEndsForMarkDuplicatesWithBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes actualWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) actual;
+            final ReadEndsForMarkDuplicatesWithBarcodes expectedWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) expected;
+            Assert.assertEquals(actualWithBarcodes.barcode, expectedWithBarcodes.barcode);
+            Assert.assertEquals(actualWithBarcodes.readOneBarcode, expectedWithBarcodes.readOneBarcode);
+            Assert.assertEquals(actualWithBarcodes.readTwoBarcode, expectedWithBarcodes.readTwoBarcode);
+        }
+    }
+
+    private static String key(final int i) {
+        // every tenth key is long enough that it cannot be stored inline
+        final String name = i % 10 == 0 ? "A_VERY_LONG_READ_NAME_THAT_WILL_NOT_FIT_IN_THE_SLOT_" : "READ";
+        return "RG" + (i % 3) + ":" + name + (i % 10 == 0 ? name + name : "") + i;
+    }
+
+    @DataProvider(name = "mapParameters")
+    public Object[][] mapParameters() {
+        return new Object[][]{
+                {1000000, false},
+                {1000000, true},
+                {10, false},
+                {10, true},
+                {1, false}
+        };
+    }
+
+    @Test(dataProvider = "mapParameters")
+    public void testPutAndRemoveAcrossSequences(final int maxRecordsInRam, final boolean useBarcodes) {
+        final int numSequences = 5;
+        final int numRecords = 1000;
+        final ReadEndsForMarkDuplicatesMap map = new OffHeapReadEndsForMarkDuplicatesMap(maxRecordsInRam, useBarcodes, TMP_DIRS);
+
+        // Simulate a coordinate sorted traversal: all first ends are seen on sequence 0, mates are spread over later sequences
+        for (int i = 0; i < numRecords; ++i) {
+            Assert.assertNull(map.remove(0, key(i)));
+            map.put(1 + i % numSequences, key(i), makeReadEnds(i, 1 + i % numSequences, useBarcodes));
+        }
+        Assert.assertEquals(map.size(), numRecords);
+        Assert.assertTrue(map.sizeInRam() <= map.size());
+
+        for (int sequence = 1; sequence <= numSequences; ++sequence) {
+            for (int i = sequence - 1; i < numRecords; i += numSequences) {
+                assertReadEndsEqual(map.remove(sequence, key(i)), makeReadEnds(i, sequence, useBarcodes));
+                Assert.assertNull(map.remove(sequence, key(i)));
+            }
+        }
+        Assert.assertEquals(map.size(), 0);
+        Assert.assertEquals(map.sizeInRam(), 0);
+    }
+
+    @Test
+    public void testNonMonotonicSequenceAccess() {
+        final ReadEndsForMarkDuplicatesMap map = new OffHeapReadEndsForMarkDuplicatesMap(5, false, TMP_DIRS);
+        for (int i = 0; i < 100; ++i) {
+            map.remove(i % 4, key(i));
+            map.put(3 - i % 4, key(i), makeReadEnds(i, 3 - i % 4, false));
+        }
+
+        final Random random = new Random(42);
+        int remaining = 100;
+        final boolean[] removed = new boolean[100];
+        while (remaining > 0) {
+            final int i = random.nextInt(100);
+            if (removed[i]) continue;
+            Assert.assertNull(map.remove((3 - i % 4 + 1) % 4, key(i)), "found key under the wrong sequence");
+            assertReadEndsEqual(map.remove(3 - i % 4, key(i)), makeReadEnds(i, 3 - i % 4, false));
+            removed[i] = true;
+            --remaining;
+            Assert.assertEquals(map.size(), remaining);
+        }
+    }
+
+    @Test
+    public void testKeysWithSharedPrefixesAreDistinct() {
+        final ReadEndsForMarkDuplicatesMap map = new OffHeapReadEndsForMarkDuplicatesMap(100, false, TMP_DIRS);
+        map.put(1, "RG1:READ", makeReadEnds(1, 1, false));
+        map.put(1, "RG1:READ1", makeReadEnds(2, 1, false));
+        map.put(1, "RG11:READ", makeReadEnds(3, 1, false));
+
+        Assert.assertNull(map.remove(1, "RG1:READ11"));
+        assertReadEndsEqual(map.remove(1, "RG1:READ1"), makeReadEnds(2, 1, false));
+        assertReadEndsEqual(map.remove(1, "RG11:READ"), makeReadEnds(3, 1, false));
+        assertReadEndsEqual(map.remove(1, "RG1:READ"), makeReadEnds(1, 1, false));
+        Assert.assertEquals(map.size(), 0);
+    }
+}
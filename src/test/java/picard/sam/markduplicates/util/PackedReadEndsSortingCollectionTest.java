@@ -0,0 +1,125 @@
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for PackedReadEndsSortingCollection
+ */
+public class PackedReadEndsSortingCollectionTest {
+    private static final List<File> TMP_DIRS = Collections.singletonList(IOUtil.getDefaultTmpDir());
+
+    /** The ordering used by MarkDuplicates, written out field by field. */
+    private static final Comparator<ReadEndsForMarkDuplicates> EXPECTED_ORDER = new Comparator<ReadEndsForMarkDuplicates>() {
+        public int compare(final ReadEndsForMarkDuplicates lhs, final ReadEndsForMarkDuplicates rhs) {
+            int cmp = Integer.compare(lhs.libraryId, rhs.libraryId);
+            if (lhs instanceof ReadEndsForMarkDuplicatesWithBarcodes) {
+                final ReadEndsForMarkDuplicatesWithBarcodes lhsWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) lhs;
+                final ReadEndsForMarkDuplicatesWithBarcodes rhsWithBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) rhs;
+                if (cmp == 0) cmp = Integer.compare(lhsWithBarcodes.barcode, rhsWithBarcodes.barcode);
+                if (cmp == 0) cmp = Integer.compare(lhsWithBarcodes.readOneBarcode, rhsWithBarcodes.readOneBarcode);
+                if (cmp == 0) cmp = Integer.compare(lhsWithBarcodes.readTwoBarcode, rhsWithBarcodes.readTwoBarcode);
+            }
+            if (cmp == 0) cmp = Integer.compare(lhs.read1ReferenceIndex, rhs.read1ReferenceIndex);
+            if (cmp == 0) cmp = Integer.compare(lhs.read1Coordinate, rhs.read1Coordinate);
+            if (cmp == 0) cmp = Integer.compare(lhs.orientation, rhs.orientation);
+            if (cmp == 0) cmp = Integer.compare(lhs.read2ReferenceIndex, rhs.read2ReferenceIndex);
+            if (cmp == 0) cmp = Integer.compare(lhs.read2Coordinate, rhs.read2Coordinate);
+            if (cmp == 0) cmp = Long.compare(lhs.read1IndexInFile, rhs.read1IndexInFile);
+            if (cmp == 0) cmp = Long.compare(lhs.read2IndexInFile, rhs.read2IndexInFile);
+            return cmp;
+        }
+    };
+
+    private static ReadEndsForMarkDuplicates randomReadEnds(final Random random, final long index, final boolean useBarcodes) {
+        final ReadEndsForMarkDuplicates ends;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.barcode = random.nextInt(3) - 1;
+            withBarcodes.readOneBarcode = random.nextInt();
+            withBarcodes.readTwoBarcode = random.nextInt(2);
+            ends = withBarcodes;
+        } else {
+            ends = new ReadEndsForMarkDuplicates();
+        }
+        ends.libraryId = (short) random.nextInt(3);
+        ends.read1ReferenceIndex = random.nextInt(3);
+        ends.read1Coordinate = random.nextInt(50) - 5;
+        ends.orientation = (byte) random.nextInt(6);
+        ends.read2ReferenceIndex = random.nextInt(4) - 1;
+        ends.read2Coordinate = random.nextBoolean() ? -1 : random.nextInt(Integer.MAX_VALUE);
+        ends.read1IndexInFile = index;
+        ends.read2IndexInFile = random.nextBoolean() ? -1 : random.nextLong();
+        ends.score = (short) random.nextInt();
+        ends.readGroup = (short) (random.nextInt(5) - 1);
+        ends.tile = (short) random.nextInt(3000);
+        ends.x = random.nextInt();
+        ends.y = random.nextInt(100000);
+        ends.orientationForOpticalDuplicates = (byte) (random.nextInt(7) - 1);
+        return ends;
+    }
+
+    private static void assertReadEndsEqual(final ReadEndsForMarkDuplicates actual, final ReadEndsForMarkDuplicates expected) {
+        Assert.assertEquals(EXPECTED_ORDER.compare(actual, expected), 0);
+        Assert.assertEquals(actual.getClass(), expected.getClass());
+        Assert.assertEquals(actual.score, expected.score);
+        Assert.assertEquals(actual.readGroup, expected.readGroup);
+        Assert.assertEquals(actual.tile, expected.tile);
+        Assert.assertEquals(actual.x, expected.x);
+        Assert.assertEquals(actual.y, expected.y);
+        Assert.assertEquals(actual.orientationForOpticalDuplicates, expected.orientationForOpticalDuplicates);
+    }
+
+    @DataProvider(name = "sortParameters")
+    public Object[][] sortParameters() {
+        return new Object[][]{
+                {0, 10, false},
+                {1, 10, false},
+                {1000, 100000, false},
+                {1000, 100000, true},
+                {1000, 100, false},
+                {1000, 100, true},
+                {1000, 1, false}
+        };
+    }
+
+    @Test(dataProvider = "sortParameters")
+    public void testSortMatchesComparator(final int numRecords, final int maxRecordsInRam, final boolean useBarcodes) {
+        final Random random = new Random(numRecords + maxRecordsInRam);
+        final List<ReadEndsForMarkDuplicates> expected = new ArrayList<ReadEndsForMarkDuplicates>();
+        final PackedReadEndsSortingCollection sorter = new PackedReadEndsSortingCollection(useBarcodes, maxRecordsInRam, TMP_DIRS);
+        for (int i = 0; i < numRecords; ++i) {
+            final ReadEndsForMarkDuplicates ends = randomReadEnds(random, i, useBarcodes);
+            expected.add(ends);
+            sorter.add(ends);
+        }
+        sorter.doneAdding();
+        Collections.sort(expected, EXPECTED_ORDER);
+
+        final CloseableIterator<ReadEndsForMarkDuplicates> iterator = sorter.iterator();
+        for (final ReadEndsForMarkDuplicates ends : expected) {
+            Assert.assertTrue(iterator.hasNext());
+            assertReadEndsEqual(iterator.next(), ends);
+        }
+        Assert.assertFalse(iterator.hasNext());
+        iterator.close();
+        sorter.cleanup();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testAddAfterDoneAdding() {
+        final PackedReadEndsSortingCollection sorter = new PackedReadEndsSortingCollection(false, 10, TMP_DIRS);
+        sorter.doneAdding();
+        sorter.add(new ReadEndsForMarkDuplicates());
+    }
+}
@@ -0,0 +1,122 @@
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests that PhysicalLocationForMateCigarSet keeps the first end added at each physical location, as a set of ends
+ * alongside a set of their locations would.
+ */
+public class PhysicalLocationForMateCigarSetTest {
+
+    private final ReadEndsForMateCigar template;
+
+    public PhysicalLocationForMateCigarSetTest() {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        final SAMRecord record = builder.addFrag("read", 0, 100, false);
+        template = new ReadEndsForMateCigar(builder.getHeader(), new SamRecordWithOrdinalAndSetDuplicateReadFlag(record, 0),
+                new OpticalDuplicateFinder(), (short) 0);
+    }
+
+    /** Few distinct values for each field, so that locations collide and differ in only one field */
+    private ReadEndsForMateCigar newEnd(final Random random) {
+        final ReadEndsForMateCigar end = new ReadEndsForMateCigar(template, null);
+        end.libraryId = (short) random.nextInt(2);
+        end.readGroup = (short) random.nextInt(2);
+        end.tile = (short) (1101 + random.nextInt(2));
+        end.setX(random.nextInt(4) == 0 ? 70000 + random.nextInt(3) : random.nextInt(6));
+        end.setY(random.nextInt(6));
+        return end;
+    }
+
+    private static List<Integer> location(final ReadEnds end) {
+        return Arrays.asList((int) end.getLibraryId(), (int) end.getReadGroup(), (int) end.getTile(), end.getX(), end.getY());
+    }
+
+    @Test
+    public void testMatchesSetsOfEndsAndLocations() {
+        final Random random = new Random(11);
+        final PhysicalLocationForMateCigarSet set = new PhysicalLocationForMateCigarSet();
+        final Set<ReadEnds> expectedEnds = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<List<Integer>> expectedLocations = new HashSet<>();
+        final List<ReadEndsForMateCigar> added = new ArrayList<>();
+
+        for (int i = 0; i < 100000; ++i) {
+            final int operation = random.nextInt(100);
+            if (operation < 60 || added.isEmpty()) {
+                final ReadEndsForMateCigar end = newEnd(random);
+                set.add(end);
+                if (expectedLocations.add(location(end))) expectedEnds.add(end);
+                added.add(end);
+            } else if (operation < 85) {
+                final ReadEndsForMateCigar end = random.nextBoolean() ? added.get(random.nextInt(added.size())) : newEnd(random);
+                set.remove(end);
+                if (expectedLocations.remove(location(end))) expectedEnds.remove(end);
+            } else if (operation < 99) {
+                final ReadEndsForMateCigar current = added.get(random.nextInt(added.size()));
+                final ReadEndsForMateCigar other = newEnd(random);
+                if (expectedLocations.contains(location(current))) {
+                    set.replace(current, other);
+                    expectedLocations.remove(location(current));
+                    expectedEnds.remove(current);
+                    if (expectedLocations.add(location(other))) expectedEnds.add(other);
+                    added.add(other);
+                } else {
+                    try {
+                        set.replace(current, other);
+                        Assert.fail("Expected replacing an end not in the set to fail");
+                    } catch (final PicardException e) {
+                        // expected
+                    }
+                }
+            } else {
+                set.clear();
+                expectedEnds.clear();
+                expectedLocations.clear();
+                added.clear();
+            }
+
+            Assert.assertEquals(set.size(), expectedLocations.size());
+            if (i % 100 == 0) {
+                final List<ReadEnds> ends = set.getReadEndList();
+                Assert.assertEquals(ends.size(), expectedEnds.size());
+                for (final ReadEnds end : ends) Assert.assertTrue(expectedEnds.contains(end));
+            }
+        }
+    }
+
+    @Test
+    public void testEndsAreInTheOrderAdded() {
+        final Random random = new Random(3);
+        final PhysicalLocationForMateCigarSet set = new PhysicalLocationForMateCigarSet();
+        final List<ReadEnds> expected = new ArrayList<>();
+        final Set<List<Integer>> locations = new HashSet<>();
+        for (int i = 0; i < 2000; ++i) {
+            final ReadEndsForMateCigar end = newEnd(random);
+            end.setY(i); // mostly distinct locations, and more than are kept when the set is cleared
+            set.add(end);
+            if (locations.add(location(end))) expected.add(end);
+        }
+        Assert.assertEquals(set.getReadEndList(), expected);
+
+        set.clear();
+        Assert.assertEquals(set.size(), 0);
+        Assert.assertTrue(set.getReadEndList().isEmpty());
+        final ReadEndsForMateCigar end = newEnd(random);
+        set.add(end);
+        Assert.assertEquals(set.getReadEndList(), Collections.singletonList(end));
+    }
+}
@@ -0,0 +1,114 @@
+package picard.sam.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for PackedSAMRecordSortingCollection
+ */
+public class PackedSAMRecordSortingCollectionTest {
+    private static final List<File> TMP_DIRS = Collections.singletonList(IOUtil.getDefaultTmpDir());
+
+    /** Builds records with many ties on position, strand and name, in a random order. */
+    private static List<SAMRecord> makeRecords(final int numPairs, final Random random) {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.unsorted);
+        for (int i = 0; i < numPairs; ++i) {
+            final String name = "read" + random.nextInt(Math.max(1, numPairs / 4));
+            switch (random.nextInt(4)) {
+                case 0:
+                    builder.addUnmappedPair(name);
+                    break;
+                case 1:
+                    builder.addFrag(name, random.nextInt(3), 1 + random.nextInt(50), random.nextBoolean());
+                    break;
+                default:
+                    builder.addPair(name, random.nextInt(3), 1 + random.nextInt(50), 1 + random.nextInt(50));
+                    break;
+            }
+        }
+        final List<SAMRecord> records = new ArrayList<SAMRecord>(builder.getRecords());
+        for (final SAMRecord rec : records) {
+            if (!rec.getReadUnmappedFlag()) rec.setMappingQuality(random.nextInt(3));
+        }
+        Collections.shuffle(records, random);
+        return records;
+    }
+
+    @DataProvider(name = "sortParameters")
+    public Object[][] sortParameters() {
+        return new Object[][]{
+                {0, 1000000, 1000000, 1},
+                {1, 1000000, 1000000, 1},
+                {2000, 1000000, 100000000, 1},
+                {2000, 1000000, 10000, 1},
+                {2000, 1000000, 10000, 3},
+                {500, 1000000, 1000, 2},
+                {2000, 300, 100000000, 1},
+                {2000, 300, 100000000, 3}
+        };
+    }
+
+    @Test(dataProvider = "sortParameters")
+    public void testOrderMatchesStableSortWithCoordinateComparator(final int numPairs, final int maxRecordsInRam,
+                                                                   final long maxBytesInRam, final int numThreads) {
+        final List<SAMRecord> records = makeRecords(numPairs, new Random(numPairs + maxBytesInRam));
+        final SAMFileHeader header = records.isEmpty() ? new SAMRecordSetBuilder().getHeader() : records.get(0).getHeader();
+
+        final PackedSAMRecordSortingCollection sorter = new PackedSAMRecordSortingCollection(header, maxRecordsInRam, maxBytesInRam, numThreads, TMP_DIRS);
+        for (final SAMRecord rec : records) sorter.add(rec);
+        sorter.doneAdding();
+
+        // Collections.sort is stable, as SortingCollection is
+        final List<SAMRecord> expected = new ArrayList<SAMRecord>(records);
+        Collections.sort(expected, new SAMRecordCoordinateComparator());
+
+        final CloseableIterator<SAMRecord> iterator = sorter.iterator();
+        for (final SAMRecord rec : expected) {
+            Assert.assertTrue(iterator.hasNext());
+            Assert.assertEquals(iterator.next().getSAMString(), rec.getSAMString());
+        }
+        Assert.assertFalse(iterator.hasNext());
+        iterator.close();
+        sorter.cleanup();
+    }
+
+    @Test
+    public void testSpillsOnlyWhenRecordCapOrByteBudgetIsReached() {
+        final List<SAMRecord> records = makeRecords(2000, new Random(42));
+        Assert.assertEquals(sortAndCountSpills(records, Integer.MAX_VALUE, 100000000), 0);
+        Assert.assertEquals(sortAndCountSpills(records, 4000, 100000000), 0);
+        Assert.assertTrue(sortAndCountSpills(records, 1000, 100000000) > 0);
+        Assert.assertTrue(sortAndCountSpills(records, Integer.MAX_VALUE, 10000) > 0);
+    }
+
+    private static int sortAndCountSpills(final List<SAMRecord> records, final int maxRecordsInRam, final long maxBytesInRam) {
+        final PackedSAMRecordSortingCollection sorter = new PackedSAMRecordSortingCollection(records.get(0).getHeader(), maxRecordsInRam, maxBytesInRam, 1, TMP_DIRS);
+        for (final SAMRecord rec : records) sorter.add(rec);
+        sorter.doneAdding();
+        final int numSpilledRuns = sorter.getNumSpilledRuns();
+        sorter.cleanup();
+        return numSpilledRuns;
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testAddAfterDoneAdding() {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+        builder.addFrag("read", 0, 1, false);
+        final PackedSAMRecordSortingCollection sorter = new PackedSAMRecordSortingCollection(builder.getHeader(), 1000000, 1000000, 1, TMP_DIRS);
+        sorter.doneAdding();
+        sorter.add(builder.getRecords().iterator().next());
+    }
+}
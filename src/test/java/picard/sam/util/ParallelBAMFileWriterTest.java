@@ -0,0 +1,66 @@
+package picard.sam.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Tests that ParallelBAMFileWriter writes the same BAM, index and md5 files as htsjdk's BAMFileWriter.
+ */
+public class ParallelBAMFileWriterTest {
+
+    @DataProvider(name = "writerParameters")
+    public Object[][] writerParameters() {
+        return new Object[][]{
+                {0, 2, 36},
+                {10, 2, 36},
+                {20000, 1, 36},
+                {20000, 4, 36},
+                // Records that each span several blocks, whose blocks may be written before the record is queued for indexing
+                {200, 4, 100000}
+        };
+    }
+
+    @Test(dataProvider = "writerParameters")
+    public void testOutputMatchesBAMFileWriter(final int numPairs, final int numThreads, final int readLength) throws IOException {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        builder.setReadLength(readLength);
+        for (int i = 0; i < numPairs; ++i) {
+            builder.addPair("pair" + i, i % 3, 1 + (i * 7) % 100000, 1 + (i * 13) % 100000);
+        }
+        builder.addUnmappedFragment("unmapped");
+
+        final File outputDir = IOUtil.createTempDir("ParallelBAMFileWriterTest.", ".tmp");
+        try {
+            final File expectedBam = new File(outputDir, "expected.bam");
+            final SAMFileWriter expectedWriter = new SAMFileWriterFactory().setCreateIndex(true).setCreateMd5File(true)
+                    .makeBAMWriter(builder.getHeader(), true, expectedBam, 5);
+            for (final SAMRecord rec : builder) expectedWriter.addAlignment(rec);
+            expectedWriter.close();
+
+            final File actualBam = new File(outputDir, "actual.bam");
+            final SAMFileWriter actualWriter = new ParallelBAMFileWriter(builder.getHeader(), true, actualBam, 5, numThreads, true, true);
+            for (final SAMRecord rec : builder) actualWriter.addAlignment(rec);
+            actualWriter.close();
+
+            Assert.assertEquals(Files.readAllBytes(actualBam.toPath()), Files.readAllBytes(expectedBam.toPath()));
+            Assert.assertEquals(Files.readAllBytes(new File(outputDir, "actual.bai").toPath()),
+                    Files.readAllBytes(new File(outputDir, "expected.bai").toPath()));
+            Assert.assertEquals(Files.readAllLines(new File(outputDir, "actual.bam.md5").toPath()),
+                    Files.readAllLines(new File(outputDir, "expected.bam.md5").toPath()));
+        } finally {
+            TestUtil.recursiveDelete(outputDir);
+        }
+    }
+}
@@ -33,8 +33,14 @@ import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.util.IlluminaUtil.IlluminaAdapterPair;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -48,6 +54,7 @@ public class ClippingUtilityTest {
 
         final int result = ClippingUtility.findIndexOfClipSequence(r, c, minMatch, errRate);
         Assert.assertEquals(result, expected, testName);
+        Assert.assertEquals(ClippingUtility.findIndexOfClipSequenceByBase(r, c, minMatch, errRate), expected, testName);
 
     }
 
@@ -369,6 +376,50 @@ public class ClippingUtilityTest {
                 String.format("Expected '%s' to contain '%s'", marker.getAdapters()[0].getName(), adapterPair.getName()));
     }
 
+    @Test
+    public void testAdapterListTruncationKeepsTies() {
+        final AdapterMarker marker = new AdapterMarker(IlluminaAdapterPair.PAIRED_END, IlluminaAdapterPair.FLUIDIGM,
+                IlluminaAdapterPair.TRUSEQ_SMALLRNA).setThresholdForSelectingAdaptersToKeep(10).setNumAdaptersToKeep(1);
+        for (int i = 0; i < 10; ++i) {
+            // Seen equally often, so both are kept, in the order given to the ctor.
+            final IlluminaAdapterPair adapterPair = i % 2 == 0 ? IlluminaAdapterPair.TRUSEQ_SMALLRNA : IlluminaAdapterPair.FLUIDIGM;
+            Assert.assertNotNull(marker.adapterTrimIlluminaSingleRead(createSamRecordWithAdapterSequence(100, adapterPair, 10 + i)));
+        }
+        final AdapterPair[] adapters = marker.getAdapters();
+        Assert.assertEquals(adapters.length, 2);
+        Assert.assertTrue(adapters[0].getName().contains(IlluminaAdapterPair.FLUIDIGM.getName()));
+        Assert.assertTrue(adapters[1].getName().contains(IlluminaAdapterPair.TRUSEQ_SMALLRNA.getName()));
+    }
+
+    @Test
+    public void testConcurrentAdapterTallying() throws Exception {
+        final int numThreads = 8;
+        final int readsPerThread = 400;
+        final AdapterMarker marker = new AdapterMarker(IlluminaAdapterPair.PAIRED_END, IlluminaAdapterPair.FLUIDIGM,
+                IlluminaAdapterPair.TRUSEQ_SMALLRNA).setThresholdForSelectingAdaptersToKeep(1000).setNumAdaptersToKeep(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numThreads; ++t) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < readsPerThread; ++i) {
+                    // Three reads with the FLUIDIGM adapter for every one with TRUSEQ_SMALLRNA.
+                    final IlluminaAdapterPair adapterPair = i % 4 == 0 ? IlluminaAdapterPair.TRUSEQ_SMALLRNA : IlluminaAdapterPair.FLUIDIGM;
+                    final SAMRecord rec = createSamRecordWithAdapterSequence(100, adapterPair, 10 + i % 50);
+                    // Once the list is pruned, TRUSEQ_SMALLRNA is no longer looked for.
+                    final AdapterPair matchedPair = marker.adapterTrimIlluminaSingleRead(rec);
+                    if (adapterPair == IlluminaAdapterPair.FLUIDIGM) Assert.assertNotNull(matchedPair);
+                    Assert.assertTrue(marker.getAdapters().length > 0);
+                }
+            }));
+        }
+        for (final Future<?> future : futures) future.get();
+        executor.shutdown();
+
+        final AdapterPair[] adapters = marker.getAdapters();
+        Assert.assertEquals(adapters.length, 1);
+        Assert.assertTrue(adapters[0].getName().contains(IlluminaAdapterPair.FLUIDIGM.getName()));
+    }
+
     @DataProvider(name="testAdapterListTruncationDataProvider")
     public Object[][] testAdapterListTruncationDataProvider() {
         Object[][] ret = new Object[IlluminaAdapterPair.values().length][];
@@ -377,4 +428,44 @@ public class ClippingUtilityTest {
         }
         return ret;
     }
+
+    /** Returns a read of random bases, with a copy of adapter, mutated and maybe cut off by the end of the read, at a random position. */
+    private static byte[] makeRandomRead(final Random random, final int length, final byte[] adapter, final double errorRate) {
+        final byte[] bases = StringUtil.stringToBytes("ACGTNacgt.");
+        final byte[] read = new byte[length];
+        for (int i = 0; i < length; ++i) read[i] = bases[random.nextInt(random.nextInt(20) == 0 ? bases.length : 4)];
+        if (adapter.length > 0 && random.nextBoolean()) {
+            final int start = random.nextInt(length);
+            for (int i = 0; i < adapter.length && start + i < length; ++i) {
+                read[start + i] = random.nextDouble() < errorRate ? bases[random.nextInt(bases.length)] : adapter[i];
+            }
+        }
+        return read;
+    }
+
+    @Test
+    public void testAdapterMatcherAgreesWithBaseByBase() {
+        final Random random = new Random(42);
+        final List<byte[]> adapters = new ArrayList<>();
+        for (final IlluminaAdapterPair pair : IlluminaAdapterPair.values()) {
+            adapters.add(pair.get3PrimeAdapterBytes());
+            adapters.add(pair.get5PrimeAdapterBytesInReadOrder());
+        }
+        adapters.add(StringUtil.stringToBytes(""));
+        adapters.add(StringUtil.stringToBytes("AGATNNGAAGAGCa"));
+        adapters.add(StringUtil.stringToBytes("AGATCGGAAGAGCACACGTCTGAACTCCAGTCACATCACGATCTCGTATGCCGTCTTCTGCTTGAAAAAAAAAACCCCCCCCCCGGGGGGGGGGTTTTTTTTTT"));
+
+        for (final byte[] adapter : adapters) {
+            final AdapterMatcher matcher = new AdapterMatcher(adapter);
+            for (int n = 0; n < 500; ++n) {
+                final byte[] read = makeRandomRead(random, 1 + random.nextInt(300), adapter, random.nextDouble() * 0.2);
+                final int minMatch = random.nextInt(40) - 1;
+                final double maxErrorRate = random.nextInt(10) == 0 ? 0.5 : random.nextDouble() * 0.25;
+                final int expected = ClippingUtility.findIndexOfClipSequenceByBase(read, adapter, minMatch, maxErrorRate);
+                Assert.assertEquals(matcher.findIndex(read, minMatch, maxErrorRate), expected,
+                        StringUtil.bytesToString(read) + " " + StringUtil.bytesToString(adapter) + " " + minMatch + " " + maxErrorRate);
+                Assert.assertEquals(ClippingUtility.findIndexOfClipSequence(read, adapter, minMatch, maxErrorRate), expected);
+            }
+        }
+    }
 }
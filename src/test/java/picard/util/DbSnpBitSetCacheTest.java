@@ -0,0 +1,154 @@
+package picard.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import picard.cmdline.CommandLineProgramTest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Tests for DbSnpBitSetCache and BuildDbSnpBitSetCache
+ */
+public class DbSnpBitSetCacheTest extends CommandLineProgramTest {
+    private static final File DBSNP = new File("testdata/picard/vcf/mini.dbsnp.vcf");
+
+    private File tmpDir;
+
+    public String getCommandLineProgramName() {
+        return BuildDbSnpBitSetCache.class.getSimpleName();
+    }
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("DbSnpBitSetCacheTest").toFile();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    private File copyDbSnp(final String name) throws IOException {
+        final File copy = new File(tmpDir, name);
+        Files.copy(DBSNP.toPath(), copy.toPath());
+        return copy;
+    }
+
+    /** Asserts that both bitsets agree at and around every variant in the VCF. */
+    private void assertSameSites(final DbSnpBitSetUtil actual, final DbSnpBitSetUtil expected) {
+        final VCFFileReader reader = new VCFFileReader(DBSNP, false);
+        for (final VariantContext vc : reader) {
+            for (int pos = vc.getStart() - 2; pos <= vc.getEnd() + 2; ++pos) {
+                Assert.assertEquals(actual.isDbSnpSite(vc.getContig(), pos), expected.isDbSnpSite(vc.getContig(), pos),
+                        vc.getContig() + ":" + pos);
+            }
+        }
+        reader.close();
+        Assert.assertFalse(actual.isDbSnpSite("no_such_contig", 1));
+        Assert.assertFalse(actual.isDbSnpSite("1", Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testCachedSitesMatchVcf() throws IOException {
+        final File dbSnp = copyDbSnp("matches.dbsnp.vcf");
+        final SAMSequenceDictionary dictionary = SAMSequenceDictionaryExtractor.extractDictionary(dbSnp);
+
+        // Loaded from the VCF, as there is no cache yet
+        final DbSnpBitSetUtil.DbSnpBitSets expected = DbSnpBitSetUtil.createSnpAndIndelBitSets(dbSnp, dictionary);
+        final DbSnpBitSetUtil expectedAll = new DbSnpBitSetUtil(dbSnp, dictionary);
+
+        Assert.assertEquals(runPicardCommandLine(new String[]{"DBSNP=" + dbSnp.getAbsolutePath(), "SD=" + dbSnp.getAbsolutePath()}), 0);
+        Assert.assertTrue(DbSnpBitSetCache.getCacheFile(dbSnp).exists());
+
+        final DbSnpBitSetUtil.DbSnpBitSets cached = DbSnpBitSetUtil.createSnpAndIndelBitSets(dbSnp, dictionary);
+        assertSameSites(cached.snps, expected.snps);
+        assertSameSites(cached.indels, expected.indels);
+        assertSameSites(new DbSnpBitSetUtil(dbSnp, dictionary), expectedAll);
+        assertSameSites(new DbSnpBitSetUtil(dbSnp, null, EnumSet.of(VariantType.deletion)), expected.indels);
+
+        Assert.assertEquals(runPicardCommandLine(new String[]{"DBSNP=" + dbSnp.getAbsolutePath(), "SD=" + dbSnp.getAbsolutePath(), "VERIFY=true"}), 0);
+    }
+
+    @Test
+    public void testStaleCacheIsIgnored() throws IOException {
+        final File dbSnp = copyDbSnp("stale.dbsnp.vcf");
+        final DbSnpBitSetUtil expected = new DbSnpBitSetUtil(dbSnp, null);
+        Assert.assertEquals(runPicardCommandLine(new String[]{"DBSNP=" + dbSnp.getAbsolutePath()}), 0);
+        final DbSnpBitSetCache cache = DbSnpBitSetCache.open(DbSnpBitSetCache.getCacheFile(dbSnp));
+        Assert.assertTrue(cache.isCurrent(dbSnp));
+
+        // Append a copy of the last variant moved further along its contig, so the cache no longer holds all the sites
+        final List<String> lines = Files.readAllLines(dbSnp.toPath());
+        final String[] fields = lines.get(lines.size() - 1).split("\t");
+        final int pos = Integer.parseInt(fields[1]) + 1000;
+        fields[1] = String.valueOf(pos);
+        try (final FileWriter writer = new FileWriter(dbSnp, true)) {
+            writer.write(String.join("\t", fields) + "\n");
+        }
+        Assert.assertFalse(cache.isCurrent(dbSnp));
+        Assert.assertTrue(new DbSnpBitSetUtil(dbSnp, null).isDbSnpSite(fields[0], pos));
+        Assert.assertFalse(expected.isDbSnpSite(fields[0], pos));
+        Assert.assertEquals(runPicardCommandLine(new String[]{"DBSNP=" + dbSnp.getAbsolutePath(), "VERIFY=true"}), 1);
+    }
+
+    @Test
+    public void testTruncatedCacheIsIgnored() throws IOException {
+        final File dbSnp = copyDbSnp("truncated.dbsnp.vcf");
+        final DbSnpBitSetUtil expected = new DbSnpBitSetUtil(dbSnp, null);
+        Assert.assertEquals(runPicardCommandLine(new String[]{"DBSNP=" + dbSnp.getAbsolutePath()}), 0);
+        final File cacheFile = DbSnpBitSetCache.getCacheFile(dbSnp);
+        Assert.assertFalse(new File(cacheFile.getPath() + ".tmp").exists());
+
+        // Cut in the bitsets, and then in the header
+        final byte[] bytes = Files.readAllBytes(cacheFile.toPath());
+        for (final int length : new int[]{bytes.length - 8, 30}) {
+            Files.write(cacheFile.toPath(), Arrays.copyOf(bytes, length));
+            assertSameSites(new DbSnpBitSetUtil(dbSnp, null), expected);
+        }
+    }
+
+    @Test
+    public void testDictionaryCompatibility() throws IOException {
+        final File dbSnp = copyDbSnp("dictionary.dbsnp.vcf");
+        final SAMSequenceDictionary dictionary = SAMSequenceDictionaryExtractor.extractDictionary(dbSnp);
+        final File withoutDictionary = new File(tmpDir, "without.bitset");
+        final File withDictionary = new File(tmpDir, "with.bitset");
+        DbSnpBitSetCache.write(dbSnp, null, withoutDictionary, Optional.empty());
+        DbSnpBitSetCache.write(dbSnp, dictionary, withDictionary, Optional.empty());
+
+        final List<SAMSequenceRecord> otherSequences = new ArrayList<>();
+        for (final SAMSequenceRecord rec : dictionary.getSequences()) {
+            otherSequences.add(new SAMSequenceRecord(rec.getSequenceName(), rec.getSequenceLength() + 1));
+        }
+        final SAMSequenceDictionary otherDictionary = new SAMSequenceDictionary(otherSequences);
+        final SAMSequenceDictionary unrelatedDictionary = new SAMSequenceDictionary(Collections.singletonList(new SAMSequenceRecord("chrUn", 1000)));
+
+        final DbSnpBitSetCache cacheWithout = DbSnpBitSetCache.open(withoutDictionary);
+        Assert.assertTrue(cacheWithout.isCompatible(null));
+        Assert.assertTrue(cacheWithout.isCompatible(dictionary));
+        Assert.assertTrue(cacheWithout.isCompatible(otherDictionary));
+        Assert.assertFalse(cacheWithout.isCompatible(unrelatedDictionary));
+
+        final DbSnpBitSetCache cacheWith = DbSnpBitSetCache.open(withDictionary);
+        Assert.assertTrue(cacheWith.isCompatible(null));
+        Assert.assertTrue(cacheWith.isCompatible(dictionary));
+        Assert.assertFalse(cacheWith.isCompatible(otherDictionary));
+    }
+}
@@ -0,0 +1,86 @@
+package picard.util;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for FisherExactTest.
+ */
+public class FisherExactTestTest {
+
+    @DataProvider(name = "tables")
+    public Object[][] tables() {
+        // Expected p-values computed with exact rational arithmetic
+        return new Object[][]{
+                {1, 9, 11, 3, 0.0027594561852200836},
+                {3, 1, 1, 3, 0.4857142857142857},
+                {20, 5, 3, 30, 4.423044546278259e-08},
+                {500, 600, 550, 480, 0.0002690584480839322},
+                {2000, 2100, 1900, 2200, 0.028579725919776307},
+                {0, 0, 0, 0, 1.0},
+                {5, 0, 0, 0, 1.0},
+                {10, 10, 10, 10, 1.0}
+        };
+    }
+
+    @Test(dataProvider = "tables")
+    public void testPValue(final int a, final int b, final int c, final int d, final double expected) {
+        final FisherExactTest test = new FisherExactTest();
+        Assert.assertEquals(test.twoSidedPValue(a, b, c, d), expected, expected * 1e-9);
+        // Again from the cache
+        Assert.assertEquals(test.twoSidedPValue(a, b, c, d), expected, expected * 1e-9);
+    }
+
+    @Test(dataProvider = "tables")
+    public void testSymmetries(final int a, final int b, final int c, final int d, final double expected) {
+        final FisherExactTest test = new FisherExactTest();
+        final double pValue = test.twoSidedPValue(a, b, c, d);
+        // Swapping rows, swapping columns and transposing give exactly the same p-value
+        final int[][] tables = {{c, d, a, b}, {b, a, d, c}, {d, c, b, a}, {a, c, b, d}, {c, a, d, b}, {b, d, a, c}, {d, b, c, a}};
+        for (final int[] t : tables) {
+            Assert.assertEquals(test.twoSidedPValue(t[0], t[1], t[2], t[3]), pValue);
+        }
+    }
+
+    @Test
+    public void testCachingDoesNotChangePValues() {
+        final FisherExactTest uncached = new FisherExactTest(FisherExactTest.DEFAULT_MAX_EXACT_DEPTH, 0);
+        // A tiny cache, so that entries are overwritten
+        final FisherExactTest cached = new FisherExactTest(FisherExactTest.DEFAULT_MAX_EXACT_DEPTH, 16);
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; ++i) {
+            final int a = random.nextInt(30), b = random.nextInt(30), c = random.nextInt(30), d = random.nextInt(30);
+            Assert.assertEquals(cached.twoSidedPValue(a, b, c, d), uncached.twoSidedPValue(a, b, c, d));
+        }
+    }
+
+    @Test
+    public void testDeepTablesAreApproximated() {
+        final FisherExactTest exact = new FisherExactTest();
+        final FisherExactTest approximate = new FisherExactTest(100, FisherExactTest.DEFAULT_CACHE_SIZE);
+        final int[][] tables = {{500, 600, 550, 480}, {2000, 2100, 1900, 2200}, {60, 40, 45, 55}, {100, 100, 100, 100}};
+        for (final int[] t : tables) {
+            // Within half a phred
+            final double expected = exact.phredScaledPValue(t[0], t[1], t[2], t[3]);
+            Assert.assertEquals(approximate.phredScaledPValue(t[0], t[1], t[2], t[3]), expected, 0.5);
+        }
+        Assert.assertEquals(approximate.twoSidedPValue(1000, 0, 0, 1000), 0.0, 1e-300);
+        Assert.assertTrue(Double.isFinite(approximate.phredScaledPValue(1000, 0, 0, 1000)));
+        Assert.assertEquals(approximate.twoSidedPValue(200, 0, 0, 0), 1.0);
+    }
+
+    @Test
+    public void testPhredScaledPValue() {
+        final FisherExactTest test = new FisherExactTest();
+        Assert.assertEquals(test.phredScaledPValue(1, 9, 11, 3), -10 * Math.log10(0.0027594561852200836), 1e-6);
+        Assert.assertEquals(test.phredScaledPValue(10, 10, 10, 10), 0.0, 1e-6);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNegativeCount() {
+        new FisherExactTest().twoSidedPValue(1, -1, 1, 1);
+    }
+}
@@ -0,0 +1,180 @@
+package picard.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that IntervalListTools gives the same intervals, with the same names, whether it streams sorted inputs
+ * (ASSUME_SORTED=true) or loads them into memory.
+ */
+public class IntervalListToolsTest {
+    private static final File VCF = new File("testdata/picard/vcf/CEUTrio-indels.vcf");
+
+    private File tmpDir;
+    private final List<File> inputs = new ArrayList<>();
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("IntervalListToolsTest").toFile();
+        final SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+        for (final String contig : Arrays.asList("chr1", "chr2", "chr3")) {
+            dictionary.addSequence(new SAMSequenceRecord(contig, 20000));
+        }
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSequenceDictionary(dictionary);
+
+        // Overlapping, abutting and duplicate intervals, some unnamed and some on the negative strand
+        final Random random = new Random(42);
+        for (int i = 0; i < 3; ++i) {
+            final IntervalList list = new IntervalList(header);
+            for (int j = 0; j < 300; ++j) {
+                final String contig = dictionary.getSequence(random.nextInt(dictionary.size())).getSequenceName();
+                final int start = 1 + random.nextInt(19000);
+                final int end = start + random.nextInt(random.nextBoolean() ? 20 : 500);
+                final String name = random.nextInt(4) == 0 ? null : "list" + i + "_" + j;
+                list.add(new Interval(contig, start, end, random.nextInt(5) == 0, name));
+                if (random.nextInt(10) == 0) list.add(new Interval(contig, start, end, false, "dup" + i + "_" + j));
+                if (random.nextInt(10) == 0) list.add(new Interval(contig, end + 1, end + 50, false, null));
+            }
+            final File file = new File(tmpDir, "input" + i + IntervalList.INTERVAL_LIST_FILE_EXTENSION);
+            list.sorted().write(file);
+            inputs.add(file);
+        }
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    @DataProvider(name = "arguments")
+    public Object[][] arguments() {
+        final List<Object[]> arguments = new ArrayList<>();
+        for (final IntervalListTools.Action action : IntervalListTools.Action.values()) {
+            arguments.add(new Object[]{action, new String[]{}});
+            arguments.add(new Object[]{action, new String[]{"UNIQUE=true"}});
+            arguments.add(new Object[]{action, new String[]{"PADDING=25", "INVERT=true"}});
+            arguments.add(new Object[]{action, new String[]{"PADDING=5", "BREAK_BANDS_AT_MULTIPLES_OF=1000"}});
+        }
+        return arguments.toArray(new Object[arguments.size()][]);
+    }
+
+    @Test(dataProvider = "arguments")
+    public void testStreamingMatchesInMemory(final IntervalListTools.Action action, final String[] extraArgs) throws IOException {
+        final List<String> args = new ArrayList<>(Arrays.asList(extraArgs));
+        args.add("ACTION=" + action);
+        args.add("INPUT=" + inputs.get(0));
+        args.add("INPUT=" + inputs.get(1));
+        if (action == IntervalListTools.Action.SUBTRACT || action == IntervalListTools.Action.SYMDIFF) {
+            args.add("SECOND_INPUT=" + inputs.get(2));
+        } else {
+            args.add("INPUT=" + inputs.get(2));
+        }
+        assertSameOutput(args);
+    }
+
+    @DataProvider(name = "scatterArguments")
+    public Object[][] scatterArguments() {
+        final List<Object[]> arguments = new ArrayList<>();
+        for (final IntervalListScatterer.Mode mode : IntervalListScatterer.Mode.values()) {
+            for (final int scatterCount : new int[]{2, 7, 50}) {
+                arguments.add(new Object[]{mode, scatterCount});
+            }
+        }
+        return arguments.toArray(new Object[arguments.size()][]);
+    }
+
+    @Test(dataProvider = "scatterArguments")
+    public void testStreamingScatterMatchesInMemory(final IntervalListScatterer.Mode mode, final int scatterCount) throws IOException {
+        final List<String> args = new ArrayList<>();
+        args.add("ACTION=UNION");
+        args.add("SUBDIVISION_MODE=" + mode);
+        args.add("SCATTER_COUNT=" + scatterCount);
+        args.add("BREAK_BANDS_AT_MULTIPLES_OF=2500");
+        for (final File input : inputs) args.add("INPUT=" + input);
+        assertSameOutput(args);
+    }
+
+    @Test
+    public void testStreamingVcf() throws IOException {
+        assertSameOutput(new ArrayList<>(Arrays.asList("ACTION=CONCAT", "INPUT=" + VCF, "PADDING=100")));
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testStreamingUnsortedInput() throws IOException {
+        final IntervalList list = IntervalList.fromFile(inputs.get(0));
+        final List<Interval> intervals = list.getIntervals();
+        final IntervalList unsorted = new IntervalList(list.getHeader());
+        for (int i = intervals.size() - 1; i >= 0; --i) unsorted.add(intervals.get(i));
+        final File file = new File(tmpDir, "unsorted" + IntervalList.INTERVAL_LIST_FILE_EXTENSION);
+        unsorted.write(file);
+
+        new IntervalListTools().instanceMain(new String[]{
+                "INPUT=" + file,
+                "ASSUME_SORTED=true",
+                "OUTPUT=" + new File(tmpDir, "unsorted.out" + IntervalList.INTERVAL_LIST_FILE_EXTENSION)
+        });
+    }
+
+    /** Runs IntervalListTools with the arguments in memory and streaming, and compares the outputs. */
+    private void assertSameOutput(final List<String> args) throws IOException {
+        final boolean scatter = args.stream().anyMatch(arg -> arg.startsWith("SCATTER_COUNT="));
+        final File inMemory = scatter ? Files.createTempDirectory(tmpDir.toPath(), "inMemory").toFile()
+                : File.createTempFile("inMemory", IntervalList.INTERVAL_LIST_FILE_EXTENSION, tmpDir);
+        final File streamed = scatter ? Files.createTempDirectory(tmpDir.toPath(), "streamed").toFile()
+                : File.createTempFile("streamed", IntervalList.INTERVAL_LIST_FILE_EXTENSION, tmpDir);
+
+        final List<String> inMemoryArgs = new ArrayList<>(args);
+        inMemoryArgs.add("OUTPUT=" + inMemory);
+        Assert.assertEquals(new IntervalListTools().instanceMain(inMemoryArgs.toArray(new String[inMemoryArgs.size()])), 0);
+        final List<String> streamedArgs = new ArrayList<>(args);
+        streamedArgs.add("OUTPUT=" + streamed);
+        streamedArgs.add("ASSUME_SORTED=true");
+        Assert.assertEquals(new IntervalListTools().instanceMain(streamedArgs.toArray(new String[streamedArgs.size()])), 0);
+
+        if (scatter) {
+            final String[] inMemoryDirectories = inMemory.list();
+            final String[] streamedDirectories = streamed.list();
+            Arrays.sort(inMemoryDirectories);
+            Arrays.sort(streamedDirectories);
+            Assert.assertEquals(streamedDirectories, inMemoryDirectories);
+            for (final String directory : inMemoryDirectories) {
+                assertSameIntervals(new File(new File(streamed, directory), "scattered.interval_list"),
+                        new File(new File(inMemory, directory), "scattered.interval_list"));
+            }
+        } else {
+            assertSameIntervals(streamed, inMemory);
+        }
+    }
+
+    private static void assertSameIntervals(final File actual, final File expected) {
+        final IntervalList actualList = IntervalList.fromFile(actual);
+        final IntervalList expectedList = IntervalList.fromFile(expected);
+        Assert.assertEquals(actualList.getHeader().getSequenceDictionary(), expectedList.getHeader().getSequenceDictionary());
+        Assert.assertEquals(actualList.size(), expectedList.size());
+        for (int i = 0; i < expectedList.size(); ++i) {
+            final Interval actualInterval = actualList.getIntervals().get(i);
+            final Interval expectedInterval = expectedList.getIntervals().get(i);
+            Assert.assertEquals(actualInterval.toString(), expectedInterval.toString());
+            Assert.assertEquals(actualInterval.getName(), expectedInterval.getName());
+        }
+    }
+}
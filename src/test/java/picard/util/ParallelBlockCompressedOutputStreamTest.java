@@ -0,0 +1,118 @@
+package picard.util;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that ParallelBlockCompressedOutputStream writes exactly the bytes that BlockCompressedOutputStream writes.
+ */
+public class ParallelBlockCompressedOutputStreamTest {
+
+    @DataProvider(name = "streamParameters")
+    public Object[][] streamParameters() {
+        return new Object[][]{
+                {0, 1, 5, 0},
+                {1000, 1, 5, 0},
+                {1000000, 1, 5, 10},
+                {1000000, 4, 5, 10},
+                {1000000, 4, 1, 0},
+                {1000000, 3, 9, 100},
+                {500000, 2, 0, 3}
+        };
+    }
+
+    @Test(dataProvider = "streamParameters")
+    public void testOutputMatchesBlockCompressedOutputStream(final int numBytes, final int numThreads,
+                                                             final int compressionLevel, final int numFlushes) throws IOException {
+        final Random random = new Random(numBytes + numThreads);
+        // Mildly compressible data, so that both compressed and stored blocks are exercised at level 0
+        final byte[] data = new byte[numBytes];
+        for (int i = 0; i < numBytes; ++i) data[i] = (byte) (random.nextInt(16) + (i % 64 == 0 ? random.nextInt() : 0));
+
+        // Chop the data into writes of varying sizes and pick some of them to be followed by a flush
+        final List<Integer> writeSizes = new ArrayList<Integer>();
+        for (int remaining = numBytes; remaining > 0; ) {
+            final int size = Math.min(remaining, random.nextBoolean() ? 1 : random.nextInt(100000) + 1);
+            writeSizes.add(size);
+            remaining -= size;
+        }
+        final boolean[] flushAfter = new boolean[writeSizes.size()];
+        for (int i = 0; i < numFlushes && writeSizes.size() > 0; ++i) flushAfter[random.nextInt(writeSizes.size())] = true;
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        final BlockCompressedOutputStream serial = new BlockCompressedOutputStream(expected, null, compressionLevel);
+        final ParallelBlockCompressedOutputStream parallel = new ParallelBlockCompressedOutputStream(actual, compressionLevel, numThreads);
+
+        int offset = 0;
+        for (int i = 0; i < writeSizes.size(); ++i) {
+            final int size = writeSizes.get(i);
+            if (size == 1) {
+                serial.write(data[offset]);
+                parallel.write(data[offset]);
+            } else {
+                serial.write(data, offset, size);
+                parallel.write(data, offset, size);
+            }
+            offset += size;
+            if (flushAfter[i]) {
+                serial.flush();
+                parallel.flush();
+            }
+        }
+        serial.close();
+        parallel.close();
+
+        Assert.assertEquals(actual.toByteArray(), expected.toByteArray());
+
+        final BlockCompressedInputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(actual.toByteArray()));
+        final byte[] roundTrip = new byte[numBytes];
+        int read = 0;
+        while (read < numBytes) {
+            final int n = in.read(roundTrip, read, numBytes - read);
+            Assert.assertTrue(n > 0);
+            read += n;
+        }
+        Assert.assertEquals(in.read(), -1);
+        Assert.assertEquals(roundTrip, data);
+    }
+
+    @Test
+    public void testPositionTracksBlocks() throws IOException {
+        final ParallelBlockCompressedOutputStream out = new ParallelBlockCompressedOutputStream(new ByteArrayOutputStream(), 5, 2);
+        final List<long[]> written = new ArrayList<long[]>();
+        out.setBlockListener(new ParallelBlockCompressedOutputStream.BlockListener() {
+            public void blockWritten(final long blockNumber, final long blockAddress, final int compressedSize) {
+                written.add(new long[]{blockNumber, blockAddress, compressedSize});
+            }
+        });
+
+        Assert.assertEquals(out.getPosition(), 0);
+        out.write(new byte[100]);
+        Assert.assertEquals(ParallelBlockCompressedOutputStream.getBlockNumber(out.getPosition()), 0);
+        Assert.assertEquals(ParallelBlockCompressedOutputStream.getBlockOffset(out.getPosition()), 100);
+        out.flush();
+        Assert.assertEquals(ParallelBlockCompressedOutputStream.getBlockNumber(out.getPosition()), 1);
+        Assert.assertEquals(ParallelBlockCompressedOutputStream.getBlockOffset(out.getPosition()), 0);
+        out.write(new byte[200000]);
+        out.close();
+
+        Assert.assertEquals(written.size(), 5);
+        long address = 0;
+        for (int i = 0; i < written.size(); ++i) {
+            Assert.assertEquals(written.get(i)[0], i);
+            Assert.assertEquals(written.get(i)[1], address);
+            address += written.get(i)[2];
+        }
+    }
+}
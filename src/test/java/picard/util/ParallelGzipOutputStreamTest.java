@@ -0,0 +1,137 @@
+package picard.util;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Tests that ParallelGzipOutputStream writes gzip that decompresses to what was written, and in BGZF format exactly the
+ * bytes that BlockCompressedOutputStream writes.
+ */
+public class ParallelGzipOutputStreamTest {
+
+    @DataProvider(name = "streamParameters")
+    public Object[][] streamParameters() {
+        final List<Object[]> ret = new ArrayList<Object[]>();
+        for (final ParallelGzipOutputStream.Format format : ParallelGzipOutputStream.Format.values()) {
+            ret.add(new Object[]{format, 0, 1, 5});
+            ret.add(new Object[]{format, 1000, 1, 5});
+            ret.add(new Object[]{format, 2000000, 1, 5});
+            ret.add(new Object[]{format, 2000000, 4, 1});
+            ret.add(new Object[]{format, 1000000, 3, 0});
+        }
+        return ret.toArray(new Object[ret.size()][]);
+    }
+
+    private static byte[] makeData(final int numBytes, final Random random) {
+        final byte[] data = new byte[numBytes];
+        for (int i = 0; i < numBytes; ++i) data[i] = (byte) (random.nextInt(16) + (i % 64 == 0 ? random.nextInt() : 0));
+        return data;
+    }
+
+    /** Writes data to stream in writes of varying sizes. */
+    private static void writeInPieces(final byte[] data, final OutputStream stream, final Random random) throws IOException {
+        for (int offset = 0; offset < data.length; ) {
+            final int size = Math.min(data.length - offset, random.nextBoolean() ? 1 : random.nextInt(100000) + 1);
+            if (size == 1) stream.write(data[offset]);
+            else stream.write(data, offset, size);
+            offset += size;
+        }
+    }
+
+    private static byte[] gunzip(final byte[] compressed) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            IOUtil.copyStream(in, out);
+        }
+        return out.toByteArray();
+    }
+
+    @Test(dataProvider = "streamParameters")
+    public void testRoundTrip(final ParallelGzipOutputStream.Format format, final int numBytes, final int numThreads,
+                              final int compressionLevel) throws IOException {
+        final Random random = new Random(numBytes + numThreads);
+        final byte[] data = makeData(numBytes, random);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final ParallelGzipOutputStream.DeflaterPool pool = new ParallelGzipOutputStream.DeflaterPool(compressionLevel, numThreads)) {
+            final ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, format, pool);
+            writeInPieces(data, out, random);
+            out.close();
+        }
+        Assert.assertEquals(gunzip(compressed.toByteArray()), data);
+
+        if (format == ParallelGzipOutputStream.Format.BGZF) {
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            final BlockCompressedOutputStream serial = new BlockCompressedOutputStream(expected, null, compressionLevel);
+            serial.write(data);
+            serial.close();
+            Assert.assertEquals(compressed.toByteArray(), expected.toByteArray());
+
+            final ByteArrayOutputStream roundTrip = new ByteArrayOutputStream();
+            IOUtil.copyStream(new BlockCompressedInputStream(new ByteArrayInputStream(compressed.toByteArray())), roundTrip);
+            Assert.assertEquals(roundTrip.toByteArray(), data);
+        }
+    }
+
+    @Test
+    public void testFlushWritesEverything() throws IOException {
+        final byte[] data = makeData(300000, new Random(1));
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final ParallelGzipOutputStream.DeflaterPool pool = new ParallelGzipOutputStream.DeflaterPool(5, 2)) {
+            final ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, ParallelGzipOutputStream.Format.GZIP, pool);
+            out.write(data);
+            out.flush();
+            Assert.assertEquals(gunzip(compressed.toByteArray()), data);
+            out.write(data, 0, 10);
+            out.close();
+        }
+        final byte[] expected = new byte[data.length + 10];
+        System.arraycopy(data, 0, expected, 0, data.length);
+        System.arraycopy(data, 0, expected, data.length, 10);
+        Assert.assertEquals(gunzip(compressed.toByteArray()), expected);
+    }
+
+    /** Many streams written by their own threads share a pool smaller than their number. */
+    @Test
+    public void testStreamsSharingPool() throws Exception {
+        final int numStreams = 12;
+        final byte[][] data = new byte[numStreams][];
+        final ByteArrayOutputStream[] compressed = new ByteArrayOutputStream[numStreams];
+        final ExecutorService writers = Executors.newFixedThreadPool(numStreams);
+        try (final ParallelGzipOutputStream.DeflaterPool pool = new ParallelGzipOutputStream.DeflaterPool(5, 3)) {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < numStreams; ++i) {
+                final int stream = i;
+                data[i] = makeData(500000 + i * 1000, new Random(i));
+                compressed[i] = new ByteArrayOutputStream();
+                futures.add(writers.submit(() -> {
+                    final ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed[stream],
+                            stream % 2 == 0 ? ParallelGzipOutputStream.Format.GZIP : ParallelGzipOutputStream.Format.BGZF, pool);
+                    writeInPieces(data[stream], out, new Random(stream));
+                    out.close();
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) future.get();
+        } finally {
+            writers.shutdown();
+        }
+        for (int i = 0; i < numStreams; ++i) Assert.assertEquals(gunzip(compressed[i].toByteArray()), data[i], "stream " + i);
+    }
+}
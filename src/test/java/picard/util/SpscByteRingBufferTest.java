@@ -0,0 +1,184 @@
+package picard.util;
+
+import htsjdk.samtools.util.Log;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for SpscByteRingBuffer, and a benchmark of it against CircularByteBuffer
+ */
+public class SpscByteRingBufferTest {
+    private final Log log = Log.getInstance(SpscByteRingBufferTest.class);
+
+    private static byte[] randomBytes(final int n, final long seed) {
+        final byte[] bytes = new byte[n];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        // Buffer size, max bytes per write, max bytes per read
+        return new Object[][]{
+                {1, 1, 1},
+                {7, 3, 5},
+                {7, 100, 100},
+                {1000, 17, 1},
+                {1000, 1, 17},
+                {64 * 1024, 10000, 7000}
+        };
+    }
+
+    @Test(dataProvider = "sizes")
+    public void testArrays(final int bufferSize, final int maxWrite, final int maxRead) throws Exception {
+        final byte[] input = randomBytes(300000, bufferSize);
+        final SpscByteRingBuffer fifo = new SpscByteRingBuffer(bufferSize);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        final Thread writer = new Thread(() -> {
+            try {
+                final Random random = new Random(maxWrite);
+                int start = 0;
+                while (start < input.length) {
+                    start += fifo.write(input, start, Math.min(input.length - start, 1 + random.nextInt(maxWrite)));
+                }
+            } catch (final Throwable t) {
+                error.set(t);
+            } finally {
+                fifo.close();
+            }
+        });
+        writer.start();
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Random random = new Random(maxRead);
+        final byte[] buffer = new byte[maxRead];
+        int read;
+        while ((read = fifo.read(buffer, 0, 1 + random.nextInt(maxRead))) > 0) output.write(buffer, 0, read);
+        writer.join();
+
+        Assert.assertNull(error.get());
+        Assert.assertEquals(output.toByteArray(), input);
+        Assert.assertEquals(fifo.getBytesAvailableToRead(), 0);
+        Assert.assertEquals(fifo.read(buffer, 0, 1), 0);
+    }
+
+    @Test(dataProvider = "sizes")
+    public void testChannels(final int bufferSize, final int maxWrite, final int maxRead) throws Exception {
+        final byte[] input = randomBytes(300000, bufferSize);
+        final SpscByteRingBuffer fifo = new SpscByteRingBuffer(bufferSize);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        final Thread writer = new Thread(() -> {
+            try {
+                final ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(input));
+                while (fifo.readFrom(in, maxWrite) > -1) {
+                    // keep reading
+                }
+            } catch (final Throwable t) {
+                error.set(t);
+            } finally {
+                fifo.close();
+            }
+        });
+        writer.start();
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final WritableByteChannel out = Channels.newChannel(output);
+        while (fifo.writeTo(out, maxRead) > -1) {
+            // keep writing
+        }
+        writer.join();
+
+        Assert.assertNull(error.get());
+        Assert.assertEquals(output.toByteArray(), input);
+    }
+
+    @Test
+    public void testCloseWakesWaitingReader() throws Exception {
+        final SpscByteRingBuffer fifo = new SpscByteRingBuffer(16);
+        final Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException ie) {
+                // just close early
+            }
+            fifo.write(new byte[]{1, 2, 3}, 0, 3);
+            fifo.close();
+        });
+        writer.start();
+        final byte[] buffer = new byte[16];
+        Assert.assertEquals(fifo.read(buffer, 0, 16), 3);
+        Assert.assertEquals(fifo.read(buffer, 0, 16), 0);
+        Assert.assertTrue(fifo.isClosed());
+        writer.join();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testWriteAfterClose() {
+        final SpscByteRingBuffer fifo = new SpscByteRingBuffer(16);
+        fifo.close();
+        fifo.write(new byte[1], 0, 1);
+    }
+
+    /** Pipes the same bytes through CircularByteBuffer and SpscByteRingBuffer and logs the throughput of each. */
+    @Test(groups = "slow")
+    public void benchmarkThroughput() throws Exception {
+        final long totalBytes = 4L * 1024 * 1024 * 1024;
+        final int bufferSize = 64 * 1024 * 1024;
+        final int ioSize = 64 * 1024;
+
+        for (int round = 0; round < 2; ++round) {
+            final CircularByteBuffer circular = new CircularByteBuffer(bufferSize);
+            final double circularRate = measure(totalBytes, ioSize,
+                    bytes -> { int start = 0; while (start < bytes.length) start += circular.write(bytes, start, bytes.length - start); },
+                    circular::close,
+                    bytes -> circular.read(bytes, 0, bytes.length) > 0 || !circular.isClosed());
+
+            final SpscByteRingBuffer spsc = new SpscByteRingBuffer(bufferSize);
+            final double spscRate = measure(totalBytes, ioSize,
+                    bytes -> { int start = 0; while (start < bytes.length) start += spsc.write(bytes, start, bytes.length - start); },
+                    spsc::close,
+                    bytes -> spsc.read(bytes, 0, bytes.length) > 0);
+
+            log.info(String.format("Round %d: CircularByteBuffer %.0f MB/s, SpscByteRingBuffer %.0f MB/s", round, circularRate, spscRate));
+        }
+    }
+
+    private interface ByteArrayConsumer {
+        void accept(byte[] bytes);
+    }
+
+    private interface ByteArrayReader {
+        /** Reads into the array, returning false once there is nothing more to read */
+        boolean read(byte[] bytes);
+    }
+
+    /** Returns the MB/s with which totalBytes are written in chunks of ioSize by one thread and read by another. */
+    private static double measure(final long totalBytes, final int ioSize, final ByteArrayConsumer write, final Runnable close,
+                                  final ByteArrayReader read) throws InterruptedException {
+        final byte[] chunk = randomBytes(ioSize, ioSize);
+        final Thread writer = new Thread(() -> {
+            for (long written = 0; written < totalBytes; written += ioSize) write.accept(chunk);
+            close.run();
+        });
+        final long start = System.nanoTime();
+        writer.start();
+        final byte[] buffer = new byte[ioSize];
+        while (read.read(buffer)) {
+            // keep reading
+        }
+        writer.join();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        return totalBytes / (1024.0 * 1024.0) / seconds;
+    }
+}
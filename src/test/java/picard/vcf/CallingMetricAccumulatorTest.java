@@ -1,18 +1,26 @@
 package picard.vcf;
 
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.GenotypeBuilder;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import picard.util.DbSnpBitSetUtil;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 /**
  * Created by farjoun on 12/26/15.
@@ -70,4 +78,81 @@ public class CallingMetricAccumulatorTest {
     public void testGetSingletonSample(final VariantContext vc, final String sample) throws Exception {
         Assert.assertEquals(CallingMetricAccumulator.getSingletonSample(vc), sample);
     }
+
+    @Test
+    public void testMergedResultsMatchSingleAccumulator() {
+        final File testDataDir = new File("testdata/picard/vcf");
+        final VCFFileReader reader = new VCFFileReader(new File(testDataDir, "mini.vcf"), false);
+        final VCFHeader header = reader.getFileHeader();
+        final DbSnpBitSetUtil.DbSnpBitSets dbsnp = DbSnpBitSetUtil.createSnpAndIndelBitSets(new File(testDataDir, "mini.dbsnp.vcf"),
+                header.getSequenceDictionary(), null, Optional.empty());
+
+        final CallingMetricAccumulator single = new CallingMetricAccumulator(dbsnp);
+        single.setup(header);
+        final List<CallingMetricAccumulator> split = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            split.add(new CallingMetricAccumulator(dbsnp));
+            // One accumulator without the header, so that it numbers the samples as it sees them
+            if (i > 0) split.get(i).setup(header);
+        }
+        int n = 0;
+        for (final VariantContext vc : reader) {
+            single.accumulate(vc);
+            split.get(n++ % split.size()).accumulate(vc);
+        }
+        CloserUtil.close(reader);
+
+        final CallingMetricAccumulator.Result expected = CallingMetricAccumulator.Result.merge(Collections.singletonList(single.result()));
+        final List<CallingMetricAccumulator.Result> results = new ArrayList<>();
+        split.forEach(accumulator -> results.add(accumulator.result()));
+        final CallingMetricAccumulator.Result actual = CallingMetricAccumulator.Result.merge(results);
+
+        Assert.assertEquals(actual.summary, expected.summary);
+        Assert.assertEquals(expected.details.size(), 50);
+        Assert.assertEquals(byName(actual.details), byName(expected.details));
+        Assert.assertEquals(names(actual.details), names(expected.details));
+    }
+
+    @Test
+    public void testDetailsAreInHeaderOrder() {
+        final Allele ref = Allele.create("A", true);
+        final Allele alt = Allele.create("C", false);
+        final VCFHeader header = new VCFHeader(Collections.emptySet(), CollectionUtil.makeList("s3", "s1", "s2", "s4"));
+        final File testDataDir = new File("testdata/picard/vcf");
+        final VCFFileReader reader = new VCFFileReader(new File(testDataDir, "mini.vcf"), false);
+        header.setSequenceDictionary(reader.getFileHeader().getSequenceDictionary());
+        CloserUtil.close(reader);
+        final DbSnpBitSetUtil.DbSnpBitSets dbsnp = DbSnpBitSetUtil.createSnpAndIndelBitSets(new File(testDataDir, "mini.dbsnp.vcf"),
+                header.getSequenceDictionary(), null, Optional.empty());
+        final CallingMetricAccumulator accumulator = new CallingMetricAccumulator(dbsnp);
+        accumulator.setup(header);
+
+        // Genotypes out of header order, one of a sample not in the header, and a sample with only hom-ref calls
+        final VariantContextBuilder builder = new VariantContextBuilder("test", "1", 1, 1, CollectionUtil.makeList(ref, alt));
+        accumulator.accumulate(builder.genotypes(CollectionUtil.makeList(
+                new GenotypeBuilder("extra", CollectionUtil.makeList(ref, alt)).make(),
+                new GenotypeBuilder("s2", CollectionUtil.makeList(ref, alt)).make(),
+                new GenotypeBuilder("s4", CollectionUtil.makeList(ref, ref)).make())).make());
+        accumulator.accumulate(builder.start(2).stop(2).genotypes(CollectionUtil.makeList(
+                new GenotypeBuilder("s1", CollectionUtil.makeList(alt, alt)).make(),
+                new GenotypeBuilder("s3", CollectionUtil.makeList(ref, alt)).make())).make());
+
+        final CallingMetricAccumulator.Result result = accumulator.result();
+        Assert.assertEquals(names(result.details), CollectionUtil.makeList("s3", "s1", "s2", "extra"));
+        Assert.assertEquals(names(CallingMetricAccumulator.Result.merge(Collections.singletonList(result)).details),
+                CollectionUtil.makeList("s3", "s1", "s2", "extra"));
+    }
+
+    private static List<String> names(final Iterable<CollectVariantCallingMetrics.VariantCallingDetailMetrics> details) {
+        final List<String> names = new ArrayList<>();
+        details.forEach(detail -> names.add(detail.SAMPLE_ALIAS));
+        return names;
+    }
+
+    private static Map<String, CollectVariantCallingMetrics.VariantCallingDetailMetrics> byName(
+            final Iterable<CollectVariantCallingMetrics.VariantCallingDetailMetrics> details) {
+        final Map<String, CollectVariantCallingMetrics.VariantCallingDetailMetrics> byName = new HashMap<>();
+        details.forEach(detail -> byName.put(detail.SAMPLE_ALIAS, detail));
+        return byName;
+    }
 }
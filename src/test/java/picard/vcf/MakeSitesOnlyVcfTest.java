@@ -0,0 +1,173 @@
+package picard.vcf;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Tests for MakeSitesOnlyVcf
+ */
+public class MakeSitesOnlyVcfTest {
+    private static final File TEST_DATA_PATH = new File("testdata/picard/vcf/");
+    private static final String[] FILTERS = {"PASS", ".", "LowQual", "LowQual;LowDepth"};
+    private static final String[] BASES = {"A", "C", "G", "T"};
+
+    private final Log log = Log.getInstance(MakeSitesOnlyVcfTest.class);
+    private File tmpDir;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("MakeSitesOnlyVcfTest").toFile();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    /** Writes a VCF of random sites with genotypes for the given number of samples, gzipped if its name ends in .gz. */
+    private File writeSyntheticVcf(final String name, final int numSamples, final int numSites) throws IOException {
+        final File vcf = new File(tmpDir, name);
+        final Random random = new Random(42);
+        try (final OutputStream out = IOUtil.openFileForWriting(vcf);
+             final PrintWriter writer = new PrintWriter(new OutputStreamWriter(out))) {
+            writer.println("##fileformat=VCFv4.2");
+            writer.println("##FILTER=<ID=LowQual,Description=\"Low quality\">");
+            writer.println("##FILTER=<ID=LowDepth,Description=\"Low depth\">");
+            writer.println("##INFO=<ID=AC,Number=A,Type=Integer,Description=\"Allele count\">");
+            writer.println("##INFO=<ID=AN,Number=1,Type=Integer,Description=\"Total number of alleles\">");
+            writer.println("##INFO=<ID=DB,Number=0,Type=Flag,Description=\"dbSNP membership\">");
+            writer.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+            writer.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">");
+            writer.println("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Read depth\">");
+            writer.println("##contig=<ID=chr1,length=100000000>");
+            writer.println("##contig=<ID=chr2,length=100000000>");
+            writer.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+            for (int s = 0; s < numSamples; ++s) writer.print("\tsample" + s);
+            writer.println();
+
+            final StringBuilder line = new StringBuilder();
+            for (int i = 0; i < numSites; ++i) {
+                line.setLength(0);
+                final int ref = random.nextInt(BASES.length);
+                final boolean multiAllelic = random.nextInt(10) == 0;
+                line.append(i < numSites / 2 ? "chr1" : "chr2").append('\t').append(1000 + 17 * i).append('\t')
+                        .append(random.nextBoolean() ? "rs" + i : ".").append('\t')
+                        .append(BASES[ref]).append('\t').append(BASES[(ref + 1) % 4]).append(multiAllelic ? "," + BASES[(ref + 2) % 4] : "")
+                        .append('\t').append(random.nextInt(5) == 0 ? "." : String.format("%.2f", random.nextDouble() * 1000))
+                        .append('\t').append(FILTERS[random.nextInt(FILTERS.length)])
+                        .append('\t').append("AC=").append(random.nextInt(numSamples)).append(multiAllelic ? ",1" : "")
+                        .append(";AN=").append(2 * numSamples).append(random.nextBoolean() ? ";DB" : "")
+                        .append("\tGT:GQ:DP");
+                for (int s = 0; s < numSamples; ++s) {
+                    line.append('\t').append(random.nextInt(2)).append('/').append(random.nextInt(2))
+                            .append(':').append(random.nextInt(99)).append(':').append(random.nextInt(60));
+                }
+                writer.println(line);
+            }
+        }
+        return vcf;
+    }
+
+    /** Writes the sites of input by decoding every record and dropping its genotypes. */
+    private static void writeSitesByRecord(final File input, final File output) {
+        final VCFFileReader reader = new VCFFileReader(input, false);
+        final VCFHeader header = new VCFHeader(reader.getFileHeader().getMetaDataInInputOrder());
+        final VariantContextWriter writer = new VariantContextWriterBuilder().setOutputFile(output)
+                .setReferenceDictionary(header.getSequenceDictionary()).unsetOption(Options.INDEX_ON_THE_FLY).build();
+        writer.writeHeader(new VCFHeader(header.getMetaDataInInputOrder(), Collections.<String>emptySet()));
+        for (final VariantContext vc : reader) writer.add(new VariantContextBuilder(vc).genotypes(GenotypesContext.NO_GENOTYPES).make());
+        writer.close();
+        reader.close();
+    }
+
+    @DataProvider(name = "inputs")
+    public Object[][] inputs() throws IOException {
+        return new Object[][]{
+                {new File(TEST_DATA_PATH, "mini.vcf")},
+                {new File(TEST_DATA_PATH, "vcfFormatTest.vcf")},
+                {writeSyntheticVcf("synthetic.vcf", 50, 500)},
+                {writeSyntheticVcf("synthetic.vcf.gz", 50, 500)}
+        };
+    }
+
+    @Test(dataProvider = "inputs")
+    public void testSitesOnlyMatchesDecodedRecords(final File input) {
+        final File expected = new File(tmpDir, input.getName() + ".expected.sites.vcf");
+        final File actual = new File(tmpDir, input.getName() + ".sites.vcf");
+        writeSitesByRecord(input, expected);
+
+        final MakeSitesOnlyVcf program = new MakeSitesOnlyVcf();
+        program.INPUT = input;
+        program.OUTPUT = actual;
+        Assert.assertEquals(program.instanceMain(new String[]{"CREATE_INDEX=false"}), 0);
+        IOUtil.assertFilesEqual(actual, expected);
+    }
+
+    @Test(dataProvider = "inputs")
+    public void testIteratorMatchesVcfFileReader(final File input) {
+        final VCFFileReader reader = new VCFFileReader(input, false);
+        final VCFHeader sitesHeader = new VCFHeader(reader.getFileHeader().getMetaDataInInputOrder());
+        final VCFEncoder encoder = new VCFEncoder(sitesHeader, true, false);
+        final CloseableIterator<VariantContext> expected = reader.iterator();
+        final SitesOnlyVcfIterator actual = new SitesOnlyVcfIterator(input, reader.getFileHeader());
+        int n = 0;
+        while (expected.hasNext()) {
+            Assert.assertTrue(actual.hasNext());
+            final VariantContext site = actual.next();
+            Assert.assertFalse(site.hasGenotypes());
+            Assert.assertEquals(encoder.encode(site), encoder.encode(new VariantContextBuilder(expected.next()).noGenotypes().make()));
+            ++n;
+        }
+        Assert.assertFalse(actual.hasNext());
+        Assert.assertTrue(n > 0);
+        actual.close();
+        reader.close();
+    }
+
+    /** Compares the time taken to make a sites-only VCF from a VCF of many samples with that of decoding every record. */
+    @Test(groups = "slow")
+    public void benchmarkManySampleVcf() throws IOException {
+        final File input = writeSyntheticVcf("benchmark.vcf.gz", 5000, 2000);
+        final File expected = new File(tmpDir, "benchmark.expected.sites.vcf");
+        final File actual = new File(tmpDir, "benchmark.sites.vcf");
+
+        long start = System.nanoTime();
+        writeSitesByRecord(input, expected);
+        final long recordMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        final MakeSitesOnlyVcf program = new MakeSitesOnlyVcf();
+        program.INPUT = input;
+        program.OUTPUT = actual;
+        Assert.assertEquals(program.instanceMain(new String[]{"CREATE_INDEX=false"}), 0);
+        final long sitesMillis = (System.nanoTime() - start) / 1000000;
+
+        IOUtil.assertFilesEqual(actual, expected);
+        log.info("Sites-only VCF of 2000 sites and 5000 samples: " + sitesMillis + "ms reading site columns, " +
+                recordMillis + "ms decoding records");
+    }
+}
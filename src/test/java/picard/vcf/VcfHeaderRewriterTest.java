@@ -0,0 +1,189 @@
+package picard.vcf;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for VcfHeaderRewriter and the tools that use it
+ */
+public class VcfHeaderRewriterTest {
+    private static final File MINI_VCF = new File("testdata/picard/vcf/mini.vcf");
+
+    private File tmpDir;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("VcfHeaderRewriterTest").toFile();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    /** Returns the header with enough extra lines to fill several BGZF blocks, or with just one extra line. */
+    private static VCFHeader withExtraLines(final VCFHeader header, final String key, final int numLines) {
+        final Set<VCFHeaderLine> lines = new LinkedHashSet<>(header.getMetaDataInInputOrder());
+        for (int i = 0; i < numLines; ++i) lines.add(new VCFHeaderLine(key + i, "a line to change the length of the header, number " + i));
+        return new VCFHeader(lines, header.getSampleNamesInOrder());
+    }
+
+    /** Writes the records of MINI_VCF, with the given header, as a bgzipped and tabix-indexed VCF. */
+    private File writeBgzipped(final String name, final VCFHeader header, final boolean singleSample) {
+        final File output = new File(tmpDir, name + ".vcf.gz");
+        final VCFFileReader reader = new VCFFileReader(MINI_VCF, false);
+        final String sample = header.getGenotypeSamples().get(0);
+        final VCFHeader outHeader = singleSample ?
+                new VCFHeader(header.getMetaDataInInputOrder(), Collections.singletonList(sample)) : header;
+        final VariantContextWriter writer = new VariantContextWriterBuilder().setOption(Options.INDEX_ON_THE_FLY)
+                .setOutputFile(output).setReferenceDictionary(outHeader.getSequenceDictionary()).build();
+        writer.writeHeader(outHeader);
+        for (final VariantContext vc : reader) writer.add(singleSample ? vc.subContextFromSample(sample) : vc);
+        writer.close();
+        reader.close();
+        return output;
+    }
+
+    private static List<String> bodyLines(final File vcf) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        final BlockCompressedInputStream in = new BlockCompressedInputStream(vcf);
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (!line.startsWith("#")) lines.add(line);
+        }
+        in.close();
+        return lines;
+    }
+
+    private static List<String> loci(final Iterator<VariantContext> records) {
+        final List<String> loci = new ArrayList<>();
+        while (records.hasNext()) {
+            final VariantContext vc = records.next();
+            loci.add(vc.getContig() + ":" + vc.getStart() + ":" + vc.getAlleles());
+        }
+        return loci;
+    }
+
+    /** Asserts that output has the expected header, the records of input, and an index that finds the same records. */
+    private static void assertRewritten(final File input, final File output, final VCFHeader expectedHeader) throws IOException {
+        final VCFFileReader in = new VCFFileReader(input, true);
+        final VCFFileReader out = new VCFFileReader(output, true);
+        final VCFHeader outHeader = out.getFileHeader();
+        Assert.assertEquals(outHeader.getSampleNamesInOrder(), expectedHeader.getSampleNamesInOrder());
+        Assert.assertEquals(outHeader.getMetaDataInSortedOrder().toString(),
+                expectedHeader.getMetaDataInSortedOrder().toString());
+
+        final List<String> expectedLines = bodyLines(input);
+        Assert.assertFalse(expectedLines.isEmpty());
+        Assert.assertEquals(bodyLines(output), expectedLines);
+        Assert.assertEquals(loci(out.iterator()), loci(in.iterator()));
+
+        final List<VariantContext> records = new ArrayList<>();
+        for (final VariantContext vc : in) records.add(vc);
+        for (final VariantContext vc : records) {
+            final CloseableIterator<VariantContext> expected = in.query(vc.getContig(), vc.getStart() - 1000, vc.getEnd() + 1000);
+            final CloseableIterator<VariantContext> actual = out.query(vc.getContig(), vc.getStart() - 1000, vc.getEnd() + 1000);
+            Assert.assertEquals(loci(actual), loci(expected), vc.toString());
+            expected.close();
+            actual.close();
+        }
+        in.close();
+        out.close();
+    }
+
+    @DataProvider(name = "headerSizes")
+    public Object[][] headerSizes() {
+        return new Object[][]{
+                {0, 1},
+                {5000, 1},
+                {0, 5000},
+                {5000, 5000}
+        };
+    }
+
+    @Test(dataProvider = "headerSizes")
+    public void testRewriteKeepsRecordsAndIndex(final int inputExtraLines, final int outputExtraLines) throws IOException {
+        final VCFHeader miniHeader = new VCFFileReader(MINI_VCF, false).getFileHeader();
+        final File input = writeBgzipped("input." + inputExtraLines + "." + outputExtraLines,
+                withExtraLines(miniHeader, "input", inputExtraLines), false);
+        final VCFHeader newHeader = withExtraLines(new VCFFileReader(input, false).getFileHeader(), "output", outputExtraLines);
+        final File output = new File(tmpDir, "output." + inputExtraLines + "." + outputExtraLines + ".vcf.gz");
+
+        Assert.assertTrue(VcfHeaderRewriter.canRewrite(input, output, true));
+        VcfHeaderRewriter.rewrite(input, newHeader, output, true);
+        assertRewritten(input, output, newHeader);
+    }
+
+    @Test
+    public void testRewriteKeepsFileFormat() throws IOException {
+        // A VCFv4.1 input, whose records are copied as they are, so must still be declared as VCFv4.1
+        final File v42 = writeBgzipped("v42", new VCFFileReader(MINI_VCF, false).getFileHeader(), false);
+        final File input = new File(tmpDir, "v41.vcf.gz");
+        try (final BlockCompressedInputStream in = new BlockCompressedInputStream(v42);
+             final BlockCompressedOutputStream out = new BlockCompressedOutputStream(input)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                out.write((line.replace("##fileformat=VCFv4.2", "##fileformat=VCFv4.1") + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        final File output = new File(tmpDir, "v41.rewritten.vcf.gz");
+        final VCFHeader newHeader = withExtraLines(new VCFFileReader(input, false).getFileHeader(), "output", 1);
+
+        Assert.assertTrue(VcfHeaderRewriter.canRewrite(input, output, false));
+        VcfHeaderRewriter.rewrite(input, newHeader, output, false);
+        try (final BlockCompressedInputStream in = new BlockCompressedInputStream(output)) {
+            Assert.assertEquals(in.readLine(), "##fileformat=VCFv4.1");
+        }
+        Assert.assertEquals(bodyLines(output), bodyLines(input));
+        Assert.assertEquals(new VCFFileReader(output, false).getFileHeader().getSampleNamesInOrder(), newHeader.getSampleNamesInOrder());
+    }
+
+    @Test
+    public void testCanRewrite() {
+        final File input = writeBgzipped("canRewrite", new VCFFileReader(MINI_VCF, false).getFileHeader(), false);
+        Assert.assertTrue(VcfHeaderRewriter.canRewrite(input, new File(tmpDir, "out.vcf.gz"), false));
+        Assert.assertFalse(VcfHeaderRewriter.canRewrite(input, new File(tmpDir, "out.vcf"), false));
+        Assert.assertFalse(VcfHeaderRewriter.canRewrite(MINI_VCF, new File(tmpDir, "out.vcf.gz"), false));
+
+        Assert.assertTrue(new File(input.getPath() + ".tbi").delete());
+        Assert.assertTrue(VcfHeaderRewriter.canRewrite(input, new File(tmpDir, "out.vcf.gz"), false));
+        Assert.assertFalse(VcfHeaderRewriter.canRewrite(input, new File(tmpDir, "out.vcf.gz"), true));
+    }
+
+    @Test
+    public void testRenameSampleInBgzippedVcf() throws IOException {
+        final File input = writeBgzipped("rename", new VCFFileReader(MINI_VCF, false).getFileHeader(), true);
+        final File output = new File(tmpDir, "renamed.vcf.gz");
+        final RenameSampleInVcf program = new RenameSampleInVcf();
+        program.INPUT = input;
+        program.OUTPUT = output;
+        program.NEW_SAMPLE_NAME = "renamed";
+        Assert.assertEquals(program.instanceMain(new String[]{"CREATE_INDEX=true"}), 0);
+
+        final VCFHeader inputHeader = new VCFFileReader(input, false).getFileHeader();
+        assertRewritten(input, output, new VCFHeader(inputHeader.getMetaDataInInputOrder(), Collections.singletonList("renamed")));
+    }
+}
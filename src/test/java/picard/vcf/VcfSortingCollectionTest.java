@@ -0,0 +1,88 @@
+package picard.vcf;
+
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.SortingCollection;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFRecordCodec;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for VcfSortingCollection
+ */
+public class VcfSortingCollectionTest {
+    private static final File SCRAMBLED_VCF = new File("testdata/picard/vcf/CEUTrio-snps-scrambled.1.vcf");
+    private static final List<File> TMP_DIRS = Collections.singletonList(IOUtil.getDefaultTmpDir());
+
+    @DataProvider(name = "sortParameters")
+    public Object[][] sortParameters() {
+        return new Object[][]{
+                {10, 1},
+                {10, 3},
+                {100000, 1},
+                {100000, 3}
+        };
+    }
+
+    /** Sorting must give the records, in the same order, that a SortingCollection of VariantContexts gives. */
+    @Test(dataProvider = "sortParameters")
+    public void testSortMatchesVariantContextSortingCollection(final int maxRecordsInRam, final int numThreads) {
+        final VCFFileReader reader = new VCFFileReader(SCRAMBLED_VCF, false);
+        final VCFHeader header = reader.getFileHeader();
+        final List<VariantContext> first = new ArrayList<>();
+        final List<VariantContext> second = new ArrayList<>();
+        for (final VariantContext vc : reader) {
+            first.add(vc);
+            // A copy at the same position that can be told apart, to check that ties keep the order of the sources
+            second.add(new VariantContextBuilder(vc).id("second").make());
+        }
+        reader.close();
+        final List<List<VariantContext>> sources = Arrays.asList(first, second, first);
+
+        final SortingCollection<VariantContext> expected = SortingCollection.newInstance(VariantContext.class,
+                new VCFRecordCodec(header, true), header.getVCFRecordComparator(), maxRecordsInRam, TMP_DIRS);
+        for (final List<VariantContext> source : sources) source.forEach(expected::add);
+
+        final VcfSortingCollection actual = new VcfSortingCollection(header, true, maxRecordsInRam, TMP_DIRS);
+        actual.addAll(sources, numThreads, null);
+        actual.doneAdding();
+
+        final VCFEncoder encoder = new VCFEncoder(header, true, false);
+        final List<String> expectedLines = new ArrayList<>();
+        final List<String> actualLines = new ArrayList<>();
+        for (final VariantContext vc : expected) expectedLines.add(encoder.encode(vc));
+        for (final VariantContext vc : actual) actualLines.add(encoder.encode(vc));
+        Assert.assertEquals(actualLines.size(), 3 * first.size());
+        Assert.assertEquals(actualLines, expectedLines);
+
+        expected.cleanup();
+        actual.cleanup();
+    }
+
+    @Test
+    public void testAddKeepsInsertionOrderForTies() {
+        final VCFFileReader reader = new VCFFileReader(SCRAMBLED_VCF, false);
+        final VCFHeader header = reader.getFileHeader();
+        final VariantContext vc = reader.iterator().next();
+        reader.close();
+
+        final VcfSortingCollection sorter = new VcfSortingCollection(header, true, 2, TMP_DIRS);
+        for (int i = 0; i < 5; ++i) sorter.add(new VariantContextBuilder(vc).id("id" + i).make());
+        sorter.doneAdding();
+        int i = 0;
+        for (final VariantContext sorted : sorter) Assert.assertEquals(sorted.getID(), "id" + i++);
+        Assert.assertEquals(i, 5);
+        sorter.cleanup();
+    }
+}
@@ -23,18 +23,29 @@
  */
 package picard.vcf.filter;
 
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.ListMap;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
 import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
 import htsjdk.variant.vcf.VCFFileReader;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 import picard.PicardException;
+import picard.util.FisherExactTest;
 import picard.vcf.VcfTestUtils;
 
 import java.io.File;
+import java.io.FileReader;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -156,6 +167,113 @@ public class TestFilterVcf {
         Assert.assertEquals(new TreeSet<String>(filters.keySet()), fails, "Failed sites did not match expected set of failed sites.");
     }
 
+    /** Tests that filtering on several threads gives the same records, in the same order, and counts as on one. */
+    @Test public void testMultiThreadedFiltering() throws Exception {
+        final List<VariantContext> records = new ArrayList<>();
+        try (final VCFFileReader in = new VCFFileReader(new File("testdata/picard/vcf/mini.vcf"), false)) {
+            // Enough records for several batches
+            for (int i = 0; i < 3; ++i) {
+                for (final VariantContext ctx : in) records.add(ctx);
+            }
+        }
+
+        final FilterApplyingVariantIterator expected = newMiniFilterIterator(records, 1);
+        final FilterApplyingVariantIterator actual = newMiniFilterIterator(records, 4);
+        int count = 0;
+        while (expected.hasNext()) {
+            Assert.assertTrue(actual.hasNext());
+            final VariantContext expectedCtx = expected.next();
+            final VariantContext actualCtx = actual.next();
+            Assert.assertEquals(actualCtx.toStringDecodeGenotypes(), expectedCtx.toStringDecodeGenotypes());
+            Assert.assertEquals(actualCtx.getFilters(), expectedCtx.getFilters());
+            for (int i = 0; i < expectedCtx.getNSamples(); ++i) {
+                Assert.assertEquals(actualCtx.getGenotype(i).getFilters(), expectedCtx.getGenotype(i).getFilters());
+            }
+            ++count;
+        }
+        Assert.assertFalse(actual.hasNext());
+        Assert.assertEquals(count, records.size());
+        actual.close();
+
+        final List<FilterMetrics> expectedMetrics = expected.getFilterMetrics();
+        final List<FilterMetrics> actualMetrics = actual.getFilterMetrics();
+        Assert.assertEquals(actualMetrics.size(), 5);
+        for (int i = 0; i < expectedMetrics.size(); ++i) {
+            Assert.assertEquals(actualMetrics.get(i).FILTER, expectedMetrics.get(i).FILTER);
+            Assert.assertEquals(actualMetrics.get(i).EVALUATIONS, expectedMetrics.get(i).EVALUATIONS);
+            Assert.assertEquals(actualMetrics.get(i).FILTERED, expectedMetrics.get(i).FILTERED);
+        }
+        Assert.assertEquals(actualMetrics.get(0).EVALUATIONS, records.size());
+        Assert.assertEquals(actualMetrics.get(4).EVALUATIONS, records.size() * 50L);
+    }
+
+    private FilterApplyingVariantIterator newMiniFilterIterator(final List<VariantContext> records, final int numThreads) {
+        return new FilterApplyingVariantIterator(records.iterator(),
+                CollectionUtil.makeList(new AlleleBalanceFilter(0.3), new FisherStrandFilter(2.0), new QdFilter(2.0)),
+                CollectionUtil.makeList(new GenotypeQualityFilter(30), new DepthFilter(10)),
+                numThreads);
+    }
+
+    /** Tests that the metrics file counts the sites and genotypes each filter filtered out. */
+    @Test public void testFilterMetrics() throws Exception {
+        final File out = VcfTestUtils.createTemporaryIndexedVcfFile("filterVcfTest.", ".vcf.gz");
+        final File metrics = File.createTempFile("filterVcfTest.", ".filter_metrics");
+        metrics.deleteOnExit();
+
+        final FilterVcf filterer = new FilterVcf();
+        filterer.INPUT = INPUT;
+        filterer.OUTPUT = out;
+        filterer.METRICS_FILE = metrics;
+        filterer.THREAD_COUNT = 2;
+        filterer.MIN_AB = 0.4;
+        filterer.MIN_DP = 18;
+        filterer.MIN_GQ = 22;
+        filterer.MAX_FS = 5.0d;
+        Assert.assertEquals(filterer.doWork(), 0);
+
+        final MetricsFile<FilterMetrics, ?> metricsFile = new MetricsFile<>();
+        metricsFile.read(new FileReader(metrics));
+        final Map<String, FilterMetrics> metricsByFilter = new HashMap<>();
+        for (final FilterMetrics metric : metricsFile.getMetrics()) metricsByFilter.put(metric.FILTER, metric);
+        Assert.assertEquals(metricsByFilter.keySet(), CollectionUtil.makeSet("AlleleBalanceFilter", "FisherStrandFilter",
+                "QdFilter", "GenotypeQualityFilter", "DepthFilter"));
+        Assert.assertEquals(metricsByFilter.get("AlleleBalanceFilter").FILTERED, 3);
+        Assert.assertEquals(metricsByFilter.get("FisherStrandFilter").FILTERED, 3);
+        Assert.assertEquals(metricsByFilter.get("QdFilter").FILTERED, 0);
+        Assert.assertEquals(metricsByFilter.get("GenotypeQualityFilter").FILTERED, 1);
+        Assert.assertEquals(metricsByFilter.get("DepthFilter").FILTERED, 4);
+        Assert.assertEquals(metricsByFilter.get("DepthFilter").FILTER_TYPE, "GENOTYPE");
+        Assert.assertEquals(metricsByFilter.get("QdFilter").FILTER_TYPE, "VARIANT");
+        for (final FilterMetrics metric : metricsByFilter.values()) Assert.assertEquals(metric.EVALUATIONS, 23);
+    }
+
+    /** Tests that sites without FS are tested for strand bias using the SB counts summed over samples, if asked to. */
+    @Test public void testFsFromStrandBiasCounts() {
+        final FisherStrandFilter filter = new FisherStrandFilter(20.0, true, FisherExactTest.DEFAULT_MAX_EXACT_DEPTH);
+        final List<Allele> alleles = CollectionUtil.makeList(Allele.create("A", true), Allele.create("C"));
+        // Sums to {{20, 5}, {3, 30}}, whose p-value is 4.4e-8, so FS is 73.5
+        final List<Genotype> genotypes = CollectionUtil.makeList(
+                new GenotypeBuilder("s1", alleles).attribute("SB", new int[]{10, 2, 1, 15}).make(),
+                new GenotypeBuilder("s2", alleles).attribute("SB", "10,3,2,15").make(),
+                new GenotypeBuilder("s3", alleles).make());
+        final VariantContextBuilder builder = new VariantContextBuilder("test", "1", 100, 100, alleles).genotypes(genotypes);
+        Assert.assertEquals(filter.filter(builder.make()), "StrandBias");
+        Assert.assertNull(new FisherStrandFilter(80.0, true, FisherExactTest.DEFAULT_MAX_EXACT_DEPTH).filter(builder.make()));
+        Assert.assertTrue(filter.headerLines().get(0).getDescription().contains("SB"));
+
+        // By default the SB counts are not used
+        Assert.assertNull(new FisherStrandFilter(20.0).filter(builder.make()));
+        Assert.assertFalse(new FisherStrandFilter(20.0).headerLines().get(0).getDescription().contains("SB"));
+
+        // A site's own FS is used if it has one
+        Assert.assertNull(filter.filter(builder.attribute("FS", 10.0).make()));
+
+        // Without FS or SB there is no strand bias
+        final VariantContext noStrandBias = new VariantContextBuilder("test", "1", 100, 100, alleles)
+                .genotypes(new GenotypeBuilder("s1", alleles).make()).make();
+        Assert.assertNull(new FisherStrandFilter(0.0, true, FisherExactTest.DEFAULT_MAX_EXACT_DEPTH).filter(noStrandBias));
+    }
+
     /** Utility method that takes a a VCF and a set of parameters and filters the VCF. */
     private File testFiltering(final File vcf, final String outputExtension, final double minAb, final int minDp, final int minGq, final double maxFs) throws Exception {
         final File out = VcfTestUtils.createTemporaryIndexedVcfFile("filterVcfTest.", outputExtension);